@@ -39,6 +39,7 @@ public class Participant implements Serializable {
 
     private static final long serialVersionUID = 1L;
     KeyPair keyPair;
+    private transient volatile EncodedKeys encodedKeys;
 
     /**
      * Creates a new {@link Participant}, initialized with its key pair.
@@ -123,6 +124,9 @@ public class Participant implements Serializable {
      * {@link PublicKey}s and/or both {@link PrivateKey}s) AND if they are
      * pairwise the same. Two {@link Participant}s are also the same, when both
      * keyPairs are null.
+     * <p>
+     * The encoded keys are compared. They are only encoded once per
+     * {@link KeyPair}, see {@link #hashCode()}.
      *
      * @param other Another object to compare with this one.
      * @return true, if the key pairs are equals, otherwise false.
@@ -142,35 +146,12 @@ public class Participant implements Serializable {
         }
 
         Participant otherParticipant = (Participant) other;
-        KeyPair otherKeyPair = otherParticipant.getKeyPair();
 
-        if (keyPair == null || otherKeyPair == null) {
-            return keyPair == null && otherKeyPair == null;
+        if (keyPair == null || otherParticipant.keyPair == null) {
+            return keyPair == null && otherParticipant.keyPair == null;
         }
 
-        if (keyPair.getPublic() != null
-                && keyPair.getPrivate() == null
-                && otherKeyPair.getPublic() != null
-                && otherKeyPair.getPrivate() == null) {
-            return Arrays.equals(keyPair.getPublic().getEncoded(), otherKeyPair.getPublic().getEncoded());
-        }
-
-        if (keyPair.getPublic() == null
-                && keyPair.getPrivate() != null
-                && otherKeyPair.getPublic() == null
-                && otherKeyPair.getPrivate() != null) {
-            return Arrays.equals(keyPair.getPrivate().getEncoded(), otherKeyPair.getPrivate().getEncoded());
-        }
-
-        if (keyPair.getPublic() != null
-                && keyPair.getPrivate() != null
-                && otherKeyPair.getPublic() != null
-                && otherKeyPair.getPrivate() != null) {
-            return Arrays.equals(keyPair.getPublic().getEncoded(), otherKeyPair.getPublic().getEncoded())
-                    && Arrays.equals(keyPair.getPrivate().getEncoded(), otherKeyPair.getPrivate().getEncoded());
-        }
-
-        return false;
+        return getEncodedKeys().hasSameKeys(otherParticipant.getEncodedKeys());
     }
 
     /**
@@ -178,25 +159,77 @@ public class Participant implements Serializable {
      * hash of the public key (if set) and the private key (if set), whereby the
      * hash codes of the keys depend on their byte values, not the
      * {@link KeyPair} objects.
+     * <p>
+     * Since encoding the keys is expensive, the encoded keys and their hash
+     * code are only calculated once per {@link KeyPair}.
      *
      * @return the hash code
      */
     @Override
     public int hashCode() {
-        int publicKeyHashCode = 0;
-        int privateKeyHashCode = 0;
+        return getEncodedKeys().hashCode;
+    }
+
+    private EncodedKeys getEncodedKeys() {
+        EncodedKeys encoded = encodedKeys;
+
+        if (encoded == null || encoded.keyPair != keyPair) {
+            encoded = new EncodedKeys(keyPair);
+            encodedKeys = encoded;
+        }
+
+        return encoded;
+    }
 
-        if (keyPair.getPublic() != null) {
-            publicKeyHashCode = (new ComparableBytes(getPublicKeyAsBytes())).hashCode();
+    /**
+     * Holds the encoded keys of a {@link KeyPair} and their hash code.
+     */
+    private static class EncodedKeys {
+
+        final KeyPair keyPair;
+        final byte[] publicKey;
+        final byte[] privateKey;
+        final int hashCode;
+
+        EncodedKeys(KeyPair keyPair) {
+            this.keyPair = keyPair;
+            publicKey = keyPair.getPublic() == null ? null : keyPair.getPublic().getEncoded();
+            privateKey = keyPair.getPrivate() == null ? null : keyPair.getPrivate().getEncoded();
+            hashCode = calculateHashCode();
         }
 
-        if (keyPair.getPrivate() != null) {
-            privateKeyHashCode = (new ComparableBytes(getPrivateKeyAsBytes())).hashCode();
+        private int calculateHashCode() {
+            int publicKeyHashCode = 0;
+            int privateKeyHashCode = 0;
+
+            if (publicKey != null) {
+                publicKeyHashCode = (new ComparableBytes(publicKey)).hashCode();
+            }
+
+            if (privateKey != null) {
+                privateKeyHashCode = (new ComparableBytes(privateKey)).hashCode();
+            }
+
+            int hash = 5;
+            hash = 37 * hash + publicKeyHashCode + privateKeyHashCode;
+            return hash;
         }
 
-        int hash = 5;
-        hash = 37 * hash + publicKeyHashCode + privateKeyHashCode;
-        return hash;
+        /**
+         * @return true, if both have the same kinds of keys, at least one,
+         * and these are pairwise equal.
+         */
+        boolean hasSameKeys(EncodedKeys other) {
+            if (hashCode != other.hashCode
+                    || (publicKey == null) != (other.publicKey == null)
+                    || (privateKey == null) != (other.privateKey == null)
+                    || (publicKey == null && privateKey == null)) {
+                return false;
+            }
+
+            return Arrays.equals(publicKey, other.publicKey)
+                    && Arrays.equals(privateKey, other.privateKey);
+        }
     }
 
 }
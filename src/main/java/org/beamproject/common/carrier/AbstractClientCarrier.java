@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+import org.beamproject.common.Participant;
+
+/**
+ * Provides the transport independent parts of a {@link ClientCarrier}: the
+ * binding of {@link Participant}s to topics and the redirection of received
+ * messages to the {@link ClientCarrierModel}.
+ *
+ * @see TopicRouter
+ * @see ClientCarrierImpl
+ * @see AsyncClientCarrierImpl
+ */
+public abstract class AbstractClientCarrier implements ClientCarrier {
+
+    protected final ClientCarrierModel model;
+    final TopicRouter router;
+    ReceivePipeline<ClientCarrierModel> receivePipeline;
+    DuplicateFilter duplicateFilter;
+    AdmissionControl admissionControl;
+
+    protected AbstractClientCarrier(ClientCarrierModel model) {
+        this.model = model;
+
+        router = new TopicRouter();
+    }
+
+    @Override
+    public void bindParticipantToTopic(Participant participant, String topic) {
+        router.bind(participant, topic);
+    }
+
+    @Override
+    public void bindParticipantsToTopics(Map<Participant, String> bindings) {
+        router.bindAll(bindings);
+    }
+
+    @Override
+    public void unbindParticipant(Participant participant) {
+        router.unbind(participant);
+    }
+
+    @Override
+    public void unbindParticipants(Collection<Participant> participants) {
+        router.unbindAll(participants);
+    }
+
+    /**
+     * Lets the given {@link ReceivePipeline} consume the received messages
+     * instead of the thread that receives them. The pipeline has to be
+     * started by the caller, see {@link ReceivePipeline#start()}, and is shut
+     * down together with this carrier.
+     *
+     * @param receivePipeline The pipeline to use, or {@code null} to consume
+     * the messages on the receiving thread.
+     */
+    public void setReceivePipeline(ReceivePipeline<ClientCarrierModel> receivePipeline) {
+        this.receivePipeline = receivePipeline;
+    }
+
+    /**
+     * Drops received messages, which the given {@link DuplicateFilter}
+     * recognizes as duplicates, before they reach the
+     * {@link ClientCarrierModel}.
+     *
+     * @param duplicateFilter The filter to use, or {@code null} to pass all
+     * messages on.
+     */
+    public void setDuplicateFilter(DuplicateFilter duplicateFilter) {
+        this.duplicateFilter = duplicateFilter;
+    }
+
+    /**
+     * Drops received messages, which the given {@link AdmissionControl} does
+     * not admit, before they reach the {@link ClientCarrierModel}.
+     *
+     * @param admissionControl The admission control to use, or {@code null}
+     * to admit all messages.
+     */
+    public void setAdmissionControl(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    /**
+     * Redirects the given message to the {@link ClientCarrierModel}, either
+     * directly or, if configured, via the {@link ReceivePipeline}. If a
+     * {@link AdmissionControl} is configured, messages that are not admitted
+     * are dropped. The same applies to duplicates, if a
+     * {@link DuplicateFilter} is configured. A message that cannot be handed
+     * on is not remembered by the filter, so its redelivery is not dropped.
+     *
+     * @param message The new message to handle.
+     * @param topic The topic on which the message was received.
+     * @throws CarrierException If the topic is not valid or the message is
+     * rejected by the {@link ReceivePipeline}.
+     */
+    @Override
+    public void receive(byte[] message, String topic) {
+        String username = TopicRouter.extractUsername(topic);
+
+        if (admissionControl != null && !admissionControl.admit(message, username)) {
+            return;
+        }
+
+        if (duplicateFilter == null) {
+            dispatch(message, username);
+        } else if (!duplicateFilter.isDuplicate(message)) {
+            try {
+                dispatch(message, username);
+            } catch (RuntimeException ex) {
+                duplicateFilter.forget(message);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Redirects the given message to the {@link ClientCarrierModel}, like
+     * {@link #receive(byte[], String)}, without copying it.
+     *
+     * @param message The new message to handle.
+     * @param topic The topic on which the message was received.
+     * @throws CarrierException If the topic is not valid or the message is
+     * rejected by the {@link ReceivePipeline}.
+     */
+    @Override
+    public void receive(ByteBuffer message, String topic) {
+        String username = TopicRouter.extractUsername(topic);
+
+        if (admissionControl != null && !admissionControl.admit(message, username)) {
+            return;
+        }
+
+        if (duplicateFilter == null) {
+            dispatch(message, username);
+        } else if (!duplicateFilter.isDuplicate(message)) {
+            ByteBuffer unread = message.duplicate();
+
+            try {
+                dispatch(message, username);
+            } catch (RuntimeException ex) {
+                duplicateFilter.forget(unread);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Hands an admitted message to the {@link ClientCarrierModel}, either
+     * directly or via the {@link ReceivePipeline}.
+     *
+     * @param message The admitted message.
+     * @param username The username of the topic on which it was received.
+     */
+    void dispatch(byte[] message, String username) {
+        if (receivePipeline == null) {
+            model.consumeMessage(message, username);
+        } else {
+            receivePipeline.submit(message, username);
+        }
+    }
+
+    /**
+     * Hands an admitted message to the {@link ClientCarrierModel}, like
+     * {@link #dispatch(byte[], String)}.
+     *
+     * @param message The admitted message.
+     * @param username The username of the topic on which it was received.
+     */
+    void dispatch(ByteBuffer message, String username) {
+        if (receivePipeline == null) {
+            model.consumeMessage(message, username);
+        } else {
+            receivePipeline.submit(message, username);
+        }
+    }
+
+    protected void shutdownReceivePipeline() {
+        if (receivePipeline != null) {
+            receivePipeline.shutdown();
+        }
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides whether a received message is admitted to be decrypted and
+ * consumed, before any expensive work is done. A message is rejected if it is
+ * larger than the configured maximal payload size, or if its sender exceeded
+ * its rate.
+ * <p>
+ * Every sender is limited by a token bucket with the configured rate and
+ * burst. The buckets are kept as <i>theoretical arrival times</i> (GCRA) in a
+ * fixed array of slots, one {@code long} each, which are updated lock-free.
+ * A username is mapped to its slot by its hash, so the memory does not grow
+ * with the number of senders. Senders that share a slot also share their
+ * rate; the number of slots should therefore be a multiple of the number of
+ * concurrently active senders.
+ *
+ * @see AbstractClientCarrier#setAdmissionControl(AdmissionControl)
+ * @see ServerCarrierImpl#setAdmissionControl(AdmissionControl)
+ */
+public class AdmissionControl {
+
+    /**
+     * The default maximal size of a message.
+     */
+    public final static int DEFAULT_MAXIMAL_PAYLOAD_SIZE_IN_BYTES = 256 * 1024;
+    /**
+     * The default number of slots, rounded up to a power of two.
+     */
+    public final static int DEFAULT_NUMBER_OF_SLOTS = 1 << 20;
+    private final int maximalPayloadSizeInBytes;
+    private final long emissionIntervalInNanoseconds;
+    private final long toleranceInNanoseconds;
+    private final AtomicLongArray slots;
+    private final int slotMask;
+    private final long origin = System.nanoTime();
+    private final AtomicLong rejectedBySize = new AtomicLong();
+    private final AtomicLong rejectedByRate = new AtomicLong();
+
+    /**
+     * Creates a new {@link AdmissionControl} with
+     * {@link #DEFAULT_NUMBER_OF_SLOTS}.
+     *
+     * @param maximalPayloadSizeInBytes The maximal size of a message.
+     * @param messagesPerSecond The sustained rate allowed per sender.
+     * @param burst The number of messages a sender may send at once.
+     * @throws IllegalArgumentException If at least one argument is not
+     * positive.
+     */
+    public AdmissionControl(int maximalPayloadSizeInBytes, double messagesPerSecond, int burst) {
+        this(maximalPayloadSizeInBytes, messagesPerSecond, burst, DEFAULT_NUMBER_OF_SLOTS);
+    }
+
+    /**
+     * Creates a new {@link AdmissionControl}.
+     *
+     * @param maximalPayloadSizeInBytes The maximal size of a message.
+     * @param messagesPerSecond The sustained rate allowed per sender.
+     * @param burst The number of messages a sender may send at once.
+     * @param numberOfSlots The number of token buckets, rounded up to a power
+     * of two.
+     * @throws IllegalArgumentException If at least one argument is not
+     * positive or the number of slots is larger than 2^30.
+     */
+    public AdmissionControl(int maximalPayloadSizeInBytes, double messagesPerSecond, int burst, int numberOfSlots) {
+        if (maximalPayloadSizeInBytes < 1 || !(messagesPerSecond > 0) || burst < 1
+                || numberOfSlots < 1 || numberOfSlots > (1 << 30)) {
+            throw new IllegalArgumentException("The limits and the number of slots have to be positive.");
+        }
+
+        this.maximalPayloadSizeInBytes = maximalPayloadSizeInBytes;
+        this.emissionIntervalInNanoseconds = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / messagesPerSecond));
+        this.toleranceInNanoseconds = emissionIntervalInNanoseconds * (burst - 1);
+
+        int size = Integer.highestOneBit(numberOfSlots);
+        size = size < numberOfSlots ? size << 1 : size;
+        this.slots = new AtomicLongArray(size);
+        this.slotMask = size - 1;
+    }
+
+    /**
+     * Decides whether the given message of the given sender is admitted. A
+     * rejected message is counted and should be dropped.
+     *
+     * @param message The received message.
+     * @param username The username of the sender.
+     * @return true, if the message is admitted.
+     */
+    public boolean admit(byte[] message, String username) {
+        return admit(message.length, username);
+    }
+
+    /**
+     * Decides whether the given message of the given sender is admitted, like
+     * {@link #admit(byte[], String)}.
+     *
+     * @param message The received message, between the position and the
+     * limit of the buffer.
+     * @param username The username of the sender.
+     * @return true, if the message is admitted.
+     */
+    public boolean admit(ByteBuffer message, String username) {
+        return admit(message.remaining(), username);
+    }
+
+    /**
+     * Decides whether a message of the given size of the given sender is
+     * admitted, like {@link #admit(byte[], String)}. This allows to reject a
+     * message before it is read.
+     *
+     * @param payloadSizeInBytes The size of the received message.
+     * @param username The username of the sender.
+     * @return true, if the message is admitted.
+     */
+    public boolean admit(int payloadSizeInBytes, String username) {
+        if (payloadSizeInBytes > maximalPayloadSizeInBytes) {
+            rejectedBySize.incrementAndGet();
+            return false;
+        }
+
+        if (!tryAcquire(slotOf(username), System.nanoTime() - origin)) {
+            rejectedByRate.incrementAndGet();
+            return false;
+        }
+
+        return true;
+    }
+
+    int slotOf(String username) {
+        int hash = username.hashCode();
+        hash ^= (hash >>> 16);
+        hash *= 0x85ebca6b;
+        hash ^= (hash >>> 13);
+
+        return hash & slotMask;
+    }
+
+    boolean tryAcquire(int slot, long now) {
+        while (true) {
+            long theoreticalArrival = slots.get(slot);
+            long start = Math.max(theoreticalArrival, now);
+
+            if (start - now > toleranceInNanoseconds) {
+                return false;
+            }
+
+            if (slots.compareAndSet(slot, theoreticalArrival, start + emissionIntervalInNanoseconds)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return The number of slots.
+     */
+    public int getNumberOfSlots() {
+        return slots.length();
+    }
+
+    /**
+     * @return The number of messages rejected since they were too large.
+     */
+    public long getRejectedBySize() {
+        return rejectedBySize.get();
+    }
+
+    /**
+     * @return The number of messages rejected since their sender exceeded its
+     * rate.
+     */
+    public long getRejectedByRate() {
+        return rejectedByRate.get();
+    }
+
+}
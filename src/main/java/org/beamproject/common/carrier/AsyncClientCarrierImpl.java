@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import com.google.inject.Inject;
+import org.beamproject.common.util.Executor;
+
+/**
+ * Implements the {@link ClientCarrier} interface using <a
+ * href="http://mqtt.org/">MQTT</a> on top of a single non-blocking
+ * {@link AsyncMqttConnection}.
+ * <p>
+ * Unlike {@link ClientCarrierImpl}, no thread of an {@link Executor} is kept
+ * busy while a message is in flight or while waiting for incoming messages.
+ * Outgoing messages are published through a {@link PublishPipeline}. The
+ * given {@link AsyncMqttConnection} has to be connected already.
+ *
+ * @see ClientCarrier
+ * @see ClientCarrierImpl
+ */
+public class AsyncClientCarrierImpl extends AbstractClientCarrier {
+
+    private final AsyncMqttConnection connection;
+    final PublishPipeline pipeline;
+
+    @Inject
+    public AsyncClientCarrierImpl(ClientCarrierModel model, Executor executor, AsyncMqttConnection connection) {
+        super(model);
+        this.connection = connection;
+        this.pipeline = new PublishPipeline(executor, connection);
+    }
+
+    /**
+     * Delivers the given message to the given topic. This method returns
+     * immediately; failures are logged once the broker rejected the message.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param topic The topic to which to send this message to.
+     * @throws CarrierException If the send queue is full.
+     */
+    @Override
+    public void deliverMessage(byte[] message, String topic) {
+        pipeline.enqueue(topic, message);
+    }
+
+    /**
+     * Delivers the given message to the given topic. This method returns
+     * immediately; failures are logged once the broker rejected the message.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param topic The topic to which to send this message to.
+     * @param delivery The requested guarantee.
+     * @throws CarrierException If the send queue is full.
+     */
+    @Override
+    public void deliverMessage(byte[] message, String topic, Delivery delivery) {
+        pipeline.enqueue(topic, message, delivery);
+    }
+
+    /**
+     * Delivers the given message to the given topic. This method returns
+     * immediately; the returned future completes once the broker acknowledged
+     * the message.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param topic The topic to which to send this message to.
+     * @param delivery The requested guarantee.
+     * @return The future of the delivery.
+     */
+    @Override
+    public DeliveryFuture deliverMessageAsync(byte[] message, String topic, Delivery delivery) {
+        return pipeline.enqueueAsync(topic, message, delivery);
+    }
+
+    /**
+     * Start to receive messages and therefore subscribes this
+     * {@link ClientCarrier}.
+     *
+     * @throws CarrierException If the subscription was not successful.
+     */
+    @Override
+    public void startReceiving() {
+        connection.subscribe(this);
+    }
+
+    /**
+     * Do not receive further messages.
+     *
+     * @throws IllegalStateException If this {@link ClientCarrier} was not
+     * receiving before.
+     * @throws CarrierException If the unsubscription was not successful.
+     */
+    @Override
+    public void stopReceiving() {
+        if (!connection.isSubscribing()) {
+            throw new IllegalStateException("This may only be invoked when receiving.");
+        }
+
+        connection.unsubscribe();
+    }
+
+    @Override
+    public void shutdown() {
+        connection.disconnect();
+        shutdownReceivePipeline();
+    }
+
+}
@@ -0,0 +1,390 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.beamproject.common.util.Exceptions;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.mqtt.client.Callback;
+import org.fusesource.mqtt.client.CallbackConnection;
+import org.fusesource.mqtt.client.Listener;
+import org.fusesource.mqtt.client.MQTT;
+import org.fusesource.mqtt.client.Promise;
+import org.fusesource.mqtt.client.QoS;
+import org.fusesource.mqtt.client.Topic;
+
+/**
+ * Allows to send byte arrays to recipients via <a
+ * href="http://mqtt.org/">MQTT</a> without blocking the invoking thread.
+ * <p>
+ * In contrast to {@link MqttConnection}, a single {@link AsyncMqttConnection}
+ * can have many publications in flight at the same time, and incoming messages
+ * are pushed to the subscribed {@link Carrier} by the I/O thread of the
+ * connection instead of a dedicated receiving thread.
+ * <p>
+ * Like {@link MqttConnection}, a persistent session is used by default. Lost
+ * connections are re-established and subscriptions renewed by the underlying
+ * {@link CallbackConnection}, using the bounds of the {@link ReconnectPolicy}.
+ * Since the delays are not randomized there, the initial delay of every
+ * connection is jittered instead.
+ *
+ * @see MqttConnection
+ * @see AsyncClientCarrierImpl
+ * @see ServerCarrierImpl
+ */
+public class AsyncMqttConnection {
+
+    /**
+     * The time to wait for the broker when connecting, subscribing, and
+     * disconnecting.
+     */
+    public final static long TIMEOUT_IN_MILLISECONDS = 10000;
+    private final static Logger LOG = Logger.getLogger(AsyncMqttConnection.class.getName());
+    private final MQTT mqtt;
+    private final String host;
+    private final int port;
+    private final String username;
+    private final String subscriberTopic;
+    private final String clientId;
+    private final boolean cleanSession;
+    CallbackConnection connection;
+    ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+    volatile Carrier<?> carrier;
+
+    /**
+     * Creates a new {@link AsyncMqttConnection} with a persistent session,
+     * which uses the client id {@code [username]-sub}, like the subscriber
+     * connection of {@link MqttConnectionPoolFactory}.
+     *
+     * @param mqtt The MQTT client to use.
+     * @param host The host of the broker.
+     * @param port The port of the broker.
+     * @param username The MQTT username.
+     * @param subscriberTopic The topic to subscribe to.
+     * @throws IllegalArgumentException If at least one argument is null or the
+     * port is invalid.
+     */
+    public AsyncMqttConnection(MQTT mqtt, String host, int port, String username, String subscriberTopic) {
+        this(mqtt, host, port, username, subscriberTopic, username + "-sub");
+    }
+
+    /**
+     * Creates a new {@link AsyncMqttConnection} with a persistent session.
+     *
+     * @param mqtt The MQTT client to use.
+     * @param host The host of the broker.
+     * @param port The port of the broker.
+     * @param username The MQTT username.
+     * @param subscriberTopic The topic to subscribe to.
+     * @param clientId The client id of the persistent session.
+     * @throws IllegalArgumentException If at least one argument is null or the
+     * port is invalid.
+     */
+    public AsyncMqttConnection(MQTT mqtt, String host, int port, String username, String subscriberTopic, String clientId) {
+        this(mqtt, host, port, username, subscriberTopic, clientId, false);
+    }
+
+    /**
+     * Creates a new {@link AsyncMqttConnection}.
+     *
+     * @param mqtt The MQTT client to use.
+     * @param host The host of the broker.
+     * @param port The port of the broker.
+     * @param username The MQTT username.
+     * @param subscriberTopic The topic to subscribe to.
+     * @param clientId The client id. Two connections to the same broker may
+     * not have the same client id at the same time.
+     * @param cleanSession Whether the broker should discard the session when
+     * the connection is closed, instead of queuing messages for it.
+     * @throws IllegalArgumentException If at least one argument is null or the
+     * port is invalid.
+     */
+    public AsyncMqttConnection(MQTT mqtt, String host, int port, String username, String subscriberTopic, String clientId, boolean cleanSession) {
+        Exceptions.verifyArgumentsNotNull(mqtt, host, username, subscriberTopic, clientId);
+        verifyPort(port);
+
+        this.mqtt = mqtt;
+        this.host = host;
+        this.port = port;
+        this.username = username;
+        this.subscriberTopic = subscriberTopic;
+        this.clientId = clientId;
+        this.cleanSession = cleanSession;
+    }
+
+    private void verifyPort(int port) {
+        if (port < 1 || port > 65535) {
+            throw new IllegalArgumentException("The port is invalid.");
+        }
+    }
+
+    /**
+     * Connects to the configured MQTT broker. This has to be done before
+     * messages may be published or topic subscribed to. This method blocks
+     * until the broker accepted the connection.
+     * <p>
+     * If that does not happen in time, the underlying {@link CallbackConnection}
+     * is disconnected, so it does not keep reconnecting in the background.
+     *
+     * @throws CarrierException If the connection could not be established.
+     */
+    public void connect() {
+        try {
+            mqtt.setHost(host, port);
+            mqtt.setUserName(username);
+            mqtt.setClientId(clientId);
+            mqtt.setCleanSession(cleanSession);
+            mqtt.setConnectAttemptsMax(reconnectPolicy.getMaximalAttempts());
+            mqtt.setReconnectAttemptsMax(-1);
+            mqtt.setReconnectDelay(reconnectPolicy.getDelayInMilliseconds(1));
+            mqtt.setReconnectDelayMax(reconnectPolicy.getMaximalDelayInMilliseconds());
+            mqtt.setReconnectBackOffMultiplier(reconnectPolicy.getMultiplier());
+            connection = mqtt.callbackConnection();
+            connection.listener(new InboundListener());
+
+            final Promise<Void> promise = new Promise<>();
+            connection.connect(promise);
+            promise.await(TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+        } catch (Exception ex) {
+            abandonConnection();
+            throw new CarrierException("Could not connect to broker: " + ex.getMessage());
+        }
+    }
+
+    private void abandonConnection() {
+        final CallbackConnection abandoned = connection;
+        connection = null;
+
+        if (abandoned == null) {
+            return;
+        }
+
+        try {
+            abandoned.getDispatchQueue().execute(new Runnable() {
+                @Override
+                public void run() {
+                    abandoned.disconnect(new Promise<Void>());
+                }
+            });
+        } catch (RuntimeException ex) {
+            LOG.log(Level.WARNING, "Could not disconnect the abandoned connection: {0}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Publishes a {@code message} to the given {@code topic}. This method does
+     * not block; the given {@code callback} is notified as soon as the broker
+     * acknowledged the message or the publication failed.
+     * <p>
+     * The callback is invoked by the I/O thread of this connection and should
+     * therefore return quickly.
+     *
+     * @param topic The topic to publish to.
+     * @param message The message to send.
+     * @param callback The callback to notify.
+     * @throws IllegalArgumentException If at least one argument is null.
+     * @throws IllegalStateException If this connection is not connected.
+     */
+    public void publish(String topic, byte[] message, Callback<Void> callback) {
+        publish(topic, message, Delivery.AT_LEAST_ONCE, callback);
+    }
+
+    /**
+     * Publishes a {@code message} to the given {@code topic} with the given
+     * {@link Delivery}, see {@link #publish(String, byte[], Callback)}. A
+     * message, delivered {@link Delivery#AT_MOST_ONCE}, is not acknowledged;
+     * the {@code callback} is notified as soon as it was written.
+     *
+     * @param topic The topic to publish to.
+     * @param message The message to send.
+     * @param delivery The requested guarantee.
+     * @param callback The callback to notify.
+     * @throws IllegalArgumentException If at least one argument is null.
+     * @throws IllegalStateException If this connection is not connected.
+     */
+    public void publish(final String topic, final byte[] message, final Delivery delivery, final Callback<Void> callback) {
+        Exceptions.verifyArgumentsNotNull(topic, message, delivery, callback);
+        verifyConnected();
+
+        connection.getDispatchQueue().execute(new Runnable() {
+            @Override
+            public void run() {
+                connection.publish(topic, message, delivery.qos, false, callback);
+            }
+        });
+    }
+
+    /**
+     * Subscribes the given {@link Carrier} to the configured topic.
+     * <p>
+     * Incoming messages will be delivered to
+     * {@link Carrier#receive(ByteBuffer, String)}, together with their topic,
+     * without copying the payload, by the I/O thread of this connection and
+     * acknowledged as soon as that method returns.
+     * <p>
+     * This method blocks until the broker confirmed the subscription.
+     *
+     * @param carrier The carrier to subscribe.
+     * @throws IllegalArgumentException If the argument is null.
+     * @throws IllegalStateException If this connection is not connected.
+     * @throws CarrierException If the subscription was not successful.
+     */
+    public void subscribe(Carrier<?> carrier) {
+        Exceptions.verifyArgumentsNotNull(carrier);
+        verifyConnected();
+
+        this.carrier = carrier;
+
+        try {
+            final Topic[] topics = new Topic[]{new Topic(subscriberTopic, QoS.AT_LEAST_ONCE)};
+            final Promise<byte[]> promise = new Promise<>();
+
+            connection.getDispatchQueue().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connection.subscribe(topics, promise);
+                }
+            });
+
+            promise.await(TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+        } catch (Exception ex) {
+            this.carrier = null;
+            throw new CarrierException("Could not subscribe to topic '"
+                    + subscriberTopic + "': " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Stops delivering incoming messages to the subscribed {@link Carrier} and
+     * unsubscribes from the configured topic. This method blocks until the
+     * broker confirmed it. Messages, arriving in the meantime, are not
+     * acknowledged, so the broker delivers them again with the next session.
+     * <p>
+     * This has no effect if no {@link Carrier} is subscribed.
+     *
+     * @throws CarrierException If the unsubscription was not successful.
+     */
+    public void unsubscribe() {
+        if (carrier == null) {
+            return;
+        }
+
+        carrier = null;
+
+        try {
+            final Promise<Void> promise = new Promise<>();
+
+            connection.getDispatchQueue().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connection.unsubscribe(new UTF8Buffer[]{new UTF8Buffer(subscriberTopic)}, promise);
+                }
+            });
+
+            promise.await(TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+        } catch (Exception ex) {
+            throw new CarrierException("Could not unsubscribe from topic '"
+                    + subscriberTopic + "': " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return true, if a {@link Carrier} is subscribed.
+     */
+    public boolean isSubscribing() {
+        return carrier != null;
+    }
+
+    /**
+     * Disconnects from the MQTT broker. If there is a subscription established,
+     * it will be undone first.
+     *
+     * @throws CarrierException If the disconnection was not successful.
+     */
+    public void disconnect() {
+        if (connection == null) {
+            return;
+        }
+
+        try {
+            final Promise<Void> promise = new Promise<>();
+            unsubscribe();
+
+            connection.getDispatchQueue().execute(new Runnable() {
+                @Override
+                public void run() {
+                    connection.disconnect(promise);
+                }
+            });
+
+            promise.await(TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+        } catch (Exception ex) {
+            throw new CarrierException("Could not disconnect: " + ex.getMessage());
+        }
+    }
+
+    private void verifyConnected() {
+        if (connection == null) {
+            throw new IllegalStateException("The connection has to be connected first.");
+        }
+    }
+
+    /**
+     * Receives the events of the underlying {@link CallbackConnection}.
+     */
+    class InboundListener implements Listener {
+
+        @Override
+        public void onConnected() {
+            LOG.log(Level.FINE, "Connected to {0}:{1}", new Object[]{host, port});
+        }
+
+        @Override
+        public void onDisconnected() {
+            LOG.log(Level.FINE, "Disconnected from {0}:{1}", new Object[]{host, port});
+        }
+
+        @Override
+        public void onPublish(UTF8Buffer topic, Buffer payload, Runnable ack) {
+            Carrier<?> receiver = carrier;
+
+            if (receiver == null) {
+                return;
+            }
+
+            try {
+                receiver.receive(payload.toByteBuffer(), topic.toString());
+            } catch (Exception ex) {
+                LOG.log(Level.WARNING, "Could not receive from topic: {0}", ex.getMessage());
+            } finally {
+                ack.run();
+            }
+        }
+
+        @Override
+        public void onFailure(Throwable value) {
+            LOG.log(Level.WARNING, "The connection failed: {0}", value.getMessage());
+        }
+    }
+
+}
@@ -18,6 +18,7 @@
  */
 package org.beamproject.common.carrier;
 
+import java.nio.ByteBuffer;
 import org.beamproject.common.Participant;
 
 /**
@@ -47,12 +48,38 @@ public interface Carrier<T extends CarrierModel> {
      * Delivers the given message to the targeted recipient. Depending on the
      * concrete transport medium, the target may be an MQTT topic or an HTTP
      * server address.
+     * <p>
+     * The message is delivered {@link Delivery#AT_LEAST_ONCE}.
      *
      * @param message The message to send. This has to be already encrypted.
      * @param target The target of the message.
      */
     public void deliverMessage(byte[] message, String target);
 
+    /**
+     * Delivers the given message to the targeted recipient with the given
+     * guarantee. Transport media that cannot distinguish between the
+     * guarantees deliver the message as reliably as they can.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param target The target of the message.
+     * @param delivery The guarantee, see {@link Delivery}.
+     */
+    public void deliverMessage(byte[] message, String target, Delivery delivery);
+
+    /**
+     * Delivers the given message to the targeted recipient with the given
+     * guarantee and returns immediately. The returned {@link DeliveryFuture}
+     * completes once the transport medium confirmed the delivery, or fails if
+     * the message could not be delivered. Failures are therefore never thrown.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param target The target of the message.
+     * @param delivery The guarantee, see {@link Delivery}.
+     * @return The future of the delivery.
+     */
+    public DeliveryFuture deliverMessageAsync(byte[] message, String target, Delivery delivery);
+
     /**
      * Start to receive messages.
      */
@@ -72,6 +99,21 @@ public interface Carrier<T extends CarrierModel> {
      */
     public void receive(byte[] message, String sender);
 
+    /**
+     * Takes a received message and redirects it to the configured
+     * {@link CarrierModel}, like {@link #receive(byte[], String)}, but without
+     * requiring the transport medium to copy the message out of its own buffer
+     * first. The buffer is handed over to the {@link Carrier} and is not
+     * modified by the transport medium afterwards.
+     *
+     * @param message The new message to handle, between the position and the
+     * limit of the buffer.
+     * @param sender Information about the sender.
+     * @throws CarrierException If anything goes wrong during receiving the
+     * message.
+     */
+    public void receive(ByteBuffer message, String sender);
+
     /**
      * Do not receive further messages.
      */
@@ -18,6 +18,9 @@
  */
 package org.beamproject.common.carrier;
 
+import java.nio.ByteBuffer;
+import org.beamproject.common.Participant;
+import org.beamproject.common.crypto.CryptoPacker;
 import org.beamproject.common.message.Message;
 
 /**
@@ -55,6 +58,20 @@ public interface CarrierModel<T extends Carrier> {
      */
     public void consumeMessage(byte[] message, String sender);
 
+    /**
+     * Consumes messages that are being received by the internally used
+     * {@link Carrier}, like {@link #consumeMessage(byte[], String)}, but
+     * without a copy of the received bytes. The message can be decrypted in
+     * place, see
+     * {@link CryptoPacker#decryptAndUnpack(ByteBuffer, Participant)}.
+     *
+     * @param message The message, between the position and the limit of the
+     * buffer.
+     * @param sender Information about the sender, depending on the used
+     * transport medium.
+     */
+    public void consumeMessage(ByteBuffer message, String sender);
+
     /**
      * Encrypts the given message for its recipient and sends it to that via the
      * {@link Carrier} of the {@link CarrierModel}.
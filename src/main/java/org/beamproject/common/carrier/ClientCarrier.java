@@ -18,6 +18,8 @@
  */
 package org.beamproject.common.carrier;
 
+import java.util.Collection;
+import java.util.Map;
 import org.beamproject.common.Participant;
 
 /**
@@ -65,10 +67,25 @@ public interface ClientCarrier extends Carrier<ClientCarrierModel> {
      */
     public void bindParticipantToTopic(Participant participant, String topic);
 
+    /**
+     * Binds all the given {@link Participant}s to their topics at once, see
+     * {@link #bindParticipantToTopic(Participant, String)}.
+     *
+     * @param bindings The topics, mapped by their {@link Participant}s.
+     */
+    public void bindParticipantsToTopics(Map<Participant, String> bindings);
+
     /**
      * Unbinds the given {@link Participant} from a possibly bound topic.
      *
      * @param participant The participant to unbind.
      */
     public void unbindParticipant(Participant participant);
+
+    /**
+     * Unbinds all the given {@link Participant}s at once.
+     *
+     * @param participants The participants to unbind.
+     */
+    public void unbindParticipants(Collection<Participant> participants);
 }
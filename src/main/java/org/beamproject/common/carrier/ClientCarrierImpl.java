@@ -19,72 +19,391 @@
 package org.beamproject.common.carrier;
 
 import com.google.inject.Inject;
-import java.util.concurrent.ConcurrentHashMap;
-import org.beamproject.common.Participant;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.beamproject.common.util.Exceptions;
 import org.beamproject.common.util.Executor;
 import org.beamproject.common.util.Task;
 
 /**
  * Implements the {@link ClientCarrier} interface using <a
  * href="http://mqtt.org/">MQTT</a> to communicate with the clients.
+ * <p>
+ * Outgoing messages are placed in a bounded send queue. Up to
+ * {@link #MAXIMAL_SENDERS} tasks drain that queue concurrently, each of them
+ * borrowing a single {@link MqttConnection} for as many messages as are
+ * queued. If publishing fails, only the affected message fails; the others
+ * stay queued and are published by another sender with a fresh connection.
+ * <p>
+ * If an {@link OutboundSpool} is set, messages that cannot be published are
+ * spooled instead of dropped. The spooled messages are published before the
+ * queued ones, as soon as a connection works again: on the next delivery,
+ * when {@link #retrySpooledMessages()} is invoked, or when a background task,
+ * which retries according to the {@link ReconnectPolicy}, gets a connection.
+ * <p>
+ * If a {@link MqttConnectionSelector} is set, the messages are published via
+ * its shared connections instead of borrowing one from the pool.
+ * <p>
+ * Besides the subscriber topic of the pool, further topics can be received
+ * with {@link #addSubscriberTopic(String)}.
  *
  * @see ClientCarrier
  * @see ClientCarrierModel
  */
-public class ClientCarrierImpl implements ClientCarrier {
+public class ClientCarrierImpl extends AbstractClientCarrier implements SubscribingClientCarrier {
 
-    private final static String TOPIC_REGEX = "(" + MQTT_IN_TOPIC_PREFIX + "|" + MQTT_OUT_TOPIC_PREFIX + ")[a-zA-Z0-9]+";
-    private final ClientCarrierModel model;
+    /**
+     * The number of messages the send queue can hold.
+     */
+    public final static int SEND_QUEUE_CAPACITY = 10000;
+    /**
+     * The maximal number of tasks that send messages concurrently.
+     */
+    public final static int MAXIMAL_SENDERS = 8;
+    private final static Logger LOG = Logger.getLogger(ClientCarrierImpl.class.getName());
     private final Executor executor;
     private final MqttConnectionPool connectionPool;
-    ConcurrentHashMap<Participant, String> topics;
-    MqttConnection subscriberConnection;
+    final BlockingQueue<Publication> sendQueue = new ArrayBlockingQueue<>(SEND_QUEUE_CAPACITY);
+    final AtomicInteger activeSenders = new AtomicInteger(0);
+    final AtomicBoolean isDrainingSpool = new AtomicBoolean(false);
+    final AtomicBoolean isRetryingSpool = new AtomicBoolean(false);
+    ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+    volatile boolean isShutdown = false;
+    volatile OutboundSpool spool;
+    MqttConnectionSelector connectionSelector;
+    volatile MqttConnection subscriberConnection;
+    final Set<String> subscriberTopics = new LinkedHashSet<>();
 
     @Inject
     public ClientCarrierImpl(ClientCarrierModel model, Executor executor, MqttConnectionPool connectionPool) {
-        this.model = model;
+        super(model);
         this.executor = executor;
         this.connectionPool = connectionPool;
-
-        topics = new ConcurrentHashMap<>();
     }
 
+    /**
+     * Delivers the given message to the given topic.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param topic The topic to which to send this message to.
+     * @throws CarrierException If the send queue is full or the message could
+     * not be sent.
+     */
     @Override
-    public void bindParticipantToTopic(Participant participant, String topic) {
-        topics.put(participant, topic);
+    public void deliverMessage(byte[] message, String topic) {
+        deliverMessage(message, topic, Delivery.AT_LEAST_ONCE);
     }
 
+    /**
+     * Delivers the given message to the given topic.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param topic The topic to which to send this message to.
+     * @param delivery The requested guarantee.
+     * @throws CarrierException If the send queue is full or the message could
+     * not be sent.
+     */
     @Override
-    public void unbindParticipant(Participant participant) {
-        topics.remove(participant);
+    public void deliverMessage(byte[] message, String topic, Delivery delivery) {
+        enqueue(new Publication(topic, message, delivery));
     }
 
     /**
-     * Delivers the given message to the given topic.
+     * Delivers the given message to the given topic. This method returns
+     * immediately; the returned future completes once the message was
+     * published. If the message could not be published, the future fails,
+     * even if the message was spooled to be published later.
      *
      * @param message The message to send. This has to be already encrypted.
      * @param topic The topic to which to send this message to.
-     * @throws CarrierException If the message could not be sent.
+     * @param delivery The requested guarantee.
+     * @return The future of the delivery.
      */
     @Override
-    public void deliverMessage(final byte[] message, final String topic) {
-        executor.runAsync(new Task() {
-            @Override
-            public void run() {
+    public DeliveryFuture deliverMessageAsync(byte[] message, String topic, Delivery delivery) {
+        DeliveryFuture future = new DeliveryFuture();
+
+        try {
+            enqueue(new Publication(topic, message, delivery, future));
+        } catch (CarrierException ex) {
+            future.fail(ex);
+        }
+
+        return future;
+    }
+
+    private void enqueue(Publication publication) {
+        if (!sendQueue.offer(publication)) {
+            throw new CarrierException("The message could not be sent: the send queue is full.");
+        }
+
+        startSenderIfPossible();
+    }
+
+    /**
+     * Keeps messages, that could not be published, in the given
+     * {@link OutboundSpool} instead of dropping them.
+     *
+     * @param spool The spool to use, or {@code null} to drop the messages.
+     */
+    public void setSpool(OutboundSpool spool) {
+        this.spool = spool;
+    }
+
+    /**
+     * Publishes the messages via the shared connections of the given
+     * {@link MqttConnectionSelector}, without borrowing a connection from the
+     * pool. The selector is closed together with this carrier.
+     *
+     * @param connectionSelector The selector to use, or {@code null} to borrow
+     * the connections from the pool.
+     */
+    public void setConnectionSelector(MqttConnectionSelector connectionSelector) {
+        this.connectionSelector = connectionSelector;
+    }
+
+    /**
+     * Tries to publish the spooled messages, for example after the broker is
+     * known to be reachable again. This method returns immediately.
+     */
+    public void retrySpooledMessages() {
+        if (spool != null && !spool.isEmpty()) {
+            startSenderIfPossible();
+        }
+    }
+
+    private void startSenderIfPossible() {
+        if (tryToAddSender()) {
+            executor.runAsync(new Task() {
+                @Override
+                public void run() {
+                    drainSendQueue();
+                }
+            });
+        }
+    }
+
+    private boolean tryToAddSender() {
+        int senders = activeSenders.get();
+
+        while (senders < MAXIMAL_SENDERS) {
+            if (activeSenders.compareAndSet(senders, senders + 1)) {
+                return true;
+            }
+
+            senders = activeSenders.get();
+        }
+
+        return false;
+    }
+
+    /**
+     * Publishes the queued messages until the queue is empty. If this fails,
+     * another sender is started with a fresh connection for the messages
+     * still queued, so that they are not left behind without a sender. Since
+     * every failed attempt takes one message off the queue, this ends even if
+     * the broker stays unreachable.
+     */
+    private void drainSendQueue() {
+        try {
+            do {
                 try {
-                    MqttConnection connection = connectionPool.borrowObject();
-                    connection.publish(topic, message);
-                    connectionPool.returnObject(connection);
-                } catch (Exception ex) {
-                    throw new CarrierException("The message could not be sent: " + ex.getMessage());
+                    publishQueuedMessages();
+                } finally {
+                    activeSenders.decrementAndGet();
                 }
+            } while (!sendQueue.isEmpty() && tryToAddSender());
+        } catch (RuntimeException ex) {
+            if (!sendQueue.isEmpty()) {
+                startSenderIfPossible();
             }
-        });
+
+            throw ex;
+        }
+    }
+
+    private void publishQueuedMessages() {
+        MqttConnection connection = null;
+
+        if (connectionSelector == null) {
+            try {
+                connection = connectionPool.borrowObject();
+            } catch (Exception ex) {
+                handleFailure(sendQueue.poll(), ex);
+                return;
+            }
+        }
+
+        Publication publication = null;
+
+        try {
+            publishSpooledMessages(connection);
+
+            while ((publication = sendQueue.poll()) != null) {
+                publish(connection, publication);
+                publication.complete();
+            }
+
+            if (connection != null) {
+                connectionPool.returnObject(connection);
+            }
+        } catch (Exception ex) {
+            if (connection != null) {
+                invalidateConnection(connection);
+            }
+
+            handleFailure(publication == null ? sendQueue.poll() : publication, ex);
+        }
+    }
+
+    /**
+     * Publishes via the given borrowed connection or, if none was borrowed,
+     * via the {@link MqttConnectionSelector}.
+     */
+    private void publish(MqttConnection connection, Publication publication) {
+        if (connection == null) {
+            connectionSelector.publish(publication.topic, publication.message, publication.delivery);
+        } else {
+            connection.publish(publication.topic, publication.message, publication.delivery);
+        }
+    }
+
+    /**
+     * Publishes the spooled messages, oldest first. Only one sender does this
+     * at a time, since a spooled message is acknowledged only after it was
+     * published.
+     */
+    private void publishSpooledMessages(MqttConnection connection) {
+        OutboundSpool currentSpool = spool;
+
+        if (currentSpool == null || currentSpool.isEmpty() || !isDrainingSpool.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            Publication publication;
+
+            while ((publication = currentSpool.peek()) != null) {
+                publish(connection, publication);
+                currentSpool.acknowledge();
+            }
+        } finally {
+            isDrainingSpool.set(false);
+        }
+    }
+
+    /**
+     * Spools the failed message, if a spool is set, or drops it otherwise. Its
+     * future fails either way. The other queued messages are left to the next
+     * sender.
+     *
+     * @param failedPublication The message, which could not be sent, or
+     * {@code null} if there was none left in the queue.
+     * @throws CarrierException If no spool is set.
+     */
+    private void handleFailure(Publication failedPublication, Exception cause) {
+        if (spool == null) {
+            CarrierException exception = new CarrierException("The message could not be sent: " + cause.getMessage());
+
+            if (failedPublication != null) {
+                failedPublication.fail(exception);
+            }
+
+            throw exception;
+        }
+
+        if (failedPublication != null) {
+            spool.append(failedPublication);
+            failedPublication.fail(new CarrierException("The message could not be sent and was spooled: " + cause.getMessage()));
+        }
+
+        LOG.log(Level.WARNING, "Spooled the message, since it could not be sent: {0}", cause.getMessage());
+        startSpoolRetryIfIdle();
+    }
+
+    /**
+     * Starts a task, which publishes the spooled messages as soon as a
+     * connection works again, unless such a task is running already.
+     */
+    private void startSpoolRetryIfIdle() {
+        if (isRetryingSpool.compareAndSet(false, true)) {
+            executor.runAsync(new Task() {
+                @Override
+                public void run() {
+                    retrySpoolUntilDrained();
+                }
+            });
+        }
+    }
+
+    /**
+     * Tries to publish the spooled messages with growing delays until the
+     * spool is drained or closed, or this carrier is shut down.
+     */
+    void retrySpoolUntilDrained() {
+        do {
+            try {
+                for (int failedAttempts = 1; isSpoolPending(); failedAttempts++) {
+                    reconnectPolicy.waitBeforeAttempt(failedAttempts);
+                    tryToPublishSpooledMessages();
+                }
+            } catch (CarrierException ex) {
+                LOG.log(Level.WARNING, "Stopped retrying the spooled messages: {0}", ex.getMessage());
+                isRetryingSpool.set(false);
+                return;
+            }
+
+            isRetryingSpool.set(false);
+        } while (isSpoolPending() && isRetryingSpool.compareAndSet(false, true));
+    }
+
+    private boolean isSpoolPending() {
+        OutboundSpool currentSpool = spool;
+
+        return !isShutdown && currentSpool != null && !currentSpool.isClosed() && !currentSpool.isEmpty();
+    }
+
+    private void tryToPublishSpooledMessages() {
+        MqttConnection connection = null;
+
+        try {
+            if (connectionSelector == null) {
+                connection = connectionPool.borrowObject();
+            }
+
+            publishSpooledMessages(connection);
+
+            if (connection != null) {
+                connectionPool.returnObject(connection);
+            }
+        } catch (Exception ex) {
+            if (connection != null) {
+                invalidateConnection(connection);
+            }
+
+            LOG.log(Level.FINE, "Could not publish the spooled messages yet: {0}", ex.getMessage());
+        }
+    }
+
+    private void invalidateConnection(MqttConnection connection) {
+        try {
+            connectionPool.invalidateObject(connection);
+        } catch (Exception ex) {
+            // The connection is broken anyway.
+        }
     }
 
     /**
      * Start to receive messages and therefore subscribes this
-     * {@link ClientCarrier}.
+     * {@link ClientCarrier}. The subscription uses its own connection with a
+     * persistent session, see
+     * {@link MqttConnectionPool#createSubscriberConnection()}.
      *
      * @throws CarrierException If the subscription was not successful.
      */
@@ -96,11 +415,15 @@ public class ClientCarrierImpl implements ClientCarrier {
             @Override
             public void run() {
                 try {
-                    subscriberConnection = connectionPool.borrowObject();
-                    subscriberConnection.subscribe(thisCarrier);
+                    MqttConnection connection = openSubscriberConnection();
+                    subscriberConnection = connection;
+                    connection.subscribe(thisCarrier);
 
-                    connectionPool.returnObject(subscriberConnection);
-                    subscriberConnection = null;
+                    connection.disconnect();
+
+                    if (subscriberConnection == connection) {
+                        subscriberConnection = null;
+                    }
                 } catch (Exception ex) {
                     throw new CarrierException("Could not subscribe to topic: " + ex.getMessage());
                 }
@@ -108,14 +431,44 @@ public class ClientCarrierImpl implements ClientCarrier {
         });
     }
 
+    /**
+     * Opens the connection, on which {@link #startReceiving()} subscribes, and
+     * adds the topics of {@link #addSubscriberTopic(String)} to it.
+     *
+     * @return The connected subscriber connection.
+     */
+    MqttConnection openSubscriberConnection() {
+        MqttConnection connection = connectionPool.createSubscriberConnection();
+
+        synchronized (this) {
+            subscriberConnection = connection;
+
+            for (String topic : subscriberTopics) {
+                connection.addSubscriberTopic(topic);
+            }
+        }
+
+        return connection;
+    }
+
     @Override
-    public void receive(byte[] message, String topic) {
-        if (!topic.matches(TOPIC_REGEX)) {
-            throw new CarrierException("The topic has to look like [in|out]/[username].");
+    public synchronized void addSubscriberTopic(String topic) {
+        Exceptions.verifyArgumentsNotNull(topic);
+        MqttConnection connection = subscriberConnection;
+
+        if (subscriberTopics.add(topic) && connection != null) {
+            connection.addSubscriberTopic(topic);
         }
+    }
+
+    @Override
+    public synchronized void removeSubscriberTopic(String topic) {
+        Exceptions.verifyArgumentsNotNull(topic);
+        MqttConnection connection = subscriberConnection;
 
-        String username = topic.substring(topic.indexOf('/') + 1);
-        model.consumeMessage(message, username);
+        if (subscriberTopics.remove(topic) && connection != null) {
+            connection.removeSubscriberTopic(topic);
+        }
     }
 
     /**
@@ -126,20 +479,31 @@ public class ClientCarrierImpl implements ClientCarrier {
      */
     @Override
     public void stopReceiving() {
-        if (subscriberConnection == null) {
+        MqttConnection connection = subscriberConnection;
+
+        if (connection == null) {
             throw new IllegalStateException("This may only be invoked when receiving.");
         }
 
-        subscriberConnection.doReceive(false);
+        connection.doReceive(false);
     }
 
     @Override
     public void shutdown() {
-        if (subscriberConnection != null) {
-            stopReceiving();
+        isShutdown = true;
+        MqttConnection connection = subscriberConnection;
+
+        if (connection != null) {
+            connection.doReceive(false);
         }
 
         connectionPool.close();
+
+        if (connectionSelector != null) {
+            connectionSelector.close();
+        }
+
+        shutdownReceivePipeline();
     }
 
 }
@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import org.beamproject.common.util.Exceptions;
+
+/**
+ * Maps keys, for example MQTT usernames, onto a changing set of nodes, for
+ * example MQTT brokers, using consistent hashing: When a node is added or
+ * removed, only the keys of about {@code 1 / [number of nodes]} change their
+ * node.
+ * <p>
+ * Every node is placed on the ring several times (virtual nodes), so that the
+ * keys are distributed evenly even with only a few nodes. A node is identified
+ * by its {@link Object#toString()}, which therefore has to be unique and must
+ * not change.
+ * <p>
+ * The ring is copied on every change, so looking up a key is lock-free and
+ * does not allocate anything beyond the hash of the key.
+ *
+ * @param <T> The type of the nodes.
+ * @see MultiBrokerClientCarrier
+ */
+public class ConsistentHashRing<T> {
+
+    /**
+     * The default number of virtual nodes per node.
+     */
+    public final static int DEFAULT_VIRTUAL_NODES = 160;
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+    private final int virtualNodes;
+    private volatile Snapshot<T> snapshot = new Snapshot<>(new long[0], new Object[0], Collections.<T>emptyList());
+
+    /**
+     * Creates a new {@link ConsistentHashRing} with
+     * {@link #DEFAULT_VIRTUAL_NODES}.
+     */
+    public ConsistentHashRing() {
+        this(DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Creates a new {@link ConsistentHashRing}.
+     *
+     * @param virtualNodes The number of positions of every node on the ring.
+     * @throws IllegalArgumentException If the number is not positive.
+     */
+    public ConsistentHashRing(int virtualNodes) {
+        if (virtualNodes < 1) {
+            throw new IllegalArgumentException("The number of virtual nodes has to be positive.");
+        }
+
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * Adds the given node, if it is not on the ring yet.
+     *
+     * @param node The node to add.
+     * @return true, if the node was added.
+     * @throws IllegalArgumentException If the argument is null.
+     */
+    public synchronized boolean add(T node) {
+        Exceptions.verifyArgumentsNotNull(node);
+
+        if (snapshot.nodes.contains(node)) {
+            return false;
+        }
+
+        List<T> nodes = new ArrayList<>(snapshot.nodes);
+        nodes.add(node);
+        snapshot = build(nodes);
+        return true;
+    }
+
+    /**
+     * Removes the given node, if it is on the ring.
+     *
+     * @param node The node to remove.
+     * @return true, if the node was removed.
+     * @throws IllegalArgumentException If the argument is null.
+     */
+    public synchronized boolean remove(T node) {
+        Exceptions.verifyArgumentsNotNull(node);
+
+        if (!snapshot.nodes.contains(node)) {
+            return false;
+        }
+
+        List<T> nodes = new ArrayList<>(snapshot.nodes);
+        nodes.remove(node);
+        snapshot = build(nodes);
+        return true;
+    }
+
+    private Snapshot<T> build(List<T> nodes) {
+        int size = nodes.size() * virtualNodes;
+        final long[] positions = new long[size];
+        Integer[] order = new Integer[size];
+
+        for (int i = 0; i < size; i++) {
+            positions[i] = hash(nodes.get(i / virtualNodes).toString() + "#" + (i % virtualNodes));
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                return Long.compare(positions[first], positions[second]);
+            }
+        });
+
+        long[] sortedPositions = new long[size];
+        Object[] sortedOwners = new Object[size];
+
+        for (int i = 0; i < size; i++) {
+            sortedPositions[i] = positions[order[i]];
+            sortedOwners[i] = nodes.get(order[i] / virtualNodes);
+        }
+
+        return new Snapshot<>(sortedPositions, sortedOwners, Collections.unmodifiableList(nodes));
+    }
+
+    /**
+     * Finds the node responsible for the given key: the first node on the
+     * ring at or after the hash of the key.
+     *
+     * @param key The key to look up.
+     * @return The node, or {@code null} if the ring is empty.
+     * @throws IllegalArgumentException If the argument is null.
+     */
+    @SuppressWarnings("unchecked")
+    public T get(String key) {
+        Exceptions.verifyArgumentsNotNull(key);
+
+        Snapshot<T> current = snapshot;
+
+        if (current.positions.length == 0) {
+            return null;
+        }
+
+        int index = Arrays.binarySearch(current.positions, hash(key));
+
+        if (index < 0) {
+            index = -index - 1;
+        }
+
+        if (index == current.positions.length) {
+            index = 0;
+        }
+
+        return (T) current.owners[index];
+    }
+
+    /**
+     * @return The nodes on the ring, in the order they were added.
+     */
+    public List<T> getNodes() {
+        return snapshot.nodes;
+    }
+
+    /**
+     * @return The number of nodes on the ring.
+     */
+    public int size() {
+        return snapshot.nodes.size();
+    }
+
+    /**
+     * Hashes the given key with 64 bit FNV-1a over its UTF-8 bytes, followed
+     * by a finalization step that spreads the bits over the whole ring.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (byte b : key.getBytes(UTF_8)) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    /**
+     * The immutable state of the ring: the sorted positions of all virtual
+     * nodes and their owners.
+     */
+    private static class Snapshot<T> {
+
+        final long[] positions;
+        final Object[] owners;
+        final List<T> nodes;
+
+        Snapshot(long[] positions, Object[] owners, List<T> nodes) {
+            this.positions = positions;
+            this.owners = owners;
+            this.nodes = nodes;
+        }
+    }
+
+}
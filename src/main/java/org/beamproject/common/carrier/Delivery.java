@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import org.fusesource.mqtt.client.QoS;
+
+/**
+ * Defines the guarantee a {@link Carrier} gives when delivering a message.
+ * Since a {@link Carrier} never sees the content of a message, the
+ * {@link CarrierModel} has to pick the guarantee before encrypting it.
+ *
+ * @see Carrier#deliverMessage(byte[], String, Delivery)
+ */
+public enum Delivery {
+
+    /**
+     * The message is sent once and never acknowledged or repeated. It may get
+     * lost, for example when the connection fails. This is the fastest option
+     * and suited for messages that are either repeated anyway or may be lost.
+     */
+    AT_MOST_ONCE(QoS.AT_MOST_ONCE),
+    /**
+     * The message is repeated until its reception is acknowledged. It may
+     * therefore be received more than once. This is the default.
+     */
+    AT_LEAST_ONCE(QoS.AT_LEAST_ONCE);
+
+    final QoS qos;
+
+    private Delivery(QoS qos) {
+        this.qos = qos;
+    }
+
+}
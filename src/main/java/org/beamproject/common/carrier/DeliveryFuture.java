@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.beamproject.common.util.Exceptions;
+
+/**
+ * The result of an asynchronous delivery, see
+ * {@link Carrier#deliverMessageAsync(byte[], String, Delivery)}.
+ * <p>
+ * A {@link DeliveryFuture} is completed by the {@link Carrier} as soon as the
+ * message was acknowledged (or, if delivered {@link Delivery#AT_MOST_ONCE},
+ * sent), or failed if that was not possible. Callers can either block on it
+ * or register a {@link Listener}. Since the time of creation and completion
+ * are recorded, the latency of every single delivery can be measured.
+ * <p>
+ * A delivery cannot be cancelled.
+ */
+public class DeliveryFuture implements Future<Void> {
+
+    private final static Logger LOG = Logger.getLogger(DeliveryFuture.class.getName());
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final long createdAtInNanoseconds = System.nanoTime();
+    private final List<Listener> listeners = new ArrayList<>();
+    private volatile long completedAtInNanoseconds;
+    private volatile Throwable failure;
+    private boolean isDone = false;
+
+    /**
+     * Marks the delivery as successful and notifies the listeners. Only the
+     * first completion or failure has an effect.
+     *
+     * @return true, if this invocation completed the delivery.
+     */
+    public boolean complete() {
+        return finish(null);
+    }
+
+    /**
+     * Marks the delivery as failed and notifies the listeners. Only the first
+     * completion or failure has an effect.
+     *
+     * @param cause The reason of the failure.
+     * @return true, if this invocation completed the delivery.
+     * @throws IllegalArgumentException If the argument is null.
+     */
+    public boolean fail(Throwable cause) {
+        Exceptions.verifyArgumentsNotNull(cause);
+
+        return finish(cause);
+    }
+
+    private boolean finish(Throwable cause) {
+        List<Listener> toNotify;
+
+        synchronized (this) {
+            if (isDone) {
+                return false;
+            }
+
+            isDone = true;
+            failure = cause;
+            completedAtInNanoseconds = System.nanoTime();
+            toNotify = new ArrayList<>(listeners);
+            listeners.clear();
+        }
+
+        latch.countDown();
+
+        for (Listener listener : toNotify) {
+            notify(listener);
+        }
+
+        return true;
+    }
+
+    /**
+     * Registers the given {@link Listener}. If the delivery is already done,
+     * the listener is notified immediately by the invoking thread. Otherwise,
+     * it is notified by the thread that completes the delivery, what is
+     * typically an I/O thread; listeners should therefore return quickly.
+     *
+     * @param listener The listener to notify.
+     * @throws IllegalArgumentException If the argument is null.
+     */
+    public void addListener(Listener listener) {
+        Exceptions.verifyArgumentsNotNull(listener);
+
+        synchronized (this) {
+            if (!isDone) {
+                listeners.add(listener);
+                return;
+            }
+        }
+
+        notify(listener);
+    }
+
+    private void notify(Listener listener) {
+        try {
+            listener.onComplete(this);
+        } catch (RuntimeException ex) {
+            LOG.log(Level.WARNING, "A delivery listener failed: {0}", ex.getMessage());
+        }
+    }
+
+    /**
+     * @return false, since a delivery cannot be cancelled.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    /**
+     * @return false, since a delivery cannot be cancelled.
+     */
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return latch.getCount() == 0;
+    }
+
+    /**
+     * @return true, if the delivery is done and was successful.
+     */
+    public boolean isSuccessful() {
+        return isDone() && failure == null;
+    }
+
+    /**
+     * @return The reason of the failure, or {@code null} if the delivery was
+     * successful or is not done yet.
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return The time between the creation and the completion of this
+     * delivery, or -1 if it is not done yet.
+     */
+    public long getLatencyInNanoseconds() {
+        return isDone() ? completedAtInNanoseconds - createdAtInNanoseconds : -1;
+    }
+
+    /**
+     * Waits until the delivery is done.
+     *
+     * @return Always null.
+     * @throws InterruptedException If interrupted while waiting.
+     * @throws ExecutionException If the delivery failed.
+     */
+    @Override
+    public Void get() throws InterruptedException, ExecutionException {
+        latch.await();
+        return result();
+    }
+
+    /**
+     * Waits until the delivery is done, but at most the given time.
+     *
+     * @return Always null.
+     * @throws InterruptedException If interrupted while waiting.
+     * @throws ExecutionException If the delivery failed.
+     * @throws TimeoutException If the delivery is not done in time.
+     */
+    @Override
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException("The delivery was not done in time.");
+        }
+
+        return result();
+    }
+
+    private Void result() throws ExecutionException {
+        if (failure != null) {
+            throw new ExecutionException(failure);
+        }
+
+        return null;
+    }
+
+    /**
+     * Is notified as soon as a delivery is done.
+     */
+    public interface Listener {
+
+        /**
+         * Is invoked once the delivery is done, either successfully or not.
+         *
+         * @param future The done delivery.
+         */
+        public void onComplete(DeliveryFuture future);
+    }
+
+}
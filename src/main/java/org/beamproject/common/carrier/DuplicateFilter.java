@@ -0,0 +1,356 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.beamproject.common.util.Exceptions;
+
+/**
+ * Recognizes messages that were received before, so that redelivered messages
+ * (for example after a reconnection when using
+ * {@link Delivery#AT_LEAST_ONCE}) can be dropped before they are decrypted.
+ * <p>
+ * A message is identified by a 64 bit hash of its (still encrypted) bytes.
+ * Since every encryption uses fresh randomness, two distinct messages do
+ * practically never have the same bytes.
+ * <p>
+ * The hashes of the recently received messages are kept in two Bloom filters,
+ * which are rotated every half window, and in a ring buffer. Most messages are
+ * new and answered by the Bloom filters alone. Only if they report a possible
+ * duplicate, the hash is looked up in the ring buffer to confirm it, so no
+ * message is dropped due to a false positive. The ring buffer is indexed by an
+ * open-addressing hash table, so this lookup takes constant time, even when
+ * every message is a duplicate. A message is only recognized as duplicate
+ * if it was seen within the configured window and among the last
+ * {@code capacity} messages.
+ * <p>
+ * A message is remembered as soon as it is checked. If it cannot be handed on
+ * afterwards, for example since a queue rejected it, it has to be forgotten
+ * again with {@link #forget(byte[])}, so its redelivery is not dropped.
+ *
+ * @see AbstractClientCarrier#setDuplicateFilter(DuplicateFilter)
+ * @see ServerCarrierImpl#setDuplicateFilter(DuplicateFilter)
+ */
+public class DuplicateFilter {
+
+    /**
+     * The default number of messages that are remembered.
+     */
+    public final static int DEFAULT_CAPACITY = 65536;
+    /**
+     * The default time a message is remembered.
+     */
+    public final static long DEFAULT_WINDOW_IN_MILLISECONDS = 60000;
+    private final static int BITS_PER_MESSAGE = 16;
+    private final static int NUMBER_OF_HASHES = 4;
+    private final int capacity;
+    private final long windowInNanoseconds;
+    private final int bitMask;
+    private long[] currentFilter;
+    private long[] previousFilter;
+    private long currentFilterStartedAt;
+    private int currentFilterInsertions = 0;
+    private final long[] ringHashes;
+    private final long[] ringTimes;
+    private final int[] ringIndex;
+    private final int ringIndexMask;
+    private int ringPosition = 0;
+    private int ringSize = 0;
+    private long duplicates = 0;
+
+    /**
+     * Creates a new {@link DuplicateFilter} with {@link #DEFAULT_CAPACITY} and
+     * {@link #DEFAULT_WINDOW_IN_MILLISECONDS}.
+     */
+    public DuplicateFilter() {
+        this(DEFAULT_CAPACITY, DEFAULT_WINDOW_IN_MILLISECONDS);
+    }
+
+    /**
+     * Creates a new {@link DuplicateFilter}.
+     *
+     * @param capacity The number of messages that are remembered.
+     * @param windowInMilliseconds The time a message is remembered.
+     * @throws IllegalArgumentException If an argument is not positive.
+     */
+    public DuplicateFilter(int capacity, long windowInMilliseconds) {
+        if (capacity < 1 || windowInMilliseconds < 1) {
+            throw new IllegalArgumentException("The capacity and the window have to be positive.");
+        }
+
+        this.capacity = capacity;
+        this.windowInNanoseconds = TimeUnit.MILLISECONDS.toNanos(windowInMilliseconds);
+
+        int bits = Integer.highestOneBit(Math.max(64, capacity * BITS_PER_MESSAGE - 1)) << 1;
+        this.bitMask = bits - 1;
+        this.currentFilter = new long[bits / 64];
+        this.previousFilter = new long[bits / 64];
+        this.currentFilterStartedAt = System.nanoTime();
+        this.ringHashes = new long[capacity];
+        this.ringTimes = new long[capacity];
+        this.ringIndex = new int[Integer.highestOneBit(capacity * 2 - 1) << 1];
+        this.ringIndexMask = ringIndex.length - 1;
+    }
+
+    /**
+     * Checks whether the given message was seen before and remembers it
+     * otherwise.
+     *
+     * @param message The received message.
+     * @return true, if the message is a duplicate and should be dropped.
+     * @throws IllegalArgumentException If the argument is null.
+     */
+    public boolean isDuplicate(byte[] message) {
+        Exceptions.verifyArgumentsNotNull(message);
+
+        return isDuplicate(hash(message), System.nanoTime());
+    }
+
+    /**
+     * Checks whether the remaining bytes of the given buffer were received
+     * before, like {@link #isDuplicate(byte[])}. The position of the buffer is
+     * not changed.
+     *
+     * @param message The received message.
+     * @return true, if the message is a duplicate and should be dropped.
+     * @throws IllegalArgumentException If the argument is null.
+     */
+    public boolean isDuplicate(ByteBuffer message) {
+        Exceptions.verifyArgumentsNotNull(message);
+
+        return isDuplicate(hash(message), System.nanoTime());
+    }
+
+    /**
+     * Forgets the given message, which was remembered by
+     * {@link #isDuplicate(byte[])} but could not be handed on, so its
+     * redelivery is not dropped as a duplicate.
+     *
+     * @param message The message to forget.
+     * @throws IllegalArgumentException If the argument is null.
+     */
+    public void forget(byte[] message) {
+        Exceptions.verifyArgumentsNotNull(message);
+
+        forget(hash(message));
+    }
+
+    /**
+     * Forgets the remaining bytes of the given buffer, like
+     * {@link #forget(byte[])}. The position of the buffer is not changed.
+     *
+     * @param message The message to forget.
+     * @throws IllegalArgumentException If the argument is null.
+     */
+    public void forget(ByteBuffer message) {
+        Exceptions.verifyArgumentsNotNull(message);
+
+        forget(hash(message));
+    }
+
+    /**
+     * Removes the hash from the index of the ring buffer. It stays in the
+     * Bloom filters, but since every reported duplicate is confirmed in the
+     * ring buffer, it is not recognized anymore.
+     */
+    synchronized void forget(long hash) {
+        int slot = findSlot(hash);
+
+        if (slot >= 0) {
+            removeFromIndex(ringIndex[slot] - 1);
+        }
+    }
+
+    synchronized boolean isDuplicate(long hash, long now) {
+        rotateIfNecessary(now);
+
+        if (mightContain(currentFilter, hash) || mightContain(previousFilter, hash)) {
+            if (isInRing(hash, now)) {
+                duplicates++;
+                return true;
+            }
+        }
+
+        add(hash, now);
+        return false;
+    }
+
+    private void rotateIfNecessary(long now) {
+        if (now - currentFilterStartedAt >= windowInNanoseconds / 2 || currentFilterInsertions >= capacity / 2 + 1) {
+            long[] cleared = previousFilter;
+            Arrays.fill(cleared, 0);
+            previousFilter = currentFilter;
+            currentFilter = cleared;
+            currentFilterStartedAt = now;
+            currentFilterInsertions = 0;
+        }
+    }
+
+    private boolean mightContain(long[] filter, long hash) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+
+        for (int i = 0; i < NUMBER_OF_HASHES; i++) {
+            int bit = (h1 + i * h2) & bitMask;
+
+            if ((filter[bit >>> 6] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @return true, if the hash is among the last {@code capacity} hashes and
+     * was added within the window.
+     */
+    boolean isInRing(long hash, long now) {
+        int slot = findSlot(hash);
+
+        return slot >= 0 && now - ringTimes[ringIndex[slot] - 1] < windowInNanoseconds;
+    }
+
+    private void add(long hash, long now) {
+        int h1 = (int) hash;
+        int h2 = (int) (hash >>> 32);
+
+        for (int i = 0; i < NUMBER_OF_HASHES; i++) {
+            int bit = (h1 + i * h2) & bitMask;
+            currentFilter[bit >>> 6] |= 1L << bit;
+        }
+
+        currentFilterInsertions++;
+
+        if (ringSize == capacity) {
+            removeFromIndex(ringPosition);
+        }
+
+        ringHashes[ringPosition] = hash;
+        ringTimes[ringPosition] = now;
+        addToIndex(hash, ringPosition);
+        ringPosition = (ringPosition + 1) % capacity;
+        ringSize = Math.min(ringSize + 1, capacity);
+    }
+
+    /**
+     * The slots of the index hold the position in the ring buffer plus one,
+     * or 0 if they are empty. Collisions are resolved by linear probing.
+     */
+    private int homeSlot(long hash) {
+        return (int) (hash ^ (hash >>> 32)) & ringIndexMask;
+    }
+
+    private int findSlot(long hash) {
+        for (int slot = homeSlot(hash); ringIndex[slot] != 0; slot = (slot + 1) & ringIndexMask) {
+            if (ringHashes[ringIndex[slot] - 1] == hash) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Points the index to the given position. If the hash is already indexed,
+     * for example since it was seen before the window, the newer position
+     * replaces the older one.
+     */
+    private void addToIndex(long hash, int position) {
+        int slot = homeSlot(hash);
+
+        while (ringIndex[slot] != 0 && ringHashes[ringIndex[slot] - 1] != hash) {
+            slot = (slot + 1) & ringIndexMask;
+        }
+
+        ringIndex[slot] = position + 1;
+    }
+
+    /**
+     * Removes the given position of the ring buffer from the index, if it is
+     * still indexed. The following entries are shifted back, so no probing
+     * sequence is interrupted.
+     */
+    private void removeFromIndex(int position) {
+        int hole = findSlot(ringHashes[position]);
+
+        if (hole < 0 || ringIndex[hole] != position + 1) {
+            return;
+        }
+
+        for (int slot = (hole + 1) & ringIndexMask; ringIndex[slot] != 0; slot = (slot + 1) & ringIndexMask) {
+            int home = homeSlot(ringHashes[ringIndex[slot] - 1]);
+
+            if (((slot - home) & ringIndexMask) >= ((slot - hole) & ringIndexMask)) {
+                ringIndex[hole] = ringIndex[slot];
+                hole = slot;
+            }
+        }
+
+        ringIndex[hole] = 0;
+    }
+
+    /**
+     * @return The number of duplicates recognized so far.
+     */
+    public synchronized long getDuplicates() {
+        return duplicates;
+    }
+
+    /**
+     * Calculates a 64 bit FNV-1a hash of the given bytes, followed by a final
+     * mixing step so that all bits depend on the whole input.
+     *
+     * @param bytes The bytes to hash.
+     * @return The hash.
+     */
+    static long hash(byte[] bytes) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (byte b : bytes) {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+
+        return mix(hash);
+    }
+
+    static long hash(ByteBuffer buffer) {
+        long hash = 0xcbf29ce484222325L;
+
+        for (int i = buffer.position(); i < buffer.limit(); i++) {
+            hash ^= buffer.get(i) & 0xFF;
+            hash *= 0x100000001b3L;
+        }
+
+        return mix(hash);
+    }
+
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+}
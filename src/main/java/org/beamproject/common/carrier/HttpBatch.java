@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encodes and decodes the bodies of the HTTP requests and responses of
+ * {@link HttpClientCarrier} and {@link HttpServerCarrier}. A body carries any
+ * number of already encrypted messages, each one prefixed with its length as
+ * four byte big-endian integer.
+ */
+class HttpBatch {
+
+    /**
+     * The content type of a batch.
+     */
+    final static String CONTENT_TYPE = "application/octet-stream";
+    /**
+     * The maximal length of a single message in a batch.
+     */
+    final static int MAXIMAL_MESSAGE_LENGTH_IN_BYTES = 16 * 1024 * 1024;
+
+    private HttpBatch() {
+    }
+
+    static byte[] encode(List<byte[]> messages) {
+        int length = 0;
+
+        for (byte[] message : messages) {
+            length += 4 + message.length;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(length);
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        try {
+            for (byte[] message : messages) {
+                output.writeInt(message.length);
+                output.write(message);
+            }
+        } catch (IOException ex) {
+            throw new CarrierException("Could not encode the batch: " + ex.getMessage());
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Reads all messages until the end of the given stream.
+     *
+     * @throws IOException If the stream cannot be read or does not contain a
+     * valid batch.
+     */
+    static List<byte[]> decode(InputStream stream) throws IOException {
+        Reader reader = new Reader(stream, MAXIMAL_MESSAGE_LENGTH_IN_BYTES);
+        List<byte[]> messages = new ArrayList<>();
+
+        while (reader.nextLength() >= 0) {
+            messages.add(reader.readMessage());
+        }
+
+        return messages;
+    }
+
+    /**
+     * Reads the messages of a batch one after another. The length of each
+     * message is read first, so that a message can be skipped without
+     * allocating memory for it.
+     */
+    static class Reader {
+
+        private final static int SKIP_BUFFER_SIZE_IN_BYTES = 8 * 1024;
+
+        private final DataInputStream input;
+        private final int maximalMessageLengthInBytes;
+        private int pendingLength = -1;
+        private byte[] scratch;
+
+        /**
+         * Creates a new {@link Reader}.
+         *
+         * @param stream The stream to read the batch from.
+         * @param maximalMessageLengthInBytes The maximal length of a single
+         * message; longer messages make the batch invalid.
+         */
+        Reader(InputStream stream, int maximalMessageLengthInBytes) {
+            this.input = new DataInputStream(stream);
+            this.maximalMessageLengthInBytes = maximalMessageLengthInBytes;
+        }
+
+        /**
+         * Reads the length of the next message. The message itself has to be
+         * read or skipped before the next length is read.
+         *
+         * @return The length of the next message, or -1 at the end of the
+         * stream.
+         * @throws IOException If the stream cannot be read, or the length is
+         * invalid or larger than the maximal length.
+         */
+        int nextLength() throws IOException {
+            if (pendingLength >= 0) {
+                skipMessage();
+            }
+
+            int firstByte = input.read();
+
+            if (firstByte < 0) {
+                return -1;
+            }
+
+            int length = (firstByte << 24) | (input.readUnsignedByte() << 16)
+                    | (input.readUnsignedByte() << 8) | input.readUnsignedByte();
+
+            if (length < 0 || length > maximalMessageLengthInBytes) {
+                throw new IOException("Invalid message length in batch: " + length);
+            }
+
+            pendingLength = length;
+            return length;
+        }
+
+        /**
+         * @return The message, whose length was read last.
+         * @throws IOException If the stream ends before the message.
+         */
+        byte[] readMessage() throws IOException {
+            byte[] message = new byte[pendingLength];
+            pendingLength = -1;
+            input.readFully(message);
+
+            return message;
+        }
+
+        /**
+         * Skips the message, whose length was read last. The message is read
+         * in small chunks, since not every stream of a request supports
+         * skipping.
+         *
+         * @throws IOException If the stream ends before the message.
+         */
+        void skipMessage() throws IOException {
+            int remaining = pendingLength;
+            pendingLength = -1;
+
+            if (remaining > 0 && scratch == null) {
+                scratch = new byte[SKIP_BUFFER_SIZE_IN_BYTES];
+            }
+
+            while (remaining > 0) {
+                int length = Math.min(remaining, scratch.length);
+                input.readFully(scratch, 0, length);
+                remaining -= length;
+            }
+        }
+    }
+
+}
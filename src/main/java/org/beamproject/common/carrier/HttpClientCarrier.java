@@ -0,0 +1,492 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.beamproject.common.Server;
+import org.beamproject.common.util.Base64;
+import org.beamproject.common.util.Exceptions;
+import org.beamproject.common.util.Executor;
+import org.beamproject.common.util.Task;
+
+/**
+ * Implements the {@link ClientCarrier} interface using HTTP, for clients that
+ * cannot reach the MQTT broker, for example since they are behind a proxy. It
+ * talks to a {@link HttpServerCarrier} at the {@code httpUrl} of a
+ * {@link Server}.
+ * <p>
+ * Messages to a topic like {@code in/[username]} are sent with a
+ * {@code POST} to {@code [httpUrl]/in/[username]}. Messages that are queued
+ * at the same time are sent together in one request body, grouped by topic,
+ * as long as the body stays within
+ * {@link HttpServerCarrier#DEFAULT_MAXIMAL_REQUEST_SIZE_IN_BYTES}. Messages
+ * are received by long polling {@code [httpUrl]/[subscriberTopic]}
+ * on a dedicated thread. Each poll acknowledges the batch received with the
+ * previous one, after its messages were received, so that the server sends
+ * them again if this carrier stops in between.
+ * <p>
+ * The connections are kept alive and reused between requests, since every
+ * response is read completely.
+ *
+ * @see HttpServerCarrier
+ * @see HttpBatch
+ */
+public class HttpClientCarrier extends AbstractClientCarrier {
+
+    /**
+     * The number of messages the send queue can hold.
+     */
+    public final static int SEND_QUEUE_CAPACITY = 10000;
+    /**
+     * The maximal number of messages sent in a single request.
+     */
+    public final static int MAXIMAL_BATCH_SIZE = 256;
+    /**
+     * The default time the server may hold a poll open.
+     */
+    public final static long DEFAULT_POLL_TIMEOUT_IN_MILLISECONDS = 25000;
+    /**
+     * The time to wait for a connection to be established.
+     */
+    public final static int CONNECT_TIMEOUT_IN_MILLISECONDS = 10000;
+    private final static Logger LOG = Logger.getLogger(HttpClientCarrier.class.getName());
+    private final Executor executor;
+    private final String baseUrl;
+    private final String subscriberTopic;
+    private final String authorization;
+    final BlockingQueue<Publication> sendQueue = new ArrayBlockingQueue<>(SEND_QUEUE_CAPACITY);
+    final AtomicBoolean isSending = new AtomicBoolean(false);
+    ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+    long pollTimeoutInMilliseconds = DEFAULT_POLL_TIMEOUT_IN_MILLISECONDS;
+    volatile boolean doReceive = false;
+    volatile HttpURLConnection currentPoll;
+    String acknowledgement;
+    Thread poller;
+
+    /**
+     * Creates a new {@link HttpClientCarrier} without authentication.
+     *
+     * @param model The model which consumes the received messages.
+     * @param executor The executor used to send messages.
+     * @param httpUrl The URL of the server.
+     * @param subscriberTopic The topic to receive from, like
+     * {@code out/[username]}.
+     * @throws IllegalArgumentException If at least one argument is null.
+     */
+    public HttpClientCarrier(ClientCarrierModel model, Executor executor, URL httpUrl, String subscriberTopic) {
+        this(model, executor, httpUrl, subscriberTopic, null, null);
+    }
+
+    /**
+     * Creates a new {@link HttpClientCarrier}, which authenticates every
+     * request with the given credentials (HTTP basic authentication).
+     *
+     * @param model The model which consumes the received messages.
+     * @param executor The executor used to send messages.
+     * @param httpUrl The URL of the server.
+     * @param subscriberTopic The topic to receive from, like
+     * {@code out/[username]}.
+     * @param username The username, or {@code null} to not authenticate.
+     * @param password The password, or {@code null} to not authenticate.
+     * @throws IllegalArgumentException If the model, executor, URL or topic is
+     * null.
+     */
+    public HttpClientCarrier(ClientCarrierModel model, Executor executor, URL httpUrl, String subscriberTopic, String username, String password) {
+        super(model);
+        Exceptions.verifyArgumentsNotNull(model, executor, httpUrl, subscriberTopic);
+
+        String url = httpUrl.toString();
+        this.executor = executor;
+        this.baseUrl = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+        this.subscriberTopic = subscriberTopic;
+
+        if (username == null || password == null) {
+            this.authorization = null;
+        } else {
+            this.authorization = "Basic " + Base64.encode((username + ":" + password).getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Delivers the given message to the given topic. This method returns
+     * immediately; failures are logged.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param topic The topic to which to send this message to.
+     * @throws CarrierException If the send queue is full.
+     */
+    @Override
+    public void deliverMessage(byte[] message, String topic) {
+        deliverMessage(message, topic, Delivery.AT_LEAST_ONCE);
+    }
+
+    /**
+     * Delivers the given message to the given topic. The server acknowledges
+     * every request, so the {@link Delivery} makes no difference when
+     * sending.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param topic The topic to which to send this message to.
+     * @param delivery The requested guarantee.
+     * @throws CarrierException If the send queue is full.
+     */
+    @Override
+    public void deliverMessage(byte[] message, String topic, Delivery delivery) {
+        enqueue(new Publication(topic, message, delivery));
+    }
+
+    /**
+     * Delivers the given message to the given topic. The returned future
+     * completes once the server accepted the request containing the message.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param topic The topic to which to send this message to.
+     * @param delivery The requested guarantee.
+     * @return The future of the delivery.
+     */
+    @Override
+    public DeliveryFuture deliverMessageAsync(byte[] message, String topic, Delivery delivery) {
+        DeliveryFuture future = new DeliveryFuture();
+
+        try {
+            enqueue(new Publication(topic, message, delivery, future));
+        } catch (CarrierException ex) {
+            future.fail(ex);
+        }
+
+        return future;
+    }
+
+    private void enqueue(Publication publication) {
+        Exceptions.verifyArgumentsNotNull(publication.topic, publication.message);
+
+        if (!sendQueue.offer(publication)) {
+            throw new CarrierException("The message could not be sent: the send queue is full.");
+        }
+
+        if (isSending.compareAndSet(false, true)) {
+            executor.runAsync(new Task() {
+                @Override
+                public void run() {
+                    drainSendQueue();
+                }
+            });
+        }
+    }
+
+    private void drainSendQueue() {
+        List<Publication> batch = new ArrayList<>(MAXIMAL_BATCH_SIZE);
+
+        do {
+            while (sendQueue.drainTo(batch, MAXIMAL_BATCH_SIZE) > 0) {
+                for (List<Publication> group : groupByTopic(batch).values()) {
+                    for (List<Publication> request : splitBySize(group)) {
+                        send(request);
+                    }
+                }
+
+                batch.clear();
+            }
+
+            isSending.set(false);
+        } while (!sendQueue.isEmpty() && isSending.compareAndSet(false, true));
+    }
+
+    private Map<String, List<Publication>> groupByTopic(List<Publication> batch) {
+        Map<String, List<Publication>> groups = new LinkedHashMap<>();
+
+        for (Publication publication : batch) {
+            List<Publication> group = groups.get(publication.topic);
+
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(publication.topic, group);
+            }
+
+            group.add(publication);
+        }
+
+        return groups;
+    }
+
+    /**
+     * Splits the given group into requests, whose bodies do not exceed
+     * {@link HttpServerCarrier#DEFAULT_MAXIMAL_REQUEST_SIZE_IN_BYTES}.
+     */
+    private List<List<Publication>> splitBySize(List<Publication> group) {
+        List<List<Publication>> requests = new ArrayList<>(1);
+        List<Publication> request = new ArrayList<>();
+        long size = 0;
+
+        for (Publication publication : group) {
+            long length = 4 + publication.message.length;
+
+            if (!request.isEmpty() && size + length > HttpServerCarrier.DEFAULT_MAXIMAL_REQUEST_SIZE_IN_BYTES) {
+                requests.add(request);
+                request = new ArrayList<>();
+                size = 0;
+            }
+
+            request.add(publication);
+            size += length;
+        }
+
+        requests.add(request);
+        return requests;
+    }
+
+    private void send(List<Publication> group) {
+        String topic = group.get(0).topic;
+        List<byte[]> messages = new ArrayList<>(group.size());
+
+        for (Publication publication : group) {
+            messages.add(publication.message);
+        }
+
+        try {
+            post(topic, HttpBatch.encode(messages));
+        } catch (IOException | RuntimeException ex) {
+            LOG.log(Level.WARNING, "The messages to {0} could not be sent: {1}", new Object[]{topic, ex.getMessage()});
+
+            for (Publication publication : group) {
+                publication.fail(ex);
+            }
+
+            return;
+        }
+
+        for (Publication publication : group) {
+            publication.complete();
+        }
+    }
+
+    private void post(String topic, byte[] body) throws IOException {
+        HttpURLConnection connection = open(topic, CONNECT_TIMEOUT_IN_MILLISECONDS);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setRequestProperty("Content-Type", HttpBatch.CONTENT_TYPE);
+        connection.setFixedLengthStreamingMode(body.length);
+
+        try (OutputStream output = connection.getOutputStream()) {
+            output.write(body);
+        }
+
+        int status = connection.getResponseCode();
+        readFully(connection, status);
+
+        if (status / 100 != 2) {
+            throw new CarrierException("The server rejected the messages with status " + status + ".");
+        }
+    }
+
+    /**
+     * Polls the server once for new messages. The poll acknowledges the batch
+     * returned by the previous invocation, so the caller has to be done with
+     * it.
+     *
+     * @return The received messages, possibly none.
+     * @throws IOException If the server cannot be reached.
+     * @throws CarrierException If the server rejected the poll.
+     */
+    List<byte[]> poll() throws IOException {
+        String path = subscriberTopic + "?" + HttpServerCarrier.TIMEOUT_PARAMETER + "=" + pollTimeoutInMilliseconds;
+
+        if (acknowledgement != null) {
+            path += "&" + HttpServerCarrier.ACKNOWLEDGE_PARAMETER + "=" + acknowledgement;
+        }
+
+        HttpURLConnection connection = open(path, (int) pollTimeoutInMilliseconds + CONNECT_TIMEOUT_IN_MILLISECONDS);
+        currentPoll = connection;
+
+        try {
+            int status = connection.getResponseCode();
+
+            if (status == HttpURLConnection.HTTP_OK) {
+                List<byte[]> messages;
+
+                try (InputStream input = connection.getInputStream()) {
+                    messages = HttpBatch.decode(input);
+                }
+
+                acknowledgement = connection.getHeaderField(HttpServerCarrier.BATCH_HEADER);
+                return messages;
+            }
+
+            readFully(connection, status);
+
+            if (status == HttpURLConnection.HTTP_NO_CONTENT) {
+                acknowledgement = null;
+                return Collections.emptyList();
+            }
+
+            throw new CarrierException("The server rejected the poll with status " + status + ".");
+        } finally {
+            currentPoll = null;
+        }
+    }
+
+    private HttpURLConnection open(String path, int readTimeoutInMilliseconds) throws IOException {
+        URL url;
+
+        try {
+            url = new URL(baseUrl + "/" + path);
+        } catch (MalformedURLException ex) {
+            throw new CarrierException("Invalid topic: " + path);
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setConnectTimeout(CONNECT_TIMEOUT_IN_MILLISECONDS);
+        connection.setReadTimeout(readTimeoutInMilliseconds);
+        connection.setUseCaches(false);
+
+        if (authorization != null) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+
+        return connection;
+    }
+
+    /**
+     * Reads and closes the response, so that the connection can be reused.
+     */
+    private void readFully(HttpURLConnection connection, int status) throws IOException {
+        InputStream input = status < HttpURLConnection.HTTP_BAD_REQUEST ? connection.getInputStream() : connection.getErrorStream();
+
+        if (input == null) {
+            return;
+        }
+
+        try {
+            byte[] buffer = new byte[512];
+
+            while (input.read(buffer) >= 0) {
+                // Discard the content.
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Starts to long poll the server on a dedicated thread. If the server
+     * cannot be reached, the polls are repeated according to the
+     * {@link ReconnectPolicy}.
+     *
+     * @throws IllegalStateException If this carrier is already receiving.
+     */
+    @Override
+    public synchronized void startReceiving() {
+        if (poller != null) {
+            throw new IllegalStateException("This carrier is already receiving.");
+        }
+
+        doReceive = true;
+        poller = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pollWhileReceiving();
+            }
+        }, "http-poller-" + subscriberTopic);
+        poller.setDaemon(true);
+        poller.start();
+    }
+
+    void pollWhileReceiving() {
+        int failedAttempts = 0;
+
+        while (doReceive) {
+            List<byte[]> messages;
+
+            try {
+                messages = poll();
+                failedAttempts = 0;
+            } catch (IOException | CarrierException ex) {
+                if (!doReceive) {
+                    return;
+                }
+
+                LOG.log(Level.WARNING, "Could not poll from {0}: {1}", new Object[]{subscriberTopic, ex.getMessage()});
+
+                try {
+                    reconnectPolicy.waitBeforeAttempt(++failedAttempts);
+                } catch (CarrierException interrupted) {
+                    return;
+                }
+
+                continue;
+            }
+
+            for (byte[] message : messages) {
+                try {
+                    receive(message, subscriberTopic);
+                } catch (RuntimeException ex) {
+                    LOG.log(Level.WARNING, "Could not receive from {0}: {1}", new Object[]{subscriberTopic, ex.getMessage()});
+                }
+            }
+        }
+    }
+
+    /**
+     * Do not receive further messages. An open poll is aborted.
+     *
+     * @throws IllegalStateException If this carrier was not receiving before.
+     */
+    @Override
+    public synchronized void stopReceiving() {
+        if (poller == null) {
+            throw new IllegalStateException("This may only be invoked when receiving.");
+        }
+
+        doReceive = false;
+        HttpURLConnection connection = currentPoll;
+
+        if (connection != null) {
+            connection.disconnect();
+        }
+
+        poller.interrupt();
+        poller = null;
+    }
+
+    @Override
+    public synchronized void shutdown() {
+        if (poller != null) {
+            stopReceiving();
+        }
+
+        shutdownReceivePipeline();
+    }
+
+}
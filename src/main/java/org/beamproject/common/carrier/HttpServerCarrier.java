@@ -0,0 +1,1009 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.beamproject.common.util.Exceptions;
+
+/**
+ * Implements the {@link ServerCarrier} interface using HTTP, for users that
+ * cannot reach the MQTT broker, for example since they are behind a proxy. The
+ * server listens on the address of its {@code httpUrl}, using the HTTP server
+ * of the JDK; its counterpart is the {@link HttpClientCarrier}.
+ * <p>
+ * A user sends messages with {@code POST /in/[username]} and receives them
+ * with {@code GET /out/[username]?timeout=[milliseconds]&ack=[batch]}. Both
+ * bodies are a {@link HttpBatch} of any number of messages. A {@code GET} is
+ * answered as soon as messages for the user are available, or with
+ * {@code 204 No Content} once the timeout expired (long polling). Waiting
+ * requests do not occupy a thread.
+ * <p>
+ * The body of a {@code POST} is read message by message; each message passes
+ * the {@link AdmissionControl}, if any, before memory is allocated for it. A
+ * body that exceeds the maximal size or number of messages is answered with
+ * {@code 413 Request Entity Too Large}. The messages before the violation
+ * are consumed nevertheless.
+ * <p>
+ * Messages to a user are kept in a bounded outbox until the user polls them.
+ * Every response carries the number of its batch in the {@link #BATCH_HEADER}
+ * and the next poll acknowledges it with the {@link #ACKNOWLEDGE_PARAMETER}.
+ * A message with {@link Delivery#AT_MOST_ONCE} counts as delivered once it
+ * was written to a response. A message with {@link Delivery#AT_LEAST_ONCE}
+ * counts as delivered only once its batch was acknowledged; if the next poll
+ * does not acknowledge it, the batch is sent again. Outboxes, which are empty
+ * and idle for {@link #DEFAULT_OUTBOX_IDLE_TIMEOUT_IN_MILLISECONDS}, are
+ * removed.
+ * <p>
+ * If an {@link Authenticator} is set, only the authenticated user may send
+ * and receive as its username. Without one, polls are refused, unless they
+ * are explicitly allowed with {@link #setAnonymousPollsAllowed(boolean)}.
+ *
+ * @see HttpClientCarrier
+ * @see ServerCarrierImpl
+ */
+public class HttpServerCarrier implements ServerCarrier {
+
+    /**
+     * The path to which users send their messages.
+     */
+    public final static String IN_PATH = "/" + ClientCarrier.MQTT_IN_TOPIC_PREFIX;
+    /**
+     * The path from which users receive their messages.
+     */
+    public final static String OUT_PATH = "/" + ClientCarrier.MQTT_OUT_TOPIC_PREFIX;
+    /**
+     * The query parameter of a poll, containing the timeout in milliseconds.
+     */
+    public final static String TIMEOUT_PARAMETER = "timeout";
+    /**
+     * The query parameter of a poll, containing the number of the last
+     * received batch.
+     */
+    public final static String ACKNOWLEDGE_PARAMETER = "ack";
+    /**
+     * The response header, containing the number of the batch in the body.
+     */
+    public final static String BATCH_HEADER = "X-Beam-Batch";
+    /**
+     * The default maximal time a poll is held open.
+     */
+    public final static long DEFAULT_MAXIMAL_POLL_TIMEOUT_IN_MILLISECONDS = 30000;
+    /**
+     * The default number of messages the outbox of a user can hold.
+     */
+    public final static int DEFAULT_OUTBOX_CAPACITY = 1000;
+    /**
+     * The default time after which an empty outbox, that is not polled, is
+     * removed.
+     */
+    public final static long DEFAULT_OUTBOX_IDLE_TIMEOUT_IN_MILLISECONDS = 300000;
+    /**
+     * The maximal number of messages in a single response.
+     */
+    public final static int MAXIMAL_BATCH_SIZE = 256;
+    /**
+     * The default maximal size of the body of a request.
+     */
+    public final static int DEFAULT_MAXIMAL_REQUEST_SIZE_IN_BYTES = 2 * HttpBatch.MAXIMAL_MESSAGE_LENGTH_IN_BYTES;
+    /**
+     * The default maximal number of messages in the body of a request.
+     */
+    public final static int DEFAULT_MAXIMAL_MESSAGES_PER_REQUEST = HttpClientCarrier.MAXIMAL_BATCH_SIZE;
+    private final static Logger LOG = Logger.getLogger(HttpServerCarrier.class.getName());
+    private final ServerCarrierModel model;
+    private final InetSocketAddress address;
+    private final int numberOfThreads;
+    final ConcurrentMap<String, Outbox> outboxes = new ConcurrentHashMap<>();
+    /**
+     * Starts at the current time, so that acknowledgements sent to a
+     * previous instance do not match.
+     */
+    final AtomicLong batchNumbers = new AtomicLong(System.currentTimeMillis());
+    int outboxCapacity = DEFAULT_OUTBOX_CAPACITY;
+    long outboxIdleTimeoutInMilliseconds = DEFAULT_OUTBOX_IDLE_TIMEOUT_IN_MILLISECONDS;
+    long maximalPollTimeoutInMilliseconds = DEFAULT_MAXIMAL_POLL_TIMEOUT_IN_MILLISECONDS;
+    int maximalRequestSizeInBytes = DEFAULT_MAXIMAL_REQUEST_SIZE_IN_BYTES;
+    int maximalMessagesPerRequest = DEFAULT_MAXIMAL_MESSAGES_PER_REQUEST;
+    Authenticator authenticator;
+    boolean areAnonymousPollsAllowed = false;
+    DuplicateFilter duplicateFilter;
+    AdmissionControl admissionControl;
+    HttpServer server;
+    ExecutorService handlers;
+    ScheduledThreadPoolExecutor timer;
+
+    /**
+     * Creates a new {@link HttpServerCarrier} with one handler thread per
+     * available processor.
+     *
+     * @param model The model which consumes the received messages.
+     * @param address The address to listen on, once receiving.
+     * @throws IllegalArgumentException If at least one argument is null.
+     */
+    public HttpServerCarrier(ServerCarrierModel model, InetSocketAddress address) {
+        this(model, address, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new {@link HttpServerCarrier}.
+     *
+     * @param model The model which consumes the received messages.
+     * @param address The address to listen on, once receiving.
+     * @param numberOfThreads The number of threads that handle requests.
+     * @throws IllegalArgumentException If at least one argument is null or the
+     * number of threads is not positive.
+     */
+    public HttpServerCarrier(ServerCarrierModel model, InetSocketAddress address, int numberOfThreads) {
+        Exceptions.verifyArgumentsNotNull(model, address);
+
+        if (numberOfThreads < 1) {
+            throw new IllegalArgumentException("The number of threads has to be positive.");
+        }
+
+        this.model = model;
+        this.address = address;
+        this.numberOfThreads = numberOfThreads;
+    }
+
+    /**
+     * Requires every request to be authenticated. This has to be set before
+     * {@link #startReceiving()} is invoked.
+     *
+     * @param authenticator The authenticator to use, or {@code null} to accept
+     * all requests.
+     */
+    public void setAuthenticator(Authenticator authenticator) {
+        this.authenticator = authenticator;
+    }
+
+    /**
+     * Allows polls without an {@link Authenticator}. <b>Warning:</b> this
+     * makes the server open; anybody can then receive the messages of any
+     * user. Only allow this if the server is protected otherwise, for
+     * example by a proxy that authenticates the users.
+     *
+     * @param areAnonymousPollsAllowed true, to answer polls without an
+     * authenticated user.
+     */
+    public void setAnonymousPollsAllowed(boolean areAnonymousPollsAllowed) {
+        this.areAnonymousPollsAllowed = areAnonymousPollsAllowed;
+    }
+
+    /**
+     * Drops received messages, which the given {@link DuplicateFilter}
+     * recognizes as duplicates, before they reach the
+     * {@link ServerCarrierModel}.
+     *
+     * @param duplicateFilter The filter to use, or {@code null} to pass all
+     * messages on.
+     */
+    public void setDuplicateFilter(DuplicateFilter duplicateFilter) {
+        this.duplicateFilter = duplicateFilter;
+    }
+
+    /**
+     * Drops received messages, which the given {@link AdmissionControl} does
+     * not admit, before they reach the {@link ServerCarrierModel}.
+     *
+     * @param admissionControl The admission control to use, or {@code null}
+     * to admit all messages.
+     */
+    public void setAdmissionControl(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    /**
+     * Places the given message in the outbox of the given user, to be
+     * delivered with the next poll of that user.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param username The username of the recipient.
+     * @throws CarrierException If the outbox of the user is full.
+     */
+    @Override
+    public void deliverMessage(byte[] message, String username) {
+        deliverMessage(message, username, Delivery.AT_LEAST_ONCE);
+    }
+
+    /**
+     * Places the given message in the outbox of the given user, to be
+     * delivered with the next poll of that user. A message with
+     * {@link Delivery#AT_LEAST_ONCE} is sent again until the user
+     * acknowledged it.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param username The username of the recipient.
+     * @param delivery The requested guarantee.
+     * @throws CarrierException If the outbox of the user is full.
+     */
+    @Override
+    public void deliverMessage(byte[] message, String username, Delivery delivery) {
+        offer(new Publication(username, message, delivery));
+    }
+
+    /**
+     * Places the given message in the outbox of the given user. The returned
+     * future completes once the user acknowledged the message or, with
+     * {@link Delivery#AT_MOST_ONCE}, once it was written to a response. It
+     * fails if the outbox is full.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param username The username of the recipient.
+     * @param delivery The requested guarantee.
+     * @return The future of the delivery.
+     */
+    @Override
+    public DeliveryFuture deliverMessageAsync(byte[] message, String username, Delivery delivery) {
+        DeliveryFuture future = new DeliveryFuture();
+
+        try {
+            offer(new Publication(username, message, delivery, future));
+        } catch (CarrierException ex) {
+            future.fail(ex);
+        }
+
+        return future;
+    }
+
+    private void offer(Publication publication) {
+        while (!getOutbox(publication.topic).offer(publication)) {
+            // The outbox was just evicted; use a new one.
+        }
+    }
+
+    private Outbox getOutbox(String username) {
+        Outbox outbox = outboxes.get(username);
+
+        if (outbox == null) {
+            Outbox created = new Outbox();
+            outbox = outboxes.putIfAbsent(username, created);
+
+            if (outbox == null) {
+                outbox = created;
+            }
+        }
+
+        return outbox;
+    }
+
+    /**
+     * Starts the HTTP server on the configured address.
+     *
+     * @throws IllegalStateException If this carrier is already receiving.
+     * @throws CarrierException If the server could not be started.
+     */
+    @Override
+    public synchronized void startReceiving() {
+        if (server != null) {
+            throw new IllegalStateException("This carrier is already receiving.");
+        }
+
+        try {
+            server = HttpServer.create(address, 0);
+        } catch (IOException ex) {
+            throw new CarrierException("Could not start the HTTP server: " + ex.getMessage());
+        }
+
+        handlers = Executors.newFixedThreadPool(numberOfThreads, new DaemonThreadFactory("http-handler"));
+        timer = new ScheduledThreadPoolExecutor(1, new DaemonThreadFactory("http-poll-timer"));
+        timer.setRemoveOnCancelPolicy(true);
+
+        createContext(IN_PATH, new InHandler());
+        createContext(OUT_PATH, new OutHandler());
+        server.setExecutor(handlers);
+        server.start();
+
+        timer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evictIdleOutboxes();
+            }
+        }, outboxIdleTimeoutInMilliseconds, outboxIdleTimeoutInMilliseconds, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Removes the outboxes, which are empty and were neither polled nor
+     * offered a message within the idle timeout.
+     */
+    void evictIdleOutboxes() {
+        long idleSince = System.currentTimeMillis() - outboxIdleTimeoutInMilliseconds;
+
+        for (Map.Entry<String, Outbox> entry : outboxes.entrySet()) {
+            if (entry.getValue().evictIfIdleSince(idleSince)) {
+                outboxes.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void createContext(String path, HttpHandler handler) {
+        HttpContext context = server.createContext(path, handler);
+
+        if (authenticator != null) {
+            context.setAuthenticator(authenticator);
+        }
+    }
+
+    /**
+     * @return The address the HTTP server is listening on.
+     * @throws IllegalStateException If this carrier is not receiving.
+     */
+    public synchronized InetSocketAddress getAddress() {
+        if (server == null) {
+            throw new IllegalStateException("This carrier is not receiving.");
+        }
+
+        return server.getAddress();
+    }
+
+    /**
+     * Hands the given message to the {@link ServerCarrierModel}. If an
+     * {@link AdmissionControl} is configured, messages that are not admitted
+     * are dropped. The same applies to duplicates, if a
+     * {@link DuplicateFilter} is configured. A message the model fails to
+     * consume is not remembered by the filter, so its redelivery is not
+     * dropped.
+     *
+     * @param message The new message to handle.
+     * @param username The username of the sender.
+     */
+    @Override
+    public void receive(byte[] message, String username) {
+        if (admissionControl != null && !admissionControl.admit(message, username)) {
+            return;
+        }
+
+        consume(message, username);
+    }
+
+    private void consume(byte[] message, String username) {
+        if (duplicateFilter == null) {
+            model.consumeMessage(message, username);
+        } else if (!duplicateFilter.isDuplicate(message)) {
+            try {
+                model.consumeMessage(message, username);
+            } catch (RuntimeException ex) {
+                duplicateFilter.forget(message);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Hands the given message to the {@link ServerCarrierModel}, like
+     * {@link #receive(byte[], String)}.
+     *
+     * @param message The new message to handle.
+     * @param username The username of the sender.
+     */
+    @Override
+    public void receive(ByteBuffer message, String username) {
+        if (admissionControl != null && !admissionControl.admit(message, username)) {
+            return;
+        }
+
+        if (duplicateFilter == null) {
+            model.consumeMessage(message, username);
+        } else if (!duplicateFilter.isDuplicate(message)) {
+            ByteBuffer unread = message.duplicate();
+
+            try {
+                model.consumeMessage(message, username);
+            } catch (RuntimeException ex) {
+                duplicateFilter.forget(unread);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Stops the HTTP server. Open polls are closed; messages in the outboxes
+     * are kept.
+     *
+     * @throws IllegalStateException If this carrier was not receiving before.
+     */
+    @Override
+    public synchronized void stopReceiving() {
+        if (server == null) {
+            throw new IllegalStateException("This may only be invoked when receiving.");
+        }
+
+        server.stop(0);
+        timer.shutdownNow();
+        handlers.shutdownNow();
+        server = null;
+
+        for (Outbox outbox : outboxes.values()) {
+            outbox.abandonPoll();
+        }
+    }
+
+    /**
+     * Stops receiving and fails the deliveries of all messages that were not
+     * polled yet.
+     */
+    @Override
+    public synchronized void shutdown() {
+        if (server != null) {
+            stopReceiving();
+        }
+
+        for (Outbox outbox : outboxes.values()) {
+            outbox.failAll(new CarrierException("The carrier was shut down."));
+        }
+
+        outboxes.clear();
+    }
+
+    /**
+     * Extracts the username from the path of the given request.
+     *
+     * @return The username, or null if the path or the authenticated user do
+     * not match.
+     */
+    private static String extractUsername(HttpExchange exchange, String prefix) {
+        String path = exchange.getRequestURI().getPath();
+        int start = path.indexOf(prefix) + prefix.length();
+        String username = path.substring(start);
+
+        if (username.isEmpty() || username.indexOf('/') >= 0) {
+            return null;
+        }
+
+        if (exchange.getPrincipal() != null && !username.equals(exchange.getPrincipal().getUsername())) {
+            return null;
+        }
+
+        return username;
+    }
+
+    long parseTimeout(String query) {
+        long timeout = parseParameter(query, TIMEOUT_PARAMETER, maximalPollTimeoutInMilliseconds);
+
+        return Math.max(0, Math.min(timeout, maximalPollTimeoutInMilliseconds));
+    }
+
+    /**
+     * @return The acknowledged batch number, or -1 if there is none.
+     */
+    static long parseAcknowledgement(String query) {
+        return parseParameter(query, ACKNOWLEDGE_PARAMETER, -1);
+    }
+
+    private static long parseParameter(String query, String name, long defaultValue) {
+        long value = defaultValue;
+
+        if (query == null) {
+            return value;
+        }
+
+        for (String parameter : query.split("&")) {
+            if (parameter.startsWith(name + "=")) {
+                try {
+                    value = Long.parseLong(parameter.substring(name.length() + 1));
+                } catch (NumberFormatException ex) {
+                    value = defaultValue;
+                }
+            }
+        }
+
+        return value;
+    }
+
+    private static void respond(HttpExchange exchange, int status) {
+        try {
+            exchange.sendResponseHeaders(status, -1);
+        } catch (IOException ex) {
+            LOG.log(Level.FINE, "Could not respond: {0}", ex.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /**
+     * Receives the messages sent by users.
+     */
+    class InHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405);
+                return;
+            }
+
+            String username = extractUsername(exchange, IN_PATH);
+
+            if (username == null) {
+                respond(exchange, 403);
+                return;
+            }
+
+            if (getContentLength(exchange) > maximalRequestSizeInBytes) {
+                respond(exchange, 413);
+                return;
+            }
+
+            try (BoundedInputStream body = new BoundedInputStream(exchange.getRequestBody(), maximalRequestSizeInBytes)) {
+                respond(exchange, receiveBatch(body, username));
+            }
+        }
+
+        /**
+         * Receives the messages of the given body one after another.
+         *
+         * @return The status to respond with.
+         */
+        int receiveBatch(BoundedInputStream body, String username) {
+            int maximalMessageLength = Math.min(HttpBatch.MAXIMAL_MESSAGE_LENGTH_IN_BYTES, maximalRequestSizeInBytes);
+            HttpBatch.Reader reader = new HttpBatch.Reader(body, maximalMessageLength);
+            int numberOfMessages = 0;
+
+            try {
+                int length;
+
+                while ((length = reader.nextLength()) >= 0) {
+                    if (++numberOfMessages > maximalMessagesPerRequest) {
+                        return 413;
+                    }
+
+                    if (admissionControl != null && !admissionControl.admit(length, username)) {
+                        reader.skipMessage();
+                        continue;
+                    }
+
+                    byte[] message = reader.readMessage();
+
+                    try {
+                        consume(message, username);
+                    } catch (RuntimeException ex) {
+                        LOG.log(Level.WARNING, "Could not receive a message of {0}: {1}",
+                                new Object[]{username, ex.getMessage()});
+                    }
+                }
+            } catch (IOException ex) {
+                return body.isExceeded() ? 413 : 400;
+            }
+
+            return 204;
+        }
+
+        private long getContentLength(HttpExchange exchange) {
+            String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+
+            if (contentLength == null) {
+                return -1;
+            }
+
+            try {
+                return Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException ex) {
+                return -1;
+            }
+        }
+    }
+
+    /**
+     * Fails as soon as more than the given number of bytes are read, also if
+     * the request does not announce its length.
+     */
+    static class BoundedInputStream extends FilterInputStream {
+
+        private long remainingBytes;
+        private boolean isExceeded = false;
+
+        BoundedInputStream(InputStream stream, long maximalBytes) {
+            super(stream);
+            this.remainingBytes = maximalBytes;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int value = super.read();
+
+            if (value >= 0) {
+                count(1);
+            }
+
+            return value;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, (int) Math.min(length, remainingBytes + 1));
+
+            if (read > 0) {
+                count(read);
+            }
+
+            return read;
+        }
+
+        @Override
+        public long skip(long length) throws IOException {
+            long skipped = super.skip(Math.min(length, remainingBytes + 1));
+            count(skipped);
+
+            return skipped;
+        }
+
+        private void count(long bytes) throws IOException {
+            remainingBytes -= bytes;
+
+            if (remainingBytes < 0) {
+                isExceeded = true;
+                throw new IOException("The request body is too large.");
+            }
+        }
+
+        boolean isExceeded() {
+            return isExceeded;
+        }
+    }
+
+    /**
+     * Holds the polls of users open until messages arrive.
+     */
+    class OutHandler implements HttpHandler {
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405);
+                return;
+            }
+
+            String username = extractUsername(exchange, OUT_PATH);
+
+            if (username == null || (exchange.getPrincipal() == null && !areAnonymousPollsAllowed)) {
+                respond(exchange, 403);
+                return;
+            }
+
+            String query = exchange.getRequestURI().getRawQuery();
+            long timeout = parseTimeout(query);
+            long acknowledgement = parseAcknowledgement(query);
+
+            while (!getOutbox(username).poll(exchange, timeout, acknowledgement)) {
+                // The outbox was just evicted; use a new one.
+            }
+        }
+    }
+
+    /**
+     * The messages to a single user and its open poll, if any. A new poll
+     * replaces the open one, which is answered without messages. The messages
+     * with {@link Delivery#AT_LEAST_ONCE} of the last sent batch are kept
+     * until the next poll acknowledges them. An evicted outbox takes neither
+     * messages nor polls anymore.
+     */
+    class Outbox {
+
+        final ArrayDeque<Publication> messages = new ArrayDeque<>();
+        List<Publication> unacknowledgedBatch;
+        long unacknowledgedBatchNumber;
+        HttpExchange waitingPoll;
+        ScheduledFuture<?> expiration;
+        long lastActivity = System.currentTimeMillis();
+        boolean isEvicted = false;
+
+        /**
+         * @return false, if this outbox was evicted.
+         * @throws CarrierException If this outbox is full.
+         */
+        boolean offer(Publication publication) {
+            HttpExchange poll;
+            List<Publication> batch;
+            long batchNumber;
+
+            synchronized (this) {
+                if (isEvicted) {
+                    return false;
+                }
+
+                if (messages.size() >= outboxCapacity) {
+                    throw new CarrierException("The message could not be sent: the outbox is full.");
+                }
+
+                messages.add(publication);
+                lastActivity = System.currentTimeMillis();
+
+                if (waitingPoll == null) {
+                    return true;
+                }
+
+                poll = takeWaitingPoll();
+                batch = takeBatch();
+                batchNumber = unacknowledgedBatchNumber;
+            }
+
+            send(poll, batch, batchNumber);
+            return true;
+        }
+
+        /**
+         * Acknowledges the last sent batch, if the given number matches it, or
+         * puts its messages back otherwise. Then answers the poll, or holds it
+         * open until messages arrive.
+         *
+         * @return false, if this outbox was evicted.
+         */
+        boolean poll(final HttpExchange exchange, long timeoutInMilliseconds, long acknowledgement) {
+            HttpExchange replacedPoll;
+            List<Publication> acknowledged = null;
+            List<Publication> batch = null;
+            long batchNumber = 0;
+
+            synchronized (this) {
+                if (isEvicted) {
+                    return false;
+                }
+
+                lastActivity = System.currentTimeMillis();
+                replacedPoll = takeWaitingPoll();
+
+                if (unacknowledgedBatch != null) {
+                    if (acknowledgement == unacknowledgedBatchNumber) {
+                        acknowledged = unacknowledgedBatch;
+                    } else {
+                        putBack(unacknowledgedBatch);
+                    }
+
+                    unacknowledgedBatch = null;
+                }
+
+                if (!messages.isEmpty()) {
+                    batch = takeBatch();
+                    batchNumber = unacknowledgedBatchNumber;
+                } else if (timeoutInMilliseconds > 0) {
+                    waitingPoll = exchange;
+                    expiration = timer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            expire(exchange);
+                        }
+                    }, timeoutInMilliseconds, TimeUnit.MILLISECONDS);
+                }
+            }
+
+            if (acknowledged != null) {
+                for (Publication publication : acknowledged) {
+                    publication.complete();
+                }
+            }
+
+            if (replacedPoll != null) {
+                respond(replacedPoll, 204);
+            }
+
+            if (batch != null) {
+                send(exchange, batch, batchNumber);
+            } else if (timeoutInMilliseconds <= 0) {
+                respond(exchange, 204);
+            }
+
+            return true;
+        }
+
+        void expire(HttpExchange exchange) {
+            synchronized (this) {
+                if (waitingPoll != exchange) {
+                    return;
+                }
+
+                waitingPoll = null;
+                expiration = null;
+                lastActivity = System.currentTimeMillis();
+            }
+
+            respond(exchange, 204);
+        }
+
+        void abandonPoll() {
+            synchronized (this) {
+                waitingPoll = null;
+                expiration = null;
+            }
+        }
+
+        /**
+         * Evicts this outbox, if it is empty and idle since the given time.
+         *
+         * @return true, if this outbox was evicted.
+         */
+        synchronized boolean evictIfIdleSince(long idleSince) {
+            if (messages.isEmpty() && unacknowledgedBatch == null && waitingPoll == null && lastActivity <= idleSince) {
+                isEvicted = true;
+            }
+
+            return isEvicted;
+        }
+
+        void failAll(CarrierException cause) {
+            List<Publication> failed;
+
+            synchronized (this) {
+                failed = new ArrayList<>(messages);
+                messages.clear();
+
+                if (unacknowledgedBatch != null) {
+                    failed.addAll(unacknowledgedBatch);
+                    unacknowledgedBatch = null;
+                }
+            }
+
+            for (Publication publication : failed) {
+                publication.fail(cause);
+            }
+        }
+
+        private HttpExchange takeWaitingPoll() {
+            HttpExchange poll = waitingPoll;
+            waitingPoll = null;
+
+            if (expiration != null) {
+                expiration.cancel(false);
+                expiration = null;
+            }
+
+            return poll;
+        }
+
+        /**
+         * Takes the next batch and keeps its messages with
+         * {@link Delivery#AT_LEAST_ONCE} until they are acknowledged.
+         */
+        private List<Publication> takeBatch() {
+            List<Publication> batch = new ArrayList<>(Math.min(messages.size(), MAXIMAL_BATCH_SIZE));
+            List<Publication> unacknowledged = new ArrayList<>();
+
+            while (!messages.isEmpty() && batch.size() < MAXIMAL_BATCH_SIZE) {
+                Publication publication = messages.poll();
+                batch.add(publication);
+
+                if (publication.delivery == Delivery.AT_LEAST_ONCE) {
+                    unacknowledged.add(publication);
+                }
+            }
+
+            unacknowledgedBatch = unacknowledged.isEmpty() ? null : unacknowledged;
+            unacknowledgedBatchNumber = batchNumbers.incrementAndGet();
+            return batch;
+        }
+
+        private void putBack(List<Publication> batch) {
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                messages.addFirst(batch.get(i));
+            }
+        }
+
+        private void send(HttpExchange exchange, List<Publication> batch, long batchNumber) {
+            List<byte[]> payloads = new ArrayList<>(batch.size());
+
+            for (Publication publication : batch) {
+                payloads.add(publication.message);
+            }
+
+            byte[] body = HttpBatch.encode(payloads);
+            CarrierException failure = null;
+
+            try {
+                exchange.getResponseHeaders().set("Content-Type", HttpBatch.CONTENT_TYPE);
+                exchange.getResponseHeaders().set(BATCH_HEADER, Long.toString(batchNumber));
+                exchange.sendResponseHeaders(200, body.length);
+
+                try (OutputStream output = exchange.getResponseBody()) {
+                    output.write(body);
+                }
+            } catch (IOException ex) {
+                LOG.log(Level.FINE, "Could not send a batch, keeping it: {0}", ex.getMessage());
+                exchange.close();
+                failure = new CarrierException("The message could not be sent: " + ex.getMessage());
+                requeue(batchNumber);
+            }
+
+            for (Publication publication : batch) {
+                if (publication.delivery != Delivery.AT_MOST_ONCE) {
+                    continue;
+                }
+
+                if (failure == null) {
+                    publication.complete();
+                } else {
+                    publication.fail(failure);
+                }
+            }
+        }
+
+        /**
+         * Puts the unacknowledged messages of the given batch back, unless a
+         * poll already did so, and answers the waiting poll, if any.
+         */
+        private void requeue(long batchNumber) {
+            HttpExchange poll = null;
+            List<Publication> nextBatch = null;
+            long nextBatchNumber = 0;
+
+            synchronized (this) {
+                if (unacknowledgedBatch == null || unacknowledgedBatchNumber != batchNumber) {
+                    return;
+                }
+
+                putBack(unacknowledgedBatch);
+                unacknowledgedBatch = null;
+
+                if (waitingPoll != null && !messages.isEmpty()) {
+                    poll = takeWaitingPoll();
+                    nextBatch = takeBatch();
+                    nextBatchNumber = unacknowledgedBatchNumber;
+                }
+            }
+
+            if (poll != null) {
+                send(poll, nextBatch, nextBatchNumber);
+            }
+        }
+    }
+
+    /**
+     * Creates daemon threads, so that a forgotten carrier does not keep the
+     * JVM alive.
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+
+        private final String name;
+        private int count = 0;
+
+        DaemonThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public synchronized Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, name + "-" + count++);
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A received, still encrypted message together with its sender and the time
+ * it was handed off by the {@link Carrier}. The message is either a byte array
+ * or, if the transport medium handed over its buffer, a {@link ByteBuffer}.
+ * If it names a {@link CarrierModel} to consume it, that model is used
+ * instead of the one of the {@link ReceivePipeline}.
+ *
+ * @param <M> The type of the model which consumes the message.
+ */
+class InboundMessage<M extends CarrierModel<?>> {
+
+    final byte[] message;
+    final ByteBuffer buffer;
+    final String sender;
+    final M consumer;
+    final long receivedAtInNanoseconds;
+
+    InboundMessage(byte[] message, String sender) {
+        this(message, sender, System.nanoTime());
+    }
+
+    InboundMessage(byte[] message, String sender, long receivedAtInNanoseconds) {
+        this(message, null, sender, null, receivedAtInNanoseconds);
+    }
+
+    InboundMessage(byte[] message, String sender, M consumer) {
+        this(message, null, sender, consumer, System.nanoTime());
+    }
+
+    InboundMessage(ByteBuffer buffer, String sender) {
+        this(buffer, sender, null);
+    }
+
+    InboundMessage(ByteBuffer buffer, String sender, M consumer) {
+        this(null, buffer, sender, consumer, System.nanoTime());
+    }
+
+    private InboundMessage(byte[] message, ByteBuffer buffer, String sender, M consumer,
+            long receivedAtInNanoseconds) {
+        this.message = message;
+        this.buffer = buffer;
+        this.sender = sender;
+        this.consumer = consumer;
+        this.receivedAtInNanoseconds = receivedAtInNanoseconds;
+    }
+
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded queue of {@link InboundMessage}s with a configurable
+ * {@link OverflowPolicy}. There may be several producers, but only one
+ * consumer.
+ *
+ * @param <M> The type of the model which consumes the messages.
+ * @see ReceivePipeline
+ */
+class InboundQueue<M extends CarrierModel<?>> {
+
+    /**
+     * The acceptable queuing delay when using {@link OverflowPolicy#CODEL}.
+     */
+    final static long CODEL_TARGET_IN_NANOSECONDS = TimeUnit.MILLISECONDS.toNanos(5);
+    /**
+     * The time the queuing delay has to exceed the target before messages are
+     * shed when using {@link OverflowPolicy#CODEL}.
+     */
+    final static long CODEL_INTERVAL_IN_NANOSECONDS = TimeUnit.MILLISECONDS.toNanos(100);
+    private final BlockingQueue<InboundMessage<M>> queue;
+    private final OverflowPolicy policy;
+    private final long target;
+    private final long interval;
+    final AtomicLong droppedMessages = new AtomicLong(0);
+    final AtomicLong shedMessages = new AtomicLong(0);
+    long firstAboveTime = 0;
+    long dropNext = 0;
+    int dropCount = 0;
+    int lastDropCount = 0;
+    boolean isDropping = false;
+
+    InboundQueue(int capacity, OverflowPolicy policy) {
+        this(capacity, policy, CODEL_TARGET_IN_NANOSECONDS, CODEL_INTERVAL_IN_NANOSECONDS);
+    }
+
+    InboundQueue(int capacity, OverflowPolicy policy, long targetInNanoseconds, long intervalInNanoseconds) {
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.policy = policy;
+        this.target = targetInNanoseconds;
+        this.interval = intervalInNanoseconds;
+    }
+
+    /**
+     * Adds the given message, according to the {@link OverflowPolicy}.
+     *
+     * @param inbound The message to add.
+     * @throws CarrierException If the message is rejected or the thread was
+     * interrupted while waiting for space.
+     */
+    void offer(InboundMessage<M> inbound) {
+        switch (policy) {
+            case BLOCK:
+                put(inbound);
+                break;
+            case REJECT:
+                if (!queue.offer(inbound)) {
+                    droppedMessages.incrementAndGet();
+                    throw new CarrierException("The message was rejected: the receive queue is full.");
+                }
+                break;
+            case DROP_OLDEST:
+                while (!queue.offer(inbound)) {
+                    if (queue.poll() != null) {
+                        droppedMessages.incrementAndGet();
+                    }
+                }
+                break;
+            default:
+                if (!queue.offer(inbound)) {
+                    droppedMessages.incrementAndGet();
+                }
+        }
+    }
+
+    private void put(InboundMessage<M> inbound) {
+        try {
+            queue.put(inbound);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CarrierException("Interrupted while waiting for space in the receive queue.");
+        }
+    }
+
+    /**
+     * Takes the next message, waiting up to the given time if necessary. With
+     * {@link OverflowPolicy#CODEL}, messages may be shed before one is
+     * returned.
+     *
+     * @param timeout The time to wait.
+     * @param unit The unit of the timeout.
+     * @return The next message, or {@code null} if there is none.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    InboundMessage<M> poll(long timeout, TimeUnit unit) throws InterruptedException {
+        InboundMessage<M> inbound = queue.poll(timeout, unit);
+
+        if (policy != OverflowPolicy.CODEL) {
+            return inbound;
+        }
+
+        if (inbound == null) {
+            firstAboveTime = 0;
+            return null;
+        }
+
+        return controlDelay(inbound, System.nanoTime());
+    }
+
+    private InboundMessage<M> controlDelay(InboundMessage<M> inbound, long now) {
+        boolean isOkToDrop = isSojournTooLong(inbound, now);
+
+        if (isDropping) {
+            if (!isOkToDrop) {
+                isDropping = false;
+            }
+
+            while (isDropping && now >= dropNext) {
+                shedMessages.incrementAndGet();
+                dropCount++;
+                inbound = queue.poll();
+                isOkToDrop = isSojournTooLong(inbound, now);
+
+                if (isOkToDrop) {
+                    dropNext = controlLaw(dropNext, dropCount);
+                } else {
+                    isDropping = false;
+                }
+            }
+        } else if (isOkToDrop) {
+            shedMessages.incrementAndGet();
+            inbound = queue.poll();
+            isDropping = true;
+
+            int delta = dropCount - lastDropCount;
+            dropCount = (delta > 1 && now - dropNext < 16 * interval) ? delta : 1;
+            dropNext = controlLaw(now, dropCount);
+            lastDropCount = dropCount;
+        }
+
+        return inbound;
+    }
+
+    private boolean isSojournTooLong(InboundMessage<M> inbound, long now) {
+        if (inbound == null) {
+            firstAboveTime = 0;
+            return false;
+        }
+
+        if (now - inbound.receivedAtInNanoseconds < target || queue.isEmpty()) {
+            firstAboveTime = 0;
+            return false;
+        }
+
+        if (firstAboveTime == 0) {
+            firstAboveTime = now + interval;
+            return false;
+        }
+
+        return now >= firstAboveTime;
+    }
+
+    private long controlLaw(long time, int count) {
+        return time + (long) (interval / Math.sqrt(count));
+    }
+
+    int size() {
+        return queue.size();
+    }
+
+    boolean isEmpty() {
+        return queue.isEmpty();
+    }
+
+}
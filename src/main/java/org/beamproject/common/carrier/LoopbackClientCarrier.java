@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import org.beamproject.common.util.Exceptions;
+
+/**
+ * Implements the {@link ClientCarrier} interface on top of a
+ * {@link LoopbackHub}, so that clients and servers can exchange messages
+ * within the same process, without any broker.
+ *
+ * @see LoopbackHub
+ * @see ClientCarrier
+ */
+public class LoopbackClientCarrier extends AbstractClientCarrier {
+
+    private final LoopbackHub hub;
+    private final String subscriberTopic;
+
+    /**
+     * Creates a new {@link LoopbackClientCarrier}.
+     *
+     * @param model The model which consumes the received messages.
+     * @param hub The hub to publish to and subscribe at.
+     * @param subscriberTopic The topic to receive messages from.
+     * @throws IllegalArgumentException If at least one argument is null.
+     */
+    public LoopbackClientCarrier(ClientCarrierModel model, LoopbackHub hub, String subscriberTopic) {
+        super(model);
+        Exceptions.verifyArgumentsNotNull(model, hub, subscriberTopic);
+
+        this.hub = hub;
+        this.subscriberTopic = subscriberTopic;
+    }
+
+    /**
+     * Publishes the given message to the given topic at the
+     * {@link LoopbackHub}. This method returns immediately.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param topic The topic to which to send this message to.
+     */
+    @Override
+    public void deliverMessage(byte[] message, String topic) {
+        hub.publish(topic, message);
+    }
+
+    /**
+     * Publishes the given message to the given topic at the
+     * {@link LoopbackHub}. Since the hub does not acknowledge messages, the
+     * {@link Delivery} makes no difference.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param topic The topic to which to send this message to.
+     * @param delivery The requested guarantee.
+     */
+    @Override
+    public void deliverMessage(byte[] message, String topic, Delivery delivery) {
+        hub.publish(topic, message);
+    }
+
+    /**
+     * Publishes the given message to the given topic at the
+     * {@link LoopbackHub}. The returned future is completed as soon as the hub
+     * accepted the message, regardless of a simulated loss.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param topic The topic to which to send this message to.
+     * @param delivery The requested guarantee.
+     * @return The future of the delivery.
+     */
+    @Override
+    public DeliveryFuture deliverMessageAsync(byte[] message, String topic, Delivery delivery) {
+        DeliveryFuture future = new DeliveryFuture();
+
+        try {
+            hub.publish(topic, message);
+            future.complete();
+        } catch (RuntimeException ex) {
+            future.fail(ex);
+        }
+
+        return future;
+    }
+
+    @Override
+    public void startReceiving() {
+        hub.subscribe(subscriberTopic, this);
+    }
+
+    /**
+     * Do not receive further messages.
+     *
+     * @throws IllegalStateException If this {@link ClientCarrier} was not
+     * receiving before.
+     */
+    @Override
+    public void stopReceiving() {
+        if (!hub.isSubscribed(subscriberTopic, this)) {
+            throw new IllegalStateException("This may only be invoked when receiving.");
+        }
+
+        hub.unsubscribe(subscriberTopic, this);
+    }
+
+    @Override
+    public void shutdown() {
+        hub.unsubscribe(subscriberTopic, this);
+        shutdownReceivePipeline();
+    }
+
+}
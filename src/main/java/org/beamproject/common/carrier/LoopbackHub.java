@@ -0,0 +1,303 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.beamproject.common.util.Exceptions;
+
+/**
+ * An in-memory replacement of an MQTT broker, which connects {@link Carrier}s
+ * within the same process. This allows to measure the costs of the
+ * cryptography and the message handling without any network involved.
+ * <p>
+ * Every subscription has a lock-free queue and a thread, that passes the
+ * published messages to {@link Carrier#receive(byte[], String)} in the order
+ * they were published. Optionally, every message is delayed by a fixed latency
+ * plus a random jitter, or lost with a given probability.
+ * <p>
+ * Topics are matched exactly, except for topics ending with {@code /+}, which
+ * match every topic with the same prefix and one more level, e.g.
+ * {@code in/+} matches {@code in/username}.
+ *
+ * @see LoopbackClientCarrier
+ */
+public class LoopbackHub {
+
+    /**
+     * The time an idle subscription waits for new messages before checking
+     * whether it should stop.
+     */
+    public final static long IDLE_TIMEOUT_IN_MILLISECONDS = 100;
+    private final static String WILDCARD = "+";
+    private final static Logger LOG = Logger.getLogger(LoopbackHub.class.getName());
+    private final long latencyInNanoseconds;
+    private final long jitterInNanoseconds;
+    private final double lossProbability;
+    private final ConcurrentHashMap<String, List<Subscription>> subscriptions = new ConcurrentHashMap<>();
+    final AtomicLong publishedMessages = new AtomicLong(0);
+    final AtomicLong lostMessages = new AtomicLong(0);
+
+    /**
+     * Creates a new {@link LoopbackHub}, which delivers the messages
+     * immediately and never loses one.
+     */
+    public LoopbackHub() {
+        this(0, 0, 0);
+    }
+
+    /**
+     * Creates a new {@link LoopbackHub}.
+     *
+     * @param latencyInMicroseconds The time every message is delayed.
+     * @param jitterInMicroseconds The maximal additional, random delay of a
+     * message.
+     * @param lossProbability The probability, between 0 and 1, that a message
+     * is lost.
+     * @throws IllegalArgumentException If a delay is negative or the
+     * probability is not between 0 and 1.
+     */
+    public LoopbackHub(long latencyInMicroseconds, long jitterInMicroseconds, double lossProbability) {
+        if (latencyInMicroseconds < 0 || jitterInMicroseconds < 0) {
+            throw new IllegalArgumentException("The latency and the jitter may not be negative.");
+        }
+
+        if (lossProbability < 0 || lossProbability > 1) {
+            throw new IllegalArgumentException("The loss probability has to be between 0 and 1.");
+        }
+
+        this.latencyInNanoseconds = TimeUnit.MICROSECONDS.toNanos(latencyInMicroseconds);
+        this.jitterInNanoseconds = TimeUnit.MICROSECONDS.toNanos(jitterInMicroseconds);
+        this.lossProbability = lossProbability;
+    }
+
+    /**
+     * Subscribes the given {@link Carrier} to the given topic. The messages
+     * are passed to the carrier together with the topic they were published
+     * to.
+     *
+     * @param topic The topic to subscribe to.
+     * @param carrier The carrier to subscribe.
+     * @throws IllegalArgumentException If at least one argument is null.
+     */
+    public void subscribe(String topic, Carrier<?> carrier) {
+        Exceptions.verifyArgumentsNotNull(topic, carrier);
+
+        Subscription subscription = new Subscription(topic, carrier);
+        List<Subscription> newList = new CopyOnWriteArrayList<>();
+        List<Subscription> list = subscriptions.putIfAbsent(topic, newList);
+        (list == null ? newList : list).add(subscription);
+        subscription.start();
+    }
+
+    /**
+     * Unsubscribes the given {@link Carrier} from the given topic. Messages
+     * that are already queued for the carrier are dropped.
+     *
+     * @param topic The topic to unsubscribe from.
+     * @param carrier The carrier to unsubscribe.
+     * @throws IllegalArgumentException If at least one argument is null.
+     */
+    public void unsubscribe(String topic, Carrier<?> carrier) {
+        Exceptions.verifyArgumentsNotNull(topic, carrier);
+
+        List<Subscription> list = subscriptions.get(topic);
+
+        if (list == null) {
+            return;
+        }
+
+        for (Subscription subscription : list) {
+            if (subscription.carrier == carrier) {
+                list.remove(subscription);
+                subscription.cancel();
+            }
+        }
+    }
+
+    /**
+     * @param topic The topic to check.
+     * @param carrier The carrier to check.
+     * @return true, if the given {@link Carrier} is subscribed to the given
+     * topic.
+     */
+    public boolean isSubscribed(String topic, Carrier<?> carrier) {
+        List<Subscription> list = subscriptions.get(topic);
+
+        if (list != null) {
+            for (Subscription subscription : list) {
+                if (subscription.carrier == carrier) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Publishes the given message to all {@link Carrier}s, which are
+     * subscribed to the given topic. This method returns immediately.
+     *
+     * @param topic The topic to publish to.
+     * @param message The message to publish.
+     * @throws IllegalArgumentException If at least one argument is null.
+     */
+    public void publish(String topic, byte[] message) {
+        Exceptions.verifyArgumentsNotNull(topic, message);
+        publishedMessages.incrementAndGet();
+
+        if (lossProbability > 0 && ThreadLocalRandom.current().nextDouble() < lossProbability) {
+            lostMessages.incrementAndGet();
+            return;
+        }
+
+        PendingDelivery delivery = new PendingDelivery(topic, message, System.nanoTime() + calculateDelay());
+        enqueue(subscriptions.get(topic), delivery);
+
+        int lastSlash = topic.lastIndexOf('/');
+
+        if (lastSlash >= 0) {
+            enqueue(subscriptions.get(topic.substring(0, lastSlash + 1) + WILDCARD), delivery);
+        }
+    }
+
+    private long calculateDelay() {
+        if (jitterInNanoseconds == 0) {
+            return latencyInNanoseconds;
+        }
+
+        return latencyInNanoseconds + (long) (ThreadLocalRandom.current().nextDouble() * jitterInNanoseconds);
+    }
+
+    private void enqueue(List<Subscription> list, PendingDelivery delivery) {
+        if (list == null) {
+            return;
+        }
+
+        for (Subscription subscription : list) {
+            subscription.queue.offer(delivery);
+            LockSupport.unpark(subscription);
+        }
+    }
+
+    /**
+     * @return The number of messages published so far, including lost ones.
+     */
+    public long getPublishedMessages() {
+        return publishedMessages.get();
+    }
+
+    /**
+     * @return The number of messages lost on purpose so far.
+     */
+    public long getLostMessages() {
+        return lostMessages.get();
+    }
+
+    /**
+     * Cancels all subscriptions.
+     */
+    public void shutdown() {
+        for (List<Subscription> list : subscriptions.values()) {
+            for (Subscription subscription : list) {
+                subscription.cancel();
+            }
+        }
+
+        subscriptions.clear();
+    }
+
+    /**
+     * A published message that is due to be delivered at a certain time.
+     */
+    private static class PendingDelivery {
+
+        final String topic;
+        final byte[] message;
+        final long dueAtInNanoseconds;
+
+        PendingDelivery(String topic, byte[] message, long dueAtInNanoseconds) {
+            this.topic = topic;
+            this.message = message;
+            this.dueAtInNanoseconds = dueAtInNanoseconds;
+        }
+    }
+
+    /**
+     * Passes the messages of a single subscription to its {@link Carrier}.
+     */
+    private static class Subscription extends Thread {
+
+        final Carrier<?> carrier;
+        final ConcurrentLinkedQueue<PendingDelivery> queue = new ConcurrentLinkedQueue<>();
+        volatile boolean isRunning = true;
+
+        Subscription(String topic, Carrier<?> carrier) {
+            super(LoopbackHub.class.getSimpleName() + "-" + topic);
+            setDaemon(true);
+            this.carrier = carrier;
+        }
+
+        void cancel() {
+            isRunning = false;
+            LockSupport.unpark(this);
+        }
+
+        @Override
+        public void run() {
+            while (isRunning) {
+                PendingDelivery delivery = queue.peek();
+
+                if (delivery == null) {
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(IDLE_TIMEOUT_IN_MILLISECONDS));
+                    continue;
+                }
+
+                long remainingDelay = delivery.dueAtInNanoseconds - System.nanoTime();
+
+                if (remainingDelay > 0) {
+                    LockSupport.parkNanos(this, remainingDelay);
+                    continue;
+                }
+
+                queue.poll();
+                deliver(delivery);
+            }
+        }
+
+        private void deliver(PendingDelivery delivery) {
+            try {
+                carrier.receive(delivery.message, delivery.topic);
+            } catch (Exception ex) {
+                LOG.log(Level.WARNING, "Could not deliver a message to {0}: {1}",
+                        new Object[]{delivery.topic, ex.getMessage()});
+            }
+        }
+    }
+
+}
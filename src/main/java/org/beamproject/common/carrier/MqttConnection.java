@@ -18,8 +18,12 @@
  */
 package org.beamproject.common.carrier;
 
+import java.nio.ByteBuffer;
+import java.util.LinkedHashSet;
+import java.util.Set;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import lombok.Getter;
 import org.beamproject.common.util.Exceptions;
 import org.fusesource.mqtt.client.BlockingConnection;
 import org.fusesource.mqtt.client.MQTT;
@@ -30,6 +34,17 @@ import org.fusesource.mqtt.client.Topic;
 /**
  * Allows to send byte arrays to recipients via <a
  * href="http://mqtt.org/">MQTT</a>.
+ * <p>
+ * By default, the connection uses a persistent session
+ * ({@code cleanSession=false}) identified by a stable client id, so messages
+ * which were queued at the broker while the connection was lost are delivered
+ * after reconnecting. Connections which only publish should use a clean
+ * session instead, so they do not leave sessions behind at the broker. A lost
+ * connection is re-established according to the {@link ReconnectPolicy}, with
+ * the same client id, and the subscription is renewed.
+ * <p>
+ * Besides the configured topic, further topics can be subscribed to with
+ * {@link #addSubscriberTopic(String)}, also while subscribing.
  */
 public class MqttConnection {
 
@@ -38,12 +53,66 @@ public class MqttConnection {
     private final int port;
     private final String username;
     private final String subscriberTopic;
-    BlockingConnection connection;
-    private boolean doReceive;
-    private boolean isSubscribing;
+    @Getter
+    private final String clientId;
+    @Getter
+    private final boolean cleanSession;
+    volatile BlockingConnection connection;
+    ReconnectPolicy reconnectPolicy = new ReconnectPolicy();
+    private final Set<String> additionalTopics = new LinkedHashSet<>();
+    private volatile boolean doReceive;
+    volatile boolean isSubscribing;
 
+    /**
+     * Creates a new {@link MqttConnection} which uses the {@code username} as
+     * client id.
+     *
+     * @param mqtt The MQTT client to use.
+     * @param host The host of the broker.
+     * @param port The port of the broker.
+     * @param username The MQTT username.
+     * @param subscriberTopic The topic to subscribe to.
+     * @throws IllegalArgumentException If at least one argument is null or the
+     * port is invalid.
+     */
     public MqttConnection(MQTT mqtt, String host, int port, String username, String subscriberTopic) {
-        Exceptions.verifyArgumentsNotNull(mqtt, host, username, subscriberTopic);
+        this(mqtt, host, port, username, subscriberTopic, username);
+    }
+
+    /**
+     * Creates a new {@link MqttConnection}.
+     *
+     * @param mqtt The MQTT client to use.
+     * @param host The host of the broker.
+     * @param port The port of the broker.
+     * @param username The MQTT username.
+     * @param subscriberTopic The topic to subscribe to.
+     * @param clientId The client id of the persistent session. Two connections
+     * to the same broker may not have the same client id at the same time.
+     * @throws IllegalArgumentException If at least one argument is null or the
+     * port is invalid.
+     */
+    public MqttConnection(MQTT mqtt, String host, int port, String username, String subscriberTopic, String clientId) {
+        this(mqtt, host, port, username, subscriberTopic, clientId, false);
+    }
+
+    /**
+     * Creates a new {@link MqttConnection}.
+     *
+     * @param mqtt The MQTT client to use.
+     * @param host The host of the broker.
+     * @param port The port of the broker.
+     * @param username The MQTT username.
+     * @param subscriberTopic The topic to subscribe to.
+     * @param clientId The client id. Two connections to the same broker may
+     * not have the same client id at the same time.
+     * @param cleanSession Whether the broker should discard the session when
+     * the connection is closed, instead of queuing messages for it.
+     * @throws IllegalArgumentException If at least one argument is null or the
+     * port is invalid.
+     */
+    public MqttConnection(MQTT mqtt, String host, int port, String username, String subscriberTopic, String clientId, boolean cleanSession) {
+        Exceptions.verifyArgumentsNotNull(mqtt, host, username, subscriberTopic, clientId);
         verifyPort(port);
 
         this.mqtt = mqtt;
@@ -51,6 +120,8 @@ public class MqttConnection {
         this.port = port;
         this.username = username;
         this.subscriberTopic = subscriberTopic;
+        this.clientId = clientId;
+        this.cleanSession = cleanSession;
     }
 
     private void verifyPort(int port) {
@@ -62,6 +133,9 @@ public class MqttConnection {
     /**
      * Connects to the configured MQTT broker. This has to be done before
      * messages may be published or topic subscribed to.
+     * <p>
+     * If the broker is not reachable, up to
+     * {@link ReconnectPolicy#getMaximalAttempts()} attempts are made.
      *
      * @throws CarrierException If the connection could not be established.
      */
@@ -69,23 +143,77 @@ public class MqttConnection {
         try {
             mqtt.setHost(host, port);
             mqtt.setUserName(username);
-            connection = mqtt.blockingConnection();
-            connection.connect();
+            mqtt.setClientId(clientId);
+            mqtt.setCleanSession(cleanSession);
+            mqtt.setConnectAttemptsMax(1);
+            mqtt.setReconnectAttemptsMax(0);
         } catch (Exception ex) {
             throw new CarrierException("Could not connect to broker: " + ex.getMessage());
         }
+
+        for (int failedAttempts = 0;; failedAttempts++) {
+            try {
+                connectOnce();
+                return;
+            } catch (Exception ex) {
+                if (failedAttempts + 1 >= reconnectPolicy.getMaximalAttempts()) {
+                    kill(connection);
+                    throw new CarrierException("Could not connect to broker: " + ex.getMessage());
+                }
+
+                reconnectPolicy.waitBeforeAttempt(failedAttempts + 1);
+            }
+        }
+    }
+
+    private void connectOnce() throws Exception {
+        kill(connection);
+        connection = mqtt.blockingConnection();
+        connection.connect();
     }
 
     /**
-     * Publishes a {@code message} to the given {@code topic}.
+     * Closes a connection, which is about to be replaced, without a graceful
+     * disconnect, so it does not hold its socket any longer.
+     */
+    private void kill(BlockingConnection replacedConnection) {
+        if (replacedConnection == null) {
+            return;
+        }
+
+        try {
+            replacedConnection.kill();
+        } catch (Exception ex) {
+            Logger.getLogger(MqttConnection.class.getName()).log(Level.FINE,
+                    "Could not close the replaced connection: {0}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Publishes a {@code message} to the given {@code topic}
+     * {@link Delivery#AT_LEAST_ONCE}.
      *
      * @param topic The topic to publish to.
      * @param message The message to send.
      * @throws CarrierException If the message could not be published.
      */
     public void publish(String topic, byte[] message) {
+        publish(topic, message, Delivery.AT_LEAST_ONCE);
+    }
+
+    /**
+     * Publishes a {@code message} to the given {@code topic}. This blocks
+     * until the broker acknowledged the message, unless it is delivered
+     * {@link Delivery#AT_MOST_ONCE}.
+     *
+     * @param topic The topic to publish to.
+     * @param message The message to send.
+     * @param delivery The requested guarantee.
+     * @throws CarrierException If the message could not be published.
+     */
+    public void publish(String topic, byte[] message, Delivery delivery) {
         try {
-            connection.publish(topic, message, QoS.AT_LEAST_ONCE, false);
+            connection.publish(topic, message, delivery.qos, false);
         } catch (Exception ex) {
             throw new CarrierException("Could not publish the message: " + ex.getMessage());
         }
@@ -95,18 +223,23 @@ public class MqttConnection {
      * Subscribes the given {@link ClientCarrier} to the configured topic.
      * <p>
      * Incoming messages will be delivered to
-     * {@link ClientCarrier.receive(byte[])}.
+     * {@link ClientCarrier#receive(ByteBuffer, String)}, without copying the
+     * payload.
      * <p>
      * This method blocks until {@code this.doReceive(false)} has been invoked.
+     * If the connection is lost in the meantime, it is re-established and the
+     * subscription renewed.
      *
      * @param carrier The carrier to subscribe.
      * @throws CarrierException If the subscription was not successful.
      */
     public void subscribe(ClientCarrier carrier) {
         try {
-            Topic[] topics = new Topic[]{new Topic(subscriberTopic, QoS.AT_LEAST_ONCE)};
-            connection.subscribe(topics);
-            isSubscribing = true;
+            synchronized (this) {
+                subscribeOnce();
+                isSubscribing = true;
+            }
+
             doReceive(true);
         } catch (Exception ex) {
             doReceive(false);
@@ -120,10 +253,96 @@ public class MqttConnection {
         while (doReceive) {
             try {
                 message = connection.receive();
-                carrier.receive(message.getPayload(), message.getTopic());
+                carrier.receive(message.getPayloadBuffer().toByteBuffer(), message.getTopic());
                 message.ack();
             } catch (Exception ex) {
                 logger.log(Level.WARNING, "Could not receive from topic: {0}", ex.getMessage());
+
+                if (doReceive && !connection.isConnected()) {
+                    reconnectAndResubscribe();
+                }
+            }
+        }
+    }
+
+    private void subscribeOnce() throws Exception {
+        String[] names = getSubscriberTopics();
+        Topic[] topics = new Topic[names.length];
+
+        for (int i = 0; i < names.length; i++) {
+            topics[i] = new Topic(names[i], QoS.AT_LEAST_ONCE);
+        }
+
+        connection.subscribe(topics);
+    }
+
+    /**
+     * Subscribes to the given topic in addition to the configured one. If
+     * this connection is subscribing and connected, the broker is asked right
+     * away; otherwise, the topic is subscribed to together with the configured
+     * one. Either way, the subscription is renewed after reconnecting.
+     *
+     * @param topic The topic to subscribe to.
+     * @throws IllegalArgumentException If the argument is null.
+     * @throws CarrierException If the subscription was not successful. It is
+     * tried again after reconnecting.
+     */
+    public synchronized void addSubscriberTopic(String topic) {
+        Exceptions.verifyArgumentsNotNull(topic);
+
+        if (!additionalTopics.add(topic) || !isSubscribing || !connection.isConnected()) {
+            return;
+        }
+
+        try {
+            connection.subscribe(new Topic[]{new Topic(topic, QoS.AT_LEAST_ONCE)});
+        } catch (Exception ex) {
+            throw new CarrierException("Could not subscribe to topic '" + topic + "': " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Unsubscribes from a topic, which was added with
+     * {@link #addSubscriberTopic(String)}.
+     *
+     * @param topic The topic to unsubscribe from.
+     * @throws IllegalArgumentException If the argument is null.
+     * @throws CarrierException If the broker could not be asked to
+     * unsubscribe. The topic is not renewed after reconnecting either way.
+     */
+    public synchronized void removeSubscriberTopic(String topic) {
+        Exceptions.verifyArgumentsNotNull(topic);
+
+        if (!additionalTopics.remove(topic) || !isSubscribing || !connection.isConnected()) {
+            return;
+        }
+
+        try {
+            connection.unsubscribe(new String[]{topic});
+        } catch (Exception ex) {
+            throw new CarrierException("Could not unsubscribe from topic '" + topic + "': " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Re-establishes the connection and renews the subscription. This is
+     * tried until it succeeds or {@code this.doReceive(false)} was invoked.
+     */
+    void reconnectAndResubscribe() {
+        Logger logger = Logger.getLogger(MqttConnection.class.getName());
+
+        for (int failedAttempts = 1; doReceive; failedAttempts++) {
+            reconnectPolicy.waitBeforeAttempt(failedAttempts);
+
+            try {
+                synchronized (this) {
+                    connectOnce();
+                    subscribeOnce();
+                }
+
+                return;
+            } catch (Exception ex) {
+                logger.log(Level.WARNING, "Could not reconnect to broker: {0}", ex.getMessage());
             }
         }
     }
@@ -149,10 +368,11 @@ public class MqttConnection {
      *
      * @throws CarrierException If the disconnection was not successful.
      */
-    public void disconnect() {
+    public synchronized void disconnect() {
         try {
             if (isSubscribing) {
-                connection.unsubscribe(new String[]{subscriberTopic});
+                isSubscribing = false;
+                connection.unsubscribe(getSubscriberTopics());
             }
 
             connection.disconnect();
@@ -161,4 +381,16 @@ public class MqttConnection {
         }
     }
 
+    private String[] getSubscriberTopics() {
+        String[] topics = new String[1 + additionalTopics.size()];
+        topics[0] = subscriberTopic;
+        int index = 1;
+
+        for (String topic : additionalTopics) {
+            topics[index++] = topic;
+        }
+
+        return topics;
+    }
+
 }
@@ -22,13 +22,30 @@ import com.google.inject.Inject;
 import org.apache.commons.pool2.impl.GenericObjectPool;
 
 /**
- * Represents a connection pool of {@link MqttConnection}.
+ * Represents a connection pool of {@link MqttConnection}. The pooled
+ * connections only publish; the connection to subscribe with is created
+ * separately, see {@link #createSubscriberConnection()}.
  */
 public class MqttConnectionPool extends GenericObjectPool<MqttConnection> {
 
+    private final MqttConnectionPoolFactory factory;
+
     @Inject
     public MqttConnectionPool(MqttConnectionPoolFactory factory) {
         super(factory);
+        this.factory = factory;
+    }
+
+    /**
+     * Creates and connects the connection to subscribe with. It is not part of
+     * the pool and has to be disconnected by the caller.
+     *
+     * @return The connected connection.
+     * @throws CarrierException If the connection could not be established.
+     * @see MqttConnectionPoolFactory#createSubscriberConnection()
+     */
+    public MqttConnection createSubscriberConnection() {
+        return factory.createSubscriberConnection();
     }
 
 }
@@ -19,15 +19,29 @@
 package org.beamproject.common.carrier;
 
 import com.google.inject.Inject;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 import lombok.Getter;
 import org.apache.commons.pool2.BasePooledObjectFactory;
 import org.apache.commons.pool2.PooledObject;
 import org.apache.commons.pool2.impl.DefaultPooledObject;
+import org.beamproject.common.util.Exceptions;
 import org.fusesource.mqtt.client.MQTT;
 
 /**
  * This factory class is required by the Apache Commons Pool library. It
  * provides methods to create {@link MqttConnection} objects.
+ * <p>
+ * The pooled connections only publish. They use clean sessions and throwaway
+ * client ids ({@code [username]-pub-[random]-0},
+ * {@code [username]-pub-[random]-1}, etc.), so they leave no sessions behind at
+ * the broker.
+ * <p>
+ * The connection which subscribes is created by
+ * {@link #createSubscriberConnection()}. It uses a persistent session with the
+ * same client id every time (by default {@code [username]-sub}), so messages
+ * which the broker queued while it was disconnected, even across restarts, are
+ * delivered once it is connected again.
  */
 public class MqttConnectionPoolFactory extends BasePooledObjectFactory<MqttConnection> {
 
@@ -39,22 +53,85 @@ public class MqttConnectionPoolFactory extends BasePooledObjectFactory<MqttConne
     private final String username;
     @Getter
     private final String subscriberTopic;
+    @Getter
+    private final String subscriberClientId;
+    private final String publisherClientIdPrefix;
+    private final AtomicInteger createdConnections = new AtomicInteger(0);
 
+    /**
+     * Creates a new {@link MqttConnectionPoolFactory}, whose subscriber
+     * connection uses the client id {@code [username]-sub}.
+     *
+     * @param host The host of the broker.
+     * @param port The port of the broker.
+     * @param username The MQTT username.
+     * @param subscriberTopic The topic to subscribe to.
+     */
     @Inject
     public MqttConnectionPoolFactory(String host, int port, String username, String subscriberTopic) {
+        this(host, port, username, subscriberTopic, username + "-sub");
+    }
+
+    /**
+     * Creates a new {@link MqttConnectionPoolFactory}.
+     *
+     * @param host The host of the broker.
+     * @param port The port of the broker.
+     * @param username The MQTT username.
+     * @param subscriberTopic The topic to subscribe to.
+     * @param subscriberClientId The client id of the persistent session of the
+     * subscriber connection. It has to stay the same across restarts.
+     * @throws IllegalArgumentException If the subscriber client id is null.
+     */
+    public MqttConnectionPoolFactory(String host, int port, String username, String subscriberTopic, String subscriberClientId) {
+        Exceptions.verifyArgumentsNotNull(subscriberClientId);
+
         this.host = host;
         this.port = port;
         this.username = username;
         this.subscriberTopic = subscriberTopic;
+        this.subscriberClientId = subscriberClientId;
+        this.publisherClientIdPrefix = username + "-pub-" + Integer.toString(new SecureRandom().nextInt(Integer.MAX_VALUE), 36) + "-";
     }
 
+    /**
+     * Creates and connects a new {@link MqttConnection} to publish with. It
+     * uses a clean session.
+     *
+     * @return The connected connection.
+     * @throws CarrierException If the connection could not be established.
+     */
     @Override
     public MqttConnection create() throws Exception {
         MqttConnection connection = new MqttConnection(new MQTT(),
                 host,
                 port,
                 username,
-                subscriberTopic);
+                subscriberTopic,
+                publisherClientIdPrefix + createdConnections.getAndIncrement(),
+                true);
+
+        connection.connect();
+
+        return connection;
+    }
+
+    /**
+     * Creates and connects a new {@link MqttConnection} to subscribe with. It
+     * uses the persistent session of {@link #getSubscriberClientId()}, so only
+     * one such connection may be connected at a time.
+     *
+     * @return The connected connection.
+     * @throws CarrierException If the connection could not be established.
+     */
+    public MqttConnection createSubscriberConnection() {
+        MqttConnection connection = new MqttConnection(new MQTT(),
+                host,
+                port,
+                username,
+                subscriberTopic,
+                subscriberClientId,
+                false);
 
         connection.connect();
 
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import lombok.Getter;
+import org.beamproject.common.util.Exceptions;
+
+/**
+ * Shares a fixed number of {@link MqttConnection}s among all publishing
+ * threads, as an alternative to borrowing a connection from a
+ * {@link MqttConnectionPool} for every batch of messages.
+ * <p>
+ * Selecting a connection takes neither a lock nor allocates anything: either
+ * the connections are used in turns ({@link Strategy#ROUND_ROBIN}), or the
+ * connection with the fewest publications in flight is used
+ * ({@link Strategy#LEAST_IN_FLIGHT}). A connection is only opened when it is
+ * selected for the first time. If publishing fails, the connection is closed
+ * and opened again when it is selected the next time.
+ * <p>
+ * Opening a connection holds a lock of only its own slot, so publications via
+ * the other connections go on while the broker is slow to accept it. The
+ * publication waiting for the connection counts as in flight, so
+ * {@link Strategy#LEAST_IN_FLIGHT} avoids the slot in the meantime. The
+ * connections use clean sessions, see
+ * {@link MqttConnectionPoolFactory#create()}.
+ *
+ * @see ClientCarrierImpl#setConnectionSelector(MqttConnectionSelector)
+ */
+public class MqttConnectionSelector {
+
+    /**
+     * How the connection for a publication is selected.
+     */
+    public enum Strategy {
+
+        /**
+         * Use the connections in turns.
+         */
+        ROUND_ROBIN,
+        /**
+         * Use the connection with the fewest publications in flight. This
+         * avoids connections, which are slowed down, for example by a full
+         * socket buffer.
+         */
+        LEAST_IN_FLIGHT
+    }
+    private final MqttConnectionPoolFactory factory;
+    @Getter
+    private final Strategy strategy;
+    final AtomicReferenceArray<MqttConnection> connections;
+    final AtomicIntegerArray inFlight;
+    private final Object[] openingLocks;
+    private final AtomicInteger turn = new AtomicInteger(0);
+
+    /**
+     * Creates a new {@link MqttConnectionSelector}.
+     *
+     * @param factory The factory to open the connections with.
+     * @param numberOfConnections The number of connections.
+     * @param strategy How the connections are selected.
+     * @throws IllegalArgumentException If the factory or strategy is null or
+     * the number of connections is not positive.
+     */
+    public MqttConnectionSelector(MqttConnectionPoolFactory factory, int numberOfConnections, Strategy strategy) {
+        Exceptions.verifyArgumentsNotNull(factory, strategy);
+
+        if (numberOfConnections < 1) {
+            throw new IllegalArgumentException("The number of connections has to be positive.");
+        }
+
+        this.factory = factory;
+        this.strategy = strategy;
+        connections = new AtomicReferenceArray<>(numberOfConnections);
+        inFlight = new AtomicIntegerArray(numberOfConnections);
+        openingLocks = new Object[numberOfConnections];
+
+        for (int i = 0; i < numberOfConnections; i++) {
+            openingLocks[i] = new Object();
+        }
+    }
+
+    /**
+     * @return The number of connections.
+     */
+    public int getNumberOfConnections() {
+        return connections.length();
+    }
+
+    /**
+     * Publishes the given message via the selected connection. This blocks
+     * until the broker acknowledged the message, unless it is delivered
+     * {@link Delivery#AT_MOST_ONCE}.
+     *
+     * @param topic The topic to publish to.
+     * @param message The message to send.
+     * @param delivery The requested guarantee.
+     * @throws CarrierException If the connection could not be opened or the
+     * message could not be published.
+     */
+    public void publish(String topic, byte[] message, Delivery delivery) {
+        int index = select();
+        inFlight.incrementAndGet(index);
+
+        try {
+            MqttConnection connection = connectionAt(index);
+
+            try {
+                connection.publish(topic, message, delivery);
+            } catch (CarrierException ex) {
+                discard(index, connection);
+                throw ex;
+            }
+        } finally {
+            inFlight.decrementAndGet(index);
+        }
+    }
+
+    /**
+     * @return The index of the connection to use next.
+     */
+    int select() {
+        int start = (turn.getAndIncrement() & Integer.MAX_VALUE) % connections.length();
+
+        if (strategy == Strategy.ROUND_ROBIN) {
+            return start;
+        }
+
+        int selected = start;
+        int fewest = inFlight.get(start);
+
+        for (int i = 1; i < connections.length() && fewest > 0; i++) {
+            int index = (start + i) % connections.length();
+            int current = inFlight.get(index);
+
+            if (current < fewest) {
+                selected = index;
+                fewest = current;
+            }
+        }
+
+        return selected;
+    }
+
+    private MqttConnection connectionAt(int index) {
+        MqttConnection connection = connections.get(index);
+
+        if (connection != null) {
+            return connection;
+        }
+
+        synchronized (openingLocks[index]) {
+            connection = connections.get(index);
+
+            if (connection == null) {
+                connection = open();
+                connections.set(index, connection);
+            }
+
+            return connection;
+        }
+    }
+
+    private MqttConnection open() {
+        try {
+            return factory.create();
+        } catch (CarrierException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new CarrierException("Could not open a connection: " + ex.getMessage());
+        }
+    }
+
+    private void discard(int index, MqttConnection connection) {
+        if (connections.compareAndSet(index, connection, null)) {
+            disconnectQuietly(connection);
+        }
+    }
+
+    private void disconnectQuietly(MqttConnection connection) {
+        try {
+            connection.disconnect();
+        } catch (CarrierException ex) {
+            // The connection is broken anyway.
+        }
+    }
+
+    /**
+     * Closes all open connections. A later publication opens them again.
+     */
+    public void close() {
+        for (int i = 0; i < connections.length(); i++) {
+            MqttConnection connection = connections.getAndSet(i, null);
+
+            if (connection != null) {
+                disconnectQuietly(connection);
+            }
+        }
+    }
+
+}
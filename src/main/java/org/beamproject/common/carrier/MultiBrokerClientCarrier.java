@@ -0,0 +1,523 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.beamproject.common.Participant;
+import org.beamproject.common.util.Exceptions;
+
+/**
+ * Spreads the users over several MQTT brokers, so that the messaging tier can
+ * be scaled horizontally. Every broker is reached through its own
+ * {@link SubscribingClientCarrier}, for example a {@link ClientCarrierImpl}
+ * with its own {@link MqttConnectionPool}, which consumes the received
+ * messages with the same {@link ClientCarrierModel}.
+ * <p>
+ * A username is mapped onto a broker by a {@link ConsistentHashRing}. All
+ * messages to a topic like {@code out/[username]}, all bindings of such a
+ * topic and its subscription, see {@link #addSubscriberTopic(String)}, are
+ * handled by the carrier of that broker. When a broker is added or removed,
+ * only the bindings and subscriptions of the affected users are moved to
+ * their new broker.
+ *
+ * @see ConsistentHashRing
+ */
+public class MultiBrokerClientCarrier implements SubscribingClientCarrier {
+
+    private final static Logger LOG = Logger.getLogger(MultiBrokerClientCarrier.class.getName());
+    final ConsistentHashRing<String> ring;
+    final ConcurrentMap<String, SubscribingClientCarrier> brokers = new ConcurrentHashMap<>();
+    final Map<Participant, Binding> bindings = new HashMap<>();
+    final Map<String, String> subscriptions = new HashMap<>();
+    boolean isReceiving = false;
+
+    /**
+     * Creates a new {@link MultiBrokerClientCarrier} without any broker, using
+     * {@link ConsistentHashRing#DEFAULT_VIRTUAL_NODES}.
+     */
+    public MultiBrokerClientCarrier() {
+        this(ConsistentHashRing.DEFAULT_VIRTUAL_NODES);
+    }
+
+    /**
+     * Creates a new {@link MultiBrokerClientCarrier} without any broker.
+     *
+     * @param virtualNodes The number of positions of every broker on the ring.
+     * @throws IllegalArgumentException If the number is not positive.
+     */
+    public MultiBrokerClientCarrier(int virtualNodes) {
+        ring = new ConsistentHashRing<>(virtualNodes);
+    }
+
+    /**
+     * Adds a broker and moves the bindings and subscriptions of its users to
+     * it. If this carrier is receiving, the given carrier starts receiving as
+     * well.
+     *
+     * @param name The unique name of the broker, for example
+     * {@code host:port}. It determines the position of the broker on the ring.
+     * @param carrier The carrier to reach the broker.
+     * @throws IllegalArgumentException If at least one argument is null or a
+     * broker with the given name was already added.
+     */
+    public synchronized void addBroker(String name, SubscribingClientCarrier carrier) {
+        Exceptions.verifyArgumentsNotNull(name, carrier);
+
+        if (brokers.putIfAbsent(name, carrier) != null) {
+            throw new IllegalArgumentException("The broker " + name + " was already added.");
+        }
+
+        ring.add(name);
+
+        if (isReceiving) {
+            carrier.startReceiving();
+        }
+
+        rebalance();
+    }
+
+    /**
+     * Removes a broker and moves the bindings and subscriptions of its users
+     * to the remaining brokers. The carrier of the broker is unsubscribed from
+     * the moved topics, but neither stopped nor shut down, so that messages in
+     * flight are still delivered and users can move over.
+     *
+     * @param name The name of the broker.
+     * @return The carrier of the removed broker.
+     * @throws IllegalArgumentException If the argument is null or no broker
+     * with the given name was added.
+     */
+    public synchronized SubscribingClientCarrier removeBroker(String name) {
+        Exceptions.verifyArgumentsNotNull(name);
+
+        if (!ring.remove(name)) {
+            throw new IllegalArgumentException("The broker " + name + " is unknown.");
+        }
+
+        rebalance();
+        return brokers.remove(name);
+    }
+
+    /**
+     * @param username The MQTT username of a user.
+     * @return The name of the broker of the given user, or {@code null} if no
+     * broker was added.
+     */
+    public String getBrokerName(String username) {
+        return ring.get(username);
+    }
+
+    /**
+     * @return The number of brokers.
+     */
+    public int getNumberOfBrokers() {
+        return ring.size();
+    }
+
+    private String brokerNameFor(String topic) {
+        String name = ring.get(TopicRouter.extractUsername(topic));
+
+        if (name == null) {
+            throw new CarrierException("No broker is available.");
+        }
+
+        return name;
+    }
+
+    private SubscribingClientCarrier carrierFor(String topic) {
+        SubscribingClientCarrier carrier = brokers.get(brokerNameFor(topic));
+
+        if (carrier == null) {
+            throw new CarrierException("The broker of " + topic + " was just removed.");
+        }
+
+        return carrier;
+    }
+
+    /**
+     * Moves every binding and subscription whose broker changed. The caller
+     * has to hold the lock of this carrier.
+     *
+     * @return The number of moved bindings and subscriptions.
+     */
+    int rebalance() {
+        return rebalanceBindings() + rebalanceSubscriptions();
+    }
+
+    private int rebalanceBindings() {
+        Map<String, List<Participant>> unbindings = new HashMap<>();
+        Map<String, Map<Participant, String>> newBindings = new HashMap<>();
+
+        for (Map.Entry<Participant, Binding> entry : bindings.entrySet()) {
+            Binding binding = entry.getValue();
+            String broker = ring.get(TopicRouter.extractUsername(binding.topic));
+
+            if (broker == null || broker.equals(binding.broker)) {
+                continue;
+            }
+
+            groupedList(unbindings, binding.broker).add(entry.getKey());
+            groupedMap(newBindings, broker).put(entry.getKey(), binding.topic);
+            entry.setValue(new Binding(binding.topic, broker));
+        }
+
+        for (Map.Entry<String, List<Participant>> entry : unbindings.entrySet()) {
+            brokers.get(entry.getKey()).unbindParticipants(entry.getValue());
+        }
+
+        int moved = 0;
+
+        for (Map.Entry<String, Map<Participant, String>> entry : newBindings.entrySet()) {
+            brokers.get(entry.getKey()).bindParticipantsToTopics(entry.getValue());
+            moved += entry.getValue().size();
+        }
+
+        return moved;
+    }
+
+    /**
+     * Subscribes the new broker of every moved topic before the old one is
+     * unsubscribed, so that no message is missed in between. A failing
+     * subscription is renewed by the carrier, once it reconnects. Without any
+     * broker, the topics are kept without a broker until one is added.
+     */
+    private int rebalanceSubscriptions() {
+        int moved = 0;
+
+        for (Map.Entry<String, String> entry : subscriptions.entrySet()) {
+            String topic = entry.getKey();
+            String previous = entry.getValue();
+            String broker = ring.get(TopicRouter.extractUsername(topic));
+
+            if (broker == null ? previous == null : broker.equals(previous)) {
+                continue;
+            }
+
+            if (broker != null) {
+                try {
+                    brokers.get(broker).addSubscriberTopic(topic);
+                } catch (CarrierException ex) {
+                    LOG.log(Level.WARNING, "Could not subscribe to {0} yet: {1}", new Object[]{topic, ex.getMessage()});
+                }
+            }
+
+            if (previous != null) {
+                unsubscribeQuietly(previous, topic);
+            }
+
+            entry.setValue(broker);
+            moved++;
+        }
+
+        return moved;
+    }
+
+    private void unsubscribeQuietly(String broker, String topic) {
+        try {
+            brokers.get(broker).removeSubscriberTopic(topic);
+        } catch (CarrierException ex) {
+            LOG.log(Level.WARNING, "Could not unsubscribe from {0}: {1}", new Object[]{topic, ex.getMessage()});
+        }
+    }
+
+    /**
+     * Receives the given topic via the broker of its username. The
+     * subscription moves along, whenever the broker of the username changes.
+     *
+     * @param topic The topic to subscribe to, like {@code out/[username]}.
+     * @throws IllegalArgumentException If the argument is null.
+     * @throws CarrierException If the topic is not valid, no broker was added
+     * or the subscription was not successful. In the latter case, it is
+     * renewed nevertheless.
+     */
+    @Override
+    public synchronized void addSubscriberTopic(String topic) {
+        Exceptions.verifyArgumentsNotNull(topic);
+        String broker = brokerNameFor(topic);
+        String previous = subscriptions.put(topic, broker);
+
+        if (broker.equals(previous)) {
+            return;
+        }
+
+        brokers.get(broker).addSubscriberTopic(topic);
+
+        if (previous != null) {
+            unsubscribeQuietly(previous, topic);
+        }
+    }
+
+    /**
+     * Stops to receive a topic, which was added with
+     * {@link #addSubscriberTopic(String)}.
+     *
+     * @param topic The topic to unsubscribe from.
+     * @throws IllegalArgumentException If the argument is null.
+     * @throws CarrierException If the broker could not be asked to
+     * unsubscribe.
+     */
+    @Override
+    public synchronized void removeSubscriberTopic(String topic) {
+        Exceptions.verifyArgumentsNotNull(topic);
+        String broker = subscriptions.remove(topic);
+
+        if (broker != null) {
+            brokers.get(broker).removeSubscriberTopic(topic);
+        }
+    }
+
+    /**
+     * Binds the given {@link Participant} at the broker of the given topic.
+     *
+     * @param participant The participant to bind.
+     * @param topic The topic to bind, like {@code out/[username]}.
+     * @throws CarrierException If the topic is not valid or no broker was
+     * added.
+     */
+    @Override
+    public synchronized void bindParticipantToTopic(Participant participant, String topic) {
+        String broker = brokerNameFor(topic);
+        Binding previous = bindings.put(participant, new Binding(topic, broker));
+
+        if (previous != null && !previous.broker.equals(broker)) {
+            brokers.get(previous.broker).unbindParticipant(participant);
+        }
+
+        brokers.get(broker).bindParticipantToTopic(participant, topic);
+    }
+
+    /**
+     * Binds all the given {@link Participant}s at the brokers of their topics,
+     * with a single call per broker.
+     *
+     * @param bindings The topics, mapped by their {@link Participant}s.
+     * @throws CarrierException If a topic is not valid or no broker was added.
+     */
+    @Override
+    public synchronized void bindParticipantsToTopics(Map<Participant, String> bindings) {
+        Map<String, List<Participant>> unbindings = new HashMap<>();
+        Map<String, Map<Participant, String>> newBindings = new HashMap<>();
+
+        for (Map.Entry<Participant, String> entry : bindings.entrySet()) {
+            groupedMap(newBindings, brokerNameFor(entry.getValue())).put(entry.getKey(), entry.getValue());
+        }
+
+        for (Map.Entry<String, Map<Participant, String>> group : newBindings.entrySet()) {
+            for (Map.Entry<Participant, String> entry : group.getValue().entrySet()) {
+                Binding previous = this.bindings.put(entry.getKey(), new Binding(entry.getValue(), group.getKey()));
+
+                if (previous != null && !previous.broker.equals(group.getKey())) {
+                    groupedList(unbindings, previous.broker).add(entry.getKey());
+                }
+            }
+        }
+
+        for (Map.Entry<String, List<Participant>> entry : unbindings.entrySet()) {
+            brokers.get(entry.getKey()).unbindParticipants(entry.getValue());
+        }
+
+        for (Map.Entry<String, Map<Participant, String>> entry : newBindings.entrySet()) {
+            brokers.get(entry.getKey()).bindParticipantsToTopics(entry.getValue());
+        }
+    }
+
+    @Override
+    public synchronized void unbindParticipant(Participant participant) {
+        Binding binding = bindings.remove(participant);
+
+        if (binding != null) {
+            brokers.get(binding.broker).unbindParticipant(participant);
+        }
+    }
+
+    @Override
+    public synchronized void unbindParticipants(Collection<Participant> participants) {
+        Map<String, List<Participant>> unbindings = new HashMap<>();
+
+        for (Participant participant : participants) {
+            Binding binding = bindings.remove(participant);
+
+            if (binding != null) {
+                groupedList(unbindings, binding.broker).add(participant);
+            }
+        }
+
+        for (Map.Entry<String, List<Participant>> entry : unbindings.entrySet()) {
+            brokers.get(entry.getKey()).unbindParticipants(entry.getValue());
+        }
+    }
+
+    private static List<Participant> groupedList(Map<String, List<Participant>> groups, String broker) {
+        List<Participant> group = groups.get(broker);
+
+        if (group == null) {
+            group = new ArrayList<>();
+            groups.put(broker, group);
+        }
+
+        return group;
+    }
+
+    private static Map<Participant, String> groupedMap(Map<String, Map<Participant, String>> groups, String broker) {
+        Map<Participant, String> group = groups.get(broker);
+
+        if (group == null) {
+            group = new HashMap<>();
+            groups.put(broker, group);
+        }
+
+        return group;
+    }
+
+    /**
+     * Delivers the given message via the broker of the given topic.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param topic The topic to which to send this message to.
+     * @throws CarrierException If the topic is not valid, no broker was added
+     * or the broker fails to deliver the message.
+     */
+    @Override
+    public void deliverMessage(byte[] message, String topic) {
+        carrierFor(topic).deliverMessage(message, topic);
+    }
+
+    /**
+     * Delivers the given message via the broker of the given topic.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param topic The topic to which to send this message to.
+     * @param delivery The requested guarantee.
+     * @throws CarrierException If the topic is not valid, no broker was added
+     * or the broker fails to deliver the message.
+     */
+    @Override
+    public void deliverMessage(byte[] message, String topic, Delivery delivery) {
+        carrierFor(topic).deliverMessage(message, topic, delivery);
+    }
+
+    /**
+     * Delivers the given message via the broker of the given topic. The
+     * returned future fails if the topic is not valid or no broker was added.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param topic The topic to which to send this message to.
+     * @param delivery The requested guarantee.
+     * @return The future of the delivery.
+     */
+    @Override
+    public DeliveryFuture deliverMessageAsync(byte[] message, String topic, Delivery delivery) {
+        SubscribingClientCarrier carrier;
+
+        try {
+            carrier = carrierFor(topic);
+        } catch (CarrierException ex) {
+            DeliveryFuture future = new DeliveryFuture();
+            future.fail(ex);
+            return future;
+        }
+
+        return carrier.deliverMessageAsync(message, topic, delivery);
+    }
+
+    /**
+     * Starts to receive on all brokers, including the ones added later.
+     */
+    @Override
+    public synchronized void startReceiving() {
+        isReceiving = true;
+
+        for (ClientCarrier carrier : brokers.values()) {
+            carrier.startReceiving();
+        }
+    }
+
+    /**
+     * Hands the given message to the carrier of the broker of the given topic.
+     * Usually, the carriers of the brokers receive their messages themselves.
+     *
+     * @param message The new message to handle.
+     * @param topic The topic on which the message was received.
+     * @throws CarrierException If the topic is not valid or no broker was
+     * added.
+     */
+    @Override
+    public void receive(byte[] message, String topic) {
+        carrierFor(topic).receive(message, topic);
+    }
+
+    /**
+     * Hands the given message to the carrier of the broker of the given topic,
+     * like {@link #receive(byte[], String)}.
+     *
+     * @param message The new message to handle.
+     * @param topic The topic on which the message was received.
+     * @throws CarrierException If the topic is not valid or no broker was
+     * added.
+     */
+    @Override
+    public void receive(ByteBuffer message, String topic) {
+        carrierFor(topic).receive(message, topic);
+    }
+
+    @Override
+    public synchronized void stopReceiving() {
+        isReceiving = false;
+
+        for (ClientCarrier carrier : brokers.values()) {
+            carrier.stopReceiving();
+        }
+    }
+
+    /**
+     * Shuts the carriers of all brokers down.
+     */
+    @Override
+    public synchronized void shutdown() {
+        isReceiving = false;
+
+        for (ClientCarrier carrier : brokers.values()) {
+            carrier.shutdown();
+        }
+    }
+
+    /**
+     * The topic of a bound {@link Participant} and the broker it is bound at.
+     */
+    static class Binding {
+
+        final String topic;
+        final String broker;
+
+        Binding(String topic, String broker) {
+            this.topic = topic;
+            this.broker = broker;
+        }
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import com.google.inject.Inject;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.beamproject.common.util.Exceptions;
+import org.beamproject.common.util.Executor;
+
+/**
+ * A {@link ClientCarrierImpl} shared by many local participants, for example
+ * in a gateway process. Instead of opening a {@link MqttConnectionPool} per
+ * participant, all of them publish via the same pool, and a single connection
+ * subscribes to the {@code out/[username]} topics of all registered
+ * usernames, so the number of broker connections does not grow with the
+ * number of participants. The subscriber topic of the
+ * {@link MqttConnectionPoolFactory} is subscribed to as well; use the topic of
+ * the gateway itself.
+ * <p>
+ * Every received message is handed to the {@link ClientCarrierModel}
+ * registered for the username of its topic. Messages that arrive after their
+ * username was unregistered are dropped and counted. The configured
+ * {@link AdmissionControl}, {@link DuplicateFilter} and
+ * {@link ReceivePipeline} apply to the messages of all participants; the
+ * pipeline passes the messages on to the registered models instead of its
+ * own.
+ * <p>
+ * The models may start and stop receiving independently: the subscription is
+ * established by the first {@link #startReceiving()} and ended by the last
+ * matching {@link #stopReceiving()}.
+ *
+ * @see ClientCarrierImpl
+ */
+public class MultiplexedClientCarrier extends ClientCarrierImpl {
+
+    final ConcurrentMap<String, ClientCarrierModel> models = new ConcurrentHashMap<>();
+    final AtomicLong unroutableMessages = new AtomicLong(0);
+    int receivers = 0;
+
+    @Inject
+    public MultiplexedClientCarrier(Executor executor, MqttConnectionPool connectionPool) {
+        super(null, executor, connectionPool);
+    }
+
+    /**
+     * Hands the messages received for the given username to the given
+     * {@link ClientCarrierModel} and, if the carrier is receiving already,
+     * subscribes to the topic of the username. An existing registration of
+     * the username is replaced.
+     *
+     * @param username The MQTT username of a local participant.
+     * @param model The model to consume the messages.
+     * @throws IllegalArgumentException If at least one argument is null.
+     * @throws CarrierException If the subscription was not successful. The
+     * model stays registered and the subscription is renewed once the
+     * connection is re-established.
+     */
+    public synchronized void register(String username, ClientCarrierModel model) {
+        Exceptions.verifyArgumentsNotNull(username, model);
+
+        models.put(username, model);
+        addSubscriberTopic(topicOf(username));
+    }
+
+    /**
+     * Stops to hand the messages received for the given username to its
+     * {@link ClientCarrierModel} and unsubscribes from the topic of the
+     * username.
+     *
+     * @param username The MQTT username of a local participant.
+     * @return The model that was registered, or {@code null}.
+     * @throws IllegalArgumentException If the argument is null.
+     * @throws CarrierException If the broker could not be asked to
+     * unsubscribe. The model is unregistered nevertheless.
+     */
+    public synchronized ClientCarrierModel unregister(String username) {
+        Exceptions.verifyArgumentsNotNull(username);
+
+        ClientCarrierModel model = models.remove(username);
+
+        if (model != null) {
+            removeSubscriberTopic(topicOf(username));
+        }
+
+        return model;
+    }
+
+    private static String topicOf(String username) {
+        return MQTT_OUT_TOPIC_PREFIX + username;
+    }
+
+    /**
+     * @param username The MQTT username of a local participant.
+     * @return The registered model, or {@code null}.
+     */
+    public ClientCarrierModel getModel(String username) {
+        return models.get(username);
+    }
+
+    /**
+     * @return The number of registered usernames.
+     */
+    public int getNumberOfModels() {
+        return models.size();
+    }
+
+    /**
+     * @return The number of received messages that were dropped, since no
+     * model was registered for their username.
+     */
+    public long getUnroutableMessages() {
+        return unroutableMessages.get();
+    }
+
+    /**
+     * Starts to receive the messages of all registered usernames, unless this
+     * carrier is receiving already.
+     *
+     * @throws CarrierException If the subscription was not successful.
+     */
+    @Override
+    public synchronized void startReceiving() {
+        if (receivers++ == 0) {
+            super.startReceiving();
+        }
+    }
+
+    /**
+     * Stops to receive messages, once this was invoked as often as
+     * {@link #startReceiving()}.
+     *
+     * @throws IllegalStateException If this carrier was not receiving before.
+     */
+    @Override
+    public synchronized void stopReceiving() {
+        if (receivers == 0) {
+            throw new IllegalStateException("This may only be invoked when receiving.");
+        }
+
+        if (--receivers == 0) {
+            super.stopReceiving();
+        }
+    }
+
+    @Override
+    void dispatch(byte[] message, String username) {
+        ClientCarrierModel target = models.get(username);
+
+        if (target == null) {
+            unroutableMessages.incrementAndGet();
+        } else if (receivePipeline == null) {
+            target.consumeMessage(message, username);
+        } else {
+            receivePipeline.submit(message, username, target);
+        }
+    }
+
+    @Override
+    void dispatch(ByteBuffer message, String username) {
+        ClientCarrierModel target = models.get(username);
+
+        if (target == null) {
+            unroutableMessages.incrementAndGet();
+        } else if (receivePipeline == null) {
+            target.consumeMessage(message, username);
+        } else {
+            receivePipeline.submit(message, username, target);
+        }
+    }
+
+}
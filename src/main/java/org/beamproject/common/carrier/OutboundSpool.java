@@ -0,0 +1,488 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import org.beamproject.common.util.Exceptions;
+
+/**
+ * Keeps already encrypted messages on disk while they cannot be published,
+ * for example because the broker is restarting.
+ * <p>
+ * The spool is an append-only log of memory-mapped segment files of a fixed
+ * size. Messages are appended to the newest segment and taken from the oldest
+ * one, in the order they were appended. As soon as a message is acknowledged,
+ * it is marked as such in its segment. A segment, whose messages are all
+ * acknowledged, is unmapped and deleted; a new one is created when the newest
+ * segment is full. Once all messages are acknowledged, the last segment is
+ * kept and written from its start again, so a spool which is repeatedly
+ * filled and drained does not map new files.
+ * <p>
+ * A spool, opened on a directory that contains segments of an earlier spool,
+ * continues with the messages that were not acknowledged yet.
+ * <p>
+ * The mapped buffers are only accessed while holding the monitor of the spool,
+ * and a segment is removed from the spool before its mapping is released.
+ * Once the spool is closed, every further access is refused, so a released
+ * mapping is never touched again.
+ * <p>
+ * Every record consists of a state byte (empty, pending or acknowledged), the
+ * ordinal of the {@link Delivery}, the length of the topic (2 bytes), the
+ * length of the message (4 bytes), the topic in UTF-8, and the message. The
+ * state byte is written last, so a partially written record is ignored. The
+ * state byte after the last record is kept empty, so records of an earlier use
+ * of the segment are ignored as well.
+ *
+ * @see ClientCarrierImpl#setSpool(OutboundSpool)
+ */
+public class OutboundSpool {
+
+    /**
+     * The default size of a single segment file.
+     */
+    public final static int DEFAULT_SEGMENT_SIZE_IN_BYTES = 16 * 1024 * 1024;
+    final static String SEGMENT_PREFIX = "segment-";
+    final static String SEGMENT_SUFFIX = ".spool";
+    private final static int HEADER_LENGTH = 8;
+    private final static byte EMPTY = 0;
+    private final static byte PENDING = 1;
+    private final static byte ACKNOWLEDGED = 2;
+    private final File directory;
+    private final int segmentSizeInBytes;
+    private final LinkedList<Segment> segments = new LinkedList<>();
+    private int pendingMessages = 0;
+    private boolean isClosed = false;
+
+    /**
+     * Opens a spool in the given directory with segments of
+     * {@link #DEFAULT_SEGMENT_SIZE_IN_BYTES}.
+     *
+     * @param directory The directory for the segment files. It is created, if
+     * it does not exist.
+     * @throws IllegalArgumentException If the argument is null.
+     * @throws CarrierException If the directory or the segments cannot be
+     * accessed.
+     */
+    public OutboundSpool(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE_IN_BYTES);
+    }
+
+    /**
+     * Opens a spool in the given directory.
+     *
+     * @param directory The directory for the segment files. It is created, if
+     * it does not exist.
+     * @param segmentSizeInBytes The size of a single segment file. This limits
+     * the size of a single message.
+     * @throws IllegalArgumentException If the directory is null or the segment
+     * size cannot even hold a record header.
+     * @throws CarrierException If the directory or the segments cannot be
+     * accessed.
+     */
+    public OutboundSpool(File directory, int segmentSizeInBytes) {
+        Exceptions.verifyArgumentsNotNull(directory);
+
+        if (segmentSizeInBytes <= HEADER_LENGTH) {
+            throw new IllegalArgumentException("The segments have to be larger than a record header.");
+        }
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new CarrierException("Could not create the spool directory: " + directory);
+        }
+
+        this.directory = directory;
+        this.segmentSizeInBytes = segmentSizeInBytes;
+
+        recover();
+    }
+
+    private void recover() {
+        for (long sequence : listSequences()) {
+            Segment segment = openSegment(sequence);
+            segment.scan();
+            segments.add(segment);
+            pendingMessages += segment.pendingMessages;
+        }
+
+        removeAcknowledgedSegments();
+    }
+
+    private List<Long> listSequences() {
+        List<Long> sequences = new ArrayList<>();
+        String[] names = directory.list();
+
+        if (names != null) {
+            for (String name : names) {
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        sequences.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                                name.length() - SEGMENT_SUFFIX.length())));
+                    } catch (NumberFormatException ex) {
+                        // Not one of our segments.
+                    }
+                }
+            }
+        }
+
+        Collections.sort(sequences);
+        return sequences;
+    }
+
+    /**
+     * Appends the given message to the spool.
+     *
+     * @param topic The topic to publish to.
+     * @param message The already encrypted message.
+     * @param delivery The requested guarantee.
+     * @throws IllegalArgumentException If at least one argument is null.
+     * @throws CarrierException If the message does not fit into a segment or
+     * the segment cannot be written.
+     * @throws IllegalStateException If the spool is closed.
+     */
+    public synchronized void append(String topic, byte[] message, Delivery delivery) {
+        Exceptions.verifyArgumentsNotNull(topic, message, delivery);
+        verifyOpen();
+
+        byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+        int length = HEADER_LENGTH + topicBytes.length + message.length;
+
+        if (length > segmentSizeInBytes || topicBytes.length > 0xFFFF) {
+            throw new CarrierException("The message is too large to be spooled.");
+        }
+
+        Segment tail = segments.peekLast();
+
+        if (tail == null || tail.writePosition + length > segmentSizeInBytes) {
+            tail = openSegment(tail == null ? 0 : tail.sequence + 1);
+            segments.add(tail);
+        }
+
+        tail.write(topicBytes, message, delivery);
+        pendingMessages++;
+    }
+
+    void append(Publication publication) {
+        append(publication.topic, publication.message, publication.delivery);
+    }
+
+    /**
+     * @return The oldest message, which was not acknowledged yet, or
+     * {@code null} if there is none.
+     * @throws IllegalStateException If the spool is closed.
+     */
+    synchronized Publication peek() {
+        verifyOpen();
+
+        if (pendingMessages == 0) {
+            return null;
+        }
+
+        return segments.getFirst().read();
+    }
+
+    /**
+     * Marks the oldest message, see {@link #peek()}, as acknowledged. Segments
+     * that contain only acknowledged messages are deleted.
+     *
+     * @throws IllegalStateException If the spool is empty or closed.
+     */
+    synchronized void acknowledge() {
+        verifyOpen();
+
+        if (pendingMessages == 0) {
+            throw new IllegalStateException("There is no message to acknowledge.");
+        }
+
+        segments.getFirst().acknowledge();
+        pendingMessages--;
+        removeAcknowledgedSegments();
+    }
+
+    private void removeAcknowledgedSegments() {
+        while (segments.size() > 1 && segments.getFirst().isDrained()) {
+            segments.removeFirst().delete();
+        }
+
+        Segment last = segments.peekLast();
+
+        if (last != null && pendingMessages == 0 && last.isDrained()) {
+            last.reset();
+        }
+    }
+
+    /**
+     * @return The number of messages, that are not acknowledged yet.
+     */
+    public synchronized int size() {
+        return pendingMessages;
+    }
+
+    /**
+     * @return true, if all messages are acknowledged.
+     */
+    public synchronized boolean isEmpty() {
+        return pendingMessages == 0;
+    }
+
+    /**
+     * @return The number of segment files in use, including a drained one that
+     * is kept for reuse.
+     */
+    public synchronized int getSegments() {
+        return segments.size();
+    }
+
+    /**
+     * @return true, if the spool is closed.
+     */
+    public synchronized boolean isClosed() {
+        return isClosed;
+    }
+
+    /**
+     * Writes all changes to the disk.
+     *
+     * @throws CarrierException If the segments cannot be written.
+     * @throws IllegalStateException If the spool is closed.
+     */
+    public synchronized void force() {
+        verifyOpen();
+
+        for (Segment segment : segments) {
+            segment.buffer.force();
+        }
+    }
+
+    /**
+     * Writes all changes to the disk and closes the segment files. The spool
+     * may not be used afterwards. Closing a closed spool has no effect.
+     */
+    public synchronized void close() {
+        if (isClosed) {
+            return;
+        }
+
+        force();
+        isClosed = true;
+
+        for (Segment segment : segments) {
+            segment.close();
+        }
+
+        segments.clear();
+    }
+
+    private void verifyOpen() {
+        if (isClosed) {
+            throw new IllegalStateException("The spool is closed.");
+        }
+    }
+
+    private Segment openSegment(long sequence) {
+        File file = new File(directory, SEGMENT_PREFIX + sequence + SEGMENT_SUFFIX);
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSizeInBytes);
+            return new Segment(sequence, file, buffer);
+        } catch (IOException ex) {
+            throw new CarrierException("Could not open the spool segment " + file + ": " + ex.getMessage());
+        }
+    }
+
+    /**
+     * A single, memory-mapped segment file. It is only accessed while holding
+     * the monitor of the spool.
+     */
+    private class Segment {
+
+        final long sequence;
+        final File file;
+        final MappedByteBuffer buffer;
+        int readPosition = 0;
+        int writePosition = 0;
+        int pendingMessages = 0;
+
+        Segment(long sequence, File file, MappedByteBuffer buffer) {
+            this.sequence = sequence;
+            this.file = file;
+            this.buffer = buffer;
+        }
+
+        /**
+         * Finds the first pending record and the end of the written records.
+         */
+        void scan() {
+            boolean isHeadFound = false;
+            int position = 0;
+
+            while (position + HEADER_LENGTH <= segmentSizeInBytes) {
+                byte state = buffer.get(position);
+                int length = recordLength(position);
+
+                if ((state != PENDING && state != ACKNOWLEDGED)
+                        || length < HEADER_LENGTH || position + length > segmentSizeInBytes) {
+                    break;
+                }
+
+                if (state == PENDING) {
+                    pendingMessages++;
+
+                    if (!isHeadFound) {
+                        readPosition = position;
+                        isHeadFound = true;
+                    }
+                }
+
+                position += length;
+            }
+
+            writePosition = position;
+
+            if (!isHeadFound) {
+                readPosition = position;
+            }
+        }
+
+        void write(byte[] topic, byte[] message, Delivery delivery) {
+            int position = writePosition;
+            buffer.put(position + 1, (byte) delivery.ordinal());
+            buffer.putShort(position + 2, (short) topic.length);
+            buffer.putInt(position + 4, message.length);
+
+            ByteBuffer body = buffer.duplicate();
+            body.position(position + HEADER_LENGTH);
+            body.put(topic);
+            body.put(message);
+
+            int end = position + HEADER_LENGTH + topic.length + message.length;
+
+            if (end < segmentSizeInBytes) {
+                buffer.put(end, EMPTY);
+            }
+
+            buffer.put(position, PENDING);
+            writePosition = end;
+            pendingMessages++;
+        }
+
+        Publication read() {
+            int position = readPosition;
+            Delivery delivery = Delivery.values()[buffer.get(position + 1)];
+            byte[] topic = new byte[buffer.getShort(position + 2) & 0xFFFF];
+            byte[] message = new byte[buffer.getInt(position + 4)];
+
+            ByteBuffer body = buffer.duplicate();
+            body.position(position + HEADER_LENGTH);
+            body.get(topic);
+            body.get(message);
+
+            return new Publication(new String(topic, StandardCharsets.UTF_8), message, delivery);
+        }
+
+        void acknowledge() {
+            buffer.put(readPosition, ACKNOWLEDGED);
+            readPosition += recordLength(readPosition);
+            pendingMessages--;
+
+            while (readPosition < writePosition && buffer.get(readPosition) == ACKNOWLEDGED) {
+                readPosition += recordLength(readPosition);
+            }
+        }
+
+        boolean isDrained() {
+            return pendingMessages == 0;
+        }
+
+        private int recordLength(int position) {
+            return HEADER_LENGTH + (buffer.getShort(position + 2) & 0xFFFF) + buffer.getInt(position + 4);
+        }
+
+        /**
+         * Lets the next record be written at the start of the segment. Only
+         * allowed if the segment is drained.
+         */
+        void reset() {
+            buffer.put(0, EMPTY);
+            readPosition = 0;
+            writePosition = 0;
+        }
+
+        void close() {
+            buffer.force();
+            unmap(buffer);
+        }
+
+        void delete() {
+            unmap(buffer);
+
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Releases the mapping of the given buffer right away, instead of when it
+     * is garbage collected, so the file can be deleted and its space is freed.
+     * The buffer may not be accessed afterwards, which is why the caller has to
+     * hold the monitor of the spool and drop every reference to the segment
+     * before. If the runtime does not allow this, the mapping is left to the
+     * garbage collector.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+            return;
+        } catch (NoSuchMethodException ex) {
+            // Before Java 9, the cleaner of the buffer is invoked directly.
+        } catch (Exception ex) {
+            return;
+        }
+
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception ex) {
+            // The mapping is released when the buffer is garbage collected.
+        }
+    }
+
+}
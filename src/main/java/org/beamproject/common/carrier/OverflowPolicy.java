@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+/**
+ * Defines what happens with received messages when they arrive faster than
+ * they can be consumed.
+ *
+ * @see ReceivePipeline
+ */
+public enum OverflowPolicy {
+
+    /**
+     * The receiving thread waits until there is space in the queue. With MQTT,
+     * the message is not acknowledged before and the broker therefore stops
+     * sending further messages.
+     */
+    BLOCK,
+    /**
+     * A message that does not fit into the queue is rejected with a
+     * {@link CarrierException}.
+     */
+    REJECT,
+    /**
+     * If the queue is full, the oldest queued message is dropped in favour of
+     * the new one.
+     */
+    DROP_OLDEST,
+    /**
+     * Messages which stayed longer in the queue than a target delay for a
+     * while are shed when being dequeued, as in the CoDel (Controlled Delay)
+     * queue management algorithm. This keeps the queuing delay low even under
+     * sustained overload. A message that does not fit into the queue anymore
+     * is dropped.
+     */
+    CODEL;
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+/**
+ * An already encrypted message together with the topic to which it has to be
+ * published, the requested {@link Delivery} and, if the sender wants to
+ * observe the delivery, a {@link DeliveryFuture}.
+ */
+class Publication {
+
+    final String topic;
+    final byte[] message;
+    final Delivery delivery;
+    final DeliveryFuture future;
+
+    Publication(String topic, byte[] message) {
+        this(topic, message, Delivery.AT_LEAST_ONCE);
+    }
+
+    Publication(String topic, byte[] message, Delivery delivery) {
+        this(topic, message, delivery, null);
+    }
+
+    Publication(String topic, byte[] message, Delivery delivery, DeliveryFuture future) {
+        this.topic = topic;
+        this.message = message;
+        this.delivery = delivery;
+        this.future = future;
+    }
+
+    void complete() {
+        if (future != null) {
+            future.complete();
+        }
+    }
+
+    void fail(Throwable cause) {
+        if (future != null) {
+            future.fail(cause);
+        }
+    }
+
+}
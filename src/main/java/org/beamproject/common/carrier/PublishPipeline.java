@@ -0,0 +1,224 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.beamproject.common.util.Exceptions;
+import org.beamproject.common.util.Executor;
+import org.beamproject.common.util.Task;
+import org.fusesource.mqtt.client.Callback;
+
+/**
+ * Publishes messages over a single {@link AsyncMqttConnection} in batches.
+ * <p>
+ * Messages are placed in a bounded send queue. A single {@link Task} drains
+ * the queue as long as it contains messages and keeps up to a configured
+ * number of unacknowledged publications in flight. Messages are published in
+ * the order they were placed in the queue.
+ *
+ * @see AsyncMqttConnection
+ * @see AsyncClientCarrierImpl
+ */
+public class PublishPipeline {
+
+    /**
+     * The default number of messages the send queue can hold.
+     */
+    public final static int DEFAULT_CAPACITY = 10000;
+    /**
+     * The default number of unacknowledged publications in flight.
+     */
+    public final static int DEFAULT_WINDOW = 128;
+    /**
+     * The maximal number of messages drained from the queue at once.
+     */
+    public final static int MAXIMAL_BATCH_SIZE = 256;
+    private final static Logger LOG = Logger.getLogger(PublishPipeline.class.getName());
+    private final Executor executor;
+    private final AsyncMqttConnection connection;
+    final BlockingQueue<Publication> queue;
+    final Semaphore window;
+    final AtomicBoolean isDraining = new AtomicBoolean(false);
+
+    /**
+     * Creates a new {@link PublishPipeline} with {@link #DEFAULT_CAPACITY} and
+     * {@link #DEFAULT_WINDOW}.
+     *
+     * @param executor The executor to run the draining task.
+     * @param connection The connected connection to publish to.
+     * @throws IllegalArgumentException If at least one argument is null.
+     */
+    public PublishPipeline(Executor executor, AsyncMqttConnection connection) {
+        this(executor, connection, DEFAULT_CAPACITY, DEFAULT_WINDOW);
+    }
+
+    /**
+     * Creates a new {@link PublishPipeline}.
+     *
+     * @param executor The executor to run the draining task.
+     * @param connection The connected connection to publish to.
+     * @param capacity The number of messages the send queue can hold.
+     * @param window The maximal number of unacknowledged publications.
+     * @throws IllegalArgumentException If at least one argument is null or
+     * the capacity or the window is not positive.
+     */
+    public PublishPipeline(Executor executor, AsyncMqttConnection connection, int capacity, int window) {
+        Exceptions.verifyArgumentsNotNull(executor, connection);
+
+        if (capacity < 1 || window < 1) {
+            throw new IllegalArgumentException("The capacity and the window have to be positive.");
+        }
+
+        this.executor = executor;
+        this.connection = connection;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.window = new Semaphore(window);
+    }
+
+    /**
+     * Places the given message in the send queue, to be delivered
+     * {@link Delivery#AT_LEAST_ONCE}. This method does not block.
+     *
+     * @param topic The topic to publish to.
+     * @param message The message to publish.
+     * @throws IllegalArgumentException If at least one argument is null.
+     * @throws CarrierException If the send queue is full.
+     */
+    public void enqueue(String topic, byte[] message) {
+        enqueue(topic, message, Delivery.AT_LEAST_ONCE);
+    }
+
+    /**
+     * Places the given message in the send queue. This method does not block.
+     *
+     * @param topic The topic to publish to.
+     * @param message The message to publish.
+     * @param delivery The requested guarantee.
+     * @throws IllegalArgumentException If at least one argument is null.
+     * @throws CarrierException If the send queue is full.
+     */
+    public void enqueue(String topic, byte[] message, Delivery delivery) {
+        Exceptions.verifyArgumentsNotNull(topic, message, delivery);
+
+        enqueue(new Publication(topic, message, delivery));
+    }
+
+    /**
+     * Places the given message in the send queue. This method does not block.
+     * The returned {@link DeliveryFuture} is completed as soon as the broker
+     * acknowledged the message, or failed if the message could not be sent,
+     * including when the send queue is full.
+     *
+     * @param topic The topic to publish to.
+     * @param message The message to publish.
+     * @param delivery The requested guarantee.
+     * @return The future of the delivery.
+     * @throws IllegalArgumentException If at least one argument is null.
+     */
+    public DeliveryFuture enqueueAsync(String topic, byte[] message, Delivery delivery) {
+        Exceptions.verifyArgumentsNotNull(topic, message, delivery);
+
+        DeliveryFuture future = new DeliveryFuture();
+
+        try {
+            enqueue(new Publication(topic, message, delivery, future));
+        } catch (CarrierException ex) {
+            future.fail(ex);
+        }
+
+        return future;
+    }
+
+    private void enqueue(Publication publication) {
+        if (!queue.offer(publication)) {
+            throw new CarrierException("The message could not be sent: the send queue is full.");
+        }
+
+        startDrainingIfIdle();
+    }
+
+    private void startDrainingIfIdle() {
+        if (isDraining.compareAndSet(false, true)) {
+            executor.runAsync(new Task() {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+    }
+
+    private void drain() {
+        List<Publication> batch = new ArrayList<>(MAXIMAL_BATCH_SIZE);
+
+        do {
+            while (queue.drainTo(batch, MAXIMAL_BATCH_SIZE) > 0) {
+                for (Publication publication : batch) {
+                    publish(publication);
+                }
+
+                batch.clear();
+            }
+
+            isDraining.set(false);
+        } while (!queue.isEmpty() && isDraining.compareAndSet(false, true));
+    }
+
+    private void publish(final Publication publication) {
+        window.acquireUninterruptibly();
+
+        try {
+            connection.publish(publication.topic, publication.message, publication.delivery, new Callback<Void>() {
+                @Override
+                public void onSuccess(Void value) {
+                    window.release();
+                    publication.complete();
+                }
+
+                @Override
+                public void onFailure(Throwable value) {
+                    window.release();
+                    LOG.log(Level.WARNING, "The message to {0} could not be sent: {1}",
+                            new Object[]{publication.topic, value.getMessage()});
+                    publication.fail(value);
+                }
+            });
+        } catch (RuntimeException ex) {
+            window.release();
+            LOG.log(Level.WARNING, "The message to {0} could not be sent: {1}",
+                    new Object[]{publication.topic, ex.getMessage()});
+            publication.fail(ex);
+        }
+    }
+
+    /**
+     * @return The number of messages waiting in the send queue.
+     */
+    public int getQueuedMessages() {
+        return queue.size();
+    }
+
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.beamproject.common.util.Exceptions;
+import org.beamproject.common.util.Executor;
+import org.beamproject.common.util.Task;
+
+/**
+ * Hands received messages off to a pool of workers, which then pass them to
+ * {@link CarrierModel#consumeMessage(byte[], String)}, where they are
+ * decrypted, validated and handled. The workers are run by an
+ * {@link Executor} once {@link #start()} is invoked.
+ * <p>
+ * The messages are partitioned by their sender: all messages of the same
+ * sender are consumed by the same worker, in the order they were received.
+ * Messages of different senders are consumed in parallel.
+ * <p>
+ * Each worker has a bounded queue. The {@link OverflowPolicy} defines what
+ * happens when messages arrive faster than a worker can consume them.
+ *
+ * @param <M> The type of the model which consumes the messages.
+ * @see Carrier
+ * @see CarrierModel
+ */
+public class ReceivePipeline<M extends CarrierModel<?>> {
+
+    /**
+     * The time a worker waits for new messages before checking whether it
+     * should stop.
+     */
+    public final static long POLL_TIMEOUT_IN_MILLISECONDS = 100;
+    /**
+     * The default number of messages a single worker can queue.
+     */
+    public final static int DEFAULT_CAPACITY_PER_WORKER = 10000;
+    private final static Logger LOG = Logger.getLogger(ReceivePipeline.class.getName());
+    private final static ThreadLocal<Integer> CURRENT_WORKER = new ThreadLocal<>();
+    private final Executor executor;
+    private final M model;
+    final List<Worker> workers;
+    final CountDownLatch stoppedWorkers;
+    volatile boolean isRunning = true;
+    boolean isStarted = false;
+
+    /**
+     * Creates a new {@link ReceivePipeline}. Each worker can queue
+     * {@link #DEFAULT_CAPACITY_PER_WORKER} messages and blocks the receiving
+     * thread if its queue is full.
+     *
+     * @param executor The executor to run the workers.
+     * @param model The model which consumes the messages.
+     * @param numberOfWorkers The number of workers.
+     * @throws IllegalArgumentException If at least one argument is null or
+     * the number of workers is not positive.
+     */
+    public ReceivePipeline(Executor executor, M model, int numberOfWorkers) {
+        this(executor, model, numberOfWorkers, DEFAULT_CAPACITY_PER_WORKER, OverflowPolicy.BLOCK);
+    }
+
+    /**
+     * Creates a new {@link ReceivePipeline}.
+     *
+     * @param executor The executor to run the workers.
+     * @param model The model which consumes the messages.
+     * @param numberOfWorkers The number of workers.
+     * @param capacityPerWorker The number of messages a single worker can
+     * queue.
+     * @param policy What to do when the queue of a worker is full.
+     * @throws IllegalArgumentException If at least one argument is null or the
+     * number of workers or the capacity is not positive.
+     */
+    public ReceivePipeline(Executor executor, M model, int numberOfWorkers, int capacityPerWorker, OverflowPolicy policy) {
+        Exceptions.verifyArgumentsNotNull(executor, model, policy);
+
+        if (numberOfWorkers < 1 || capacityPerWorker < 1) {
+            throw new IllegalArgumentException("The number of workers and the capacity have to be positive.");
+        }
+
+        this.executor = executor;
+        this.model = model;
+        this.workers = new ArrayList<>(numberOfWorkers);
+        this.stoppedWorkers = new CountDownLatch(numberOfWorkers);
+
+        for (int i = 0; i < numberOfWorkers; i++) {
+            workers.add(new Worker(i, new InboundQueue<M>(capacityPerWorker, policy)));
+        }
+    }
+
+    /**
+     * Runs the workers with the {@link Executor}. Messages may be submitted
+     * before, they are queued until then.
+     *
+     * @throws IllegalStateException If this pipeline was started or shut down
+     * already.
+     */
+    public synchronized void start() {
+        if (isStarted || !isRunning) {
+            throw new IllegalStateException("The pipeline was started or shut down already.");
+        }
+
+        isStarted = true;
+
+        for (Worker worker : workers) {
+            executor.runAsync(worker);
+        }
+    }
+
+    /**
+     * Hands the given message off to the worker responsible for the given
+     * sender. This method returns as soon as the message is queued.
+     *
+     * @param message The received message.
+     * @param sender The sender of the message, for example, the MQTT username.
+     * @throws IllegalArgumentException If at least one argument is null.
+     * @throws IllegalStateException If this pipeline was shut down.
+     * @throws CarrierException If the message is rejected due to the
+     * {@link OverflowPolicy}.
+     */
+    public void submit(byte[] message, String sender) {
+        Exceptions.verifyArgumentsNotNull(message, sender);
+
+        submit(new InboundMessage<M>(message, sender));
+    }
+
+    /**
+     * Hands the given message off to the worker responsible for the given
+     * sender, like {@link #submit(byte[], String)}. The worker passes the
+     * buffer on to {@link CarrierModel#consumeMessage(ByteBuffer, String)}.
+     *
+     * @param message The received message.
+     * @param sender The sender of the message, for example, the MQTT username.
+     * @throws IllegalArgumentException If at least one argument is null.
+     * @throws IllegalStateException If this pipeline was shut down.
+     * @throws CarrierException If the message is rejected due to the
+     * {@link OverflowPolicy}.
+     */
+    public void submit(ByteBuffer message, String sender) {
+        Exceptions.verifyArgumentsNotNull(message, sender);
+
+        submit(new InboundMessage<M>(message, sender));
+    }
+
+    /**
+     * Hands the given message off like {@link #submit(byte[], String)}, but
+     * lets the given model consume it instead of the model of this pipeline.
+     */
+    void submit(byte[] message, String sender, M consumer) {
+        Exceptions.verifyArgumentsNotNull(message, sender, consumer);
+
+        submit(new InboundMessage<>(message, sender, consumer));
+    }
+
+    /**
+     * Hands the given message off like {@link #submit(ByteBuffer, String)},
+     * but lets the given model consume it instead of the model of this
+     * pipeline.
+     */
+    void submit(ByteBuffer message, String sender, M consumer) {
+        Exceptions.verifyArgumentsNotNull(message, sender, consumer);
+
+        submit(new InboundMessage<>(message, sender, consumer));
+    }
+
+    private void submit(InboundMessage<M> inbound) {
+        if (!isRunning) {
+            throw new IllegalStateException("The pipeline was shut down.");
+        }
+
+        workers.get(selectWorker(inbound.sender)).queue.offer(inbound);
+    }
+
+    int selectWorker(String sender) {
+        return (sender.hashCode() & Integer.MAX_VALUE) % workers.size();
+    }
+
+    /**
+     * @return The number of workers.
+     */
+    public int getNumberOfWorkers() {
+        return workers.size();
+    }
+
+    /**
+     * Returns the index of the worker, which invokes this method. This allows a
+     * {@link CarrierModel} to keep state per worker, which is then confined to
+     * a single thread while the worker runs.
+     *
+     * @return The index of the invoking worker, between 0 (inclusive) and
+     * {@link #getNumberOfWorkers()} (exclusive), or -1 if this method is not
+     * invoked by a worker of a {@link ReceivePipeline}.
+     */
+    public static int getCurrentWorker() {
+        Integer index = CURRENT_WORKER.get();
+
+        return index == null ? -1 : index;
+    }
+
+    /**
+     * @return The number of messages waiting to be consumed.
+     */
+    public int getQueuedMessages() {
+        int queuedMessages = 0;
+
+        for (Worker worker : workers) {
+            queuedMessages += worker.queue.size();
+        }
+
+        return queuedMessages;
+    }
+
+    /**
+     * @return The number of messages that did not fit into a queue and were
+     * therefore dropped or rejected.
+     */
+    public long getDroppedMessages() {
+        long droppedMessages = 0;
+
+        for (Worker worker : workers) {
+            droppedMessages += worker.queue.droppedMessages.get();
+        }
+
+        return droppedMessages;
+    }
+
+    /**
+     * @return The number of messages that were shed since they stayed too
+     * long in a queue, see {@link OverflowPolicy#CODEL}.
+     */
+    public long getShedMessages() {
+        long shedMessages = 0;
+
+        for (Worker worker : workers) {
+            shedMessages += worker.queue.shedMessages.get();
+        }
+
+        return shedMessages;
+    }
+
+    /**
+     * Stops accepting new messages, consumes the already queued ones, and
+     * stops the workers afterwards. This method blocks until all workers are
+     * stopped. Messages, queued in a pipeline that was never started, are
+     * discarded.
+     */
+    public void shutdown() {
+        synchronized (this) {
+            isRunning = false;
+
+            if (!isStarted) {
+                return;
+            }
+        }
+
+        try {
+            stoppedWorkers.await();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Consumes the messages of a single partition.
+     */
+    class Worker implements Task {
+
+        final int index;
+        final InboundQueue<M> queue;
+
+        Worker(int index, InboundQueue<M> queue) {
+            this.index = index;
+            this.queue = queue;
+        }
+
+        @Override
+        public void run() {
+            CURRENT_WORKER.set(index);
+
+            try {
+                while (isRunning || !queue.isEmpty()) {
+                    InboundMessage<M> inbound = queue.poll(POLL_TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+
+                    if (inbound != null) {
+                        consume(inbound);
+                    }
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            } finally {
+                CURRENT_WORKER.remove();
+                stoppedWorkers.countDown();
+            }
+        }
+
+        private void consume(InboundMessage<M> inbound) {
+            M consumer = inbound.consumer == null ? model : inbound.consumer;
+
+            try {
+                if (inbound.buffer == null) {
+                    consumer.consumeMessage(inbound.message, inbound.sender);
+                } else {
+                    consumer.consumeMessage(inbound.buffer, inbound.sender);
+                }
+            } catch (Exception ex) {
+                LOG.log(Level.WARNING, "Could not consume a message of {0}: {1}",
+                        new Object[]{inbound.sender, ex.getMessage()});
+            }
+        }
+    }
+
+}
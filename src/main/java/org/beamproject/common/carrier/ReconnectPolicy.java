@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.util.Random;
+import lombok.Getter;
+
+/**
+ * Defines how often and how fast a connection to a broker is re-established
+ * after it failed.
+ * <p>
+ * The delays grow exponentially with every failed attempt up to a maximum.
+ * Every delay is chosen randomly between zero and that bound ("full jitter"),
+ * so that many clients that lost their connection at the same time do not
+ * reconnect at the same time again.
+ *
+ * @see MqttConnection
+ * @see AsyncMqttConnection
+ */
+public class ReconnectPolicy {
+
+    public final static long DEFAULT_INITIAL_DELAY_IN_MILLISECONDS = 100;
+    public final static long DEFAULT_MAXIMAL_DELAY_IN_MILLISECONDS = 30000;
+    public final static double DEFAULT_MULTIPLIER = 2.0;
+    public final static int DEFAULT_MAXIMAL_ATTEMPTS = 10;
+    @Getter
+    private final long initialDelayInMilliseconds;
+    @Getter
+    private final long maximalDelayInMilliseconds;
+    @Getter
+    private final double multiplier;
+    @Getter
+    private final int maximalAttempts;
+    private final Random random = new Random();
+
+    /**
+     * Creates a new {@link ReconnectPolicy} with the default values.
+     */
+    public ReconnectPolicy() {
+        this(DEFAULT_INITIAL_DELAY_IN_MILLISECONDS,
+                DEFAULT_MAXIMAL_DELAY_IN_MILLISECONDS,
+                DEFAULT_MULTIPLIER,
+                DEFAULT_MAXIMAL_ATTEMPTS);
+    }
+
+    /**
+     * Creates a new {@link ReconnectPolicy}.
+     *
+     * @param initialDelayInMilliseconds The bound of the delay after the first
+     * failed attempt.
+     * @param maximalDelayInMilliseconds The maximal bound of the delay.
+     * @param multiplier The factor the bound grows with every failed attempt.
+     * @param maximalAttempts The number of attempts when connecting initially.
+     * @throws IllegalArgumentException If a delay is negative, the multiplier
+     * is smaller than 1 or the number of attempts is not positive.
+     */
+    public ReconnectPolicy(long initialDelayInMilliseconds, long maximalDelayInMilliseconds, double multiplier, int maximalAttempts) {
+        if (initialDelayInMilliseconds < 0 || maximalDelayInMilliseconds < initialDelayInMilliseconds) {
+            throw new IllegalArgumentException("The delays have to be positive and the maximum not smaller than the initial delay.");
+        }
+
+        if (multiplier < 1 || maximalAttempts < 1) {
+            throw new IllegalArgumentException("The multiplier and the number of attempts have to be at least 1.");
+        }
+
+        this.initialDelayInMilliseconds = initialDelayInMilliseconds;
+        this.maximalDelayInMilliseconds = maximalDelayInMilliseconds;
+        this.multiplier = multiplier;
+        this.maximalAttempts = maximalAttempts;
+    }
+
+    /**
+     * Calculates the delay before the next attempt.
+     *
+     * @param failedAttempts The number of attempts that failed so far, at
+     * least 1.
+     * @return A random delay between zero and the bound for this attempt.
+     */
+    public long getDelayInMilliseconds(int failedAttempts) {
+        long bound = getBoundInMilliseconds(failedAttempts);
+
+        if (bound == 0) {
+            return 0;
+        }
+
+        return (long) (random.nextDouble() * (bound + 1));
+    }
+
+    long getBoundInMilliseconds(int failedAttempts) {
+        double bound = initialDelayInMilliseconds * Math.pow(multiplier, Math.max(0, failedAttempts - 1));
+        return (long) Math.min(bound, maximalDelayInMilliseconds);
+    }
+
+    /**
+     * Waits before the next attempt.
+     *
+     * @param failedAttempts The number of attempts that failed so far.
+     * @throws CarrierException If the thread was interrupted while waiting.
+     */
+    void waitBeforeAttempt(int failedAttempts) {
+        try {
+            Thread.sleep(getDelayInMilliseconds(failedAttempts));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CarrierException("Interrupted while waiting to reconnect.");
+        }
+    }
+
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import com.google.inject.Inject;
+import java.nio.ByteBuffer;
+import static org.beamproject.common.carrier.ClientCarrier.MQTT_IN_TOPIC_PREFIX;
+import static org.beamproject.common.carrier.ClientCarrier.MQTT_OUT_TOPIC_PREFIX;
+import org.beamproject.common.util.Executor;
+
+/**
+ * Implements the {@link ServerCarrier} interface using <a
+ * href="http://mqtt.org/">MQTT</a>. A server uses a single
+ * {@link AsyncMqttConnection}, subscribed to {@link #SUBSCRIBER_TOPIC}, to
+ * receive the messages of all its users.
+ * <p>
+ * Received messages are partitioned into shards by the MQTT username of their
+ * sender, see {@link ReceivePipeline}. Every shard is consumed by exactly one
+ * thread, so the {@link ServerCarrierModel} can keep one
+ * {@link org.beamproject.common.crypto.CryptoPacker} per shard and select it
+ * with {@link #getCurrentShard()}, without any synchronization.
+ * <p>
+ * Replies are published to {@code out/[username]} through a
+ * {@link PublishPipeline}, shared by all shards.
+ *
+ * @see ServerCarrier
+ * @see AsyncClientCarrierImpl
+ * @see TopicRouter
+ */
+public class ServerCarrierImpl implements ServerCarrier {
+
+    /**
+     * The topic the {@link AsyncMqttConnection} of a server has to be
+     * configured with.
+     */
+    public final static String SUBSCRIBER_TOPIC = MQTT_IN_TOPIC_PREFIX + "+";
+    private final AsyncMqttConnection connection;
+    final PublishPipeline pipeline;
+    final ReceivePipeline<ServerCarrierModel> shards;
+    DuplicateFilter duplicateFilter;
+    AdmissionControl admissionControl;
+
+    /**
+     * Creates a new {@link ServerCarrierImpl} with one shard per available
+     * processor.
+     *
+     * @param model The model which consumes the received messages.
+     * @param executor The executor used to publish messages and to run the
+     * shards.
+     * @param connection The connected connection, configured with the topic
+     * {@link #SUBSCRIBER_TOPIC}.
+     */
+    @Inject
+    public ServerCarrierImpl(ServerCarrierModel model, Executor executor, AsyncMqttConnection connection) {
+        this(model, executor, connection, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a new {@link ServerCarrierImpl}.
+     *
+     * @param model The model which consumes the received messages.
+     * @param executor The executor used to publish messages and to run the
+     * shards.
+     * @param connection The connected connection, configured with the topic
+     * {@link #SUBSCRIBER_TOPIC}.
+     * @param numberOfShards The number of shards, respectively threads, that
+     * consume the received messages.
+     * @throws IllegalArgumentException If the number of shards is not
+     * positive.
+     */
+    public ServerCarrierImpl(ServerCarrierModel model, Executor executor, AsyncMqttConnection connection, int numberOfShards) {
+        this(connection, new PublishPipeline(executor, connection),
+                new ReceivePipeline<ServerCarrierModel>(executor, model, numberOfShards));
+    }
+
+    ServerCarrierImpl(AsyncMqttConnection connection, PublishPipeline pipeline, ReceivePipeline<ServerCarrierModel> shards) {
+        this.connection = connection;
+        this.pipeline = pipeline;
+        this.shards = shards;
+        this.shards.start();
+    }
+
+    /**
+     * Publishes the given message to the topic of the given user. This method
+     * returns immediately.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param username The MQTT username of the recipient.
+     * @throws CarrierException If the send queue is full.
+     */
+    @Override
+    public void deliverMessage(byte[] message, String username) {
+        pipeline.enqueue(MQTT_OUT_TOPIC_PREFIX + username, message);
+    }
+
+    /**
+     * Publishes the given message to the topic of the given user. This method
+     * returns immediately.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param username The MQTT username of the recipient.
+     * @param delivery The requested guarantee.
+     * @throws CarrierException If the send queue is full.
+     */
+    @Override
+    public void deliverMessage(byte[] message, String username, Delivery delivery) {
+        pipeline.enqueue(MQTT_OUT_TOPIC_PREFIX + username, message, delivery);
+    }
+
+    /**
+     * Publishes the given message to the topic of the given user. This method
+     * returns immediately; the returned future completes once the broker
+     * acknowledged the message.
+     *
+     * @param message The message to send. This has to be already encrypted.
+     * @param username The MQTT username of the recipient.
+     * @param delivery The requested guarantee.
+     * @return The future of the delivery.
+     */
+    @Override
+    public DeliveryFuture deliverMessageAsync(byte[] message, String username, Delivery delivery) {
+        return pipeline.enqueueAsync(MQTT_OUT_TOPIC_PREFIX + username, message, delivery);
+    }
+
+    /**
+     * Start to receive messages and therefore subscribes this
+     * {@link ServerCarrier}.
+     *
+     * @throws CarrierException If the subscription was not successful.
+     */
+    @Override
+    public void startReceiving() {
+        connection.subscribe(this);
+    }
+
+    /**
+     * Drops received messages, which the given {@link DuplicateFilter}
+     * recognizes as duplicates, before they are handed off to a shard.
+     *
+     * @param duplicateFilter The filter to use, or {@code null} to pass all
+     * messages on.
+     */
+    public void setDuplicateFilter(DuplicateFilter duplicateFilter) {
+        this.duplicateFilter = duplicateFilter;
+    }
+
+    /**
+     * Drops received messages, which the given {@link AdmissionControl} does
+     * not admit, before they are handed off to a shard and decrypted.
+     *
+     * @param admissionControl The admission control to use, or {@code null}
+     * to admit all messages.
+     */
+    public void setAdmissionControl(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+    }
+
+    /**
+     * Hands the given message off to the shard of its sender. If an
+     * {@link AdmissionControl} is configured, messages that are not admitted
+     * are dropped. The same applies to duplicates, if a
+     * {@link DuplicateFilter} is configured. A message rejected by its shard
+     * is not remembered by the filter, so its redelivery is not dropped.
+     *
+     * @param message The new message to handle.
+     * @param topic The topic on which the message was received.
+     * @throws CarrierException If the topic is not valid or the message is
+     * rejected by its shard.
+     */
+    @Override
+    public void receive(byte[] message, String topic) {
+        String username = extractUsername(topic);
+
+        if (admissionControl != null && !admissionControl.admit(message, username)) {
+            return;
+        }
+
+        if (duplicateFilter == null) {
+            shards.submit(message, username);
+        } else if (!duplicateFilter.isDuplicate(message)) {
+            try {
+                shards.submit(message, username);
+            } catch (RuntimeException ex) {
+                duplicateFilter.forget(message);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Hands the given message off to the shard of its sender, like
+     * {@link #receive(byte[], String)}, without copying it.
+     *
+     * @param message The new message to handle.
+     * @param topic The topic on which the message was received.
+     * @throws CarrierException If the topic is not valid or the message is
+     * rejected by its shard.
+     */
+    @Override
+    public void receive(ByteBuffer message, String topic) {
+        String username = extractUsername(topic);
+
+        if (admissionControl != null && !admissionControl.admit(message, username)) {
+            return;
+        }
+
+        if (duplicateFilter == null) {
+            shards.submit(message, username);
+        } else if (!duplicateFilter.isDuplicate(message)) {
+            ByteBuffer unread = message.duplicate();
+
+            try {
+                shards.submit(message, username);
+            } catch (RuntimeException ex) {
+                duplicateFilter.forget(unread);
+                throw ex;
+            }
+        }
+    }
+
+    /**
+     * Extracts the MQTT username from a topic like {@code in/[username]}.
+     *
+     * @param topic The topic to parse.
+     * @return The username.
+     * @throws CarrierException If the topic does not have the expected format.
+     */
+    static String extractUsername(String topic) {
+        if (TopicRouter.indexOfUsername(topic) < 0 || !topic.startsWith(MQTT_IN_TOPIC_PREFIX)) {
+            throw new CarrierException("The topic has to look like in/[username].");
+        }
+
+        return topic.substring(MQTT_IN_TOPIC_PREFIX.length());
+    }
+
+    /**
+     * Do not receive further messages.
+     *
+     * @throws IllegalStateException If this {@link ServerCarrier} was not
+     * receiving before.
+     * @throws CarrierException If the unsubscription was not successful.
+     */
+    @Override
+    public void stopReceiving() {
+        if (!connection.isSubscribing()) {
+            throw new IllegalStateException("This may only be invoked when receiving.");
+        }
+
+        connection.unsubscribe();
+    }
+
+    @Override
+    public void shutdown() {
+        connection.disconnect();
+        shards.shutdown();
+    }
+
+    /**
+     * @return The number of shards.
+     */
+    public int getNumberOfShards() {
+        return shards.getNumberOfWorkers();
+    }
+
+    /**
+     * Returns the shard, which is consumed by the invoking thread. This is
+     * intended to be used by the {@link ServerCarrierModel} in
+     * {@link ServerCarrierModel#consumeMessage(byte[], String)}.
+     *
+     * @return The index of the shard, between 0 (inclusive) and
+     * {@link #getNumberOfShards()} (exclusive), or -1 if the invoking thread
+     * does not consume a shard.
+     */
+    public static int getCurrentShard() {
+        return ReceivePipeline.getCurrentWorker();
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+/**
+ * A {@link ClientCarrier}, which can receive from further topics besides its
+ * configured one, for example from the {@code out/[username]} topics of the
+ * users it serves.
+ *
+ * @see ClientCarrierImpl
+ * @see MultiBrokerClientCarrier
+ */
+public interface SubscribingClientCarrier extends ClientCarrier {
+
+    /**
+     * Receives the messages of the given topic as well. If this carrier is
+     * receiving, the topic is subscribed to right away; otherwise, once it
+     * starts receiving.
+     *
+     * @param topic The topic to subscribe to.
+     * @throws IllegalArgumentException If the argument is null.
+     * @throws CarrierException If the subscription was not successful. It is
+     * renewed nevertheless, once the subscription is re-established.
+     */
+    public void addSubscriberTopic(String topic);
+
+    /**
+     * Stops to receive the messages of a topic, which was added with
+     * {@link #addSubscriberTopic(String)}.
+     *
+     * @param topic The topic to unsubscribe from.
+     * @throws IllegalArgumentException If the argument is null.
+     * @throws CarrierException If the broker could not be asked to
+     * unsubscribe. The topic is not renewed either way.
+     */
+    public void removeSubscriberTopic(String topic);
+
+}
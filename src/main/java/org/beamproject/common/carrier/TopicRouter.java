@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.beamproject.common.Participant;
+import static org.beamproject.common.carrier.ClientCarrier.MQTT_IN_TOPIC_PREFIX;
+import static org.beamproject.common.carrier.ClientCarrier.MQTT_OUT_TOPIC_PREFIX;
+import org.beamproject.common.util.Exceptions;
+
+/**
+ * Routes messages between MQTT topics and {@link Participant}s.
+ * <p>
+ * A {@link TopicRouter} maps every bound {@link Participant} to its topic.
+ * Several participants may share the same topic. Lookups are lock-free.
+ * <p>
+ * The topics of the form {@code [in|out]/[username]} are parsed by hand, so
+ * validating a topic does neither compile a pattern nor allocate memory.
+ *
+ * @see ClientCarrier
+ * @see AbstractClientCarrier
+ */
+public class TopicRouter {
+
+    private final ConcurrentHashMap<Participant, String> topicsByParticipant = new ConcurrentHashMap<>();
+
+    /**
+     * Binds the given {@link Participant} to the given {@code topic}. An
+     * existing binding of the {@link Participant} is replaced.
+     *
+     * @param participant The participant to bind.
+     * @param topic The topic to bind.
+     * @throws IllegalArgumentException If at least one argument is null.
+     */
+    public void bind(Participant participant, String topic) {
+        Exceptions.verifyArgumentsNotNull(participant, topic);
+
+        topicsByParticipant.put(participant, topic);
+    }
+
+    /**
+     * Binds all the given {@link Participant}s to their topics at once.
+     *
+     * @param bindings The topics, mapped by their {@link Participant}s.
+     * @throws IllegalArgumentException If the argument is null or contains
+     * null.
+     */
+    public void bindAll(Map<Participant, String> bindings) {
+        Exceptions.verifyArgumentsNotNull(bindings);
+
+        for (Map.Entry<Participant, String> binding : bindings.entrySet()) {
+            bind(binding.getKey(), binding.getValue());
+        }
+    }
+
+    /**
+     * Unbinds the given {@link Participant} from a possibly bound topic.
+     *
+     * @param participant The participant to unbind.
+     * @throws IllegalArgumentException If the argument is null.
+     */
+    public void unbind(Participant participant) {
+        Exceptions.verifyArgumentsNotNull(participant);
+
+        topicsByParticipant.remove(participant);
+    }
+
+    /**
+     * Unbinds all the given {@link Participant}s at once.
+     *
+     * @param participants The participants to unbind.
+     * @throws IllegalArgumentException If the argument is null or contains
+     * null.
+     */
+    public void unbindAll(Collection<Participant> participants) {
+        Exceptions.verifyArgumentsNotNull(participants);
+
+        for (Participant participant : participants) {
+            unbind(participant);
+        }
+    }
+
+    /**
+     * @param participant The participant to look up.
+     * @return The topic of the given {@link Participant} or {@code null}, if
+     * it is not bound.
+     */
+    public String getTopic(Participant participant) {
+        return topicsByParticipant.get(participant);
+    }
+
+    /**
+     * @return The number of bound {@link Participant}s.
+     */
+    public int size() {
+        return topicsByParticipant.size();
+    }
+
+    /**
+     * Parses the given topic without allocating any memory.
+     *
+     * @param topic The topic to parse.
+     * @return The index of the first character of the username, if the topic
+     * looks like {@code [in|out]/[username]}, whereby the username consists
+     * only of letters and digits. Otherwise -1.
+     */
+    public static int indexOfUsername(String topic) {
+        if (topic == null) {
+            return -1;
+        }
+
+        int index;
+
+        if (topic.startsWith(MQTT_IN_TOPIC_PREFIX)) {
+            index = MQTT_IN_TOPIC_PREFIX.length();
+        } else if (topic.startsWith(MQTT_OUT_TOPIC_PREFIX)) {
+            index = MQTT_OUT_TOPIC_PREFIX.length();
+        } else {
+            return -1;
+        }
+
+        if (index == topic.length()) {
+            return -1;
+        }
+
+        for (int i = index; i < topic.length(); i++) {
+            if (!isAlphanumeric(topic.charAt(i))) {
+                return -1;
+            }
+        }
+
+        return index;
+    }
+
+    private static boolean isAlphanumeric(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    /**
+     * Extracts the username of a topic like {@code [in|out]/[username]}.
+     *
+     * @param topic The topic to parse.
+     * @return The username.
+     * @throws CarrierException If the topic does not have the expected format.
+     */
+    public static String extractUsername(String topic) {
+        int index = indexOfUsername(topic);
+
+        if (index < 0) {
+            throw new CarrierException("The topic has to look like [in|out]/[username].");
+        }
+
+        return topic.substring(index);
+    }
+
+}
@@ -18,22 +18,66 @@
  */
 package org.beamproject.common.crypto;
 
-import org.bouncycastle.crypto.CipherParameters;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.beamproject.common.util.Exceptions;
 import org.bouncycastle.crypto.DataLengthException;
 import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.bouncycastle.crypto.engines.AESFastEngine;
 import org.bouncycastle.crypto.modes.CBCBlockCipher;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
 import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
 import org.bouncycastle.crypto.params.KeyParameter;
 
 /**
  * This encrypts and decrypts AES in CBC mode.
+ * <p>
+ * Additionally, AES in GCM mode (authenticated encryption) is supported on
+ * {@link ByteBuffer}s, see
+ * {@link #encryptWithGcm(ByteBuffer, ByteBuffer, byte[], byte[])}. The output
+ * is written directly into the buffer of the caller, without a second copy.
+ * <p>
+ * AES is computed by the {@link CryptoBackend} configured for
+ * {@link CryptoPrimitive#AES} when the cipher is created. Both backends
+ * produce the same output and reject the same initialization vectors.
  */
 public class AesCipher {
 
+    /**
+     * The length of the initialization vector in GCM mode, as recommended.
+     */
+    public final static int GCM_IV_LENGTH_IN_BYTES = 12;
+    /**
+     * The length of the authentication tag in GCM mode, appended to every
+     * ciphertext.
+     */
+    public final static int GCM_TAG_LENGTH_IN_BYTES = 16;
+    /**
+     * Direct buffers are processed in chunks of this size.
+     */
+    final static int CHUNK_SIZE_IN_BYTES = 4096;
+    /**
+     * The transformation of the CBC cipher of the Java runtime. PKCS#5 padding
+     * is the same as the PKCS#7 padding of Bouncy Castle for AES.
+     */
+    final static String JDK_CBC_TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private final static byte[] ZERO_IV = new byte[16];
     private final int[] VALID_KEY_LENGTHS_IN_BYTES = {16, 24, 32};
     PaddedBufferedBlockCipher cipher;
-    CipherParameters parameters;
+    GCMBlockCipher gcmCipher;
+    KeyParameter parameters;
+    Cipher jdkCipher;
+    Cipher jdkGcmCipher;
+    SecretKeySpec jdkKey;
+    private byte[] inputChunk;
+    private byte[] outputChunk;
+    private byte[] lastEncryptionIv;
 
     /**
      * The block size of the used AES engine is 128 bits (16 bytes). The key has
@@ -44,11 +88,23 @@ public class AesCipher {
      * as required.
      */
     public AesCipher(byte[] key) {
+        this(key, CryptoPrimitive.AES.getBackend());
+    }
+
+    /**
+     * Creates a new {@link AesCipher}, which computes AES with the given
+     * backend.
+     */
+    AesCipher(byte[] key, CryptoBackend backend) {
         if (!isKeyValid(key)) {
             throw new IllegalArgumentException("The key has to be 16, 24 or 32 bytes long.");
         }
 
-        initCipher(key);
+        if (backend == CryptoBackend.JDK) {
+            initJdkCipher(key);
+        } else {
+            initCipher(key);
+        }
     }
 
     private boolean isKeyValid(byte[] key) {
@@ -65,6 +121,19 @@ public class AesCipher {
         BouncyCastleIntegrator.initBouncyCastleProvider();
         parameters = new KeyParameter(key);
         cipher = new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESFastEngine()));
+        gcmCipher = new GCMBlockCipher(new AESFastEngine());
+    }
+
+    private void initJdkCipher(byte[] key) {
+        parameters = new KeyParameter(key);
+        jdkKey = new SecretKeySpec(key, "AES");
+
+        try {
+            jdkCipher = Cipher.getInstance(JDK_CBC_TRANSFORMATION);
+            jdkGcmCipher = Cipher.getInstance(SessionCipher.JDK_TRANSFORMATION);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("The ciphers of the Java runtime are not available: " + ex.getMessage());
+        }
     }
 
     /**
@@ -80,6 +149,10 @@ public class AesCipher {
             throw new IllegalArgumentException("The argument may not be null.");
         }
 
+        if (jdkCipher != null) {
+            return processWithJdkCipher(Cipher.ENCRYPT_MODE, plaintext);
+        }
+
         try {
             initCipherForEncryption();
             byte[] outputBuffer = new byte[cipher.getOutputSize(plaintext.length)];
@@ -109,6 +182,10 @@ public class AesCipher {
             throw new IllegalArgumentException("The argument may not be null.");
         }
 
+        if (jdkCipher != null) {
+            return processWithJdkCipher(Cipher.DECRYPT_MODE, ciphertext);
+        }
+
         try {
             initCipherForDecryption();
             byte[] outputBuffer = new byte[cipher.getOutputSize(ciphertext.length)];
@@ -125,10 +202,188 @@ public class AesCipher {
         cipher.init(isForEncryption, parameters);
     }
 
+    private byte[] processWithJdkCipher(int mode, byte[] input) {
+        try {
+            jdkCipher.init(mode, jdkKey, new IvParameterSpec(ZERO_IV));
+            return jdkCipher.doFinal(input);
+        } catch (GeneralSecurityException | IllegalStateException ex) {
+            String operation = mode == Cipher.ENCRYPT_MODE ? "encrypt the plaintext" : "decrypt the ciphertext";
+            throw new CryptoException("Could not " + operation + ": " + ex.getMessage());
+        }
+    }
+
     private byte[] copyContentBytes(byte[] withPadding, int bytesToRemove) {
+        if (withPadding.length == bytesToRemove) {
+            return withPadding;
+        }
+
         byte[] withoutPadding = new byte[bytesToRemove];
         System.arraycopy(withPadding, 0, withoutPadding, 0, bytesToRemove);
 
         return withoutPadding;
     }
+
+    /**
+     * Encrypts the remaining bytes of {@code plaintext} in GCM mode and
+     * authenticates them together with the {@code associatedData}. The
+     * ciphertext, followed by the authentication tag, is written to
+     * {@code ciphertext}, starting at its position.
+     * <p>
+     * Both buffers may be heap or direct buffers. To encrypt in place, both
+     * may share their content, if the output starts at the same index as the
+     * input. The positions of both buffers are advanced, but only if the
+     * encryption succeeded.
+     *
+     * @param plaintext The plaintext to encrypt.
+     * @param ciphertext The buffer to write to. It needs to have
+     * {@link #GCM_TAG_LENGTH_IN_BYTES} more bytes remaining than the
+     * plaintext.
+     * @param iv The initialization vector, which may never be used twice with
+     * the same key. It should be {@link #GCM_IV_LENGTH_IN_BYTES} long. The
+     * vector of the previous encryption is rejected by both backends; older
+     * ones are not remembered, so the caller stays responsible for never
+     * reusing them.
+     * @param associatedData Data which is not encrypted, but has to be
+     * authenticated.
+     * @return The number of bytes written to {@code ciphertext}.
+     * @throws IllegalArgumentException If at least one argument is null or
+     * the output buffer is too small.
+     * @throws CryptoException If the initialization vector is the one of the
+     * previous encryption, or anything else goes wrong during encryption.
+     */
+    public int encryptWithGcm(ByteBuffer plaintext, ByteBuffer ciphertext, byte[] iv, byte[] associatedData) {
+        Exceptions.verifyArgumentsNotNull(plaintext, ciphertext, iv, associatedData);
+        verifyOutputSize(ciphertext, plaintext.remaining() + GCM_TAG_LENGTH_IN_BYTES);
+
+        if (Arrays.equals(iv, lastEncryptionIv)) {
+            throw new CryptoException("Could not encrypt the plaintext: the initialization vector was used already.");
+        }
+
+        lastEncryptionIv = iv.clone();
+
+        try {
+            if (jdkGcmCipher != null) {
+                return processWithJdkGcm(Cipher.ENCRYPT_MODE, plaintext, ciphertext, iv, associatedData);
+            }
+
+            gcmCipher.init(true, new AEADParameters(parameters, GCM_TAG_LENGTH_IN_BYTES * 8, iv, associatedData));
+            return processWithGcm(plaintext, ciphertext);
+        } catch (IllegalArgumentException | DataLengthException | IllegalStateException | InvalidCipherTextException | GeneralSecurityException ex) {
+            throw new CryptoException("Could not encrypt the plaintext: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Decrypts the remaining bytes of {@code ciphertext} in GCM mode and
+     * verifies their integrity and the integrity of the
+     * {@code associatedData}. The plaintext is written to {@code plaintext},
+     * starting at its position.
+     * <p>
+     * Both buffers may be heap or direct buffers. To decrypt in place, both
+     * may share their content, if the output starts at the same index as the
+     * input. The positions of both buffers are advanced, but only if the
+     * integrity was verified. Otherwise, the bytes written to
+     * {@code plaintext} are overwritten with zeros.
+     *
+     * @param ciphertext The ciphertext to decrypt, including the
+     * authentication tag.
+     * @param plaintext The buffer to write to. It needs to have
+     * {@link #GCM_TAG_LENGTH_IN_BYTES} less bytes remaining than the
+     * ciphertext.
+     * @param iv The initialization vector, used to encrypt.
+     * @param associatedData The associated data, used to encrypt.
+     * @return The number of bytes written to {@code plaintext}.
+     * @throws IllegalArgumentException If at least one argument is null or
+     * the output buffer is too small.
+     * @throws CryptoException If anything goes wrong during decryption or the
+     * integrity cannot be verified.
+     */
+    public int decryptWithGcm(ByteBuffer ciphertext, ByteBuffer plaintext, byte[] iv, byte[] associatedData) {
+        Exceptions.verifyArgumentsNotNull(ciphertext, plaintext, iv, associatedData);
+
+        if (ciphertext.remaining() < GCM_TAG_LENGTH_IN_BYTES) {
+            throw new CryptoException("Could not decrypt the ciphertext: it is shorter than the authentication tag.");
+        }
+
+        int plaintextLength = ciphertext.remaining() - GCM_TAG_LENGTH_IN_BYTES;
+        verifyOutputSize(plaintext, plaintextLength);
+
+        try {
+            if (jdkGcmCipher != null) {
+                return processWithJdkGcm(Cipher.DECRYPT_MODE, ciphertext, plaintext, iv, associatedData);
+            }
+
+            gcmCipher.init(false, new AEADParameters(parameters, GCM_TAG_LENGTH_IN_BYTES * 8, iv, associatedData));
+            return processWithGcm(ciphertext, plaintext);
+        } catch (IllegalArgumentException | DataLengthException | IllegalStateException | InvalidCipherTextException | GeneralSecurityException ex) {
+            clear(plaintext, plaintextLength);
+            throw new CryptoException("Could not decrypt the ciphertext: " + ex.getMessage());
+        }
+    }
+
+    private void verifyOutputSize(ByteBuffer output, int requiredLength) {
+        if (output.remaining() < requiredLength) {
+            throw new IllegalArgumentException("The output buffer is too small, it needs "
+                    + requiredLength + " bytes remaining.");
+        }
+    }
+
+    private int processWithGcm(ByteBuffer input, ByteBuffer output) throws InvalidCipherTextException {
+        int written;
+
+        if (input.hasArray() && output.hasArray()) {
+            byte[] outputArray = output.array();
+            int outputOffset = output.arrayOffset() + output.position();
+
+            written = gcmCipher.processBytes(input.array(), input.arrayOffset() + input.position(),
+                    input.remaining(), outputArray, outputOffset);
+            written += gcmCipher.doFinal(outputArray, outputOffset + written);
+        } else {
+            written = processWithGcmInChunks(input.duplicate(), output.duplicate());
+        }
+
+        input.position(input.limit());
+        output.position(output.position() + written);
+        return written;
+    }
+
+    private int processWithJdkGcm(int mode, ByteBuffer input, ByteBuffer output, byte[] iv, byte[] associatedData) throws GeneralSecurityException {
+        jdkGcmCipher.init(mode, jdkKey, new GCMParameterSpec(GCM_TAG_LENGTH_IN_BYTES * 8, iv));
+        jdkGcmCipher.updateAAD(associatedData);
+        int written = jdkGcmCipher.doFinal(input.duplicate(), output.duplicate());
+
+        input.position(input.limit());
+        output.position(output.position() + written);
+        return written;
+    }
+
+    /**
+     * Copies only a chunk at a time out of and into direct buffers, since the
+     * cipher works on arrays.
+     */
+    private int processWithGcmInChunks(ByteBuffer input, ByteBuffer output) throws InvalidCipherTextException {
+        if (inputChunk == null) {
+            inputChunk = new byte[CHUNK_SIZE_IN_BYTES];
+            outputChunk = new byte[CHUNK_SIZE_IN_BYTES + GCM_TAG_LENGTH_IN_BYTES];
+        }
+
+        int start = output.position();
+
+        while (input.hasRemaining()) {
+            int length = Math.min(CHUNK_SIZE_IN_BYTES, input.remaining());
+            input.get(inputChunk, 0, length);
+            output.put(outputChunk, 0, gcmCipher.processBytes(inputChunk, 0, length, outputChunk, 0));
+        }
+
+        output.put(outputChunk, 0, gcmCipher.doFinal(outputChunk, 0));
+        return output.position() - start;
+    }
+
+    private void clear(ByteBuffer buffer, int length) {
+        ByteBuffer region = buffer.duplicate();
+
+        for (int i = 0; i < length; i++) {
+            region.put((byte) 0);
+        }
+    }
 }
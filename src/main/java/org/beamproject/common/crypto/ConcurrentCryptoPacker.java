@@ -0,0 +1,556 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.crypto;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import org.beamproject.common.Participant;
+import org.beamproject.common.Session;
+import static org.beamproject.common.message.Field.CNT;
+import org.beamproject.common.message.Field.Cnt;
+import static org.beamproject.common.message.Field.IV;
+import static org.beamproject.common.message.Field.KEY;
+import static org.beamproject.common.message.Field.VRS;
+import org.beamproject.common.message.HandshakeTypeValidator;
+import org.beamproject.common.message.Message;
+import org.beamproject.common.util.Exceptions;
+import org.msgpack.MessagePack;
+import org.msgpack.MessageTypeException;
+import org.msgpack.packer.Packer;
+import org.msgpack.unpacker.Unpacker;
+
+/**
+ * Packs-and-encrypts and decrypts-and-unpacks like {@link CryptoPacker}, but
+ * may be used by any number of threads at the same time, without borrowing a
+ * {@link CryptoPacker} from a {@link CryptoPackerPool}.
+ * <p>
+ * No state of a call is kept in fields: the ciphers, which are not
+ * thread-safe, are held once per thread, and so is the buffer the messages
+ * are packed into. The envelope and the content are written and read field by
+ * field, without building a {@link Map} first. The produced messages are
+ * exactly the ones of {@link CryptoPacker}, so both can be used on either
+ * side.
+ * <p>
+ * A message for several recipients can be encrypted at once, see
+ * {@link #packAndEncryptForAll(Message, Collection)}: The content is packed
+ * and encrypted only once, with a random content key, and only that key is
+ * encrypted for every recipient.
+ *
+ * @see CryptoPacker
+ */
+public class ConcurrentCryptoPacker {
+
+    /**
+     * A packing buffer, which grew beyond this size, is not kept for the next
+     * message, so that a single large message does not occupy memory forever.
+     */
+    public final static int MAXIMAL_KEPT_BUFFER_SIZE_IN_BYTES = 64 * 1024;
+    /**
+     * The length of the random key, the content of a message for several
+     * recipients is encrypted with.
+     */
+    public final static int CONTENT_KEY_LENGTH_IN_BYTES = 32;
+    private final static int INITIAL_BUFFER_SIZE_IN_BYTES = 1024;
+    private final static Map<String, Cnt> CONTENT_FIELDS = new HashMap<>();
+    private final MessagePack messagePack = new MessagePack();
+    private final SecureRandom random = new SecureRandom();
+    private final HandshakeTypeValidator handshakeTypeValidator = new HandshakeTypeValidator();
+    final ThreadLocal<EccCipher> eccCiphers = new ThreadLocal<EccCipher>() {
+        @Override
+        protected EccCipher initialValue() {
+            return new EccCipher();
+        }
+    };
+    final ThreadLocal<SessionCipher> sessionCiphers = new ThreadLocal<SessionCipher>() {
+        @Override
+        protected SessionCipher initialValue() {
+            return new SessionCipher();
+        }
+    };
+    final ThreadLocal<ByteArrayOutputStream> buffers = new ThreadLocal<ByteArrayOutputStream>() {
+        @Override
+        protected ByteArrayOutputStream initialValue() {
+            return new ByteArrayOutputStream(INITIAL_BUFFER_SIZE_IN_BYTES);
+        }
+    };
+
+    static {
+        for (Cnt field : Cnt.values()) {
+            CONTENT_FIELDS.put(field.toString(), field);
+        }
+    }
+
+    /**
+     * Packs and encrypts the given {@code plaintext} to a {@link MessagePack}
+     * byte array, like {@link CryptoPacker#packAndEncrypt(Message)}.
+     *
+     * @param plaintext The unencrypted {@link Message}.
+     * @return The messagePacked and encrypted message.
+     * @throws IllegalArgumentException If the argument is null or has no
+     * recipient.
+     * @throws PackerException If anything goes wrong during
+     * packing/serializing.
+     */
+    public byte[] packAndEncrypt(Message plaintext) {
+        validatePlaintext(plaintext);
+
+        byte[] packedContent = packContent(plaintext);
+        byte[] encryptedContent = eccCiphers.get().encrypt(packedContent, plaintext.getRecipient().getPublicKey());
+
+        return packEnvelope(plaintext.getVersion().getBytes(), encryptedContent, null, null);
+    }
+
+    /**
+     * Packs and encrypts the given {@code plaintext} to a {@link MessagePack}
+     * byte array, using the key of the given {@link Session}, like
+     * {@link CryptoPacker#packAndEncrypt(Message, Session)}. {@link Handshake}
+     * messages are always encrypted with the public key of the recipient.
+     *
+     * @param plaintext The unencrypted {@link Message}.
+     * @param session The established session with the recipient.
+     * @return The messagePacked and encrypted message.
+     * @throws IllegalArgumentException If at least one argument is null or
+     * the message has no recipient.
+     * @throws PackerException If anything goes wrong during
+     * packing/serializing.
+     */
+    public byte[] packAndEncrypt(Message plaintext, Session session) {
+        Exceptions.verifyArgumentsNotNull(plaintext, session);
+
+        if (handshakeTypeValidator.isValid(plaintext)) {
+            return packAndEncrypt(plaintext);
+        }
+
+        validatePlaintext(plaintext);
+
+        SessionCipher sessionCipher = sessionCiphers.get();
+        byte[] version = plaintext.getVersion().getBytes();
+        byte[] packedContent = packContent(plaintext);
+        byte[] key = SessionCipher.deriveKey(session.getKey(), plaintext.getRecipient());
+        byte[] iv = sessionCipher.generateIv();
+        byte[] encryptedContent = sessionCipher.encrypt(packedContent, key, iv, version);
+
+        return packEnvelope(version, encryptedContent, iv, null);
+    }
+
+    /**
+     * Packs and encrypts the given {@code plaintext} for all given
+     * {@code recipients}. The content is packed and encrypted only once, using
+     * {@link SessionCipher} with a random content key. Only this key is
+     * encrypted with the public key of every recipient, so all the returned
+     * messages contain the same encrypted content.
+     * <p>
+     * The recipient of the {@code plaintext} is ignored. The messages can be
+     * decrypted with {@link #decryptAndUnpack(byte[], Participant)} as well as
+     * with {@link CryptoPacker}.
+     *
+     * @param plaintext The unencrypted {@link Message}.
+     * @param recipients The recipients of the message.
+     * @return The messagePacked and encrypted messages, mapped by their
+     * recipients, in the order of the given recipients.
+     * @throws IllegalArgumentException If at least one argument is null or
+     * contains null.
+     * @throws PackerException If anything goes wrong during
+     * packing/serializing.
+     */
+    public Map<Participant, byte[]> packAndEncryptForAll(Message plaintext, Collection<Participant> recipients) {
+        SharedContent content = encryptSharedContent(plaintext, recipients);
+        Map<Participant, byte[]> ciphertexts = new LinkedHashMap<>();
+
+        for (Participant recipient : recipients) {
+            ciphertexts.put(recipient, content.packFor(recipient));
+        }
+
+        return ciphertexts;
+    }
+
+    /**
+     * Packs and encrypts the given {@code plaintext} for all given
+     * {@code recipients}, like
+     * {@link #packAndEncryptForAll(Message, Collection)}, but encrypts the
+     * content key for the recipients in parallel, using the given
+     * {@link ExecutorService}.
+     *
+     * @param plaintext The unencrypted {@link Message}.
+     * @param recipients The recipients of the message.
+     * @param executor The executor to encrypt the content key with.
+     * @return The messagePacked and encrypted messages, mapped by their
+     * recipients, in the order of the given recipients.
+     * @throws IllegalArgumentException If at least one argument is null or
+     * contains null.
+     * @throws PackerException If anything goes wrong during
+     * packing/serializing, or the thread was interrupted while waiting.
+     */
+    public Map<Participant, byte[]> packAndEncryptForAll(Message plaintext, Collection<Participant> recipients, ExecutorService executor) {
+        Exceptions.verifyArgumentsNotNull(executor);
+
+        final SharedContent content = encryptSharedContent(plaintext, recipients);
+        List<Callable<byte[]>> tasks = new ArrayList<>(recipients.size());
+
+        for (final Participant recipient : recipients) {
+            tasks.add(new Callable<byte[]>() {
+                @Override
+                public byte[] call() {
+                    return content.packFor(recipient);
+                }
+            });
+        }
+
+        Map<Participant, byte[]> ciphertexts = new LinkedHashMap<>();
+
+        try {
+            List<Future<byte[]>> results = executor.invokeAll(tasks);
+            int index = 0;
+
+            for (Participant recipient : recipients) {
+                ciphertexts.put(recipient, results.get(index++).get());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new PackerException("Interrupted while encrypting the message: " + ex.getMessage());
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
+            }
+
+            throw new PackerException("Could not encrypt the message: " + ex.getCause().getMessage());
+        }
+
+        return ciphertexts;
+    }
+
+    private SharedContent encryptSharedContent(Message plaintext, Collection<Participant> recipients) {
+        Exceptions.verifyArgumentsNotNull(plaintext, recipients);
+
+        for (Participant recipient : recipients) {
+            Exceptions.verifyArgumentsNotNull(recipient);
+        }
+
+        byte[] contentKey = new byte[CONTENT_KEY_LENGTH_IN_BYTES];
+        random.nextBytes(contentKey);
+
+        SessionCipher sessionCipher = sessionCiphers.get();
+        byte[] version = plaintext.getVersion().getBytes();
+        byte[] iv = sessionCipher.generateIv();
+        byte[] encryptedContent = sessionCipher.encrypt(packContent(plaintext), contentKey, iv, version);
+
+        return new SharedContent(version, encryptedContent, iv, contentKey);
+    }
+
+    private void validatePlaintext(Message plaintext) {
+        Exceptions.verifyArgumentsNotNull(plaintext);
+
+        if (plaintext.getRecipient() == null) {
+            throw new IllegalArgumentException("The argument has to have a Participant.");
+        }
+    }
+
+    private byte[] packContent(Message plaintext) {
+        ByteArrayOutputStream buffer = takeBuffer();
+        Packer packer = messagePack.createPacker(buffer);
+        Map<String, byte[]> content = plaintext.getContent();
+
+        try {
+            packer.writeMapBegin(content.size());
+
+            for (Map.Entry<String, byte[]> entry : content.entrySet()) {
+                packer.write(entry.getKey());
+                packer.write(entry.getValue());
+            }
+
+            packer.writeMapEnd();
+        } catch (IOException ex) {
+            throw new PackerException("Could not serialize a map to a MessagePack: " + ex.getMessage());
+        }
+
+        return releaseBuffer(buffer);
+    }
+
+    private byte[] packEnvelope(byte[] version, byte[] encryptedContent, byte[] iv, byte[] wrappedKey) {
+        ByteArrayOutputStream buffer = takeBuffer();
+        Packer packer = messagePack.createPacker(buffer);
+
+        try {
+            packer.writeMapBegin(2 + (iv == null ? 0 : 1) + (wrappedKey == null ? 0 : 1));
+            packer.write(VRS.toString());
+            packer.write(version);
+            packer.write(CNT.toString());
+            packer.write(encryptedContent);
+
+            if (iv != null) {
+                packer.write(IV.toString());
+                packer.write(iv);
+            }
+
+            if (wrappedKey != null) {
+                packer.write(KEY.toString());
+                packer.write(wrappedKey);
+            }
+
+            packer.writeMapEnd();
+        } catch (IOException ex) {
+            throw new PackerException("Could not serialize a map to a MessagePack: " + ex.getMessage());
+        }
+
+        return releaseBuffer(buffer);
+    }
+
+    private ByteArrayOutputStream takeBuffer() {
+        ByteArrayOutputStream buffer = buffers.get();
+        buffer.reset();
+        return buffer;
+    }
+
+    private byte[] releaseBuffer(ByteArrayOutputStream buffer) {
+        byte[] bytes = buffer.toByteArray();
+
+        if (bytes.length > MAXIMAL_KEPT_BUFFER_SIZE_IN_BYTES) {
+            buffers.remove();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Decrypts and unpacks the given {@code ciphertext} to a {@link Message},
+     * like {@link CryptoPacker#decryptAndUnpack(byte[], Participant)}.
+     *
+     * @param ciphertext The encrypted message, serialized using
+     * {@link MessagePack}.
+     * @param participant The {@link Participant} with the private key of the
+     * local side. It is set as recipient of the message.
+     * @return The plaintext message.
+     * @throws IllegalArgumentException If at lest one argument is null.
+     * @throws PackerException If anything goes wrong during
+     * unpacking/deserializing, or the message was encrypted with a session
+     * key. Also, when the integrity of the message cannot be verified.
+     */
+    public Message decryptAndUnpack(byte[] ciphertext, Participant participant) {
+        Exceptions.verifyArgumentsNotNull(ciphertext, participant);
+
+        return decryptAndUnpack(new ByteArrayInputStream(ciphertext), participant, null);
+    }
+
+    /**
+     * Decrypts and unpacks the given {@code ciphertext} to a {@link Message},
+     * like {@link CryptoPacker#decryptAndUnpack(byte[], Participant, Session)}.
+     *
+     * @param ciphertext The encrypted message, serialized using
+     * {@link MessagePack}.
+     * @param participant The {@link Participant} with the private key of the
+     * local side. It is set as recipient of the message.
+     * @param session The established session with the sender.
+     * @return The plaintext message.
+     * @throws IllegalArgumentException If at lest one argument is null.
+     * @throws PackerException If anything goes wrong during
+     * unpacking/deserializing.
+     * @throws CryptoException If the integrity of the message cannot be
+     * verified.
+     */
+    public Message decryptAndUnpack(byte[] ciphertext, Participant participant, Session session) {
+        Exceptions.verifyArgumentsNotNull(ciphertext, participant, session);
+
+        return decryptAndUnpack(new ByteArrayInputStream(ciphertext), participant, session);
+    }
+
+    /**
+     * Decrypts and unpacks the remaining bytes of the given buffer in place,
+     * like {@link #decryptAndUnpack(byte[], Participant)}. The position of the
+     * buffer is not changed.
+     *
+     * @param ciphertext The encrypted message, serialized using
+     * {@link MessagePack}.
+     * @param participant The {@link Participant} with the private key of the
+     * local side.
+     * @return The plaintext message.
+     * @throws IllegalArgumentException If at lest one argument is null.
+     * @throws PackerException If anything goes wrong during
+     * unpacking/deserializing, or the message was encrypted with a session
+     * key. Also, when the integrity of the message cannot be verified.
+     */
+    public Message decryptAndUnpack(ByteBuffer ciphertext, Participant participant) {
+        Exceptions.verifyArgumentsNotNull(ciphertext, participant);
+
+        return decryptAndUnpack(new ByteBufferInputStream(ciphertext.duplicate()), participant, null);
+    }
+
+    /**
+     * Decrypts and unpacks the remaining bytes of the given buffer in place,
+     * like {@link #decryptAndUnpack(byte[], Participant, Session)}. The
+     * position of the buffer is not changed.
+     *
+     * @param ciphertext The encrypted message, serialized using
+     * {@link MessagePack}.
+     * @param participant The {@link Participant} with the private key of the
+     * local side.
+     * @param session The established session with the sender.
+     * @return The plaintext message.
+     * @throws IllegalArgumentException If at lest one argument is null.
+     * @throws PackerException If anything goes wrong during
+     * unpacking/deserializing.
+     * @throws CryptoException If the integrity of the message cannot be
+     * verified.
+     */
+    public Message decryptAndUnpack(ByteBuffer ciphertext, Participant participant, Session session) {
+        Exceptions.verifyArgumentsNotNull(ciphertext, participant, session);
+
+        return decryptAndUnpack(new ByteBufferInputStream(ciphertext.duplicate()), participant, session);
+    }
+
+    private Message decryptAndUnpack(InputStream ciphertext, Participant participant, Session session) {
+        Envelope envelope = unpackEnvelope(ciphertext);
+        byte[] packedContent;
+
+        if (envelope.wrappedKey != null) {
+            packedContent = decryptWithWrappedKey(envelope, participant);
+        } else if (envelope.iv == null) {
+            packedContent = eccCiphers.get().decrypt(envelope.encryptedContent, participant.getPrivateKey());
+        } else if (session == null) {
+            throw new PackerException("The message was encrypted with a session key, but no session was given.");
+        } else {
+            byte[] key = SessionCipher.deriveKey(session.getKey(), participant);
+            packedContent = sessionCiphers.get().decrypt(envelope.encryptedContent, key, envelope.iv, envelope.version);
+        }
+
+        Message plaintext = new Message();
+        plaintext.setVersion(new String(envelope.version));
+        plaintext.setRecipient(participant);
+        unpackContent(packedContent, plaintext);
+
+        return plaintext;
+    }
+
+    private byte[] decryptWithWrappedKey(Envelope envelope, Participant participant) {
+        if (envelope.iv == null) {
+            throw new PackerException("The message has a content key, but no initialization vector.");
+        }
+
+        byte[] contentKey = eccCiphers.get().decrypt(envelope.wrappedKey, participant.getPrivateKey());
+        return sessionCiphers.get().decrypt(envelope.encryptedContent, contentKey, envelope.iv, envelope.version);
+    }
+
+    private Envelope unpackEnvelope(InputStream inputStream) {
+        Unpacker unpacker = messagePack.createUnpacker(inputStream);
+        Envelope envelope = new Envelope();
+
+        try {
+            int size = unpacker.readMapBegin();
+
+            for (int i = 0; i < size; i++) {
+                String key = unpacker.readString();
+                byte[] value = unpacker.readByteArray();
+
+                if (VRS.toString().equals(key)) {
+                    envelope.version = value;
+                } else if (CNT.toString().equals(key)) {
+                    envelope.encryptedContent = value;
+                } else if (IV.toString().equals(key)) {
+                    envelope.iv = value;
+                } else if (KEY.toString().equals(key)) {
+                    envelope.wrappedKey = value;
+                }
+            }
+
+            unpacker.readMapEnd();
+        } catch (MessageTypeException | IOException ex) {
+            throw new PackerException("Could not read from an unpacker: " + ex.getMessage());
+        }
+
+        if (envelope.version == null || envelope.encryptedContent == null) {
+            throw new PackerException("The message has no version or no content.");
+        }
+
+        return envelope;
+    }
+
+    private void unpackContent(byte[] packedContent, Message plaintext) {
+        Unpacker unpacker = messagePack.createUnpacker(new ByteArrayInputStream(packedContent));
+
+        try {
+            int size = unpacker.readMapBegin();
+
+            for (int i = 0; i < size; i++) {
+                Cnt field = CONTENT_FIELDS.get(unpacker.readString());
+                byte[] value = unpacker.readByteArray();
+
+                if (field != null) {
+                    plaintext.putContent(field, value);
+                }
+            }
+
+            unpacker.readMapEnd();
+        } catch (MessageTypeException | IOException ex) {
+            throw new PackerException("Could not read from an unpacker: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * The fields of a received message, before its content is decrypted.
+     */
+    private static class Envelope {
+
+        byte[] version;
+        byte[] encryptedContent;
+        byte[] iv;
+        byte[] wrappedKey;
+    }
+
+    /**
+     * The content of a message for several recipients, encrypted once with
+     * the content key.
+     */
+    private class SharedContent {
+
+        final byte[] version;
+        final byte[] encryptedContent;
+        final byte[] iv;
+        final byte[] contentKey;
+
+        SharedContent(byte[] version, byte[] encryptedContent, byte[] iv, byte[] contentKey) {
+            this.version = version;
+            this.encryptedContent = encryptedContent;
+            this.iv = iv;
+            this.contentKey = contentKey;
+        }
+
+        /**
+         * Encrypts the content key for the given recipient and packs it
+         * together with the shared encrypted content.
+         */
+        byte[] packFor(Participant recipient) {
+            byte[] wrappedKey = eccCiphers.get().encrypt(contentKey, recipient.getPublicKey());
+            return packEnvelope(version, encryptedContent, iv, wrappedKey);
+        }
+    }
+
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.crypto;
+
+/**
+ * The implementations a {@link CryptoPrimitive} can be computed with. Both
+ * produce exactly the same output, so they can be mixed freely between the
+ * sender and the recipient.
+ *
+ * @see CryptoPrimitive
+ */
+public enum CryptoBackend {
+
+    /**
+     * The lightweight API of Bouncy Castle, which is written in plain Java.
+     */
+    BOUNCY_CASTLE,
+    /**
+     * The providers of the Java runtime, which may use CPU instructions like
+     * AES-NI or the SHA extensions.
+     */
+    JDK;
+
+    /**
+     * Parses the name of a backend, ignoring the case and treating {@code bc}
+     * as {@link #BOUNCY_CASTLE}.
+     *
+     * @param name The name to parse.
+     * @return The backend.
+     * @throws IllegalArgumentException If the name is null or unknown.
+     */
+    public static CryptoBackend fromName(String name) {
+        if (name == null) {
+            throw new IllegalArgumentException("The argument may not be null.");
+        }
+
+        if ("bc".equalsIgnoreCase(name)) {
+            return BOUNCY_CASTLE;
+        }
+
+        return valueOf(name.toUpperCase());
+    }
+
+}
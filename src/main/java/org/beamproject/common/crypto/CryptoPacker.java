@@ -20,12 +20,18 @@ package org.beamproject.common.crypto;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.HashMap;
 import java.util.Map;
 import org.beamproject.common.Participant;
+import org.beamproject.common.Session;
 import static org.beamproject.common.message.Field.CNT;
 import org.beamproject.common.message.Field.Cnt;
+import static org.beamproject.common.message.Field.IV;
+import static org.beamproject.common.message.Field.KEY;
 import static org.beamproject.common.message.Field.VRS;
+import org.beamproject.common.message.HandshakeTypeValidator;
 import org.beamproject.common.message.Message;
 import org.beamproject.common.util.Exceptions;
 import org.msgpack.MessagePack;
@@ -37,18 +43,32 @@ import org.msgpack.unpacker.Unpacker;
 /**
  * Allows to pack-and-encrypt and decrypt-and-unpack using {@link EccCipher} and
  * {@link MessagePack}.
+ * <p>
+ * Once a {@link Session} is established, the content of all messages except
+ * the {@link Handshake} messages can be encrypted with the session key using
+ * {@link SessionCipher}, what is considerably faster than {@link EccCipher}.
+ * <p>
+ * Messages which were encrypted for several recipients at once, see
+ * {@link ConcurrentCryptoPacker#packAndEncryptForAll(Message, java.util.Collection)},
+ * are decrypted as well.
  *
  * @see Message
  * @see EccCipher
+ * @see SessionCipher
  */
 public class CryptoPacker {
 
     EccCipher eccCipher;
+    SessionCipher sessionCipher;
+    HandshakeTypeValidator handshakeTypeValidator;
     Participant participant;
+    Session session;
     MessagePack messagePack;
     Message plaintext;
     byte[] packedContent;
     byte[] encryptedPacketContent;
+    byte[] iv;
+    byte[] wrappedKey;
     byte[] ciphertext;
 
     /**
@@ -56,6 +76,8 @@ public class CryptoPacker {
      */
     public CryptoPacker() {
         eccCipher = new EccCipher();
+        sessionCipher = new SessionCipher();
+        handshakeTypeValidator = new HandshakeTypeValidator();
         messagePack = new MessagePack();
     }
 
@@ -81,6 +103,40 @@ public class CryptoPacker {
         return ciphertext;
     }
 
+    /**
+     * Packs and encrypts the given {@code plaintext} to a {@link MessagePack}
+     * byte array, using the key of the given {@link Session}.<p>
+     * {@link Handshake} messages are always encrypted with the public key of
+     * the recipient, as done by {@link #packAndEncrypt(Message)}, since the
+     * session key may not be known on the other side yet.<p>
+     * The field Cnt ({@code CNT}) will be encrypted.<p>
+     * The fields Version ({@code VRS}) and Initialization Vector ({@code IV})
+     * will <b>not</b> be encrypted, but authenticated.
+     *
+     * @param plaintext The unencrypted {@link Message}.
+     * @param session The established session with the recipient.
+     * @return The messagePacked and encrypted message.
+     * @throws IllegalArgumentException If at least one argument is null.
+     * @throws PackerException If anything goes wrong during
+     * packing/serializing.
+     */
+    public byte[] packAndEncrypt(Message plaintext, Session session) {
+        Exceptions.verifyArgumentsNotNull(plaintext, session);
+
+        if (handshakeTypeValidator.isValid(plaintext)) {
+            return packAndEncrypt(plaintext);
+        }
+
+        validatePlaintext(plaintext);
+        validateSession(session);
+
+        packContentField();
+        encryptContentFieldWithSession();
+        packAllPartsToCiphertext();
+
+        return ciphertext;
+    }
+
     private void validatePlaintext(Message plaintext) {
         Exceptions.verifyArgumentsNotNull(plaintext);
 
@@ -89,6 +145,13 @@ public class CryptoPacker {
         }
 
         this.plaintext = plaintext;
+        iv = null;
+    }
+
+    private void validateSession(Session session) {
+        Exceptions.verifyArgumentsNotNull(session);
+
+        this.session = session;
     }
 
     private void packContentField() {
@@ -99,12 +162,22 @@ public class CryptoPacker {
         encryptedPacketContent = eccCipher.encrypt(packedContent, plaintext.getRecipient().getPublicKey());
     }
 
+    private void encryptContentFieldWithSession() {
+        byte[] key = SessionCipher.deriveKey(session.getKey(), plaintext.getRecipient());
+        iv = sessionCipher.generateIv();
+        encryptedPacketContent = sessionCipher.encrypt(packedContent, key, iv, plaintext.getVersion().getBytes());
+    }
+
     private void packAllPartsToCiphertext() {
         Map<String, byte[]> map = new HashMap<>();
 
         map.put(VRS.toString(), plaintext.getVersion().getBytes());
         map.put(CNT.toString(), encryptedPacketContent);
 
+        if (iv != null) {
+            map.put(IV.toString(), iv);
+        }
+
         ciphertext = serializeMap(map);
     }
 
@@ -136,6 +209,7 @@ public class CryptoPacker {
         validateParticipant(participant);
 
         unpackAllPartsFromCiphertext();
+        verifyNoSessionRequired();
 
         decyptContent();
         updateRecipient();
@@ -144,12 +218,121 @@ public class CryptoPacker {
         return plaintext;
     }
 
+    /**
+     * Decrypts and unpacks the given {@code ciphertext} to a {@link Message}.
+     * If the message was encrypted with the key of the given {@link Session},
+     * that key is used for decryption, otherwise the private key of the
+     * {@code participant}.
+     *
+     * @param ciphertext The encrypted message, serialized using
+     * {@link MessagePack}.
+     * @param participant The {@link Participant} with the needed key, in this
+     * case the private key of the local side. This object will be set as
+     * recipient once the message has been decrypted.
+     * @param session The established session with the sender.
+     * @return The plaintext message.
+     * @throws IllegalArgumentException If at lest one argument is null.
+     * @throws PackerException If anything goes wrong during
+     * unpacking/deserializing.
+     * @throws CryptoException If the integrity of the message cannot be
+     * verified.
+     */
+    public Message decryptAndUnpack(byte[] ciphertext, Participant participant, Session session) {
+        validateCiphertext(ciphertext);
+        validateParticipant(participant);
+        validateSession(session);
+
+        unpackAllPartsFromCiphertext();
+
+        if (iv == null || wrappedKey != null) {
+            decyptContent();
+        } else {
+            decryptContentWithSession();
+        }
+
+        updateRecipient();
+        unpackContent();
+
+        return plaintext;
+    }
+
+    /**
+     * Decrypts and unpacks the given {@code ciphertext} to a {@link Message},
+     * like {@link #decryptAndUnpack(byte[], Participant)}, but reads the
+     * remaining bytes of the buffer in place instead of requiring a copy. The
+     * position of the buffer is not changed.
+     *
+     * @param ciphertext The encrypted message, serialized using
+     * {@link MessagePack}.
+     * @param participant The {@link Participant} with the needed key.
+     * @return The plaintext message.
+     * @throws IllegalArgumentException If at lest one argument is null.
+     * @throws PackerException If anything goes wrong during
+     * unpacking/deserializing. Also, when the integrity of the message cannot
+     * be verified.
+     */
+    public Message decryptAndUnpack(ByteBuffer ciphertext, Participant participant) {
+        validateCiphertext(ciphertext);
+        validateParticipant(participant);
+
+        unpackAllPartsFrom(new ByteBufferInputStream(ciphertext.duplicate()));
+        verifyNoSessionRequired();
+
+        decyptContent();
+        updateRecipient();
+        unpackContent();
+
+        return plaintext;
+    }
+
+    /**
+     * Decrypts and unpacks the given {@code ciphertext} to a {@link Message},
+     * like {@link #decryptAndUnpack(byte[], Participant, Session)}, but reads
+     * the remaining bytes of the buffer in place instead of requiring a copy.
+     * The position of the buffer is not changed.
+     *
+     * @param ciphertext The encrypted message, serialized using
+     * {@link MessagePack}.
+     * @param participant The {@link Participant} with the needed key.
+     * @param session The established session with the sender.
+     * @return The plaintext message.
+     * @throws IllegalArgumentException If at lest one argument is null.
+     * @throws PackerException If anything goes wrong during
+     * unpacking/deserializing.
+     * @throws CryptoException If the integrity of the message cannot be
+     * verified.
+     */
+    public Message decryptAndUnpack(ByteBuffer ciphertext, Participant participant, Session session) {
+        validateCiphertext(ciphertext);
+        validateParticipant(participant);
+        validateSession(session);
+
+        unpackAllPartsFrom(new ByteBufferInputStream(ciphertext.duplicate()));
+
+        if (iv == null || wrappedKey != null) {
+            decyptContent();
+        } else {
+            decryptContentWithSession();
+        }
+
+        updateRecipient();
+        unpackContent();
+
+        return plaintext;
+    }
+
     private void validateCiphertext(byte[] ciphertext) {
         Exceptions.verifyArgumentsNotNull(ciphertext);
 
         this.ciphertext = ciphertext;
     }
 
+    private void validateCiphertext(ByteBuffer ciphertext) {
+        Exceptions.verifyArgumentsNotNull(ciphertext);
+
+        this.ciphertext = null;
+    }
+
     private void validateParticipant(Participant participant) {
         Exceptions.verifyArgumentsNotNull(participant);
 
@@ -157,15 +340,45 @@ public class CryptoPacker {
     }
 
     private void unpackAllPartsFromCiphertext() {
-        Map<String, byte[]> map = buildMapFromBytes(ciphertext);
+        unpackAllPartsFrom(new ByteArrayInputStream(ciphertext));
+    }
+
+    private void unpackAllPartsFrom(InputStream inputStream) {
+        Map<String, byte[]> map = buildMapFromStream(inputStream);
 
         plaintext = new Message();
         plaintext.setVersion(readStringFromMap(map, VRS));
         encryptedPacketContent = readByteArrayFromMap(map, CNT);
+        iv = readByteArrayFromMap(map, IV);
+        wrappedKey = readByteArrayFromMap(map, KEY);
+    }
+
+    private void verifyNoSessionRequired() {
+        if (iv != null && wrappedKey == null) {
+            throw new PackerException("The message was encrypted with a session key, but no session was given.");
+        }
     }
 
     private void decyptContent() {
-        packedContent = eccCipher.decrypt(encryptedPacketContent, participant.getPrivateKey());
+        if (wrappedKey == null) {
+            packedContent = eccCipher.decrypt(encryptedPacketContent, participant.getPrivateKey());
+        } else {
+            decryptContentWithWrappedKey();
+        }
+    }
+
+    private void decryptContentWithWrappedKey() {
+        if (iv == null) {
+            throw new PackerException("The message has a content key, but no initialization vector.");
+        }
+
+        byte[] contentKey = eccCipher.decrypt(wrappedKey, participant.getPrivateKey());
+        packedContent = sessionCipher.decrypt(encryptedPacketContent, contentKey, iv, plaintext.getVersion().getBytes());
+    }
+
+    private void decryptContentWithSession() {
+        byte[] key = SessionCipher.deriveKey(session.getKey(), participant);
+        packedContent = sessionCipher.decrypt(encryptedPacketContent, key, iv, plaintext.getVersion().getBytes());
     }
 
     private void updateRecipient() {
@@ -183,8 +396,10 @@ public class CryptoPacker {
     }
 
     private Map<String, byte[]> buildMapFromBytes(byte[] bytes) {
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes);
+        return buildMapFromStream(new ByteArrayInputStream(bytes));
+    }
 
+    private Map<String, byte[]> buildMapFromStream(InputStream inputStream) {
         Unpacker unpacker = messagePack.createUnpacker(inputStream);
         Template<Map<String, byte[]>> mapTemplate = Templates.tMap(Templates.TString, Templates.TByteArray);
 
@@ -195,11 +410,11 @@ public class CryptoPacker {
         }
     }
 
-    private String readStringFromMap(Map<String, byte[]> map, Enum field) {
+    private String readStringFromMap(Map<String, byte[]> map, Enum<?> field) {
         return new String(readByteArrayFromMap(map, field));
     }
 
-    private byte[] readByteArrayFromMap(Map<String, byte[]> map, Enum field) {
+    private byte[] readByteArrayFromMap(Map<String, byte[]> map, Enum<?> field) {
         return map.get(field.toString());
     }
 
@@ -23,7 +23,11 @@ import org.apache.commons.pool2.impl.GenericObjectPool;
 
 /**
  * Represents a connection pool of {@link CryptoPacker}.
+ *
+ * @deprecated Use a {@link ConcurrentCryptoPacker}, which can be shared by
+ * all threads without being borrowed and returned.
  */
+@Deprecated
 public class CryptoPackerPool extends GenericObjectPool<CryptoPacker> {
 
     public CryptoPackerPool(PooledObjectFactory<CryptoPacker> factory) {
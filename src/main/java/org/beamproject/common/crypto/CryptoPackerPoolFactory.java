@@ -25,7 +25,11 @@ import org.apache.commons.pool2.impl.DefaultPooledObject;
 /**
  * This factory class is required by the Apache Commons Pool library. It
  * provides methods to create {@link CryptoPacker} objects.
+ *
+ * @deprecated Use a {@link ConcurrentCryptoPacker}, which can be shared by
+ * all threads without being borrowed and returned.
  */
+@Deprecated
 public class CryptoPackerPoolFactory extends BasePooledObjectFactory<CryptoPacker> {
 
     @Override
@@ -0,0 +1,231 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import javax.crypto.Cipher;
+
+/**
+ * The primitives whose {@link CryptoBackend} can be chosen. Curves and IES
+ * ({@link EccCipher}, {@link EccSigner}) always use Bouncy Castle.
+ * <p>
+ * The backend of a primitive is read from a system property the first time it
+ * is needed, for example {@code -Dbeam.crypto.aes=jdk}. The value is either
+ * the name of a {@link CryptoBackend}, or {@link #BENCHMARK} to measure both
+ * backends once and use the faster one. Without the property,
+ * {@link CryptoBackend#BOUNCY_CASTLE} is used. If the Java runtime does not
+ * provide a primitive, Bouncy Castle is used anyway.
+ *
+ * @see CryptoBackend
+ */
+public enum CryptoPrimitive {
+
+    /**
+     * AES, as used by {@link AesCipher} and {@link SessionCipher}. The Java
+     * runtime has to provide GCM and 256 bit keys.
+     */
+    AES("beam.crypto.aes") {
+        @Override
+        boolean isAvailableInJdk() {
+            try {
+                Cipher.getInstance(SessionCipher.JDK_TRANSFORMATION);
+                Cipher.getInstance(AesCipher.JDK_CBC_TRANSFORMATION);
+                return Cipher.getMaxAllowedKeyLength("AES") >= 256;
+            } catch (Exception ex) {
+                return false;
+            }
+        }
+
+        @Override
+        Runnable prepare(CryptoBackend backend, final byte[] payload) {
+            final SessionCipher cipher = new SessionCipher(backend);
+            final byte[] iv = new byte[SessionCipher.IV_LENGTH_IN_BYTES];
+
+            return new Runnable() {
+                private int counter = 0;
+
+                @Override
+                public void run() {
+                    ByteBuffer.wrap(iv).putInt(counter++);
+                    cipher.encrypt(payload, BENCHMARK_KEY, iv, BENCHMARK_KEY);
+                }
+            };
+        }
+    },
+    /**
+     * SHA-256, as used by {@link Digest}.
+     */
+    SHA256("beam.crypto.sha256") {
+        @Override
+        boolean isAvailableInJdk() {
+            try {
+                MessageDigest.getInstance(Digest.SHA256_DIGEST_NAME);
+                return true;
+            } catch (Exception ex) {
+                return false;
+            }
+        }
+
+        @Override
+        Runnable prepare(final CryptoBackend backend, final byte[] payload) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    Digest.digestWithSha256(payload, backend);
+                }
+            };
+        }
+    };
+    /**
+     * The value of the system property to choose the faster backend by
+     * measuring both.
+     */
+    public final static String BENCHMARK = "benchmark";
+    final static int BENCHMARK_PAYLOAD_SIZE_IN_BYTES = 16 * 1024;
+    final static int BENCHMARK_ITERATIONS = 200;
+    private final static byte[] BENCHMARK_KEY = new byte[32];
+    private final String property;
+    private volatile CryptoBackend backend;
+
+    private CryptoPrimitive(String property) {
+        this.property = property;
+    }
+
+    /**
+     * @return The name of the system property to choose the backend with.
+     */
+    public String getProperty() {
+        return property;
+    }
+
+    /**
+     * @return The backend to use for this primitive.
+     * @throws IllegalArgumentException If the system property contains an
+     * unknown value.
+     */
+    public CryptoBackend getBackend() {
+        CryptoBackend current = backend;
+
+        if (current == null) {
+            synchronized (this) {
+                if (backend == null) {
+                    backend = select(System.getProperty(property));
+                }
+
+                current = backend;
+            }
+        }
+
+        return current;
+    }
+
+    /**
+     * Uses the given backend from now on. Ciphers which were already created
+     * keep their backend.
+     *
+     * @param backend The backend to use.
+     * @throws IllegalArgumentException If the argument is null.
+     * @throws IllegalStateException If the Java runtime does not provide this
+     * primitive.
+     */
+    public synchronized void setBackend(CryptoBackend backend) {
+        if (backend == null) {
+            throw new IllegalArgumentException("The argument may not be null.");
+        }
+
+        if (backend == CryptoBackend.JDK && !isAvailableInJdk()) {
+            throw new IllegalStateException("The Java runtime does not provide " + this + ".");
+        }
+
+        this.backend = backend;
+    }
+
+    /**
+     * Chooses the backend for the given configuration value.
+     *
+     * @param value The value of the system property, or {@code null}.
+     * @return The backend to use.
+     * @throws IllegalArgumentException If the value is unknown.
+     */
+    CryptoBackend select(String value) {
+        if (value == null) {
+            return CryptoBackend.BOUNCY_CASTLE;
+        }
+
+        if (BENCHMARK.equalsIgnoreCase(value)) {
+            return benchmark();
+        }
+
+        CryptoBackend selected = CryptoBackend.fromName(value);
+
+        if (selected == CryptoBackend.JDK && !isAvailableInJdk()) {
+            return CryptoBackend.BOUNCY_CASTLE;
+        }
+
+        return selected;
+    }
+
+    /**
+     * Measures both backends and returns the faster one. This takes in the
+     * order of some ten milliseconds.
+     *
+     * @return The faster backend.
+     */
+    public CryptoBackend benchmark() {
+        if (!isAvailableInJdk()) {
+            return CryptoBackend.BOUNCY_CASTLE;
+        }
+
+        BouncyCastleIntegrator.initBouncyCastleProvider();
+        byte[] payload = new byte[BENCHMARK_PAYLOAD_SIZE_IN_BYTES];
+
+        measure(CryptoBackend.BOUNCY_CASTLE, payload);
+        measure(CryptoBackend.JDK, payload);
+
+        long bouncyCastle = measure(CryptoBackend.BOUNCY_CASTLE, payload);
+        long jdk = measure(CryptoBackend.JDK, payload);
+
+        return jdk < bouncyCastle ? CryptoBackend.JDK : CryptoBackend.BOUNCY_CASTLE;
+    }
+
+    private long measure(CryptoBackend backend, byte[] payload) {
+        Runnable iteration = prepare(backend, payload);
+        long start = System.nanoTime();
+
+        for (int i = 0; i < BENCHMARK_ITERATIONS; i++) {
+            iteration.run();
+        }
+
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * @return true, if the Java runtime provides this primitive.
+     */
+    abstract boolean isAvailableInJdk();
+
+    /**
+     * Prepares to compute this primitive with the given backend.
+     *
+     * @return Computes the primitive once over the given payload.
+     */
+    abstract Runnable prepare(CryptoBackend backend, byte[] payload);
+
+}
@@ -33,7 +33,8 @@ public class Digest {
 
     /**
      * Digests the given {@code payload} using the {@code SHA-256} hash
-     * algorithm provided by Bouncy Castle.
+     * algorithm, provided by the {@link CryptoBackend} configured for
+     * {@link CryptoPrimitive#SHA256}.
      *
      * @param payload The payload to digest. This may not be null.
      * @return The calculated digest.
@@ -41,12 +42,26 @@ public class Digest {
      * @throws IllegalStateException If the digest could not be set up.
      */
     public static byte[] digestWithSha256(byte[] payload) {
-        Exceptions.verifyArgumentsNotNull(payload);
+        return digestWithSha256(payload, CryptoPrimitive.SHA256.getBackend());
+    }
 
-        BouncyCastleIntegrator.initBouncyCastleProvider();
+    /**
+     * Digests the given {@code payload} using the {@code SHA-256} hash
+     * algorithm provided by the given backend.
+     */
+    static byte[] digestWithSha256(byte[] payload, CryptoBackend backend) {
+        Exceptions.verifyArgumentsNotNull(payload);
 
         try {
-            MessageDigest messageDigest = MessageDigest.getInstance(SHA256_DIGEST_NAME, PROVIDER_NAME);
+            MessageDigest messageDigest;
+
+            if (backend == CryptoBackend.JDK) {
+                messageDigest = MessageDigest.getInstance(SHA256_DIGEST_NAME);
+            } else {
+                BouncyCastleIntegrator.initBouncyCastleProvider();
+                messageDigest = MessageDigest.getInstance(SHA256_DIGEST_NAME, PROVIDER_NAME);
+            }
+
             return messageDigest.digest(payload);
         } catch (NoSuchAlgorithmException | NoSuchProviderException ex) {
             throw new IllegalStateException("The digest could not be computed: " + ex.getMessage());
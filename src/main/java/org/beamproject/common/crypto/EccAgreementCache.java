@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.crypto;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.beamproject.common.util.Exceptions;
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.BasicAgreement;
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.agreement.ECDHBasicAgreement;
+import org.bouncycastle.crypto.generators.ECKeyPairGenerator;
+import org.bouncycastle.crypto.params.ECKeyGenerationParameters;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+
+/**
+ * Remembers the results of ECDH agreements, so that repeated traffic between
+ * the same pair of keys skips the expensive point multiplication.
+ * <p>
+ * An agreement is identified by the local private key and the SHA-256
+ * fingerprint of the remote public key. Since the sender of an
+ * {@link EccCipher} ciphertext uses a new ephemeral key for every message,
+ * agreements can only be reused if the sender reuses its ephemeral key. This
+ * cache therefore also hands out one ephemeral key pair per recipient, which
+ * is replaced after {@link #MAXIMAL_EPHEMERAL_KEY_USES} encryptions.
+ * <p>
+ * Both the agreements and the ephemeral key pairs are kept in a bounded LRU.
+ * This class is not thread-safe.
+ *
+ * @see EccCipher#EccCipher(int)
+ */
+class EccAgreementCache {
+
+    /**
+     * The number of encryptions after which the ephemeral key pair of a
+     * recipient is replaced.
+     */
+    final static int MAXIMAL_EPHEMERAL_KEY_USES = 1024;
+    private final Map<AgreementKey, BigInteger> agreements;
+    private final Map<ByteBuffer, EphemeralKey> ephemeralKeys;
+    private final ECDHBasicAgreement agreement = new ECDHBasicAgreement();
+    private final SecureRandom random = new SecureRandom();
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Creates a new {@link EccAgreementCache}.
+     *
+     * @param capacity The maximal number of agreements and ephemeral key pairs
+     * that are remembered each.
+     * @throws IllegalArgumentException If the capacity is not positive.
+     */
+    EccAgreementCache(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("The capacity has to be positive.");
+        }
+
+        agreements = new LeastRecentlyUsedMap<>(capacity);
+        ephemeralKeys = new LeastRecentlyUsedMap<>(capacity);
+    }
+
+    /**
+     * Returns the agreement of the given keys, which is either remembered or
+     * calculated and remembered.
+     *
+     * @param localKey The local private key.
+     * @param remoteKey The remote public key.
+     * @return The agreed secret.
+     * @throws IllegalArgumentException If at least one argument is null.
+     */
+    BigInteger calculateAgreement(ECPrivateKeyParameters localKey, ECPublicKeyParameters remoteKey) {
+        Exceptions.verifyArgumentsNotNull(localKey, remoteKey);
+
+        AgreementKey key = new AgreementKey(localKey.getD(), fingerprint(remoteKey));
+        BigInteger secret = agreements.get(key);
+
+        if (secret != null) {
+            hits++;
+            return secret;
+        }
+
+        misses++;
+        agreement.init(localKey);
+        secret = agreement.calculateAgreement(remoteKey);
+        agreements.put(key, secret);
+
+        return secret;
+    }
+
+    /**
+     * Returns the ephemeral key pair to use for the given recipient. A new
+     * pair is generated if there is none yet or the current one was used
+     * {@link #MAXIMAL_EPHEMERAL_KEY_USES} times.
+     *
+     * @param recipientKey The public key of the recipient.
+     * @return The ephemeral key pair, on the curve of the recipient's key.
+     * @throws IllegalArgumentException If the argument is null.
+     */
+    AsymmetricCipherKeyPair getEphemeralKeyPair(ECPublicKeyParameters recipientKey) {
+        Exceptions.verifyArgumentsNotNull(recipientKey);
+
+        ByteBuffer fingerprint = fingerprint(recipientKey);
+        EphemeralKey ephemeralKey = ephemeralKeys.get(fingerprint);
+
+        if (ephemeralKey == null || ephemeralKey.uses >= MAXIMAL_EPHEMERAL_KEY_USES) {
+            ECKeyPairGenerator generator = new ECKeyPairGenerator();
+            generator.init(new ECKeyGenerationParameters(recipientKey.getParameters(), random));
+            ephemeralKey = new EphemeralKey(generator.generateKeyPair());
+            ephemeralKeys.put(fingerprint, ephemeralKey);
+        }
+
+        ephemeralKey.uses++;
+        return ephemeralKey.keyPair;
+    }
+
+    private static ByteBuffer fingerprint(ECPublicKeyParameters key) {
+        return ByteBuffer.wrap(Digest.digestWithSha256(key.getQ().getEncoded()));
+    }
+
+    /**
+     * @return A {@link BasicAgreement} which uses this cache, for example to
+     * be used by an {@link org.bouncycastle.crypto.engines.IESEngine}.
+     */
+    BasicAgreement createAgreement() {
+        return new CachingAgreement();
+    }
+
+    /**
+     * @return The number of agreements that were remembered.
+     */
+    long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return The number of agreements that had to be calculated.
+     */
+    long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return The number of agreements that are currently remembered.
+     */
+    int size() {
+        return agreements.size();
+    }
+
+    private class CachingAgreement implements BasicAgreement {
+
+        private ECPrivateKeyParameters localKey;
+
+        @Override
+        public void init(CipherParameters localKey) {
+            this.localKey = (ECPrivateKeyParameters) localKey;
+        }
+
+        @Override
+        public int getFieldSize() {
+            return (localKey.getParameters().getCurve().getFieldSize() + 7) / 8;
+        }
+
+        @Override
+        public BigInteger calculateAgreement(CipherParameters remoteKey) {
+            return EccAgreementCache.this.calculateAgreement(localKey, (ECPublicKeyParameters) remoteKey);
+        }
+    }
+
+    /**
+     * Evicts the least recently used entry, once more than the capacity are
+     * stored.
+     */
+    private static class LeastRecentlyUsedMap<K, V> extends LinkedHashMap<K, V> {
+
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        LeastRecentlyUsedMap(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private static class AgreementKey {
+
+        private final BigInteger localKey;
+        private final ByteBuffer remoteFingerprint;
+
+        AgreementKey(BigInteger localKey, ByteBuffer remoteFingerprint) {
+            this.localKey = localKey;
+            this.remoteFingerprint = remoteFingerprint;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof AgreementKey)) {
+                return false;
+            }
+
+            AgreementKey key = (AgreementKey) other;
+            return localKey.equals(key.localKey) && remoteFingerprint.equals(key.remoteFingerprint);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * localKey.hashCode() + remoteFingerprint.hashCode();
+        }
+    }
+
+    private static class EphemeralKey {
+
+        private final AsymmetricCipherKeyPair keyPair;
+        private int uses = 0;
+
+        EphemeralKey(AsymmetricCipherKeyPair keyPair) {
+            this.keyPair = keyPair;
+        }
+    }
+
+}
@@ -24,22 +24,35 @@ import java.security.NoSuchAlgorithmException;
 import java.security.PrivateKey;
 import java.security.PublicKey;
 import java.security.SecureRandom;
+import java.util.Arrays;
 import javax.crypto.BadPaddingException;
 import static javax.crypto.Cipher.DECRYPT_MODE;
 import static javax.crypto.Cipher.ENCRYPT_MODE;
 import javax.crypto.IllegalBlockSizeException;
 import org.beamproject.common.Participant;
 import org.beamproject.common.util.Exceptions;
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.AsymmetricCipherKeyPairGenerator;
+import org.bouncycastle.crypto.BasicAgreement;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.KeyEncoder;
+import org.bouncycastle.crypto.KeyGenerationParameters;
 import org.bouncycastle.crypto.agreement.ECDHBasicAgreement;
 import org.bouncycastle.crypto.digests.SHA256Digest;
 import org.bouncycastle.crypto.engines.AESEngine;
 import org.bouncycastle.crypto.engines.IESEngine;
+import org.bouncycastle.crypto.generators.EphemeralKeyPairGenerator;
 import org.bouncycastle.crypto.generators.KDF2BytesGenerator;
 import org.bouncycastle.crypto.macs.HMac;
 import org.bouncycastle.crypto.modes.CBCBlockCipher;
 import org.bouncycastle.crypto.paddings.PKCS7Padding;
 import org.bouncycastle.crypto.paddings.PaddedBufferedBlockCipher;
+import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.crypto.params.IESWithCipherParameters;
+import org.bouncycastle.crypto.params.ParametersWithIV;
 import org.bouncycastle.jcajce.provider.asymmetric.ec.IESCipher;
+import org.bouncycastle.jcajce.provider.asymmetric.util.ECUtil;
 import org.bouncycastle.jce.spec.IESParameterSpec;
 
 /**
@@ -54,16 +67,37 @@ import org.bouncycastle.jce.spec.IESParameterSpec;
  * <li>MAC: 256 bits key size, SHA-256 as digest</li>
  * <li>Symmetric Block Cipher: AES with 256 bits key size, 128 bits block size,
  * in CBC mode and padded with {@link PKCS7Padding}</li>
+ * <li>Nonce: {@link #NONCE_LENGTH_IN_BYTES} random bytes per message, used as
+ * the IV of AES and as the derivation vector of the KDF</li>
  * </ul>
+ * <p>
+ * The ciphertext starts with the nonce, followed by the output of the
+ * {@link IESEngine}. Since the nonce enters the KDF, a modified nonce fails
+ * the MAC.
+ * <p>
+ * Optionally, the cipher runs in a cached-ephemeral mode (see
+ * {@link #EccCipher(int)}): it then reuses one ephemeral key per recipient
+ * and remembers the ECDH agreements in a bounded LRU, so repeated traffic
+ * between the same pair of keys skips the point multiplication. Only the ECDH
+ * work is cached: the nonce is still random per message, so equal plaintexts
+ * result in different ciphertexts. The ciphertexts stay compatible with the
+ * default mode in both directions. Reusing the ephemeral key gives up forward
+ * secrecy between the messages to the same recipient.
  */
 public class EccCipher {
 
     public final static String ENGINE_MODE = "DHAES";
     public final static int MAC_KEY_SIZE_IN_BITS = 256;
     public final static int AES_KEY_SIZE_IN_BITS = 256;
+    /**
+     * The length of the nonce, which is the block size of AES.
+     */
+    public final static int NONCE_LENGTH_IN_BYTES = 16;
     IESEngine engine;
     IESCipher cipher;
     IESParameterSpec parameterSpec;
+    EccAgreementCache agreementCache;
+    private final SecureRandom random = new SecureRandom();
 
     /**
      * Initializes the cipher.
@@ -72,15 +106,29 @@ public class EccCipher {
      * correctly.
      */
     public EccCipher() {
-        initCipher();
+        initCipher(new ECDHBasicAgreement());
     }
 
-    private void initCipher() {
-        engine = new IESEngine(new ECDHBasicAgreement(),
+    /**
+     * Initializes the cipher in the cached-ephemeral mode.
+     *
+     * @param cacheCapacity The maximal number of agreements and ephemeral keys
+     * that are remembered each.
+     * @throws IllegalArgumentException If the capacity is not positive.
+     * @throws IllegalStateException If the cipher could not be set up
+     * correctly.
+     */
+    public EccCipher(int cacheCapacity) {
+        agreementCache = new EccAgreementCache(cacheCapacity);
+        initCipher(agreementCache.createAgreement());
+    }
+
+    private void initCipher(BasicAgreement agreement) {
+        engine = new IESEngine(agreement,
                 new KDF2BytesGenerator(new SHA256Digest()),
                 new HMac(new SHA256Digest()),
                 new PaddedBufferedBlockCipher(new CBCBlockCipher(new AESEngine())));
-        cipher = new IESCipher(engine);
+        cipher = new IESCipher(engine, NONCE_LENGTH_IN_BYTES);
         parameterSpec = new IESParameterSpec(null, null, MAC_KEY_SIZE_IN_BITS, AES_KEY_SIZE_IN_BITS);
 
         try {
@@ -105,9 +153,15 @@ public class EccCipher {
     public byte[] encrypt(byte[] plaintext, PublicKey remotePublicKey) {
         Exceptions.verifyArgumentsNotNull(plaintext, remotePublicKey);
 
+        if (agreementCache != null) {
+            return encryptWithCachedEphemeralKey(plaintext, remotePublicKey);
+        }
+
+        byte[] nonce = generateNonce();
+
         try {
-            cipher.engineInit(ENCRYPT_MODE, remotePublicKey, parameterSpec, new SecureRandom());
-            return cipher.engineDoFinal(plaintext, 0, plaintext.length);
+            cipher.engineInit(ENCRYPT_MODE, remotePublicKey, createParameterSpec(nonce), random);
+            return prependNonce(nonce, cipher.engineDoFinal(plaintext, 0, plaintext.length));
         } catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException | InvalidAlgorithmParameterException ex) {
             throw new CryptoException("Could not encrypt the given plaintext: " + ex.getMessage());
         }
@@ -122,16 +176,102 @@ public class EccCipher {
      * to decrypt the ciphertext. This may not be null.
      * @return The plaintext.
      * @throws IllegalArgumentException If the argument is null.
-     * @throws CryptoException If something goes wrong during decryption.
+     * @throws CryptoException If something goes wrong during decryption, for
+     * example if the ciphertext is shorter than the nonce.
      */
     public byte[] decrypt(byte[] ciphertext, PrivateKey localPrivateKey) {
         Exceptions.verifyArgumentsNotNull(ciphertext, localPrivateKey);
 
+        if (ciphertext.length < NONCE_LENGTH_IN_BYTES) {
+            throw new CryptoException("Could not decrypt the given ciphertext: it is shorter than the nonce.");
+        }
+
+        byte[] nonce = Arrays.copyOf(ciphertext, NONCE_LENGTH_IN_BYTES);
+
         try {
-            cipher.engineInit(DECRYPT_MODE, localPrivateKey, parameterSpec, new SecureRandom());
-            return cipher.engineDoFinal(ciphertext, 0, ciphertext.length);
+            cipher.engineInit(DECRYPT_MODE, localPrivateKey, createParameterSpec(nonce), random);
+            return cipher.engineDoFinal(ciphertext, NONCE_LENGTH_IN_BYTES, ciphertext.length - NONCE_LENGTH_IN_BYTES);
         } catch (InvalidKeyException | IllegalBlockSizeException | BadPaddingException | InvalidAlgorithmParameterException ex) {
             throw new CryptoException("Could not decrypt the given ciphertext: " + ex.getMessage());
         }
     }
+
+    private byte[] generateNonce() {
+        byte[] nonce = new byte[NONCE_LENGTH_IN_BYTES];
+        random.nextBytes(nonce);
+        return nonce;
+    }
+
+    private IESParameterSpec createParameterSpec(byte[] nonce) {
+        return new IESParameterSpec(nonce, parameterSpec.getEncodingV(), parameterSpec.getMacKeySize(),
+                parameterSpec.getCipherKeySize(), nonce);
+    }
+
+    private static byte[] prependNonce(byte[] nonce, byte[] output) {
+        byte[] ciphertext = new byte[nonce.length + output.length];
+        System.arraycopy(nonce, 0, ciphertext, 0, nonce.length);
+        System.arraycopy(output, 0, ciphertext, nonce.length, output.length);
+        return ciphertext;
+    }
+
+    /**
+     * Encrypts like the {@link IESCipher} does, but with the ephemeral key
+     * pair of the {@link EccAgreementCache}. The nonce is still random, so
+     * only the ECDH work is reused.
+     */
+    private byte[] encryptWithCachedEphemeralKey(byte[] plaintext, PublicKey remotePublicKey) {
+        byte[] nonce = generateNonce();
+
+        try {
+            AsymmetricKeyParameter remoteKey = ECUtil.generatePublicKeyParameter(remotePublicKey);
+            AsymmetricCipherKeyPair ephemeralKeyPair = agreementCache.getEphemeralKeyPair((ECPublicKeyParameters) remoteKey);
+            IESWithCipherParameters parameters = new IESWithCipherParameters(nonce,
+                    parameterSpec.getEncodingV(), parameterSpec.getMacKeySize(), parameterSpec.getCipherKeySize());
+
+            engine.init(remoteKey, new ParametersWithIV(parameters, nonce), new EphemeralKeyPairGenerator(new FixedKeyPairGenerator(ephemeralKeyPair), new KeyEncoder() {
+                @Override
+                public byte[] getEncoded(AsymmetricKeyParameter key) {
+                    return ((ECPublicKeyParameters) key).getQ().getEncoded();
+                }
+            }));
+
+            return prependNonce(nonce, engine.processBlock(plaintext, 0, plaintext.length));
+        } catch (InvalidKeyException | InvalidCipherTextException | ClassCastException ex) {
+            throw new CryptoException("Could not encrypt the given plaintext: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * @return The number of ECDH agreements that were taken from the cache,
+     * or 0 if the cipher is not in the cached-ephemeral mode.
+     */
+    public long getCacheHits() {
+        return agreementCache == null ? 0 : agreementCache.getHits();
+    }
+
+    /**
+     * @return The number of ECDH agreements that had to be calculated in the
+     * cached-ephemeral mode, or 0 if the cipher is not in this mode.
+     */
+    public long getCacheMisses() {
+        return agreementCache == null ? 0 : agreementCache.getMisses();
+    }
+
+    private static class FixedKeyPairGenerator implements AsymmetricCipherKeyPairGenerator {
+
+        private final AsymmetricCipherKeyPair keyPair;
+
+        FixedKeyPairGenerator(AsymmetricCipherKeyPair keyPair) {
+            this.keyPair = keyPair;
+        }
+
+        @Override
+        public void init(KeyGenerationParameters parameters) {
+        }
+
+        @Override
+        public AsymmetricCipherKeyPair generateKeyPair() {
+            return keyPair;
+        }
+    }
 }
@@ -0,0 +1,196 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.crypto;
+
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.beamproject.common.Participant;
+import org.beamproject.common.Session;
+import org.beamproject.common.util.Arrays;
+import org.beamproject.common.util.Exceptions;
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESFastEngine;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * Allows to encrypt and decrypt data symmetrically with the key of an
+ * established {@link Session}, using AES in GCM mode (authenticated
+ * encryption).
+ * <p>
+ * Each direction of a {@link Session} uses its own key: The key for messages
+ * to a {@link Participant} is a SHA-256 {@link Digest} of [session key +
+ * public key of the recipient]. Both sides are therefore able to derive the
+ * same key, without exchanging anything else than the {@link Handshake}.
+ * <p>
+ * AES is computed by the {@link CryptoBackend} configured for
+ * {@link CryptoPrimitive#AES} when the cipher is created.
+ *
+ * @see Session
+ * @see CryptoPacker
+ */
+public class SessionCipher {
+
+    /**
+     * The length of the initialization vector, as recommended for GCM.
+     */
+    public final static int IV_LENGTH_IN_BYTES = 12;
+    /**
+     * The length of the authentication tag, appended to every ciphertext.
+     */
+    public final static int MAC_SIZE_IN_BITS = 128;
+    /**
+     * The transformation of the cipher of the Java runtime.
+     */
+    final static String JDK_TRANSFORMATION = "AES/GCM/NoPadding";
+    GCMBlockCipher cipher;
+    Cipher jdkCipher;
+    SecureRandom random;
+
+    /**
+     * Creates a new {@link SessionCipher}.
+     *
+     * @throws IllegalStateException If the cipher of the Java runtime is
+     * configured, but not available.
+     */
+    public SessionCipher() {
+        this(CryptoPrimitive.AES.getBackend());
+    }
+
+    /**
+     * Creates a new {@link SessionCipher}, which computes AES with the given
+     * backend.
+     */
+    SessionCipher(CryptoBackend backend) {
+        if (backend == CryptoBackend.JDK) {
+            jdkCipher = createJdkCipher();
+        } else {
+            cipher = new GCMBlockCipher(new AESFastEngine());
+        }
+
+        random = new SecureRandom();
+    }
+
+    private Cipher createJdkCipher() {
+        try {
+            return Cipher.getInstance(JDK_TRANSFORMATION);
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException("The cipher " + JDK_TRANSFORMATION + " is not available: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Generates a new random initialization vector. A vector may never be
+     * used twice with the same key.
+     *
+     * @return The initialization vector of {@link #IV_LENGTH_IN_BYTES}.
+     */
+    public byte[] generateIv() {
+        byte[] iv = new byte[IV_LENGTH_IN_BYTES];
+        random.nextBytes(iv);
+        return iv;
+    }
+
+    /**
+     * Encrypts the given {@code plaintext} and authenticates it together with
+     * the {@code associatedData}.
+     *
+     * @param plaintext The plaintext to encrypt.
+     * @param key The directional key, see
+     * {@link #deriveKey(byte[], Participant)}.
+     * @param iv The initialization vector, see {@link #generateIv()}.
+     * @param associatedData Data which is not encrypted, but has to be
+     * authenticated.
+     * @return The ciphertext, including the authentication tag.
+     * @throws IllegalArgumentException If at least one argument is null.
+     * @throws CryptoException If anything goes wrong during encryption.
+     */
+    public byte[] encrypt(byte[] plaintext, byte[] key, byte[] iv, byte[] associatedData) {
+        Exceptions.verifyArgumentsNotNull(plaintext, key, iv, associatedData);
+
+        try {
+            return process(true, plaintext, key, iv, associatedData);
+        } catch (IllegalArgumentException | IllegalStateException | InvalidCipherTextException | GeneralSecurityException ex) {
+            throw new CryptoException("Could not encrypt the plaintext: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * Decrypts the given {@code ciphertext} and verifies its integrity and the
+     * integrity of the {@code associatedData}.
+     *
+     * @param ciphertext The ciphertext to decrypt, including the
+     * authentication tag.
+     * @param key The directional key, see
+     * {@link #deriveKey(byte[], Participant)}.
+     * @param iv The initialization vector, used to encrypt.
+     * @param associatedData The associated data, used to encrypt.
+     * @return The plaintext.
+     * @throws IllegalArgumentException If at least one argument is null.
+     * @throws CryptoException If anything goes wrong during decryption or the
+     * integrity cannot be verified.
+     */
+    public byte[] decrypt(byte[] ciphertext, byte[] key, byte[] iv, byte[] associatedData) {
+        Exceptions.verifyArgumentsNotNull(ciphertext, key, iv, associatedData);
+
+        try {
+            return process(false, ciphertext, key, iv, associatedData);
+        } catch (IllegalArgumentException | IllegalStateException | InvalidCipherTextException | GeneralSecurityException ex) {
+            throw new CryptoException("Could not decrypt the ciphertext: " + ex.getMessage());
+        }
+    }
+
+    private byte[] process(boolean isForEncryption, byte[] input, byte[] key, byte[] iv, byte[] associatedData) throws InvalidCipherTextException, GeneralSecurityException {
+        if (jdkCipher != null) {
+            jdkCipher.init(isForEncryption ? Cipher.ENCRYPT_MODE : Cipher.DECRYPT_MODE,
+                    new SecretKeySpec(key, "AES"), new GCMParameterSpec(MAC_SIZE_IN_BITS, iv));
+            jdkCipher.updateAAD(associatedData);
+            return jdkCipher.doFinal(input);
+        }
+
+        cipher.init(isForEncryption, new AEADParameters(new KeyParameter(key), MAC_SIZE_IN_BITS, iv, associatedData));
+
+        byte[] output = new byte[cipher.getOutputSize(input.length)];
+        int processedBytes = cipher.processBytes(input, 0, input.length, output, 0);
+        cipher.doFinal(output, processedBytes);
+
+        return output;
+    }
+
+    /**
+     * Derives the key for messages sent to the given {@code recipient} within
+     * a {@link Session}.
+     *
+     * @param sessionKey The key of the {@link Session}.
+     * @param recipient The recipient of the messages. This may either be the
+     * remote participant (when sending) or the local participant (when
+     * receiving).
+     * @return The derived key, 32 bytes long.
+     * @throws IllegalArgumentException If at least one argument is null.
+     */
+    public static byte[] deriveKey(byte[] sessionKey, Participant recipient) {
+        Exceptions.verifyArgumentsNotNull(sessionKey, recipient);
+
+        return Digest.digestWithSha256(Arrays.mergeArrays(sessionKey, recipient.getPublicKeyAsBytes()));
+    }
+}
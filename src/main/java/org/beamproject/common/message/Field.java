@@ -50,7 +50,24 @@ public enum Field {
      * <p>
      * <b>Usage:</b> as key of a key/value pair, directly in message.
      */
-    CNT;
+    CNT,
+    /**
+     * Stands for "initialization vector". This field is only present if the
+     * field {@link Field#CNT} was encrypted with the key of an established
+     * session instead of the public key of the recipient.
+     * <p>
+     * <b>Usage:</b> as key of a key/value pair, directly in message.
+     */
+    IV,
+    /**
+     * Stands for "key". This field is only present if the field
+     * {@link Field#CNT} was encrypted with a random content key, so that the
+     * same encrypted content can be sent to several recipients. It contains
+     * the content key, encrypted with the public key of the recipient.
+     * <p>
+     * <b>Usage:</b> as key of a key/value pair, directly in message.
+     */
+    KEY;
 
     /**
      * This enumeration provides all <b>keys</b> for the key/value pairs, used
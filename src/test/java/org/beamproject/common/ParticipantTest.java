@@ -19,6 +19,7 @@
 package org.beamproject.common;
 
 import java.security.KeyPair;
+import java.security.PublicKey;
 import java.util.LinkedList;
 import org.beamproject.common.crypto.EccKeyPairGenerator;
 import static org.beamproject.common.crypto.EccKeyPairGenerator.fromBothKeys;
@@ -212,4 +213,69 @@ public class ParticipantTest {
         assertTrue(hashCode == other.hashCode());
     }
 
+    @Test
+    public void testHashCodeAfterChangingKeyPair() {
+        int hashCode = participant.hashCode();
+        Participant other = Participant.generate();
+        participant.keyPair = other.keyPair;
+
+        assertFalse(hashCode == participant.hashCode());
+        assertEquals(other.hashCode(), participant.hashCode());
+    }
+
+    @Test
+    public void testEqualsEncodesKeysOnlyOnce() {
+        CountingPublicKey publicKey = new CountingPublicKey(keyPair.getPublic());
+        participant = new Participant(new KeyPair(publicKey, null));
+        Participant other = new Participant(fromPublicKey(keyPair.getPublic().getEncoded()));
+
+        for (int i = 0; i < 10; i++) {
+            assertTrue(participant.equals(other));
+            assertEquals(other.hashCode(), participant.hashCode());
+        }
+
+        assertEquals(1, publicKey.encodings);
+    }
+
+    @Test
+    public void testEqualsAfterChangingKeyPair() {
+        Participant other = new Participant(keyPair);
+        assertTrue(participant.equals(other));
+
+        other.keyPair = EccKeyPairGenerator.generate();
+        assertFalse(participant.equals(other));
+
+        other.keyPair = keyPair;
+        assertTrue(participant.equals(other));
+    }
+
+    /**
+     * Counts how often the wrapped key is encoded.
+     */
+    private static class CountingPublicKey implements PublicKey {
+
+        private final PublicKey key;
+        int encodings = 0;
+
+        CountingPublicKey(PublicKey key) {
+            this.key = key;
+        }
+
+        @Override
+        public String getAlgorithm() {
+            return key.getAlgorithm();
+        }
+
+        @Override
+        public String getFormat() {
+            return key.getFormat();
+        }
+
+        @Override
+        public byte[] getEncoded() {
+            encodings++;
+            return key.getEncoded();
+        }
+    }
+
 }
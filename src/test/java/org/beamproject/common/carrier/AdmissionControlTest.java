@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AdmissionControlTest {
+
+    private final static long SECOND = TimeUnit.SECONDS.toNanos(1);
+    private final byte[] MESSAGE = "myMessage".getBytes();
+    private AdmissionControl control;
+
+    @Before
+    public void setUp() {
+        control = new AdmissionControl(MESSAGE.length, 10, 3, 1024);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnZeroPayloadSize() {
+        control = new AdmissionControl(0, 10, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnZeroRate() {
+        control = new AdmissionControl(10, 0, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnZeroBurst() {
+        control = new AdmissionControl(10, 10, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnZeroSlots() {
+        control = new AdmissionControl(10, 10, 3, 0);
+    }
+
+    @Test
+    public void testNumberOfSlotsIsRoundedUp() {
+        assertEquals(1024, control.getNumberOfSlots());
+        assertEquals(1024, new AdmissionControl(10, 10, 3, 1000).getNumberOfSlots());
+        assertEquals(1, new AdmissionControl(10, 10, 3, 1).getNumberOfSlots());
+    }
+
+    @Test
+    public void testAdmitOnTooLargeMessage() {
+        assertFalse(control.admit(new byte[MESSAGE.length + 1], "username"));
+        assertTrue(control.admit(MESSAGE, "username"));
+
+        assertEquals(1, control.getRejectedBySize());
+        assertEquals(0, control.getRejectedByRate());
+    }
+
+    @Test
+    public void testAdmitByteBufferOnTooLargeMessage() {
+        ByteBuffer buffer = ByteBuffer.allocate(MESSAGE.length + 1);
+
+        assertFalse(control.admit(buffer, "username"));
+        buffer.position(1);
+        assertTrue(control.admit(buffer, "username"));
+    }
+
+    @Test
+    public void testAdmitOnBurst() {
+        assertTrue(control.admit(MESSAGE, "username"));
+        assertTrue(control.admit(MESSAGE, "username"));
+        assertTrue(control.admit(MESSAGE, "username"));
+        assertFalse(control.admit(MESSAGE, "username"));
+
+        assertEquals(1, control.getRejectedByRate());
+    }
+
+    @Test
+    public void testSendersAreLimitedIndependently() {
+        control = new AdmissionControl(MESSAGE.length, 0.001, 1, 1024);
+        int slot = control.slotOf("alice");
+        String other = "bob";
+
+        for (int i = 0; control.slotOf(other) == slot; i++) {
+            other = "bob" + i;
+        }
+
+        assertTrue(control.admit(MESSAGE, "alice"));
+        assertFalse(control.admit(MESSAGE, "alice"));
+        assertTrue(control.admit(MESSAGE, other));
+    }
+
+    @Test
+    public void testTryAcquireRefillsOverTime() {
+        int slot = control.slotOf("username");
+        long now = SECOND;
+
+        assertTrue(control.tryAcquire(slot, now));
+        assertTrue(control.tryAcquire(slot, now));
+        assertTrue(control.tryAcquire(slot, now));
+        assertFalse(control.tryAcquire(slot, now));
+
+        now += SECOND / 10;
+        assertTrue(control.tryAcquire(slot, now));
+        assertFalse(control.tryAcquire(slot, now));
+
+        now += SECOND;
+        assertTrue(control.tryAcquire(slot, now));
+        assertTrue(control.tryAcquire(slot, now));
+        assertTrue(control.tryAcquire(slot, now));
+        assertFalse(control.tryAcquire(slot, now));
+    }
+
+    @Test
+    public void testTryAcquireConcurrently() throws Exception {
+        control = new AdmissionControl(MESSAGE.length, 1, 1000, 1);
+        final int slot = control.slotOf("username");
+        final long now = SECOND;
+        final int[] admitted = new int[4];
+        Thread[] threads = new Thread[admitted.length];
+
+        for (int i = 0; i < threads.length; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 1000; j++) {
+                        if (control.tryAcquire(slot, now)) {
+                            admitted[index]++;
+                        }
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        int total = 0;
+
+        for (int i = 0; i < threads.length; i++) {
+            threads[i].join();
+            total += admitted[i];
+        }
+
+        assertEquals(1000, total);
+    }
+
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import org.beamproject.common.ExecutorFake;
+import org.fusesource.mqtt.client.Callback;
+import static org.easymock.EasyMock.aryEq;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncClientCarrierImplTest {
+
+    private final String IN_TOPIC = "in/username";
+    private final String USERNAME = "username";
+    private final byte[] MESSAGE = "myMessage".getBytes();
+    private AsyncMqttConnection connection;
+    private ClientCarrierModel model;
+    private AsyncClientCarrierImpl carrier;
+
+    @Before
+    public void setUp() {
+        connection = createMock(AsyncMqttConnection.class);
+        model = createMock(ClientCarrierModel.class);
+        carrier = new AsyncClientCarrierImpl(model, new ExecutorFake(), connection);
+    }
+
+    @Test
+    public void testDeliverMessage() {
+        connection.publish(eq(IN_TOPIC), aryEq(MESSAGE), eq(Delivery.AT_LEAST_ONCE), isA(Callback.class));
+        expectLastCall();
+        replay(connection);
+
+        carrier.deliverMessage(MESSAGE, IN_TOPIC);
+
+        verify(connection);
+    }
+
+    @Test
+    public void testDeliverMessageAtMostOnce() {
+        connection.publish(eq(IN_TOPIC), aryEq(MESSAGE), eq(Delivery.AT_MOST_ONCE), isA(Callback.class));
+        expectLastCall();
+        replay(connection);
+
+        carrier.deliverMessage(MESSAGE, IN_TOPIC, Delivery.AT_MOST_ONCE);
+
+        verify(connection);
+    }
+
+    @Test
+    public void testStartReceiving() {
+        connection.subscribe(carrier);
+        expectLastCall();
+        replay(connection);
+
+        carrier.startReceiving();
+
+        verify(connection);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStopReceivingWhenNotReceiving() {
+        expect(connection.isSubscribing()).andReturn(false);
+        replay(connection);
+
+        carrier.stopReceiving();
+    }
+
+    @Test
+    public void testStopReceiving() {
+        expect(connection.isSubscribing()).andReturn(true);
+        connection.unsubscribe();
+        expectLastCall();
+        replay(connection);
+
+        carrier.stopReceiving();
+
+        verify(connection);
+    }
+
+    @Test
+    public void testReceive() {
+        model.consumeMessage(MESSAGE, USERNAME);
+        expectLastCall();
+        replay(model);
+
+        carrier.receive(MESSAGE, IN_TOPIC);
+
+        verify(model);
+    }
+
+    @Test
+    public void testShutdown() {
+        connection.disconnect();
+        expectLastCall();
+        replay(connection);
+
+        carrier.shutdown();
+
+        verify(connection);
+    }
+
+}
@@ -0,0 +1,453 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.nio.ByteBuffer;
+import org.fusesource.hawtbuf.Buffer;
+import org.fusesource.hawtbuf.UTF8Buffer;
+import org.fusesource.hawtdispatch.DispatchQueue;
+import org.fusesource.mqtt.client.Callback;
+import org.fusesource.mqtt.client.CallbackConnection;
+import org.fusesource.mqtt.client.Listener;
+import org.fusesource.mqtt.client.MQTT;
+import org.fusesource.mqtt.client.QoS;
+import org.fusesource.mqtt.client.Topic;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.aryEq;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import org.easymock.IAnswer;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AsyncMqttConnectionTest {
+
+    private final String HOST = "localhost";
+    private final int PORT = 3625;
+    private final String USERNAME = "secret_username";
+    private final String SUBSCRIBER_TOPIC = "in";
+    private final String TOPIC = "out/username";
+    private final byte[] MESSAGE = "secret message".getBytes();
+    private MQTT mqtt;
+    private CallbackConnection callbackConnection;
+    private DispatchQueue queue;
+    private ClientCarrier carrier;
+    private AsyncMqttConnection connection;
+
+    @Before
+    public void setUp() {
+        mqtt = createMock(MQTT.class);
+        callbackConnection = createMock(CallbackConnection.class);
+        queue = createMock(DispatchQueue.class);
+        carrier = createMock(ClientCarrier.class);
+        connection = new AsyncMqttConnection(mqtt, HOST, PORT, USERNAME, SUBSCRIBER_TOPIC);
+        connection.reconnectPolicy = new ReconnectPolicy(0, 5000, 2.0, 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnNulls() {
+        connection = new AsyncMqttConnection(null, null, 0, null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnZeroPort() {
+        connection = new AsyncMqttConnection(new MQTT(), HOST, 0, USERNAME, SUBSCRIBER_TOPIC);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnTooHighPort() {
+        connection = new AsyncMqttConnection(new MQTT(), HOST, 65536, USERNAME, SUBSCRIBER_TOPIC);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnNullClientId() {
+        connection = new AsyncMqttConnection(new MQTT(), HOST, PORT, USERNAME, SUBSCRIBER_TOPIC, null);
+    }
+
+    @Test
+    public void testConnect() throws Exception {
+        mqtt.setHost(HOST, PORT);
+        expectLastCall();
+        mqtt.setUserName(USERNAME);
+        expectLastCall();
+        mqtt.setClientId(USERNAME + "-sub");
+        expectLastCall();
+        mqtt.setCleanSession(false);
+        expectLastCall();
+        mqtt.setConnectAttemptsMax(3);
+        expectLastCall();
+        mqtt.setReconnectAttemptsMax(-1);
+        expectLastCall();
+        mqtt.setReconnectDelay(0);
+        expectLastCall();
+        mqtt.setReconnectDelayMax(5000);
+        expectLastCall();
+        mqtt.setReconnectBackOffMultiplier(2.0);
+        expectLastCall();
+        expect(mqtt.callbackConnection()).andReturn(callbackConnection);
+        expect(callbackConnection.listener(isA(Listener.class))).andReturn(callbackConnection);
+        callbackConnection.connect(AsyncMqttConnectionTest.<Void>anyCallback());
+        expectLastCall().andAnswer(new SuccessAnswer(null));
+        replay(mqtt, callbackConnection);
+
+        connection.connect();
+
+        assertSame(callbackConnection, connection.connection);
+        verify(mqtt, callbackConnection);
+    }
+
+    @Test
+    public void testConnectWithCleanSession() throws Exception {
+        connection = new AsyncMqttConnection(mqtt, HOST, PORT, USERNAME, SUBSCRIBER_TOPIC, "client", true);
+        connection.reconnectPolicy = new ReconnectPolicy(0, 5000, 2.0, 3);
+        mqtt.setCleanSession(true);
+        expectLastCall();
+        mqtt.setClientId("client");
+        expectLastCall();
+        expectConnectionSettings();
+        expect(mqtt.callbackConnection()).andReturn(callbackConnection);
+        expect(callbackConnection.listener(isA(Listener.class))).andReturn(callbackConnection);
+        callbackConnection.connect(AsyncMqttConnectionTest.<Void>anyCallback());
+        expectLastCall().andAnswer(new SuccessAnswer(null));
+        replay(mqtt, callbackConnection);
+
+        connection.connect();
+
+        verify(mqtt, callbackConnection);
+    }
+
+    @Test
+    public void testConnectOnRefusedConnection() throws Exception {
+        mqtt.setCleanSession(false);
+        expectLastCall();
+        mqtt.setClientId(USERNAME + "-sub");
+        expectLastCall();
+        expectConnectionSettings();
+        expect(mqtt.callbackConnection()).andReturn(callbackConnection);
+        expect(callbackConnection.listener(isA(Listener.class))).andReturn(callbackConnection);
+        callbackConnection.connect(AsyncMqttConnectionTest.<Void>anyCallback());
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                ((Callback<?>) getCurrentArguments()[0]).onFailure(new Exception("refused"));
+                return null;
+            }
+        });
+        expectDispatchQueue();
+        callbackConnection.disconnect(AsyncMqttConnectionTest.<Void>anyCallback());
+        expectLastCall();
+        replay(mqtt, callbackConnection, queue);
+
+        try {
+            connection.connect();
+            fail("The connection should have been refused.");
+        } catch (CarrierException ex) {
+            assertNull(connection.connection);
+        }
+
+        verify(mqtt, callbackConnection, queue);
+    }
+
+    private void expectConnectionSettings() throws Exception {
+        mqtt.setHost(HOST, PORT);
+        expectLastCall();
+        mqtt.setUserName(USERNAME);
+        expectLastCall();
+        mqtt.setConnectAttemptsMax(3);
+        expectLastCall();
+        mqtt.setReconnectAttemptsMax(-1);
+        expectLastCall();
+        mqtt.setReconnectDelay(0);
+        expectLastCall();
+        mqtt.setReconnectDelayMax(5000);
+        expectLastCall();
+        mqtt.setReconnectBackOffMultiplier(2.0);
+        expectLastCall();
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testConnectOnFailure() throws Exception {
+        mqtt.setHost(HOST, PORT);
+        expectLastCall().andThrow(new IllegalArgumentException("no host"));
+        replay(mqtt);
+
+        connection.connect();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPublishWhenNotConnected() {
+        connection.publish(TOPIC, MESSAGE, new CallbackFake());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPublishOnNulls() {
+        connection.publish(null, null, null);
+    }
+
+    @Test
+    public void testPublish() {
+        CallbackFake callback = new CallbackFake();
+        connection.connection = callbackConnection;
+        expectDispatchQueue();
+        callbackConnection.publish(TOPIC, MESSAGE, QoS.AT_LEAST_ONCE, false, callback);
+        expectLastCall();
+        replay(callbackConnection, queue);
+
+        connection.publish(TOPIC, MESSAGE, callback);
+
+        verify(callbackConnection, queue);
+    }
+
+    @Test
+    public void testPublishAtMostOnce() {
+        CallbackFake callback = new CallbackFake();
+        connection.connection = callbackConnection;
+        expectDispatchQueue();
+        callbackConnection.publish(TOPIC, MESSAGE, QoS.AT_MOST_ONCE, false, callback);
+        expectLastCall();
+        replay(callbackConnection, queue);
+
+        connection.publish(TOPIC, MESSAGE, Delivery.AT_MOST_ONCE, callback);
+
+        verify(callbackConnection, queue);
+    }
+
+    @Test
+    public void testSubscribe() {
+        connection.connection = callbackConnection;
+        expectDispatchQueue();
+        callbackConnection.subscribe(aryEq(new Topic[]{new Topic(SUBSCRIBER_TOPIC, QoS.AT_LEAST_ONCE)}), AsyncMqttConnectionTest.<byte[]>anyCallback());
+        expectLastCall().andAnswer(new SuccessAnswer(new byte[]{1}));
+        replay(callbackConnection, queue);
+
+        connection.subscribe(carrier);
+
+        assertTrue(connection.isSubscribing());
+        verify(callbackConnection, queue);
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testSubscribeOnFailure() {
+        connection.connection = callbackConnection;
+        expectDispatchQueue();
+        callbackConnection.subscribe(anyObject(Topic[].class), AsyncMqttConnectionTest.<byte[]>anyCallback());
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                ((Callback<?>) getCurrentArguments()[1]).onFailure(new Exception("refused"));
+                return null;
+            }
+        });
+        replay(callbackConnection, queue);
+
+        try {
+            connection.subscribe(carrier);
+        } finally {
+            assertFalse(connection.isSubscribing());
+        }
+    }
+
+    @Test
+    public void testUnsubscribe() {
+        connection.connection = callbackConnection;
+        connection.carrier = carrier;
+        expectDispatchQueue();
+        callbackConnection.unsubscribe(aryEq(new UTF8Buffer[]{new UTF8Buffer(SUBSCRIBER_TOPIC)}), AsyncMqttConnectionTest.<Void>anyCallback());
+        expectLastCall().andAnswer(new SuccessAnswer(null));
+        replay(callbackConnection, queue);
+
+        connection.unsubscribe();
+
+        assertNull(connection.carrier);
+        assertFalse(connection.isSubscribing());
+        verify(callbackConnection, queue);
+    }
+
+    @Test
+    public void testUnsubscribeWhenNotSubscribing() {
+        connection.connection = callbackConnection;
+        replay(callbackConnection);
+
+        connection.unsubscribe();
+
+        verify(callbackConnection);
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testUnsubscribeOnFailure() {
+        connection.connection = callbackConnection;
+        connection.carrier = carrier;
+        expectDispatchQueue();
+        callbackConnection.unsubscribe(anyObject(UTF8Buffer[].class), AsyncMqttConnectionTest.<Void>anyCallback());
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                ((Callback<?>) getCurrentArguments()[1]).onFailure(new Exception("refused"));
+                return null;
+            }
+        });
+        replay(callbackConnection, queue);
+
+        try {
+            connection.unsubscribe();
+        } finally {
+            assertFalse(connection.isSubscribing());
+        }
+    }
+
+    @Test
+    public void testInboundListenerOnPublish() {
+        connection.carrier = carrier;
+        AckFake ack = new AckFake();
+        carrier.receive(eq(ByteBuffer.wrap(MESSAGE)), eq(TOPIC));
+        expectLastCall();
+        replay(carrier);
+
+        connection.new InboundListener().onPublish(new UTF8Buffer(TOPIC), new Buffer(MESSAGE), ack);
+
+        assertTrue(ack.wasRun);
+        verify(carrier);
+    }
+
+    @Test
+    public void testInboundListenerOnPublishWhenReceivingFails() {
+        connection.carrier = carrier;
+        AckFake ack = new AckFake();
+        carrier.receive(eq(ByteBuffer.wrap(MESSAGE)), eq(TOPIC));
+        expectLastCall().andThrow(new CarrierException("invalid topic"));
+        replay(carrier);
+
+        connection.new InboundListener().onPublish(new UTF8Buffer(TOPIC), new Buffer(MESSAGE), ack);
+
+        assertTrue(ack.wasRun);
+        verify(carrier);
+    }
+
+    @Test
+    public void testInboundListenerOnPublishWhenNotSubscribing() {
+        AckFake ack = new AckFake();
+        replay(carrier);
+
+        connection.new InboundListener().onPublish(new UTF8Buffer(TOPIC), new Buffer(MESSAGE), ack);
+
+        assertFalse(ack.wasRun);
+        verify(carrier);
+    }
+
+    @Test
+    public void testDisconnectWhenNotConnected() {
+        connection.disconnect();
+    }
+
+    @Test
+    public void testDisconnect() {
+        connection.connection = callbackConnection;
+        expectDispatchQueue();
+        callbackConnection.disconnect(AsyncMqttConnectionTest.<Void>anyCallback());
+        expectLastCall().andAnswer(new SuccessAnswer(null));
+        replay(callbackConnection, queue);
+
+        connection.disconnect();
+
+        verify(callbackConnection, queue);
+    }
+
+    @Test
+    public void testDisconnectWhenSubscribing() {
+        connection.connection = callbackConnection;
+        connection.carrier = carrier;
+        expectDispatchQueue();
+        callbackConnection.unsubscribe(aryEq(new UTF8Buffer[]{new UTF8Buffer(SUBSCRIBER_TOPIC)}), AsyncMqttConnectionTest.<Void>anyCallback());
+        expectLastCall().andAnswer(new SuccessAnswer(null));
+        callbackConnection.disconnect(AsyncMqttConnectionTest.<Void>anyCallback());
+        expectLastCall().andAnswer(new SuccessAnswer(null));
+        replay(callbackConnection, queue);
+
+        connection.disconnect();
+
+        assertFalse(connection.isSubscribing());
+        verify(callbackConnection, queue);
+    }
+
+    private static <T> Callback<T> anyCallback() {
+        return anyObject();
+    }
+
+    private void expectDispatchQueue() {
+        expect(callbackConnection.getDispatchQueue()).andReturn(queue).anyTimes();
+        queue.execute(isA(Runnable.class));
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                ((Runnable) getCurrentArguments()[0]).run();
+                return null;
+            }
+        }).anyTimes();
+    }
+
+    private class SuccessAnswer implements IAnswer<Object> {
+
+        private final Object value;
+
+        SuccessAnswer(Object value) {
+            this.value = value;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object answer() throws Throwable {
+            Object[] arguments = getCurrentArguments();
+            ((Callback<Object>) arguments[arguments.length - 1]).onSuccess(value);
+            return null;
+        }
+    }
+
+    private class CallbackFake implements Callback<Void> {
+
+        @Override
+        public void onSuccess(Void value) {
+        }
+
+        @Override
+        public void onFailure(Throwable value) {
+        }
+    }
+
+    private class AckFake implements Runnable {
+
+        boolean wasRun = false;
+
+        @Override
+        public void run() {
+            wasRun = true;
+        }
+    }
+
+}
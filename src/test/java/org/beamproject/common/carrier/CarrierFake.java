@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.beamproject.common.Participant;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Records all received messages together with their topics, so that tests
+ * can wait for them. Delivered messages, bindings, subscriber topics and
+ * whether it is receiving are recorded as well.
+ */
+public class CarrierFake implements SubscribingClientCarrier {
+
+    public final static long TIMEOUT_IN_MILLISECONDS = 5000;
+    final BlockingQueue<Received> received = new LinkedBlockingQueue<>();
+    final BlockingQueue<Received> delivered = new LinkedBlockingQueue<>();
+    final Map<Participant, String> bindings = new ConcurrentHashMap<>();
+    final Set<String> subscriberTopics = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    volatile boolean isReceiving = false;
+    volatile boolean isShutdown = false;
+
+    /**
+     * Waits for the next received message and fails if none arrives within
+     * {@link #TIMEOUT_IN_MILLISECONDS}.
+     *
+     * @return The received message.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public Received take() throws InterruptedException {
+        Received next = received.poll(TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+        assertNotNull("No message received in time.", next);
+        return next;
+    }
+
+    /**
+     * @param timeoutInMilliseconds The time to wait.
+     * @return The next received message, or null if none arrived in time.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public Received poll(long timeoutInMilliseconds) throws InterruptedException {
+        return received.poll(timeoutInMilliseconds, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public void receive(byte[] message, String topic) {
+        received.add(new Received(message, topic));
+    }
+
+    @Override
+    public void receive(ByteBuffer message, String topic) {
+        byte[] bytes = new byte[message.remaining()];
+        message.duplicate().get(bytes);
+        received.add(new Received(bytes, topic));
+    }
+
+    @Override
+    public void deliverMessage(byte[] message, String target) {
+        delivered.add(new Received(message, target));
+    }
+
+    @Override
+    public void deliverMessage(byte[] message, String target, Delivery delivery) {
+        delivered.add(new Received(message, target));
+    }
+
+    @Override
+    public DeliveryFuture deliverMessageAsync(byte[] message, String target, Delivery delivery) {
+        delivered.add(new Received(message, target));
+        DeliveryFuture future = new DeliveryFuture();
+        future.complete();
+        return future;
+    }
+
+    @Override
+    public void startReceiving() {
+        isReceiving = true;
+    }
+
+    @Override
+    public void stopReceiving() {
+        isReceiving = false;
+    }
+
+    @Override
+    public void shutdown() {
+        isReceiving = false;
+        isShutdown = true;
+    }
+
+    @Override
+    public void bindParticipantToTopic(Participant participant, String topic) {
+        bindings.put(participant, topic);
+    }
+
+    @Override
+    public void bindParticipantsToTopics(Map<Participant, String> bindings) {
+        this.bindings.putAll(bindings);
+    }
+
+    @Override
+    public void unbindParticipant(Participant participant) {
+        bindings.remove(participant);
+    }
+
+    @Override
+    public void unbindParticipants(Collection<Participant> participants) {
+        for (Participant participant : participants) {
+            bindings.remove(participant);
+        }
+    }
+
+    @Override
+    public void addSubscriberTopic(String topic) {
+        subscriberTopics.add(topic);
+    }
+
+    @Override
+    public void removeSubscriberTopic(String topic) {
+        subscriberTopics.remove(topic);
+    }
+
+    public static class Received {
+
+        public final byte[] message;
+        public final String topic;
+
+        Received(byte[] message, String topic) {
+            this.message = message;
+            this.topic = topic;
+        }
+    }
+
+}
@@ -18,9 +18,13 @@
  */
 package org.beamproject.common.carrier;
 
+import java.nio.ByteBuffer;
 import org.beamproject.common.ExecutorFake;
 import org.beamproject.common.User;
+import org.beamproject.common.util.Executor;
+import static org.easymock.EasyMock.aryEq;
 import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
@@ -30,8 +34,12 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 public class ClientCarrierImplTest {
 
@@ -45,6 +53,8 @@ public class ClientCarrierImplTest {
     private MqttConnection connection;
     private ClientCarrierModel model;
     private ClientCarrierImpl carrier;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
 
     @Before
     public void setUp() {
@@ -53,29 +63,30 @@ public class ClientCarrierImplTest {
         connection = createMock(MqttConnection.class);
         model = createMock(ClientCarrierModel.class);
         carrier = new ClientCarrierImpl(model, executorFake, connectionPool);
+        carrier.reconnectPolicy = new ReconnectPolicy(0, 0, 1.0, 1);
     }
 
     @Test
     public void testBindUserToTopic() {
         carrier.bindParticipantToTopic(USER, IN_TOPIC);
 
-        assertEquals(IN_TOPIC, carrier.topics.get(USER));
+        assertEquals(IN_TOPIC, carrier.router.getTopic(USER));
     }
 
     @Test
     public void testUnbindUser() {
-        carrier.topics.put(USER, IN_TOPIC);
+        carrier.router.bind(USER, IN_TOPIC);
 
         carrier.unbindParticipant(USER);
 
-        assertFalse(carrier.topics.contains(USER));
+        assertNull(carrier.router.getTopic(USER));
     }
 
     @Test
     public void testDeliverMessage() throws Exception {
         carrier.bindParticipantToTopic(USER, IN_TOPIC);
         expect(connectionPool.borrowObject()).andReturn(connection);
-        connection.publish(IN_TOPIC, MESSAGE);
+        connection.publish(IN_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
         expectLastCall();
         connectionPool.returnObject(connection);
         replay(connectionPool, connection);
@@ -86,8 +97,351 @@ public class ClientCarrierImplTest {
     }
 
     @Test
-    public void testStartReceiving() throws Exception {
+    public void testDeliverMessageViaConnectionSelector() throws Exception {
+        MqttConnectionSelector selector = createMock(MqttConnectionSelector.class);
+        carrier.setConnectionSelector(selector);
+        selector.publish(IN_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expectLastCall().times(2);
+        replay(connectionPool, selector);
+
+        carrier.deliverMessage(MESSAGE, IN_TOPIC);
+        DeliveryFuture future = carrier.deliverMessageAsync(MESSAGE, IN_TOPIC, Delivery.AT_LEAST_ONCE);
+
+        verify(connectionPool, selector);
+        assertTrue(future.isSuccessful());
+    }
+
+    @Test
+    public void testDeliverMessageViaConnectionSelectorOnFailure() throws Exception {
+        MqttConnectionSelector selector = createMock(MqttConnectionSelector.class);
+        carrier.setConnectionSelector(selector);
+        selector.publish(IN_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expectLastCall().andThrow(new CarrierException("broken"));
+        replay(connectionPool, selector);
+
+        DeliveryFuture future = carrier.deliverMessageAsync(MESSAGE, IN_TOPIC, Delivery.AT_LEAST_ONCE);
+
+        verify(connectionPool, selector);
+        assertTrue(future.isDone());
+        assertFalse(future.isSuccessful());
+    }
+
+    @Test
+    public void testDeliverMessageAtMostOnce() throws Exception {
+        expect(connectionPool.borrowObject()).andReturn(connection);
+        connection.publish(IN_TOPIC, MESSAGE, Delivery.AT_MOST_ONCE);
+        expectLastCall();
+        connectionPool.returnObject(connection);
+        replay(connectionPool, connection);
+
+        carrier.deliverMessage(MESSAGE, IN_TOPIC, Delivery.AT_MOST_ONCE);
+
+        verify(connectionPool, connection);
+    }
+
+    @Test
+    public void testDeliverMessageOnQueuedMessages() throws Exception {
+        byte[] queuedMessage = "queued".getBytes();
+        carrier.sendQueue.add(new Publication(OUT_TOPIC, queuedMessage));
+        expect(connectionPool.borrowObject()).andReturn(connection);
+        connection.publish(OUT_TOPIC, queuedMessage, Delivery.AT_LEAST_ONCE);
+        expectLastCall();
+        connection.publish(IN_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expectLastCall();
+        connectionPool.returnObject(connection);
+        replay(connectionPool, connection);
+
+        carrier.deliverMessage(MESSAGE, IN_TOPIC);
+
+        assertTrue(carrier.sendQueue.isEmpty());
+        assertEquals(0, carrier.activeSenders.get());
+        verify(connectionPool, connection);
+    }
+
+    @Test
+    public void testDeliverMessageOnPublishFailure() throws Exception {
+        expect(connectionPool.borrowObject()).andReturn(connection);
+        connection.publish(IN_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expectLastCall().andThrow(new CarrierException("broken"));
+        connectionPool.invalidateObject(connection);
+        expectLastCall();
+        replay(connectionPool, connection);
+
+        try {
+            carrier.deliverMessage(MESSAGE, IN_TOPIC);
+            fail("The delivery should have failed.");
+        } catch (CarrierException ex) {
+            assertEquals(0, carrier.activeSenders.get());
+            verify(connectionPool, connection);
+        }
+    }
+
+    @Test
+    public void testDeliverMessageOnPublishFailureWithSpool() throws Exception {
+        carrier.setSpool(new OutboundSpool(folder.getRoot(), 1024));
+        carrier.isRetryingSpool.set(true);
+        expect(connectionPool.borrowObject()).andReturn(connection);
+        connection.publish(IN_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expectLastCall().andThrow(new CarrierException("broken"));
+        connectionPool.invalidateObject(connection);
+        expectLastCall();
+        replay(connectionPool, connection);
+
+        carrier.deliverMessage(MESSAGE, IN_TOPIC);
+
+        assertEquals(1, carrier.spool.size());
+        assertEquals(0, carrier.activeSenders.get());
+        verify(connectionPool, connection);
+    }
+
+    @Test
+    public void testDeliverMessageOnBorrowFailureWithSpool() throws Exception {
+        carrier.setSpool(new OutboundSpool(folder.getRoot(), 1024));
+        carrier.isRetryingSpool.set(true);
+        expect(connectionPool.borrowObject()).andThrow(new Exception("broker down"));
+        replay(connectionPool, connection);
+
+        carrier.deliverMessage(MESSAGE, IN_TOPIC);
+
+        assertEquals(1, carrier.spool.size());
+        verify(connectionPool, connection);
+    }
+
+    @Test
+    public void testDeliverMessagePublishesSpooledMessagesFirst() throws Exception {
+        byte[] spooledMessage = "spooled".getBytes();
+        carrier.setSpool(new OutboundSpool(folder.getRoot(), 1024));
+        carrier.spool.append(OUT_TOPIC, spooledMessage, Delivery.AT_MOST_ONCE);
+        expect(connectionPool.borrowObject()).andReturn(connection);
+        connection.publish(eq(OUT_TOPIC), aryEq(spooledMessage), eq(Delivery.AT_MOST_ONCE));
+        expectLastCall();
+        connection.publish(IN_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expectLastCall();
+        connectionPool.returnObject(connection);
+        replay(connectionPool, connection);
+
+        carrier.deliverMessage(MESSAGE, IN_TOPIC);
+
+        assertTrue(carrier.spool.isEmpty());
+        assertFalse(carrier.isDrainingSpool.get());
+        verify(connectionPool, connection);
+    }
+
+    @Test
+    public void testDeliverMessageAsync() throws Exception {
+        expect(connectionPool.borrowObject()).andReturn(connection);
+        connection.publish(IN_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expectLastCall();
+        connectionPool.returnObject(connection);
+        replay(connectionPool, connection);
+
+        DeliveryFuture future = carrier.deliverMessageAsync(MESSAGE, IN_TOPIC, Delivery.AT_LEAST_ONCE);
+
+        assertTrue(future.isSuccessful());
+        verify(connectionPool, connection);
+    }
+
+    @Test
+    public void testDeliverMessageAsyncOnPublishFailure() throws Exception {
+        expect(connectionPool.borrowObject()).andReturn(connection);
+        connection.publish(IN_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expectLastCall().andThrow(new CarrierException("broken"));
+        connectionPool.invalidateObject(connection);
+        expectLastCall();
+        replay(connectionPool, connection);
+
+        DeliveryFuture future = carrier.deliverMessageAsync(MESSAGE, IN_TOPIC, Delivery.AT_LEAST_ONCE);
+
+        assertTrue(future.isDone());
+        assertTrue(future.getFailure() instanceof CarrierException);
+        verify(connectionPool, connection);
+    }
+
+    @Test
+    public void testDeliverMessageAsyncOnPublishFailureKeepsQueuedMessages() throws Exception {
+        DeliveryFuture failingFuture = new DeliveryFuture();
+        DeliveryFuture queuedFuture = new DeliveryFuture();
+        carrier.sendQueue.add(new Publication(OUT_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE, failingFuture));
+        carrier.sendQueue.add(new Publication(OUT_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE, queuedFuture));
+        expect(connectionPool.borrowObject()).andReturn(connection).times(2);
+        connection.publish(OUT_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expectLastCall().andThrow(new CarrierException("broken"));
+        connectionPool.invalidateObject(connection);
+        expectLastCall();
+        connection.publish(OUT_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expectLastCall();
+        connection.publish(IN_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expectLastCall();
+        connectionPool.returnObject(connection);
+        replay(connectionPool, connection);
+
+        DeliveryFuture future = carrier.deliverMessageAsync(MESSAGE, IN_TOPIC, Delivery.AT_LEAST_ONCE);
+
+        assertTrue(failingFuture.getFailure() instanceof CarrierException);
+        assertTrue(queuedFuture.isSuccessful());
+        assertTrue(future.isSuccessful());
+        assertTrue(carrier.sendQueue.isEmpty());
+        assertEquals(0, carrier.activeSenders.get());
+        verify(connectionPool, connection);
+    }
+
+    @Test
+    public void testDeliverMessageAsyncOnBorrowFailure() throws Exception {
+        DeliveryFuture queuedFuture = new DeliveryFuture();
+        carrier.sendQueue.add(new Publication(OUT_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE, queuedFuture));
+        expect(connectionPool.borrowObject()).andThrow(new Exception("broker down"));
+        expect(connectionPool.borrowObject()).andReturn(connection);
+        connection.publish(IN_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expectLastCall();
+        connectionPool.returnObject(connection);
+        replay(connectionPool, connection);
+
+        DeliveryFuture future = carrier.deliverMessageAsync(MESSAGE, IN_TOPIC, Delivery.AT_LEAST_ONCE);
+
+        assertTrue(queuedFuture.getFailure() instanceof CarrierException);
+        assertTrue(future.isSuccessful());
+        assertTrue(carrier.sendQueue.isEmpty());
+        assertEquals(0, carrier.activeSenders.get());
+        verify(connectionPool, connection);
+    }
+
+    @Test
+    public void testDeliverMessageAsyncOnLastingBorrowFailure() throws Exception {
+        DeliveryFuture queuedFuture = new DeliveryFuture();
+        carrier.sendQueue.add(new Publication(OUT_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE, queuedFuture));
+        expect(connectionPool.borrowObject()).andThrow(new Exception("broker down")).times(2);
+        replay(connectionPool, connection);
+
+        DeliveryFuture future = carrier.deliverMessageAsync(MESSAGE, IN_TOPIC, Delivery.AT_LEAST_ONCE);
+
+        assertTrue(queuedFuture.getFailure() instanceof CarrierException);
+        assertTrue(future.getFailure() instanceof CarrierException);
+        assertTrue(carrier.sendQueue.isEmpty());
+        assertEquals(0, carrier.activeSenders.get());
+        verify(connectionPool, connection);
+    }
+
+    @Test
+    public void testDeliverMessageAsyncOnPublishFailureWithSpool() throws Exception {
+        carrier.setSpool(new OutboundSpool(folder.getRoot(), 1024));
+        carrier.isRetryingSpool.set(true);
+        expect(connectionPool.borrowObject()).andReturn(connection);
+        connection.publish(IN_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expectLastCall().andThrow(new CarrierException("broken"));
+        connectionPool.invalidateObject(connection);
+        expectLastCall();
+        replay(connectionPool, connection);
+
+        DeliveryFuture future = carrier.deliverMessageAsync(MESSAGE, IN_TOPIC, Delivery.AT_LEAST_ONCE);
+
+        assertTrue(future.isDone());
+        assertFalse(future.isSuccessful());
+        assertEquals(1, carrier.spool.size());
+        verify(connectionPool, connection);
+    }
+
+    @Test
+    public void testDeliverMessageAsyncOnFullQueue() {
+        while (carrier.sendQueue.offer(new Publication(IN_TOPIC, MESSAGE))) {
+        }
+
+        carrier.activeSenders.set(ClientCarrierImpl.MAXIMAL_SENDERS);
+        DeliveryFuture future = carrier.deliverMessageAsync(MESSAGE, IN_TOPIC, Delivery.AT_LEAST_ONCE);
+
+        assertTrue(future.getFailure() instanceof CarrierException);
+    }
+
+    @Test
+    public void testRetrySpooledMessages() throws Exception {
+        carrier.setSpool(new OutboundSpool(folder.getRoot(), 1024));
+        carrier.spool.append(OUT_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expect(connectionPool.borrowObject()).andReturn(connection);
+        connection.publish(eq(OUT_TOPIC), aryEq(MESSAGE), eq(Delivery.AT_LEAST_ONCE));
+        expectLastCall();
+        connectionPool.returnObject(connection);
+        replay(connectionPool, connection);
+
+        carrier.retrySpooledMessages();
+
+        assertTrue(carrier.spool.isEmpty());
+        verify(connectionPool, connection);
+    }
+
+    @Test
+    public void testDeliverMessageOnBorrowFailureRetriesSpool() throws Exception {
+        carrier.setSpool(new OutboundSpool(folder.getRoot(), 1024));
+        expect(connectionPool.borrowObject()).andThrow(new Exception("broker down")).times(2);
         expect(connectionPool.borrowObject()).andReturn(connection);
+        connection.publish(eq(IN_TOPIC), aryEq(MESSAGE), eq(Delivery.AT_LEAST_ONCE));
+        expectLastCall();
+        connectionPool.returnObject(connection);
+        expectLastCall();
+        replay(connectionPool, connection);
+
+        carrier.deliverMessage(MESSAGE, IN_TOPIC);
+
+        assertTrue(carrier.spool.isEmpty());
+        assertFalse(carrier.isRetryingSpool.get());
+        verify(connectionPool, connection);
+    }
+
+    @Test
+    public void testRetrySpoolUntilDrainedAfterShutdown() throws Exception {
+        carrier.setSpool(new OutboundSpool(folder.getRoot(), 1024));
+        carrier.spool.append(OUT_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        carrier.isShutdown = true;
+        replay(connectionPool, connection);
+
+        carrier.retrySpoolUntilDrained();
+
+        assertEquals(1, carrier.spool.size());
+        verify(connectionPool, connection);
+    }
+
+    @Test
+    public void testRetrySpoolUntilDrainedOnClosedSpool() throws Exception {
+        carrier.setSpool(new OutboundSpool(folder.getRoot(), 1024));
+        carrier.spool.append(OUT_TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        carrier.spool.close();
+        replay(connectionPool, connection);
+
+        carrier.retrySpoolUntilDrained();
+
+        verify(connectionPool, connection);
+    }
+
+    @Test
+    public void testRetrySpooledMessagesWithoutSpool() {
+        replay(connectionPool, connection);
+
+        carrier.retrySpooledMessages();
+
+        verify(connectionPool, connection);
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testDeliverMessageOnFullQueue() {
+        while (carrier.sendQueue.offer(new Publication(IN_TOPIC, MESSAGE))) {
+        }
+
+        carrier.activeSenders.set(ClientCarrierImpl.MAXIMAL_SENDERS);
+        carrier.deliverMessage(MESSAGE, IN_TOPIC);
+    }
+
+    @Test
+    public void testDeliverMessageWhenAllSendersAreBusy() {
+        carrier.activeSenders.set(ClientCarrierImpl.MAXIMAL_SENDERS);
+        replay(connectionPool);
+
+        carrier.deliverMessage(MESSAGE, IN_TOPIC);
+
+        assertEquals(1, carrier.sendQueue.size());
+        verify(connectionPool);
+    }
+
+    @Test
+    public void testStartReceiving() throws Exception {
+        expect(connectionPool.createSubscriberConnection()).andReturn(connection);
         connection.subscribe(carrier);
         expectLastCall().andAnswer(new IAnswer<Object>() {
             @Override
@@ -96,7 +450,7 @@ public class ClientCarrierImplTest {
                 return null;
             }
         });
-        connectionPool.returnObject(connection);
+        connection.disconnect();
         expectLastCall();
         replay(connectionPool, connection);
 
@@ -108,6 +462,46 @@ public class ClientCarrierImplTest {
         verify(connectionPool, connection);
     }
 
+    @Test
+    public void testStartReceivingWithSubscriberTopic() throws Exception {
+        carrier.addSubscriberTopic(OUT_TOPIC);
+        expect(connectionPool.createSubscriberConnection()).andReturn(connection);
+        connection.addSubscriberTopic(OUT_TOPIC);
+        expectLastCall();
+        connection.subscribe(carrier);
+        expectLastCall();
+        connection.disconnect();
+        expectLastCall();
+        replay(connectionPool, connection);
+
+        carrier.startReceiving();
+
+        verify(connectionPool, connection);
+    }
+
+    @Test
+    public void testAddAndRemoveSubscriberTopicWhileReceiving() {
+        carrier.subscriberConnection = connection;
+        connection.addSubscriberTopic(OUT_TOPIC);
+        expectLastCall();
+        connection.removeSubscriberTopic(OUT_TOPIC);
+        expectLastCall();
+        replay(connection);
+
+        carrier.addSubscriberTopic(OUT_TOPIC);
+        carrier.addSubscriberTopic(OUT_TOPIC);
+        carrier.removeSubscriberTopic(OUT_TOPIC);
+        carrier.removeSubscriberTopic(OUT_TOPIC);
+
+        assertTrue(carrier.subscriberTopics.isEmpty());
+        verify(connection);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddSubscriberTopicOnNull() {
+        carrier.addSubscriberTopic(null);
+    }
+
     @Test(expected = IllegalStateException.class)
     public void testStopReceivingWhenNotReceiving() {
         carrier.stopReceiving();
@@ -137,6 +531,111 @@ public class ClientCarrierImplTest {
         verify(model);
     }
     
+    @Test
+    public void testReceiveByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.wrap(MESSAGE);
+        model.consumeMessage(buffer, USERNAME);
+        expectLastCall();
+        replay(model);
+
+        carrier.receive(buffer, IN_TOPIC);
+
+        verify(model);
+    }
+
+    @Test
+    public void testReceiveByteBufferWithFilters() {
+        carrier.setAdmissionControl(new AdmissionControl(MESSAGE.length, 1000, 10));
+        carrier.setDuplicateFilter(new DuplicateFilter());
+        model.consumeMessage(ByteBuffer.wrap(MESSAGE), USERNAME);
+        expectLastCall().once();
+        replay(model);
+
+        carrier.receive(ByteBuffer.wrap(MESSAGE), IN_TOPIC);
+        carrier.receive(ByteBuffer.wrap(MESSAGE.clone()), IN_TOPIC);
+        carrier.receive(ByteBuffer.allocate(MESSAGE.length + 1), IN_TOPIC);
+
+        verify(model);
+        assertEquals(1, carrier.duplicateFilter.getDuplicates());
+        assertEquals(1, carrier.admissionControl.getRejectedBySize());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testReceiveWithReceivePipeline() {
+        ReceivePipeline<ClientCarrierModel> pipeline = createMock(ReceivePipeline.class);
+        carrier.setReceivePipeline(pipeline);
+        pipeline.submit(MESSAGE, USERNAME);
+        expectLastCall();
+        replay(model, pipeline);
+
+        carrier.receive(MESSAGE, IN_TOPIC);
+
+        verify(model, pipeline);
+    }
+
+    @Test
+    public void testReceiveWithDuplicateFilterOnRejectedMessage() throws InterruptedException {
+        byte[] rejectedMessage = "rejected".getBytes();
+        ReceivePipeline<ClientCarrierModel> pipeline = new ReceivePipeline<>(new Executor(), model, 1, 1, OverflowPolicy.REJECT);
+        carrier.setReceivePipeline(pipeline);
+        carrier.setDuplicateFilter(new DuplicateFilter());
+        model.consumeMessage(aryEq(MESSAGE), eq(USERNAME));
+        expectLastCall();
+        model.consumeMessage(aryEq(rejectedMessage), eq(USERNAME));
+        expectLastCall();
+        replay(model);
+
+        carrier.receive(MESSAGE, IN_TOPIC);
+
+        try {
+            carrier.receive(rejectedMessage, IN_TOPIC);
+            fail("The full queue should have rejected the message.");
+        } catch (CarrierException ex) {
+        }
+
+        pipeline.start();
+
+        for (int i = 0; i < 100 && pipeline.getQueuedMessages() > 0; i++) {
+            Thread.sleep(10);
+        }
+
+        carrier.receive(rejectedMessage.clone(), IN_TOPIC);
+        pipeline.shutdown();
+
+        verify(model);
+    }
+
+    @Test
+    public void testReceiveWithDuplicateFilter() {
+        carrier.setDuplicateFilter(new DuplicateFilter());
+        model.consumeMessage(MESSAGE, USERNAME);
+        expectLastCall().once();
+        replay(model);
+
+        carrier.receive(MESSAGE, IN_TOPIC);
+        carrier.receive(MESSAGE.clone(), IN_TOPIC);
+
+        verify(model);
+        assertEquals(1, carrier.duplicateFilter.getDuplicates());
+    }
+
+    @Test
+    public void testReceiveWithAdmissionControl() {
+        carrier.setAdmissionControl(new AdmissionControl(1024, 0.001, 1));
+        model.consumeMessage(MESSAGE, USERNAME);
+        expectLastCall().once();
+        replay(model);
+
+        carrier.receive(MESSAGE, IN_TOPIC);
+        carrier.receive(MESSAGE, IN_TOPIC);
+        carrier.receive(new byte[1025], "in/other");
+
+        verify(model);
+        assertEquals(1, carrier.admissionControl.getRejectedByRate());
+        assertEquals(1, carrier.admissionControl.getRejectedBySize());
+    }
+
     @Test(expected = CarrierException.class)
     public void testReceiveOnWrongTopicPrefix() {
         carrier.receive(MESSAGE, "not really a topic");
@@ -155,4 +654,19 @@ public class ClientCarrierImplTest {
         verify(connectionPool);
     }
 
+    @Test
+    public void testShutdownClosesConnectionSelector() {
+        MqttConnectionSelector selector = createMock(MqttConnectionSelector.class);
+        carrier.setConnectionSelector(selector);
+        connectionPool.close();
+        expectLastCall();
+        selector.close();
+        expectLastCall();
+        replay(connectionPool, selector);
+
+        carrier.shutdown();
+
+        verify(connectionPool, selector);
+    }
+
 }
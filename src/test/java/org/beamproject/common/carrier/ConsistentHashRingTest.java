@@ -0,0 +1,178 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConsistentHashRingTest {
+
+    private final int NUMBER_OF_KEYS = 20000;
+    private final String[] NODES = {"broker0:1883", "broker1:1883", "broker2:1883", "broker3:1883"};
+    private ConsistentHashRing<String> ring;
+
+    @Before
+    public void setUp() {
+        ring = new ConsistentHashRing<>();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnZeroVirtualNodes() {
+        ring = new ConsistentHashRing<>(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddOnNull() {
+        ring.add(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetOnNull() {
+        ring.get(null);
+    }
+
+    @Test
+    public void testGetOnEmptyRing() {
+        assertNull(ring.get("username"));
+    }
+
+    @Test
+    public void testAdd() {
+        assertTrue(ring.add(NODES[0]));
+        assertFalse(ring.add(NODES[0]));
+
+        assertEquals(1, ring.size());
+        assertEquals(Arrays.asList(NODES[0]), ring.getNodes());
+        assertEquals(NODES[0], ring.get("username"));
+    }
+
+    @Test
+    public void testRemove() {
+        ring.add(NODES[0]);
+        ring.add(NODES[1]);
+
+        assertTrue(ring.remove(NODES[0]));
+        assertFalse(ring.remove(NODES[0]));
+
+        assertEquals(1, ring.size());
+        assertEquals(NODES[1], ring.get("username"));
+    }
+
+    @Test
+    public void testGetIsStable() {
+        addAllNodes();
+        ConsistentHashRing<String> other = new ConsistentHashRing<>();
+
+        for (int i = NODES.length - 1; i >= 0; i--) {
+            other.add(NODES[i]);
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(ring.get("user" + i), other.get("user" + i));
+        }
+    }
+
+    @Test
+    public void testGetDistributesEvenly() {
+        addAllNodes();
+        Map<String, Integer> counts = new HashMap<>();
+
+        for (int i = 0; i < NUMBER_OF_KEYS; i++) {
+            String node = ring.get("user" + i);
+            Integer count = counts.get(node);
+            counts.put(node, count == null ? 1 : count + 1);
+        }
+
+        int expected = NUMBER_OF_KEYS / NODES.length;
+
+        for (String node : NODES) {
+            int count = counts.get(node);
+            assertTrue(node + " has " + count + " keys.", Math.abs(count - expected) < expected / 4);
+        }
+    }
+
+    @Test
+    public void testAddMovesOnlyKeysToNewNode() {
+        for (int i = 0; i < NODES.length - 1; i++) {
+            ring.add(NODES[i]);
+        }
+
+        String[] before = lookUpAllKeys();
+        ring.add(NODES[NODES.length - 1]);
+        String[] after = lookUpAllKeys();
+        int moved = 0;
+
+        for (int i = 0; i < NUMBER_OF_KEYS; i++) {
+            if (!before[i].equals(after[i])) {
+                assertEquals(NODES[NODES.length - 1], after[i]);
+                moved++;
+            }
+        }
+
+        int expected = NUMBER_OF_KEYS / NODES.length;
+        assertTrue(moved + " keys moved.", Math.abs(moved - expected) < expected / 4);
+    }
+
+    @Test
+    public void testRemoveMovesOnlyKeysOfRemovedNode() {
+        addAllNodes();
+
+        String[] before = lookUpAllKeys();
+        ring.remove(NODES[0]);
+        String[] after = lookUpAllKeys();
+
+        for (int i = 0; i < NUMBER_OF_KEYS; i++) {
+            if (!before[i].equals(NODES[0])) {
+                assertEquals(before[i], after[i]);
+            } else {
+                assertFalse(NODES[0].equals(after[i]));
+            }
+        }
+    }
+
+    @Test
+    public void testHash() {
+        assertEquals(ConsistentHashRing.hash("username"), ConsistentHashRing.hash("username"));
+        assertFalse(ConsistentHashRing.hash("username") == ConsistentHashRing.hash("usernamf"));
+    }
+
+    private void addAllNodes() {
+        for (String node : NODES) {
+            ring.add(node);
+        }
+    }
+
+    private String[] lookUpAllKeys() {
+        String[] nodes = new String[NUMBER_OF_KEYS];
+
+        for (int i = 0; i < NUMBER_OF_KEYS; i++) {
+            nodes[i] = ring.get("user" + i);
+        }
+
+        return nodes;
+    }
+
+}
@@ -0,0 +1,162 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DeliveryFutureTest {
+
+    private DeliveryFuture future;
+    private AtomicInteger notifications;
+    private DeliveryFuture.Listener listener;
+
+    @Before
+    public void setUp() {
+        future = new DeliveryFuture();
+        notifications = new AtomicInteger();
+        listener = new DeliveryFuture.Listener() {
+            @Override
+            public void onComplete(DeliveryFuture completed) {
+                assertSame(future, completed);
+                notifications.incrementAndGet();
+            }
+        };
+    }
+
+    @Test
+    public void testInitialState() {
+        assertFalse(future.isDone());
+        assertFalse(future.isSuccessful());
+        assertFalse(future.isCancelled());
+        assertFalse(future.cancel(true));
+        assertNull(future.getFailure());
+        assertEquals(-1, future.getLatencyInNanoseconds());
+    }
+
+    @Test
+    public void testComplete() throws Exception {
+        assertTrue(future.complete());
+
+        assertTrue(future.isDone());
+        assertTrue(future.isSuccessful());
+        assertNull(future.get());
+        assertTrue(future.getLatencyInNanoseconds() >= 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFailOnNull() {
+        future.fail(null);
+    }
+
+    @Test
+    public void testFail() throws Exception {
+        CarrierException cause = new CarrierException("broken");
+
+        assertTrue(future.fail(cause));
+
+        assertTrue(future.isDone());
+        assertFalse(future.isSuccessful());
+        assertSame(cause, future.getFailure());
+
+        try {
+            future.get();
+            fail("The future should have failed.");
+        } catch (ExecutionException ex) {
+            assertSame(cause, ex.getCause());
+        }
+    }
+
+    @Test
+    public void testOnlyFirstCompletionCounts() {
+        assertTrue(future.complete());
+        assertFalse(future.fail(new CarrierException("late")));
+        assertFalse(future.complete());
+
+        assertTrue(future.isSuccessful());
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void testGetOnTimeout() throws Exception {
+        future.get(1, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testGetFromOtherThread() throws Exception {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                future.complete();
+            }
+        }).start();
+
+        assertNull(future.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddListenerOnNull() {
+        future.addListener(null);
+    }
+
+    @Test
+    public void testAddListenerBeforeCompletion() {
+        future.addListener(listener);
+        assertEquals(0, notifications.get());
+
+        future.complete();
+        future.complete();
+
+        assertEquals(1, notifications.get());
+    }
+
+    @Test
+    public void testAddListenerAfterCompletion() {
+        future.fail(new CarrierException("broken"));
+
+        future.addListener(listener);
+
+        assertEquals(1, notifications.get());
+    }
+
+    @Test
+    public void testFailingListenerDoesNotAffectOthers() {
+        future.addListener(new DeliveryFuture.Listener() {
+            @Override
+            public void onComplete(DeliveryFuture completed) {
+                throw new IllegalStateException("failing listener");
+            }
+        });
+        future.addListener(listener);
+
+        future.complete();
+
+        assertEquals(1, notifications.get());
+    }
+
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DuplicateFilterTest {
+
+    private final int CAPACITY = 100;
+    private final long WINDOW_IN_MILLISECONDS = 1000;
+    private final long WINDOW_IN_NANOSECONDS = TimeUnit.MILLISECONDS.toNanos(WINDOW_IN_MILLISECONDS);
+    private final byte[] MESSAGE = "myMessage".getBytes();
+    private DuplicateFilter filter;
+
+    @Before
+    public void setUp() {
+        filter = new DuplicateFilter(CAPACITY, WINDOW_IN_MILLISECONDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnZeroCapacity() {
+        filter = new DuplicateFilter(0, WINDOW_IN_MILLISECONDS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnZeroWindow() {
+        filter = new DuplicateFilter(CAPACITY, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testIsDuplicateOnNull() {
+        filter.isDuplicate((byte[]) null);
+    }
+
+    @Test
+    public void testIsDuplicate() {
+        assertFalse(filter.isDuplicate(MESSAGE));
+        assertTrue(filter.isDuplicate(MESSAGE.clone()));
+        assertTrue(filter.isDuplicate(MESSAGE));
+        assertEquals(2, filter.getDuplicates());
+    }
+
+    @Test
+    public void testForget() {
+        assertFalse(filter.isDuplicate(MESSAGE));
+
+        filter.forget(MESSAGE.clone());
+
+        assertFalse(filter.isDuplicate(MESSAGE));
+        assertTrue(filter.isDuplicate(MESSAGE));
+    }
+
+    @Test
+    public void testForgetByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.wrap(MESSAGE);
+        assertFalse(filter.isDuplicate(buffer));
+
+        filter.forget(buffer);
+
+        assertEquals(0, buffer.position());
+        assertFalse(filter.isDuplicate(MESSAGE));
+    }
+
+    @Test
+    public void testForgetOnUnknownMessage() {
+        long now = System.nanoTime();
+        assertFalse(filter.isDuplicate(42, now));
+
+        filter.forget(43);
+
+        assertTrue(filter.isDuplicate(42, now));
+    }
+
+    @Test
+    public void testForgetKeepsOtherMessages() {
+        long now = System.nanoTime();
+
+        for (int i = 0; i < CAPACITY; i++) {
+            assertFalse(filter.isDuplicate(i, now));
+        }
+
+        filter.forget(7);
+
+        for (int i = 0; i < CAPACITY; i++) {
+            assertEquals(i != 7, filter.isDuplicate(i, now));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testForgetOnNull() {
+        filter.forget((byte[]) null);
+    }
+
+    @Test
+    public void testIsDuplicateOnDistinctMessages() {
+        for (int i = 0; i < 10 * CAPACITY; i++) {
+            assertFalse(filter.isDuplicate(Integer.toString(i).getBytes()));
+        }
+
+        assertEquals(0, filter.getDuplicates());
+    }
+
+    @Test
+    public void testIsDuplicateAfterWindow() {
+        long now = System.nanoTime();
+
+        assertFalse(filter.isDuplicate(42, now));
+        assertTrue(filter.isDuplicate(42, now + WINDOW_IN_NANOSECONDS / 4));
+        assertTrue(filter.isDuplicate(42, now + WINDOW_IN_NANOSECONDS - 1));
+        assertFalse(filter.isDuplicate(42, now + 2 * WINDOW_IN_NANOSECONDS));
+    }
+
+    @Test
+    public void testIsDuplicateAfterRotation() {
+        long now = System.nanoTime();
+        assertFalse(filter.isDuplicate(42, now));
+
+        for (int i = 0; i < CAPACITY / 2 + 1; i++) {
+            assertFalse(filter.isDuplicate(1000 + i, now));
+        }
+
+        assertTrue(filter.isDuplicate(42, now));
+    }
+
+    @Test
+    public void testIsDuplicateAfterCapacity() {
+        long now = System.nanoTime();
+        assertFalse(filter.isDuplicate(42, now));
+
+        for (int i = 0; i < 2 * CAPACITY; i++) {
+            filter.isDuplicate(1000 + i, now);
+        }
+
+        assertFalse(filter.isDuplicate(42, now));
+    }
+
+    @Test
+    public void testIsInRingOnCollidingHashes() {
+        long now = System.nanoTime();
+        int indexSize = 2 * Integer.highestOneBit(2 * CAPACITY - 1);
+
+        for (int i = 0; i < 2 * CAPACITY; i++) {
+            filter.isDuplicate(7 + (long) i * indexSize, now);
+        }
+
+        for (int i = 0; i < CAPACITY; i++) {
+            assertFalse(filter.isInRing(7 + (long) i * indexSize, now));
+            assertTrue(filter.isInRing(7 + (long) (CAPACITY + i) * indexSize, now));
+        }
+    }
+
+    @Test
+    public void testIsInRingAfterEvictingOlderEntryOfSameHash() {
+        long now = System.nanoTime();
+        filter.isDuplicate(42, now);
+        assertFalse(filter.isDuplicate(42, now + WINDOW_IN_NANOSECONDS));
+
+        for (int i = 0; i < CAPACITY - 1; i++) {
+            filter.isDuplicate(1000 + i, now + WINDOW_IN_NANOSECONDS);
+        }
+
+        assertTrue(filter.isInRing(42, now + WINDOW_IN_NANOSECONDS));
+        filter.isDuplicate(5000, now + WINDOW_IN_NANOSECONDS);
+        assertFalse(filter.isInRing(42, now + WINDOW_IN_NANOSECONDS));
+    }
+
+    @Test
+    public void testIsDuplicateOnZeroHash() {
+        long now = System.nanoTime();
+
+        assertFalse(filter.isDuplicate(0, now));
+        assertTrue(filter.isDuplicate(0, now));
+    }
+
+    @Test
+    public void testHash() {
+        assertEquals(DuplicateFilter.hash(MESSAGE), DuplicateFilter.hash(MESSAGE.clone()));
+        assertNotEquals(DuplicateFilter.hash(MESSAGE), DuplicateFilter.hash("myMessagf".getBytes()));
+        assertNotEquals(DuplicateFilter.hash(new byte[0]), DuplicateFilter.hash(new byte[1]));
+    }
+
+    @Test
+    public void testHashOfByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.allocate(MESSAGE.length + 2);
+        buffer.put((byte) 1).put(MESSAGE).flip();
+        buffer.position(1);
+
+        assertEquals(DuplicateFilter.hash(MESSAGE), DuplicateFilter.hash(buffer));
+        assertEquals(1, buffer.position());
+    }
+
+}
@@ -0,0 +1,545 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A minimal MQTT 3.1 broker, listening on the loopback interface, to test and
+ * benchmark the MQTT connections without any external broker.
+ * <p>
+ * Supported are CONNECT, SUBSCRIBE and UNSUBSCRIBE (with {@code +} as single
+ * level wildcard), PUBLISH with QoS 0 and 1 (QoS 2 is downgraded), PUBACK,
+ * PINGREQ and DISCONNECT. Sessions, retained messages and wills are not
+ * supported, but the client id and clean session flag of every CONNECT are
+ * recorded.
+ * <p>
+ * Faults can be injected: all connections can be killed, acknowledgements
+ * delayed, and incoming publications dropped without an acknowledgement.
+ */
+public class EmbeddedMqttBroker {
+
+    private final static int CONNECT = 1;
+    private final static int CONNACK = 2;
+    private final static int PUBLISH = 3;
+    private final static int PUBACK = 4;
+    private final static int SUBSCRIBE = 8;
+    private final static int SUBACK = 9;
+    private final static int UNSUBSCRIBE = 10;
+    private final static int UNSUBACK = 11;
+    private final static int PINGREQ = 12;
+    private final static int PINGRESP = 13;
+    private final static int DISCONNECT = 14;
+    private final static String WILDCARD = "+";
+    private final ServerSocket serverSocket;
+    private final Thread acceptor;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final Random random = new Random();
+    private final Set<Session> sessions = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>());
+    private final List<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final List<String> clientIds = new CopyOnWriteArrayList<>();
+    private final Set<String> cleanSessionClientIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final AtomicLong receivedMessages = new AtomicLong(0);
+    private final AtomicLong droppedMessages = new AtomicLong(0);
+    private final AtomicLong deliveredMessages = new AtomicLong(0);
+    private volatile boolean isRunning = true;
+    private volatile long ackDelayInMilliseconds = 0;
+    private volatile double dropProbability = 0;
+
+    /**
+     * Creates and starts a new broker on a free port.
+     *
+     * @throws IOException If the server socket could not be opened.
+     */
+    public EmbeddedMqttBroker() throws IOException {
+        serverSocket = new ServerSocket(0, 128, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, EmbeddedMqttBroker.class.getSimpleName() + "-acceptor");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public String getHost() {
+        return serverSocket.getInetAddress().getHostAddress();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return The number of open client connections.
+     */
+    public int getConnections() {
+        return sessions.size();
+    }
+
+    /**
+     * @return The client ids of all CONNECTs so far, in the order they
+     * arrived.
+     */
+    public List<String> getClientIds() {
+        return Collections.unmodifiableList(clientIds);
+    }
+
+    /**
+     * @param clientId The client id of a CONNECT.
+     * @return true, if the last CONNECT with this client id requested a clean
+     * session.
+     */
+    public boolean isCleanSession(String clientId) {
+        return cleanSessionClientIds.contains(clientId);
+    }
+
+    public long getReceivedMessages() {
+        return receivedMessages.get();
+    }
+
+    public long getDroppedMessages() {
+        return droppedMessages.get();
+    }
+
+    public long getDeliveredMessages() {
+        return deliveredMessages.get();
+    }
+
+    /**
+     * Delays every PUBACK, sent to a publishing client.
+     *
+     * @param ackDelayInMilliseconds The delay, 0 to acknowledge immediately.
+     */
+    public void setAckDelayInMilliseconds(long ackDelayInMilliseconds) {
+        this.ackDelayInMilliseconds = ackDelayInMilliseconds;
+    }
+
+    /**
+     * Drops incoming publications with the given probability. Dropped
+     * publications are neither routed nor acknowledged.
+     *
+     * @param dropProbability The probability between 0 and 1.
+     */
+    public void setDropProbability(double dropProbability) {
+        this.dropProbability = dropProbability;
+    }
+
+    /**
+     * Closes all client connections abruptly, as if the network failed. The
+     * broker keeps accepting new connections.
+     */
+    public void killConnections() {
+        for (Session session : sessions) {
+            session.close();
+        }
+    }
+
+    /**
+     * Closes all connections and stops accepting new ones.
+     */
+    public void shutdown() {
+        isRunning = false;
+
+        try {
+            serverSocket.close();
+        } catch (IOException ex) {
+            // Closing anyway.
+        }
+
+        killConnections();
+        scheduler.shutdownNow();
+    }
+
+    private void acceptConnections() {
+        while (isRunning) {
+            try {
+                Socket socket = serverSocket.accept();
+                socket.setTcpNoDelay(true);
+                Session session = new Session(socket);
+                sessions.add(session);
+                session.start();
+            } catch (IOException ex) {
+                // The server socket was closed.
+            }
+        }
+    }
+
+    private void route(String topic, byte[] payload, int qos) {
+        for (Subscription subscription : subscriptions) {
+            if (subscription.matches(topic)) {
+                subscription.session.sendPublish(topic, payload, Math.min(qos, subscription.qos));
+                deliveredMessages.incrementAndGet();
+            }
+        }
+    }
+
+    static boolean matches(String filter, String topic) {
+        String[] filterLevels = filter.split("/", -1);
+        String[] topicLevels = topic.split("/", -1);
+
+        if (filterLevels.length != topicLevels.length) {
+            return false;
+        }
+
+        for (int i = 0; i < filterLevels.length; i++) {
+            if (!filterLevels[i].equals(WILDCARD) && !filterLevels[i].equals(topicLevels[i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * A topic filter of a single client.
+     */
+    private static class Subscription {
+
+        final Session session;
+        final String filter;
+        final int qos;
+        final boolean isExact;
+
+        Subscription(Session session, String filter, int qos) {
+            this.session = session;
+            this.filter = filter;
+            this.qos = qos;
+            this.isExact = !filter.contains(WILDCARD);
+        }
+
+        boolean matches(String topic) {
+            return isExact ? filter.equals(topic) : EmbeddedMqttBroker.matches(filter, topic);
+        }
+    }
+
+    /**
+     * A single client connection with a reading and a writing thread. Packets
+     * are written in batches, so many small packets cause only few flushes.
+     */
+    private class Session {
+
+        final Socket socket;
+        final DataInputStream in;
+        final OutputStream out;
+        final LinkedBlockingQueue<byte[]> outbox = new LinkedBlockingQueue<>();
+        final AtomicInteger nextMessageId = new AtomicInteger(0);
+        final Thread reader;
+        final Thread writer;
+        volatile boolean isOpen = true;
+
+        Session(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 65536));
+            this.out = new BufferedOutputStream(socket.getOutputStream(), 65536);
+
+            reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    read();
+                }
+            }, EmbeddedMqttBroker.class.getSimpleName() + "-reader");
+            writer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    write();
+                }
+            }, EmbeddedMqttBroker.class.getSimpleName() + "-writer");
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+        }
+
+        void start() {
+            reader.start();
+            writer.start();
+        }
+
+        void close() {
+            if (!isOpen) {
+                return;
+            }
+
+            isOpen = false;
+            sessions.remove(this);
+
+            for (Subscription subscription : subscriptions) {
+                if (subscription.session == this) {
+                    subscriptions.remove(subscription);
+                }
+            }
+
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // Closing anyway.
+            }
+
+            writer.interrupt();
+        }
+
+        private void read() {
+            try {
+                while (isOpen) {
+                    int header = in.read();
+
+                    if (header < 0) {
+                        break;
+                    }
+
+                    byte[] body = new byte[readRemainingLength()];
+                    in.readFully(body);
+                    handle(header, body);
+                }
+            } catch (IOException ex) {
+                // The connection was closed.
+            } finally {
+                close();
+            }
+        }
+
+        private void write() {
+            try {
+                while (isOpen) {
+                    byte[] packet = outbox.take();
+
+                    do {
+                        out.write(packet);
+                    } while ((packet = outbox.poll()) != null);
+
+                    out.flush();
+                }
+            } catch (InterruptedException | IOException ex) {
+                close();
+            }
+        }
+
+        private int readRemainingLength() throws IOException {
+            int length = 0;
+            int multiplier = 1;
+            int digit;
+
+            do {
+                digit = in.read();
+
+                if (digit < 0) {
+                    throw new EOFException();
+                }
+
+                length += (digit & 0x7F) * multiplier;
+                multiplier *= 128;
+            } while ((digit & 0x80) != 0);
+
+            return length;
+        }
+
+        private void handle(int header, byte[] body) {
+            switch (header >> 4) {
+                case CONNECT:
+                    handleConnect(body);
+                    send(packet(CONNACK << 4, new byte[]{0, 0}));
+                    break;
+                case PUBLISH:
+                    handlePublish(header, body);
+                    break;
+                case SUBSCRIBE:
+                    handleSubscribe(body);
+                    break;
+                case UNSUBSCRIBE:
+                    handleUnsubscribe(body);
+                    break;
+                case PINGREQ:
+                    send(packet(PINGRESP << 4, new byte[0]));
+                    break;
+                case DISCONNECT:
+                    close();
+                    break;
+                default:
+                    // PUBACKs of subscribers and unsupported packets.
+                    break;
+            }
+        }
+
+        private void handleConnect(byte[] body) {
+            int offset = 2 + readShort(body, 0) + 1;
+            boolean isCleanSession = (body[offset] & 0x02) != 0;
+            offset += 3;
+            String clientId = new String(body, offset + 2, readShort(body, offset), StandardCharsets.UTF_8);
+
+            if (isCleanSession) {
+                cleanSessionClientIds.add(clientId);
+            } else {
+                cleanSessionClientIds.remove(clientId);
+            }
+
+            clientIds.add(clientId);
+        }
+
+        private void handlePublish(int header, byte[] body) {
+            int qos = (header >> 1) & 0x03;
+            int topicLength = readShort(body, 0);
+            String topic = new String(body, 2, topicLength, StandardCharsets.UTF_8);
+            int offset = 2 + topicLength;
+            int messageId = 0;
+
+            if (qos > 0) {
+                messageId = readShort(body, offset);
+                offset += 2;
+            }
+
+            receivedMessages.incrementAndGet();
+
+            if (dropProbability > 0 && random.nextDouble() < dropProbability) {
+                droppedMessages.incrementAndGet();
+                return;
+            }
+
+            byte[] payload = new byte[body.length - offset];
+            System.arraycopy(body, offset, payload, 0, payload.length);
+            route(topic, payload, Math.min(qos, 1));
+
+            if (qos > 0) {
+                acknowledge(messageId);
+            }
+        }
+
+        private void acknowledge(int messageId) {
+            final byte[] puback = packet(PUBACK << 4, shortToBytes(messageId));
+            long delay = ackDelayInMilliseconds;
+
+            if (delay == 0) {
+                send(puback);
+                return;
+            }
+
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    send(puback);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+
+        private void handleSubscribe(byte[] body) {
+            ByteArrayOutputStream suback = new ByteArrayOutputStream();
+            suback.write(body[0]);
+            suback.write(body[1]);
+            int offset = 2;
+
+            while (offset < body.length) {
+                int filterLength = readShort(body, offset);
+                String filter = new String(body, offset + 2, filterLength, StandardCharsets.UTF_8);
+                int qos = Math.min(body[offset + 2 + filterLength] & 0x03, 1);
+                offset += 3 + filterLength;
+
+                subscriptions.add(new Subscription(this, filter, qos));
+                suback.write(qos);
+            }
+
+            send(packet(SUBACK << 4, suback.toByteArray()));
+        }
+
+        private void handleUnsubscribe(byte[] body) {
+            int offset = 2;
+
+            while (offset < body.length) {
+                int filterLength = readShort(body, offset);
+                String filter = new String(body, offset + 2, filterLength, StandardCharsets.UTF_8);
+                offset += 2 + filterLength;
+
+                for (Subscription subscription : subscriptions) {
+                    if (subscription.session == this && subscription.filter.equals(filter)) {
+                        subscriptions.remove(subscription);
+                    }
+                }
+            }
+
+            send(packet(UNSUBACK << 4, new byte[]{body[0], body[1]}));
+        }
+
+        void sendPublish(String topic, byte[] payload, int qos) {
+            byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+            ByteArrayOutputStream body = new ByteArrayOutputStream(payload.length + topicBytes.length + 4);
+            body.write(topicBytes.length >> 8);
+            body.write(topicBytes.length);
+            body.write(topicBytes, 0, topicBytes.length);
+
+            if (qos > 0) {
+                int messageId = nextMessageId.getAndIncrement() % 0xFFFF + 1;
+                body.write(messageId >> 8);
+                body.write(messageId);
+            }
+
+            body.write(payload, 0, payload.length);
+            send(packet((PUBLISH << 4) | (qos << 1), body.toByteArray()));
+        }
+
+        void send(byte[] packet) {
+            if (isOpen) {
+                outbox.add(packet);
+            }
+        }
+    }
+
+    private static int readShort(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+    }
+
+    private static byte[] shortToBytes(int value) {
+        return new byte[]{(byte) (value >> 8), (byte) value};
+    }
+
+    private static byte[] packet(int header, byte[] body) {
+        ByteArrayOutputStream packet = new ByteArrayOutputStream(body.length + 5);
+        packet.write(header);
+        int length = body.length;
+
+        do {
+            int digit = length % 128;
+            length /= 128;
+            packet.write(length > 0 ? digit | 0x80 : digit);
+        } while (length > 0);
+
+        packet.write(body, 0, body.length);
+        return packet.toByteArray();
+    }
+
+}
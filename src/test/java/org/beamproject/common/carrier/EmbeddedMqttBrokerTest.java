@@ -0,0 +1,241 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.fusesource.mqtt.client.Callback;
+import org.fusesource.mqtt.client.MQTT;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EmbeddedMqttBrokerTest {
+
+    private final String USERNAME = "username";
+    private final String IN_TOPIC = "in/" + USERNAME;
+    private final byte[] MESSAGE = "myMessage".getBytes();
+    private EmbeddedMqttBroker broker;
+    private AsyncMqttConnection subscriber;
+    private MqttConnection publisher;
+    private CarrierFake carrier;
+
+    @Before
+    public void setUp() throws Exception {
+        broker = new EmbeddedMqttBroker();
+        carrier = new CarrierFake();
+        publisher = new MqttConnection(new MQTT(), broker.getHost(), broker.getPort(), USERNAME, IN_TOPIC, "publisher");
+        publisher.connect();
+    }
+
+    @After
+    public void tearDown() {
+        publisher.disconnect();
+
+        if (subscriber != null) {
+            subscriber.disconnect();
+        }
+
+        broker.shutdown();
+    }
+
+    @Test
+    public void testMatches() {
+        assertTrue(EmbeddedMqttBroker.matches("in/+", "in/username"));
+        assertTrue(EmbeddedMqttBroker.matches("+/username", "in/username"));
+        assertTrue(EmbeddedMqttBroker.matches("in/username", "in/username"));
+        assertFalse(EmbeddedMqttBroker.matches("in/+", "out/username"));
+        assertFalse(EmbeddedMqttBroker.matches("in/+", "in/user/name"));
+        assertFalse(EmbeddedMqttBroker.matches("in/+", "in"));
+    }
+
+    @Test
+    public void testPublishAndSubscribe() throws Exception {
+        subscribe(IN_TOPIC);
+
+        publisher.publish(IN_TOPIC, MESSAGE);
+
+        CarrierFake.Received received = carrier.take();
+        assertArrayEquals(MESSAGE, received.message);
+        assertEquals(IN_TOPIC, received.topic);
+        assertEquals(1, broker.getReceivedMessages());
+    }
+
+    @Test
+    public void testPublishOnWildcardSubscription() throws Exception {
+        subscribe(ServerCarrierImpl.SUBSCRIBER_TOPIC);
+
+        publisher.publish(IN_TOPIC, MESSAGE);
+        publisher.publish("out/" + USERNAME, MESSAGE);
+
+        assertEquals(IN_TOPIC, carrier.take().topic);
+        assertNull(carrier.poll(100));
+    }
+
+    @Test
+    public void testPublishKeepsOrder() throws Exception {
+        subscribe(IN_TOPIC);
+
+        for (int i = 0; i < 1000; i++) {
+            publisher.publish(IN_TOPIC, new byte[]{(byte) i});
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            assertEquals((byte) i, carrier.take().message[0]);
+        }
+    }
+
+    @Test
+    public void testUnsubscribedTopicIsNotDelivered() throws Exception {
+        subscribe(IN_TOPIC);
+        subscriber.disconnect();
+        subscriber = null;
+
+        publisher.publish(IN_TOPIC, MESSAGE);
+
+        assertNull(carrier.poll(100));
+        assertEquals(0, broker.getDeliveredMessages());
+    }
+
+    @Test
+    public void testDropProbability() throws Exception {
+        subscribe(IN_TOPIC);
+        broker.setDropProbability(1);
+        AckLatch ack = new AckLatch();
+
+        subscriber.publish(IN_TOPIC, MESSAGE, ack);
+
+        assertNull(carrier.poll(200));
+        assertFalse(ack.isAcknowledged(0));
+        assertEquals(1, broker.getDroppedMessages());
+    }
+
+    @Test
+    public void testAckDelay() throws Exception {
+        subscribe(IN_TOPIC);
+        broker.setAckDelayInMilliseconds(100);
+        AckLatch ack = new AckLatch();
+        long start = System.nanoTime();
+
+        subscriber.publish(IN_TOPIC, MESSAGE, ack);
+
+        assertTrue(ack.isAcknowledged(CarrierFake.TIMEOUT_IN_MILLISECONDS));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void testKillConnections() throws Exception {
+        assertEquals(1, broker.getConnections());
+
+        broker.killConnections();
+
+        assertEquals(0, broker.getConnections());
+    }
+
+    @Test
+    public void testReconnectAfterKillingConnections() throws Exception {
+        subscribe(IN_TOPIC);
+        broker.killConnections();
+        waitForConnections(1);
+
+        AckLatch ack = new AckLatch();
+        subscriber.publish(IN_TOPIC, MESSAGE, ack);
+
+        assertTrue(ack.isAcknowledged(CarrierFake.TIMEOUT_IN_MILLISECONDS));
+        assertArrayEquals(MESSAGE, carrier.take().message);
+    }
+
+    @Test
+    public void testBlockingSubscriberResubscribesAfterKillingConnections() throws Exception {
+        final MqttConnection blockingSubscriber = new MqttConnection(new MQTT(), broker.getHost(), broker.getPort(), USERNAME, IN_TOPIC, "blocking");
+        blockingSubscriber.reconnectPolicy = new ReconnectPolicy(10, 10, 1.0, 3);
+        blockingSubscriber.connect();
+        Thread receiver = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                blockingSubscriber.subscribe(carrier);
+            }
+        });
+        receiver.setDaemon(true);
+        receiver.start();
+        publishUntilReceived();
+
+        broker.killConnections();
+        waitForConnections(1);
+        publisher = new MqttConnection(new MQTT(), broker.getHost(), broker.getPort(), USERNAME, IN_TOPIC, "publisher");
+        publisher.connect();
+
+        publishUntilReceived();
+        blockingSubscriber.doReceive(false);
+    }
+
+    private void publishUntilReceived() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CarrierFake.TIMEOUT_IN_MILLISECONDS;
+
+        do {
+            publisher.publish(IN_TOPIC, MESSAGE);
+
+            if (carrier.poll(50) != null) {
+                return;
+            }
+        } while (System.currentTimeMillis() < deadline);
+
+        fail("No message received in time.");
+    }
+
+    private void subscribe(String topic) {
+        subscriber = new AsyncMqttConnection(new MQTT(), broker.getHost(), broker.getPort(), USERNAME, topic, "subscriber");
+        subscriber.reconnectPolicy = new ReconnectPolicy(10, 10, 1.0, 3);
+        subscriber.connect();
+        subscriber.subscribe(carrier);
+    }
+
+    private void waitForConnections(int connections) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CarrierFake.TIMEOUT_IN_MILLISECONDS;
+
+        while (broker.getConnections() < connections && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+    }
+
+    private static class AckLatch implements Callback<Void> {
+
+        final CountDownLatch latch = new CountDownLatch(1);
+
+        boolean isAcknowledged(long timeoutInMilliseconds) throws InterruptedException {
+            return latch.await(timeoutInMilliseconds, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void onSuccess(Void value) {
+            latch.countDown();
+        }
+
+        @Override
+        public void onFailure(Throwable value) {
+        }
+    }
+
+}
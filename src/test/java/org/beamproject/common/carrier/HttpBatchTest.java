@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class HttpBatchTest {
+
+    private final byte[] FIRST = "first".getBytes();
+    private final byte[] SECOND = new byte[0];
+    private final byte[] THIRD = "third message".getBytes();
+
+    @Test
+    public void testEncodeAndDecode() throws IOException {
+        byte[] body = HttpBatch.encode(Arrays.asList(FIRST, SECOND, THIRD));
+        assertEquals(3 * 4 + FIRST.length + SECOND.length + THIRD.length, body.length);
+
+        List<byte[]> messages = HttpBatch.decode(new ByteArrayInputStream(body));
+
+        assertEquals(3, messages.size());
+        assertArrayEquals(FIRST, messages.get(0));
+        assertArrayEquals(SECOND, messages.get(1));
+        assertArrayEquals(THIRD, messages.get(2));
+    }
+
+    @Test
+    public void testDecodeOnEmptyBody() throws IOException {
+        byte[] body = HttpBatch.encode(Collections.<byte[]>emptyList());
+
+        assertEquals(0, body.length);
+        assertTrue(HttpBatch.decode(new ByteArrayInputStream(body)).isEmpty());
+    }
+
+    @Test
+    public void testReaderSkipsMessages() throws IOException {
+        byte[] body = HttpBatch.encode(Arrays.asList(FIRST, SECOND, THIRD));
+        HttpBatch.Reader reader = new HttpBatch.Reader(new ByteArrayInputStream(body), THIRD.length);
+
+        assertEquals(FIRST.length, reader.nextLength());
+        reader.skipMessage();
+        assertEquals(SECOND.length, reader.nextLength());
+        assertEquals(THIRD.length, reader.nextLength());
+        assertArrayEquals(THIRD, reader.readMessage());
+        assertEquals(-1, reader.nextLength());
+    }
+
+    @Test(expected = IOException.class)
+    public void testReaderOnTooLongMessage() throws IOException {
+        byte[] body = HttpBatch.encode(Arrays.asList(FIRST, THIRD));
+        HttpBatch.Reader reader = new HttpBatch.Reader(new ByteArrayInputStream(body), FIRST.length);
+
+        reader.nextLength();
+        reader.nextLength();
+    }
+
+    @Test(expected = IOException.class)
+    public void testReaderOnTruncatedSkippedMessage() throws IOException {
+        byte[] body = HttpBatch.encode(Arrays.asList(THIRD));
+        HttpBatch.Reader reader = new HttpBatch.Reader(
+                new ByteArrayInputStream(Arrays.copyOf(body, body.length - 1)), THIRD.length);
+
+        reader.nextLength();
+        reader.skipMessage();
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeOnTruncatedMessage() throws IOException {
+        byte[] body = HttpBatch.encode(Arrays.asList(FIRST));
+
+        HttpBatch.decode(new ByteArrayInputStream(Arrays.copyOf(body, body.length - 1)));
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeOnTruncatedLength() throws IOException {
+        HttpBatch.decode(new ByteArrayInputStream(new byte[]{0, 0}));
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeOnNegativeLength() throws IOException {
+        HttpBatch.decode(new ByteArrayInputStream(new byte[]{(byte) 0xFF, 0, 0, 0}));
+    }
+
+    @Test(expected = IOException.class)
+    public void testDecodeOnTooLargeLength() throws IOException {
+        HttpBatch.decode(new ByteArrayInputStream(new byte[]{0x7F, 0, 0, 0}));
+    }
+
+}
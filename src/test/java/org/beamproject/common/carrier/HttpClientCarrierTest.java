@@ -0,0 +1,261 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import com.sun.net.httpserver.BasicAuthenticator;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.beamproject.common.ExecutorFake;
+import org.beamproject.common.message.Message;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpClientCarrierTest {
+
+    private final String USERNAME = "username";
+    private final String IN_TOPIC = "in/" + USERNAME;
+    private final String OUT_TOPIC = "out/" + USERNAME;
+    private final byte[] MESSAGE = "myMessage".getBytes();
+    private final byte[] OTHER_MESSAGE = "otherMessage".getBytes();
+    private ServerModelFake serverModel;
+    private ClientModelFake clientModel;
+    private HttpServerCarrier server;
+    private HttpClientCarrier carrier;
+    private URL url;
+
+    @Before
+    public void setUp() throws Exception {
+        serverModel = new ServerModelFake();
+        clientModel = new ClientModelFake();
+        server = new HttpServerCarrier(serverModel, new InetSocketAddress("127.0.0.1", 0), 2);
+        server.setAnonymousPollsAllowed(true);
+        server.startReceiving();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/");
+        carrier = new HttpClientCarrier(clientModel, new ExecutorFake(), url, OUT_TOPIC);
+    }
+
+    @After
+    public void tearDown() {
+        carrier.shutdown();
+        server.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnNulls() {
+        carrier = new HttpClientCarrier(null, null, null, null);
+    }
+
+    @Test
+    public void testDeliverMessage() throws Exception {
+        carrier.deliverMessage(MESSAGE, IN_TOPIC);
+
+        assertReceived(serverModel, MESSAGE);
+        assertFalse(carrier.isSending.get());
+    }
+
+    @Test
+    public void testDeliverMessageInBatch() throws Exception {
+        carrier.isSending.set(true);
+        carrier.deliverMessage(MESSAGE, IN_TOPIC);
+        DeliveryFuture future = carrier.deliverMessageAsync(OTHER_MESSAGE, IN_TOPIC, Delivery.AT_MOST_ONCE);
+        carrier.isSending.set(false);
+
+        carrier.deliverMessage(MESSAGE, IN_TOPIC);
+
+        assertReceived(serverModel, MESSAGE);
+        assertReceived(serverModel, OTHER_MESSAGE);
+        assertReceived(serverModel, MESSAGE);
+        assertTrue(future.isSuccessful());
+    }
+
+    @Test
+    public void testDeliverMessageAsyncOnUnreachableServer() throws Exception {
+        int closedPort;
+
+        try (ServerSocket socket = new ServerSocket(0)) {
+            closedPort = socket.getLocalPort();
+        }
+
+        carrier = new HttpClientCarrier(clientModel, new ExecutorFake(), new URL("http://127.0.0.1:" + closedPort), OUT_TOPIC);
+        DeliveryFuture future = carrier.deliverMessageAsync(MESSAGE, IN_TOPIC, Delivery.AT_LEAST_ONCE);
+
+        assertTrue(future.isDone());
+        assertNotNull(future.getFailure());
+    }
+
+    @Test
+    public void testDeliverMessageAsyncOnRejection() {
+        DeliveryFuture future = carrier.deliverMessageAsync(MESSAGE, "in/a/b", Delivery.AT_LEAST_ONCE);
+
+        assertTrue(future.getFailure() instanceof CarrierException);
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testDeliverMessageOnFullQueue() {
+        carrier.isSending.set(true);
+
+        while (carrier.sendQueue.offer(new Publication(IN_TOPIC, MESSAGE))) {
+        }
+
+        carrier.deliverMessage(MESSAGE, IN_TOPIC);
+    }
+
+    @Test
+    public void testReceiving() throws Exception {
+        carrier.startReceiving();
+
+        server.deliverMessage(MESSAGE, USERNAME);
+        server.deliverMessage(OTHER_MESSAGE, USERNAME);
+
+        assertReceived(clientModel, MESSAGE);
+        assertReceived(clientModel, OTHER_MESSAGE);
+    }
+
+    @Test
+    public void testPollOnTimeout() throws Exception {
+        carrier.pollTimeoutInMilliseconds = 10;
+
+        assertTrue(carrier.poll().isEmpty());
+        assertNull(carrier.currentPoll);
+    }
+
+    @Test
+    public void testPollAcknowledgesPreviousBatch() throws Exception {
+        carrier.pollTimeoutInMilliseconds = 10;
+        DeliveryFuture future = server.deliverMessageAsync(MESSAGE, USERNAME, Delivery.AT_LEAST_ONCE);
+
+        assertEquals(1, carrier.poll().size());
+        assertFalse(future.isDone());
+        assertTrue(carrier.poll().isEmpty());
+        assertTrue(future.isSuccessful());
+        assertNull(carrier.acknowledgement);
+    }
+
+    @Test
+    public void testPollReceivesUnacknowledgedBatchAgain() throws Exception {
+        carrier.pollTimeoutInMilliseconds = 10;
+        server.deliverMessage(MESSAGE, USERNAME);
+        assertEquals(1, carrier.poll().size());
+
+        carrier.acknowledgement = null;
+
+        List<byte[]> messages = carrier.poll();
+        assertEquals(1, messages.size());
+        assertArrayEquals(MESSAGE, messages.get(0));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStartReceivingTwice() {
+        carrier.startReceiving();
+        carrier.startReceiving();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStopReceivingWhenNotReceiving() {
+        carrier.stopReceiving();
+    }
+
+    @Test
+    public void testStopReceiving() throws Exception {
+        carrier.startReceiving();
+        Thread poller = carrier.poller;
+
+        carrier.stopReceiving();
+
+        poller.join(5000);
+        assertFalse(poller.isAlive());
+        assertNull(carrier.poller);
+    }
+
+    @Test
+    public void testAuthentication() throws Exception {
+        server.shutdown();
+        server = new HttpServerCarrier(serverModel, new InetSocketAddress("127.0.0.1", 0), 2);
+        server.setAuthenticator(new BasicAuthenticator("beam") {
+            @Override
+            public boolean checkCredentials(String username, String password) {
+                return "secret".equals(password);
+            }
+        });
+        server.startReceiving();
+        url = new URL("http://127.0.0.1:" + server.getAddress().getPort());
+        carrier = new HttpClientCarrier(clientModel, new ExecutorFake(), url, OUT_TOPIC, USERNAME, "secret");
+        HttpClientCarrier intruder = new HttpClientCarrier(clientModel, new ExecutorFake(), url, OUT_TOPIC, "other", "secret");
+
+        assertTrue(carrier.deliverMessageAsync(MESSAGE, IN_TOPIC, Delivery.AT_LEAST_ONCE).isSuccessful());
+        assertFalse(intruder.deliverMessageAsync(MESSAGE, IN_TOPIC, Delivery.AT_LEAST_ONCE).isSuccessful());
+        assertReceived(serverModel, MESSAGE);
+        assertNull(serverModel.received.poll(50, TimeUnit.MILLISECONDS));
+    }
+
+    private void assertReceived(ModelFake model, byte[] message) throws InterruptedException {
+        CarrierFake.Received received = model.received.poll(5, TimeUnit.SECONDS);
+
+        assertNotNull(received);
+        assertArrayEquals(message, received.message);
+        assertEquals(USERNAME, received.topic);
+    }
+
+    private static class ModelFake {
+
+        final BlockingQueue<CarrierFake.Received> received = new LinkedBlockingQueue<>();
+
+        public void consumeMessage(byte[] message, String sender) {
+            received.add(new CarrierFake.Received(message, sender));
+        }
+
+        public void consumeMessage(ByteBuffer message, String sender) {
+            byte[] bytes = new byte[message.remaining()];
+            message.duplicate().get(bytes);
+            received.add(new CarrierFake.Received(bytes, sender));
+        }
+
+        public void startReceiving() {
+        }
+
+        public void stopReceiving() {
+        }
+
+        public void encryptAndSend(Message message, String target) {
+        }
+
+        public void shutdown() {
+        }
+    }
+
+    private static class ClientModelFake extends ModelFake implements ClientCarrierModel {
+    }
+
+    private static class ServerModelFake extends ModelFake implements ServerCarrierModel {
+    }
+
+}
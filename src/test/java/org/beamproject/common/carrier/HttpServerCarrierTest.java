@@ -0,0 +1,516 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import com.sun.net.httpserver.BasicAuthenticator;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.beamproject.common.message.Message;
+import org.beamproject.common.util.Base64;
+import org.junit.After;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+public class HttpServerCarrierTest {
+
+    private final String USERNAME = "username";
+    private final byte[] MESSAGE = "myMessage".getBytes();
+    private final byte[] OTHER_MESSAGE = "otherMessage".getBytes();
+    private ServerModelFake model;
+    private HttpServerCarrier carrier;
+    private ExecutorService requests;
+
+    @Before
+    public void setUp() {
+        model = new ServerModelFake();
+        carrier = new HttpServerCarrier(model, new InetSocketAddress("127.0.0.1", 0), 2);
+        carrier.setAnonymousPollsAllowed(true);
+        requests = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        carrier.shutdown();
+        requests.shutdownNow();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnNulls() {
+        carrier = new HttpServerCarrier(null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnZeroThreads() {
+        carrier = new HttpServerCarrier(model, new InetSocketAddress(0), 0);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testGetAddressWhenNotReceiving() {
+        carrier.getAddress();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStartReceivingTwice() {
+        carrier.startReceiving();
+        carrier.startReceiving();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStopReceivingWhenNotReceiving() {
+        carrier.stopReceiving();
+    }
+
+    @Test
+    public void testParseTimeout() {
+        carrier.maximalPollTimeoutInMilliseconds = 1000;
+
+        assertEquals(1000, carrier.parseTimeout(null));
+        assertEquals(200, carrier.parseTimeout("timeout=200"));
+        assertEquals(200, carrier.parseTimeout("a=b&timeout=200"));
+        assertEquals(1000, carrier.parseTimeout("timeout=5000"));
+        assertEquals(0, carrier.parseTimeout("timeout=-5"));
+        assertEquals(1000, carrier.parseTimeout("timeout=abc"));
+    }
+
+    @Test
+    public void testParseAcknowledgement() {
+        assertEquals(-1, HttpServerCarrier.parseAcknowledgement(null));
+        assertEquals(42, HttpServerCarrier.parseAcknowledgement("timeout=200&ack=42"));
+        assertEquals(-1, HttpServerCarrier.parseAcknowledgement("ack=abc"));
+    }
+
+    @Test
+    public void testPost() throws Exception {
+        carrier.startReceiving();
+
+        Response response = request("POST", "in/" + USERNAME, Arrays.asList(MESSAGE, OTHER_MESSAGE), null);
+
+        assertEquals(204, response.status);
+        assertReceived(MESSAGE, USERNAME);
+        assertReceived(OTHER_MESSAGE, USERNAME);
+    }
+
+    @Test
+    public void testPostWithAdmissionControl() throws Exception {
+        carrier.setAdmissionControl(new AdmissionControl(MESSAGE.length, 1000, 10));
+        carrier.startReceiving();
+
+        request("POST", "in/" + USERNAME, Arrays.asList(OTHER_MESSAGE, MESSAGE), null);
+
+        assertReceived(MESSAGE, USERNAME);
+        assertEquals(1, carrier.admissionControl.getRejectedBySize());
+    }
+
+    @Test
+    public void testPostOnTooLargeContentLength() throws Exception {
+        carrier.maximalRequestSizeInBytes = 4 + MESSAGE.length;
+        carrier.startReceiving();
+
+        Response response = request("POST", "in/" + USERNAME, Arrays.asList(MESSAGE, OTHER_MESSAGE), null);
+
+        assertEquals(413, response.status);
+        assertTrue(model.received.isEmpty());
+    }
+
+    @Test
+    public void testPostOnTooLargeChunkedBody() throws Exception {
+        carrier.maximalRequestSizeInBytes = 4 + MESSAGE.length;
+        carrier.startReceiving();
+        HttpURLConnection connection = open("in/" + USERNAME, null);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.setChunkedStreamingMode(8);
+
+        try (OutputStream output = connection.getOutputStream()) {
+            output.write(HttpBatch.encode(Arrays.asList(MESSAGE, OTHER_MESSAGE)));
+        }
+
+        assertEquals(413, connection.getResponseCode());
+        assertReceived(MESSAGE, USERNAME);
+        assertTrue(model.received.isEmpty());
+    }
+
+    @Test
+    public void testPostOnTooManyMessages() throws Exception {
+        carrier.maximalMessagesPerRequest = 1;
+        carrier.startReceiving();
+
+        Response response = request("POST", "in/" + USERNAME, Arrays.asList(MESSAGE, OTHER_MESSAGE), null);
+
+        assertEquals(413, response.status);
+        assertReceived(MESSAGE, USERNAME);
+        assertTrue(model.received.isEmpty());
+    }
+
+    @Test
+    public void testBoundedInputStream() throws IOException {
+        HttpServerCarrier.BoundedInputStream stream = new HttpServerCarrier.BoundedInputStream(
+                new ByteArrayInputStream(new byte[10]), 8);
+
+        assertEquals(8, stream.read(new byte[8], 0, 8));
+        assertFalse(stream.isExceeded());
+
+        try {
+            stream.read();
+            fail("The stream should have been exceeded.");
+        } catch (IOException ex) {
+            assertTrue(stream.isExceeded());
+        }
+    }
+
+    @Test
+    public void testPostOnWrongMethod() throws Exception {
+        carrier.startReceiving();
+
+        assertEquals(405, request("GET", "in/" + USERNAME, null, null).status);
+    }
+
+    @Test
+    public void testPostOnInvalidPath() throws Exception {
+        carrier.startReceiving();
+
+        assertEquals(403, request("POST", "in/a/b", Collections.singletonList(MESSAGE), null).status);
+    }
+
+    @Test
+    public void testPostOnInvalidBody() throws Exception {
+        carrier.startReceiving();
+        HttpURLConnection connection = open("in/" + USERNAME, null);
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+
+        try (OutputStream output = connection.getOutputStream()) {
+            output.write(new byte[]{0, 0, 0, 10, 1});
+        }
+
+        assertEquals(400, connection.getResponseCode());
+        assertTrue(model.received.isEmpty());
+    }
+
+    @Test
+    public void testPollOnQueuedMessages() throws Exception {
+        DeliveryFuture future = carrier.deliverMessageAsync(MESSAGE, USERNAME, Delivery.AT_LEAST_ONCE);
+        carrier.deliverMessage(OTHER_MESSAGE, USERNAME);
+        carrier.startReceiving();
+
+        Response response = request("GET", "out/" + USERNAME + "?timeout=1000", null, null);
+
+        assertEquals(200, response.status);
+        assertEquals(2, response.messages.size());
+        assertArrayEquals(MESSAGE, response.messages.get(0));
+        assertArrayEquals(OTHER_MESSAGE, response.messages.get(1));
+        assertFalse(future.isDone());
+        assertEquals(204, request("GET", "out/" + USERNAME + "?timeout=0&ack=" + response.batch, null, null).status);
+        assertTrue(future.isSuccessful());
+    }
+
+    @Test
+    public void testPollResendsUnacknowledgedBatch() throws Exception {
+        DeliveryFuture future = carrier.deliverMessageAsync(MESSAGE, USERNAME, Delivery.AT_LEAST_ONCE);
+        carrier.startReceiving();
+        Response first = request("GET", "out/" + USERNAME + "?timeout=0", null, null);
+
+        Response second = request("GET", "out/" + USERNAME + "?timeout=0&ack=" + (Long.parseLong(first.batch) - 1), null, null);
+
+        assertEquals(200, second.status);
+        assertArrayEquals(MESSAGE, second.messages.get(0));
+        assertFalse(second.batch.equals(first.batch));
+        assertFalse(future.isDone());
+    }
+
+    @Test
+    public void testPollCompletesAtMostOnceDeliveryWhenSent() throws Exception {
+        DeliveryFuture future = carrier.deliverMessageAsync(MESSAGE, USERNAME, Delivery.AT_MOST_ONCE);
+        carrier.startReceiving();
+
+        assertEquals(200, request("GET", "out/" + USERNAME + "?timeout=0", null, null).status);
+
+        future.get(5, TimeUnit.SECONDS);
+        assertTrue(future.isSuccessful());
+        assertEquals(204, request("GET", "out/" + USERNAME + "?timeout=0", null, null).status);
+    }
+
+    @Test
+    public void testPollWithoutAuthenticator() throws Exception {
+        carrier.setAnonymousPollsAllowed(false);
+        carrier.deliverMessage(MESSAGE, USERNAME);
+        carrier.startReceiving();
+
+        assertEquals(403, request("GET", "out/" + USERNAME + "?timeout=0", null, null).status);
+        assertEquals(1, carrier.outboxes.get(USERNAME).messages.size());
+    }
+
+    @Test
+    public void testPollWaitsForMessages() throws Exception {
+        carrier.startReceiving();
+        Future<Response> poll = requestAsync("GET", "out/" + USERNAME + "?timeout=10000");
+        awaitWaitingPoll(USERNAME);
+
+        carrier.deliverMessage(MESSAGE, USERNAME);
+
+        Response response = poll.get(5, TimeUnit.SECONDS);
+        assertEquals(200, response.status);
+        assertArrayEquals(MESSAGE, response.messages.get(0));
+    }
+
+    @Test
+    public void testPollOnTimeout() throws Exception {
+        carrier.startReceiving();
+
+        Response response = request("GET", "out/" + USERNAME + "?timeout=50", null, null);
+
+        assertEquals(204, response.status);
+        assertNull(carrier.outboxes.get(USERNAME).waitingPoll);
+    }
+
+    @Test
+    public void testPollOnZeroTimeout() throws Exception {
+        carrier.startReceiving();
+
+        assertEquals(204, request("GET", "out/" + USERNAME + "?timeout=0", null, null).status);
+    }
+
+    @Test
+    public void testPollReplacesWaitingPoll() throws Exception {
+        carrier.startReceiving();
+        Future<Response> first = requestAsync("GET", "out/" + USERNAME + "?timeout=10000");
+        awaitWaitingPoll(USERNAME);
+
+        Future<Response> second = requestAsync("GET", "out/" + USERNAME + "?timeout=10000");
+
+        assertEquals(204, first.get(5, TimeUnit.SECONDS).status);
+        carrier.deliverMessage(MESSAGE, USERNAME);
+        assertEquals(200, second.get(5, TimeUnit.SECONDS).status);
+    }
+
+    @Test
+    public void testDeliverMessageOnFullOutbox() {
+        carrier.outboxCapacity = 1;
+        carrier.deliverMessage(MESSAGE, USERNAME);
+
+        try {
+            carrier.deliverMessage(MESSAGE, USERNAME);
+            fail("The outbox should be full.");
+        } catch (CarrierException ex) {
+            DeliveryFuture future = carrier.deliverMessageAsync(MESSAGE, USERNAME, Delivery.AT_LEAST_ONCE);
+            assertTrue(future.getFailure() instanceof CarrierException);
+        }
+    }
+
+    @Test
+    public void testEvictIdleOutboxes() {
+        HttpServerCarrier.Outbox idleOutbox = carrier.new Outbox();
+        carrier.outboxes.put("idle", idleOutbox);
+        carrier.deliverMessage(MESSAGE, USERNAME);
+        carrier.outboxIdleTimeoutInMilliseconds = 0;
+
+        carrier.evictIdleOutboxes();
+
+        assertFalse(carrier.outboxes.containsKey("idle"));
+        assertTrue(carrier.outboxes.containsKey(USERNAME));
+        assertTrue(idleOutbox.isEvicted);
+    }
+
+    @Test
+    public void testDeliverMessageAfterEviction() {
+        HttpServerCarrier.Outbox idleOutbox = carrier.new Outbox();
+        carrier.outboxes.put(USERNAME, idleOutbox);
+        carrier.outboxIdleTimeoutInMilliseconds = 0;
+        carrier.evictIdleOutboxes();
+
+        carrier.deliverMessage(MESSAGE, USERNAME);
+
+        assertTrue(idleOutbox.messages.isEmpty());
+        assertEquals(1, carrier.outboxes.get(USERNAME).messages.size());
+    }
+
+    @Test
+    public void testShutdownFailsQueuedDeliveries() {
+        DeliveryFuture future = carrier.deliverMessageAsync(MESSAGE, USERNAME, Delivery.AT_LEAST_ONCE);
+
+        carrier.shutdown();
+
+        assertTrue(future.isDone());
+        assertFalse(future.isSuccessful());
+        assertTrue(carrier.outboxes.isEmpty());
+    }
+
+    @Test
+    public void testAuthenticator() throws Exception {
+        carrier.setAuthenticator(new BasicAuthenticator("beam") {
+            @Override
+            public boolean checkCredentials(String username, String password) {
+                return (username + "-secret").equals(password);
+            }
+        });
+        carrier.startReceiving();
+        List<byte[]> batch = Collections.singletonList(MESSAGE);
+
+        assertEquals(401, request("POST", "in/" + USERNAME, batch, null).status);
+        assertEquals(401, request("POST", "in/" + USERNAME, batch, USERNAME + ":wrong").status);
+        assertEquals(403, request("POST", "in/" + USERNAME, batch, "other:other-secret").status);
+        assertEquals(204, request("POST", "in/" + USERNAME, batch, USERNAME + ":" + USERNAME + "-secret").status);
+        assertReceived(MESSAGE, USERNAME);
+    }
+
+    @Test
+    public void testReceiveByteBuffer() throws InterruptedException {
+        carrier.receive(ByteBuffer.wrap(MESSAGE), USERNAME);
+
+        assertReceived(MESSAGE, USERNAME);
+    }
+
+    private void assertReceived(byte[] message, String sender) throws InterruptedException {
+        CarrierFake.Received received = model.received.poll(5, TimeUnit.SECONDS);
+
+        assertArrayEquals(message, received.message);
+        assertEquals(sender, received.topic);
+    }
+
+    private void awaitWaitingPoll(String username) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+
+        while (System.currentTimeMillis() < deadline) {
+            HttpServerCarrier.Outbox outbox = carrier.outboxes.get(username);
+
+            if (outbox != null) {
+                synchronized (outbox) {
+                    if (outbox.waitingPoll != null) {
+                        return;
+                    }
+                }
+            }
+
+            Thread.sleep(5);
+        }
+
+        fail("The poll did not arrive in time.");
+    }
+
+    private Future<Response> requestAsync(final String method, final String path) {
+        return requests.submit(new Callable<Response>() {
+            @Override
+            public Response call() throws Exception {
+                return request(method, path, null, null);
+            }
+        });
+    }
+
+    private HttpURLConnection open(String path, String credentials) throws IOException {
+        InetSocketAddress address = carrier.getAddress();
+        URL url = new URL("http://127.0.0.1:" + address.getPort() + "/" + path);
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setReadTimeout(15000);
+
+        if (credentials != null) {
+            connection.setRequestProperty("Authorization", "Basic " + Base64.encode(credentials.getBytes()));
+        }
+
+        return connection;
+    }
+
+    private Response request(String method, String path, List<byte[]> batch, String credentials) throws IOException {
+        HttpURLConnection connection = open(path, credentials);
+        connection.setRequestMethod(method);
+
+        if (batch != null) {
+            connection.setDoOutput(true);
+
+            try (OutputStream output = connection.getOutputStream()) {
+                output.write(HttpBatch.encode(batch));
+            }
+        }
+
+        Response response = new Response();
+        response.status = connection.getResponseCode();
+
+        if (response.status == 200) {
+            response.batch = connection.getHeaderField(HttpServerCarrier.BATCH_HEADER);
+
+            try (InputStream input = connection.getInputStream()) {
+                response.messages = HttpBatch.decode(input);
+            }
+        }
+
+        return response;
+    }
+
+    private static class Response {
+
+        int status;
+        String batch;
+        List<byte[]> messages;
+    }
+
+    private static class ServerModelFake implements ServerCarrierModel {
+
+        final BlockingQueue<CarrierFake.Received> received = new LinkedBlockingQueue<>();
+
+        @Override
+        public void consumeMessage(byte[] message, String sender) {
+            received.add(new CarrierFake.Received(message, sender));
+        }
+
+        @Override
+        public void consumeMessage(ByteBuffer message, String sender) {
+            byte[] bytes = new byte[message.remaining()];
+            message.duplicate().get(bytes);
+            received.add(new CarrierFake.Received(bytes, sender));
+        }
+
+        @Override
+        public void startReceiving() {
+        }
+
+        @Override
+        public void stopReceiving() {
+        }
+
+        @Override
+        public void encryptAndSend(Message message, String target) {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+public class InboundQueueTest {
+
+    private final int CAPACITY = 4;
+    private final String SENDER = "sender";
+    private InboundQueue<CarrierModel<?>> queue;
+
+    @Test
+    public void testOfferAndPoll() throws InterruptedException {
+        queue = new InboundQueue<>(CAPACITY, OverflowPolicy.BLOCK);
+        InboundMessage<CarrierModel<?>> inbound = newMessage(0);
+
+        queue.offer(inbound);
+
+        assertEquals(1, queue.size());
+        assertSame(inbound, queue.poll(0, TimeUnit.MILLISECONDS));
+        assertNull(queue.poll(0, TimeUnit.MILLISECONDS));
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    public void testOfferOnRejectWhenFull() {
+        queue = new InboundQueue<>(CAPACITY, OverflowPolicy.REJECT);
+        fill();
+
+        try {
+            queue.offer(newMessage(0));
+        } catch (CarrierException ex) {
+            assertEquals(CAPACITY, queue.size());
+            assertEquals(1, queue.droppedMessages.get());
+            return;
+        }
+
+        throw new AssertionError("The message should have been rejected.");
+    }
+
+    @Test
+    public void testOfferOnDropOldestWhenFull() throws InterruptedException {
+        queue = new InboundQueue<>(CAPACITY, OverflowPolicy.DROP_OLDEST);
+        fill();
+        InboundMessage<CarrierModel<?>> newest = newMessage(0);
+
+        queue.offer(newest);
+
+        assertEquals(CAPACITY, queue.size());
+        assertEquals(1, queue.droppedMessages.get());
+        assertEquals(2, queue.poll(0, TimeUnit.MILLISECONDS).message[0]);
+    }
+
+    @Test
+    public void testOfferOnCodelWhenFull() {
+        queue = new InboundQueue<>(CAPACITY, OverflowPolicy.CODEL);
+        fill();
+
+        queue.offer(newMessage(0));
+
+        assertEquals(CAPACITY, queue.size());
+        assertEquals(1, queue.droppedMessages.get());
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testOfferOnBlockWhenInterrupted() {
+        queue = new InboundQueue<>(CAPACITY, OverflowPolicy.BLOCK);
+        fill();
+        Thread.currentThread().interrupt();
+
+        try {
+            queue.offer(newMessage(0));
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+    @Test
+    public void testPollOnCodelWithShortDelays() throws InterruptedException {
+        queue = new InboundQueue<>(CAPACITY, OverflowPolicy.CODEL);
+        fill();
+
+        for (int i = 1; i <= CAPACITY; i++) {
+            assertEquals(i, queue.poll(0, TimeUnit.MILLISECONDS).message[0]);
+        }
+
+        assertEquals(0, queue.shedMessages.get());
+    }
+
+    @Test
+    public void testPollOnCodelWithLongDelays() throws InterruptedException {
+        long target = TimeUnit.MILLISECONDS.toNanos(1);
+        long interval = TimeUnit.MILLISECONDS.toNanos(5);
+        long longAgo = System.nanoTime() - TimeUnit.SECONDS.toNanos(1);
+        queue = new InboundQueue<>(100, OverflowPolicy.CODEL, target, interval);
+
+        for (int i = 0; i < 100; i++) {
+            queue.offer(new InboundMessage<CarrierModel<?>>(new byte[]{(byte) i}, SENDER, longAgo));
+        }
+
+        int consumed = 0;
+
+        while (queue.poll(0, TimeUnit.MILLISECONDS) != null) {
+            consumed++;
+            Thread.sleep(2);
+        }
+
+        assertTrue(queue.shedMessages.get() > 0);
+        assertEquals(100, consumed + queue.shedMessages.get());
+    }
+
+    private void fill() {
+        for (int i = 1; i <= CAPACITY; i++) {
+            queue.offer(newMessage(i));
+        }
+    }
+
+    private InboundMessage<CarrierModel<?>> newMessage(int value) {
+        return new InboundMessage<CarrierModel<?>>(new byte[]{(byte) value}, SENDER);
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import static org.easymock.EasyMock.aryEq;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import org.easymock.IAnswer;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LoopbackClientCarrierTest {
+
+    private final String IN_TOPIC = "in/username";
+    private final String USERNAME = "username";
+    private final byte[] MESSAGE = "myMessage".getBytes();
+    private LoopbackHub hub;
+    private ClientCarrierModel model;
+    private LoopbackClientCarrier carrier;
+
+    @Before
+    public void setUp() {
+        hub = new LoopbackHub();
+        model = createMock(ClientCarrierModel.class);
+        carrier = new LoopbackClientCarrier(model, hub, IN_TOPIC);
+    }
+
+    @After
+    public void tearDown() {
+        hub.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnNulls() {
+        carrier = new LoopbackClientCarrier(null, null, null);
+    }
+
+    @Test
+    public void testStartReceiving() {
+        carrier.startReceiving();
+
+        assertTrue(hub.isSubscribed(IN_TOPIC, carrier));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStopReceivingWhenNotReceiving() {
+        carrier.stopReceiving();
+    }
+
+    @Test
+    public void testStopReceiving() {
+        carrier.startReceiving();
+        carrier.stopReceiving();
+
+        assertFalse(hub.isSubscribed(IN_TOPIC, carrier));
+    }
+
+    @Test
+    public void testDeliverMessage() throws InterruptedException {
+        final CountDownLatch consumed = new CountDownLatch(1);
+        model.consumeMessage(aryEq(MESSAGE), eq(USERNAME));
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                consumed.countDown();
+                return null;
+            }
+        });
+        replay(model);
+        carrier.startReceiving();
+
+        carrier.deliverMessage(MESSAGE, IN_TOPIC);
+
+        assertTrue(consumed.await(5, TimeUnit.SECONDS));
+        verify(model);
+    }
+
+}
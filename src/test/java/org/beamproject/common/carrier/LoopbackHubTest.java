@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.util.concurrent.TimeUnit;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class LoopbackHubTest {
+
+    private final String TOPIC = "out/username";
+    private final byte[] MESSAGE = "myMessage".getBytes();
+    private LoopbackHub hub;
+    private CarrierFake carrier;
+
+    @Before
+    public void setUp() {
+        hub = new LoopbackHub();
+        carrier = new CarrierFake();
+    }
+
+    @After
+    public void tearDown() {
+        hub.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnNegativeLatency() {
+        hub = new LoopbackHub(-1, 0, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnNegativeJitter() {
+        hub = new LoopbackHub(0, -1, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnTooHighLossProbability() {
+        hub = new LoopbackHub(0, 0, 1.1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSubscribeOnNulls() {
+        hub.subscribe(null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPublishOnNulls() {
+        hub.publish(null, null);
+    }
+
+    @Test
+    public void testPublish() throws InterruptedException {
+        hub.subscribe(TOPIC, carrier);
+        assertTrue(hub.isSubscribed(TOPIC, carrier));
+
+        hub.publish(TOPIC, MESSAGE);
+
+        CarrierFake.Received received = carrier.take();
+        assertArrayEquals(MESSAGE, received.message);
+        assertEquals(TOPIC, received.topic);
+        assertEquals(1, hub.getPublishedMessages());
+    }
+
+    @Test
+    public void testPublishOnOtherTopic() throws InterruptedException {
+        hub.subscribe(TOPIC, carrier);
+
+        hub.publish("out/other", MESSAGE);
+
+        assertNull(carrier.poll(100));
+    }
+
+    @Test
+    public void testPublishOnWildcard() throws InterruptedException {
+        hub.subscribe("out/+", carrier);
+
+        hub.publish(TOPIC, MESSAGE);
+
+        assertEquals(TOPIC, carrier.take().topic);
+    }
+
+    @Test
+    public void testPublishKeepsOrder() throws InterruptedException {
+        hub = new LoopbackHub(0, 1000, 0);
+        hub.subscribe(TOPIC, carrier);
+
+        for (int i = 0; i < 100; i++) {
+            hub.publish(TOPIC, new byte[]{(byte) i});
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, carrier.take().message[0]);
+        }
+    }
+
+    @Test
+    public void testPublishWithLatency() throws InterruptedException {
+        hub = new LoopbackHub(50000, 0, 0);
+        hub.subscribe(TOPIC, carrier);
+        long start = System.nanoTime();
+
+        hub.publish(TOPIC, MESSAGE);
+        carrier.take();
+
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+    }
+
+    @Test
+    public void testPublishWithLoss() throws InterruptedException {
+        hub = new LoopbackHub(0, 0, 1);
+        hub.subscribe(TOPIC, carrier);
+
+        hub.publish(TOPIC, MESSAGE);
+
+        assertNull(carrier.poll(100));
+        assertEquals(1, hub.getPublishedMessages());
+        assertEquals(1, hub.getLostMessages());
+    }
+
+    @Test
+    public void testUnsubscribe() throws InterruptedException {
+        hub.subscribe(TOPIC, carrier);
+        hub.unsubscribe(TOPIC, carrier);
+        assertFalse(hub.isSubscribed(TOPIC, carrier));
+
+        hub.publish(TOPIC, MESSAGE);
+
+        assertNull(carrier.poll(100));
+    }
+
+    @Test
+    public void testUnsubscribeOnUnknownTopic() {
+        hub.unsubscribe(TOPIC, carrier);
+    }
+
+}
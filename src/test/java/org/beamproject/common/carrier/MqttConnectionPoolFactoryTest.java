@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.util.Arrays;
+import java.util.Collections;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MqttConnectionPoolFactoryTest {
+
+    private final String USERNAME = "username";
+    private final String SUBSCRIBER_TOPIC = "out/username";
+    private EmbeddedMqttBroker broker;
+    private MqttConnectionPoolFactory factory;
+
+    @Before
+    public void setUp() throws Exception {
+        broker = new EmbeddedMqttBroker();
+        factory = new MqttConnectionPoolFactory(broker.getHost(), broker.getPort(), USERNAME, SUBSCRIBER_TOPIC);
+    }
+
+    @After
+    public void tearDown() {
+        broker.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnNullSubscriberClientId() {
+        new MqttConnectionPoolFactory(broker.getHost(), broker.getPort(), USERNAME, SUBSCRIBER_TOPIC, null);
+    }
+
+    @Test
+    public void testCreate() throws Exception {
+        MqttConnection connection = factory.create();
+        MqttConnection otherConnection = factory.create();
+
+        try {
+            assertTrue(connection.isCleanSession());
+            assertTrue(connection.getClientId().startsWith(USERNAME + "-pub-"));
+            assertNotEquals(connection.getClientId(), otherConnection.getClientId());
+            assertTrue(broker.isCleanSession(connection.getClientId()));
+        } finally {
+            connection.disconnect();
+            otherConnection.disconnect();
+        }
+    }
+
+    @Test
+    public void testCreateOnDifferentFactories() throws Exception {
+        MqttConnectionPoolFactory otherFactory = new MqttConnectionPoolFactory(broker.getHost(), broker.getPort(), USERNAME, SUBSCRIBER_TOPIC);
+
+        MqttConnection connection = factory.create();
+        MqttConnection otherConnection = otherFactory.create();
+
+        try {
+            assertNotEquals(connection.getClientId(), otherConnection.getClientId());
+        } finally {
+            connection.disconnect();
+            otherConnection.disconnect();
+        }
+    }
+
+    @Test
+    public void testCreateSubscriberConnection() {
+        MqttConnection connection = factory.createSubscriberConnection();
+        connection.disconnect();
+
+        assertEquals(USERNAME + "-sub", connection.getClientId());
+        assertFalse(connection.isCleanSession());
+        assertFalse(broker.isCleanSession(USERNAME + "-sub"));
+    }
+
+    @Test
+    public void testCreateSubscriberConnectionWithClientId() {
+        factory = new MqttConnectionPoolFactory(broker.getHost(), broker.getPort(), USERNAME, SUBSCRIBER_TOPIC, "gateway-1");
+
+        factory.createSubscriberConnection().disconnect();
+
+        assertEquals(Arrays.asList("gateway-1"), broker.getClientIds());
+    }
+
+    @Test
+    public void testCreateSubscriberConnectionOnRestart() throws Exception {
+        factory.createSubscriberConnection().disconnect();
+        factory.create().disconnect();
+        new MqttConnectionPoolFactory(broker.getHost(), broker.getPort(), USERNAME, SUBSCRIBER_TOPIC)
+                .createSubscriberConnection().disconnect();
+
+        assertEquals(USERNAME + "-sub", broker.getClientIds().get(0));
+        assertEquals(USERNAME + "-sub", broker.getClientIds().get(2));
+    }
+
+    @Test
+    public void testSubscriberConnectionOnReconnect() throws Exception {
+        final MqttConnection connection = factory.createSubscriberConnection();
+        final CarrierFake carrier = new CarrierFake();
+        MqttConnection publisher = factory.create();
+        connection.reconnectPolicy = new ReconnectPolicy(10, 10, 1.0, 10);
+        Thread subscriber = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                connection.subscribe(carrier);
+            }
+        });
+        subscriber.start();
+
+        try {
+            waitForSubscription(publisher, carrier);
+            broker.killConnections();
+            publisher = factory.create();
+            waitForSubscription(publisher, carrier);
+
+            assertEquals(2, Collections.frequency(broker.getClientIds(), USERNAME + "-sub"));
+            assertFalse(broker.isCleanSession(USERNAME + "-sub"));
+        } finally {
+            connection.doReceive(false);
+            broker.killConnections();
+            subscriber.join(CarrierFake.TIMEOUT_IN_MILLISECONDS);
+        }
+    }
+
+    private void waitForSubscription(MqttConnection publisher, CarrierFake carrier) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CarrierFake.TIMEOUT_IN_MILLISECONDS;
+
+        do {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("The connection did not subscribe in time.");
+            }
+
+            publisher.publish(SUBSCRIBER_TOPIC, "probe".getBytes());
+        } while (carrier.poll(20) == null);
+    }
+
+}
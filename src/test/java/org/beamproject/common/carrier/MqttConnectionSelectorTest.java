@@ -0,0 +1,275 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.beamproject.common.carrier.MqttConnectionSelector.Strategy;
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.aryEq;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import org.easymock.IAnswer;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MqttConnectionSelectorTest {
+
+    private final String TOPIC = "out/username";
+    private final byte[] MESSAGE = "myMessage".getBytes();
+    private MqttConnectionPoolFactory factory;
+    private MqttConnection connection;
+    private MqttConnection otherConnection;
+    private MqttConnectionSelector selector;
+
+    @Before
+    public void setUp() {
+        factory = createMock(MqttConnectionPoolFactory.class);
+        connection = createMock(MqttConnection.class);
+        otherConnection = createMock(MqttConnection.class);
+        selector = new MqttConnectionSelector(factory, 3, Strategy.ROUND_ROBIN);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnNulls() {
+        selector = new MqttConnectionSelector(null, 3, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnZeroConnections() {
+        selector = new MqttConnectionSelector(factory, 0, Strategy.ROUND_ROBIN);
+    }
+
+    @Test
+    public void testConstructor() {
+        assertEquals(3, selector.getNumberOfConnections());
+        assertSame(Strategy.ROUND_ROBIN, selector.getStrategy());
+        assertNull(selector.connections.get(0));
+    }
+
+    @Test
+    public void testSelectRoundRobin() {
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i % 3, selector.select());
+        }
+    }
+
+    @Test
+    public void testSelectLeastInFlight() {
+        selector = new MqttConnectionSelector(factory, 3, Strategy.LEAST_IN_FLIGHT);
+        selector.inFlight.set(0, 4);
+        selector.inFlight.set(1, 2);
+        selector.inFlight.set(2, 7);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(1, selector.select());
+        }
+
+        selector.inFlight.set(1, 5);
+        assertEquals(0, selector.select());
+    }
+
+    @Test
+    public void testSelectLeastInFlightOnTie() {
+        selector = new MqttConnectionSelector(factory, 3, Strategy.LEAST_IN_FLIGHT);
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals(i % 3, selector.select());
+        }
+    }
+
+    @Test
+    public void testPublishOpensConnectionOnce() throws Exception {
+        selector = new MqttConnectionSelector(factory, 1, Strategy.ROUND_ROBIN);
+        expect(factory.create()).andReturn(connection);
+        connection.publish(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expectLastCall().times(2);
+        replay(factory, connection);
+
+        selector.publish(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        selector.publish(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+
+        verify(factory, connection);
+        assertSame(connection, selector.connections.get(0));
+        assertEquals(0, selector.inFlight.get(0));
+    }
+
+    @Test
+    public void testPublishUsesAllConnections() throws Exception {
+        selector = new MqttConnectionSelector(factory, 2, Strategy.ROUND_ROBIN);
+        expect(factory.create()).andReturn(connection);
+        expect(factory.create()).andReturn(otherConnection);
+        connection.publish(TOPIC, MESSAGE, Delivery.AT_MOST_ONCE);
+        expectLastCall().times(2);
+        otherConnection.publish(TOPIC, MESSAGE, Delivery.AT_MOST_ONCE);
+        expectLastCall().times(2);
+        replay(factory, connection, otherConnection);
+
+        for (int i = 0; i < 4; i++) {
+            selector.publish(TOPIC, MESSAGE, Delivery.AT_MOST_ONCE);
+        }
+
+        verify(factory, connection, otherConnection);
+    }
+
+    @Test
+    public void testPublishOnFailure() throws Exception {
+        selector = new MqttConnectionSelector(factory, 1, Strategy.ROUND_ROBIN);
+        expect(factory.create()).andReturn(connection);
+        connection.publish(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expectLastCall().andThrow(new CarrierException("broken"));
+        connection.disconnect();
+        expectLastCall().andThrow(new CarrierException("broken"));
+        expect(factory.create()).andReturn(otherConnection);
+        otherConnection.publish(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expectLastCall();
+        replay(factory, connection, otherConnection);
+
+        try {
+            selector.publish(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+            fail("The publication should have failed.");
+        } catch (CarrierException ex) {
+            assertNull(selector.connections.get(0));
+            assertEquals(0, selector.inFlight.get(0));
+        }
+
+        selector.publish(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+
+        verify(factory, connection, otherConnection);
+    }
+
+    @Test
+    public void testPublishWhileOpeningAnotherConnection() throws Exception {
+        final CountDownLatch isOpening = new CountDownLatch(1);
+        final CountDownLatch mayOpen = new CountDownLatch(1);
+        factory = new MqttConnectionPoolFactory("localhost", 1883, "username", TOPIC) {
+            private boolean isFirst = true;
+
+            @Override
+            public MqttConnection create() throws Exception {
+                synchronized (this) {
+                    if (!isFirst) {
+                        return otherConnection;
+                    }
+
+                    isFirst = false;
+                }
+
+                isOpening.countDown();
+                assertTrue(mayOpen.await(CarrierFake.TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS));
+                return connection;
+            }
+        };
+        selector = new MqttConnectionSelector(factory, 2, Strategy.ROUND_ROBIN);
+        connection.publish(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expectLastCall();
+        otherConnection.publish(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expectLastCall();
+        replay(connection, otherConnection);
+
+        Thread publisher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                selector.publish(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+            }
+        });
+        publisher.start();
+        assertTrue(isOpening.await(CarrierFake.TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS));
+
+        selector.publish(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+
+        assertTrue(publisher.isAlive());
+        assertEquals(1, selector.inFlight.get(0));
+        mayOpen.countDown();
+        publisher.join(CarrierFake.TIMEOUT_IN_MILLISECONDS);
+        verify(connection, otherConnection);
+        assertEquals(0, selector.inFlight.get(0));
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testPublishOnUnreachableBroker() throws Exception {
+        expect(factory.create()).andThrow(new Exception("unreachable"));
+        replay(factory);
+
+        selector.publish(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+    }
+
+    @Test
+    public void testPublishCountsInFlight() throws Exception {
+        final CountDownLatch isPublishing = new CountDownLatch(1);
+        final CountDownLatch mayFinish = new CountDownLatch(1);
+        selector = new MqttConnectionSelector(factory, 2, Strategy.LEAST_IN_FLIGHT);
+        expect(factory.create()).andReturn(connection);
+        connection.publish(eq(TOPIC), aryEq(MESSAGE), anyObject(Delivery.class));
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                isPublishing.countDown();
+                assertTrue(mayFinish.await(CarrierFake.TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS));
+                return null;
+            }
+        });
+        replay(factory, connection);
+
+        Thread publisher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                selector.publish(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+            }
+        });
+        publisher.start();
+
+        assertTrue(isPublishing.await(CarrierFake.TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS));
+        assertEquals(1, selector.inFlight.get(0));
+        assertEquals(1, selector.select());
+        assertEquals(1, selector.select());
+
+        mayFinish.countDown();
+        publisher.join();
+        assertEquals(0, selector.inFlight.get(0));
+        verify(factory, connection);
+    }
+
+    @Test
+    public void testClose() throws Exception {
+        selector = new MqttConnectionSelector(factory, 2, Strategy.ROUND_ROBIN);
+        expect(factory.create()).andReturn(connection);
+        connection.publish(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        expectLastCall();
+        connection.disconnect();
+        expectLastCall();
+        replay(factory, connection);
+
+        selector.publish(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        selector.close();
+
+        verify(factory, connection);
+        assertNull(selector.connections.get(0));
+    }
+
+}
@@ -18,15 +18,22 @@
  */
 package org.beamproject.common.carrier;
 
+import static org.easymock.EasyMock.anyObject;
+import static org.easymock.EasyMock.aryEq;
+import static org.easymock.EasyMock.capture;
 import static org.easymock.EasyMock.createMock;
 import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.easymock.EasyMock.replay;
 import static org.easymock.EasyMock.verify;
+import org.easymock.Capture;
 import org.fusesource.mqtt.client.BlockingConnection;
 import org.fusesource.mqtt.client.MQTT;
 import org.fusesource.mqtt.client.QoS;
+import org.fusesource.mqtt.client.Topic;
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -36,6 +43,7 @@ public class MqttConnectionTest {
     private final int PORT = 3625;
     private final String USERNAME = "secret_username";
     private final String SUBSCRIBER_TOPIC = "in";
+    private final String CLIENT_ID = "secret_username-0";
     private MQTT mqtt;
     private MqttConnection connection;
     private BlockingConnection blockingConnection;
@@ -45,6 +53,7 @@ public class MqttConnectionTest {
         mqtt = createMock(MQTT.class);
         blockingConnection = createMock(BlockingConnection.class);
         connection = new MqttConnection(mqtt, HOST, PORT, USERNAME, SUBSCRIBER_TOPIC);
+        connection.reconnectPolicy = new ReconnectPolicy(0, 0, 1.0, 3);
     }
 
     @Test(expected = IllegalArgumentException.class)
@@ -87,12 +96,43 @@ public class MqttConnectionTest {
         connection = new MqttConnection(new MQTT(), HOST, 65536, USERNAME, SUBSCRIBER_TOPIC);
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnNullClientId() {
+        connection = new MqttConnection(new MQTT(), HOST, PORT, USERNAME, SUBSCRIBER_TOPIC, null);
+    }
+
     @Test
     public void testConnect() throws Exception {
-        mqtt.setHost(HOST, PORT);
+        expectConfiguration(USERNAME);
+        expect(mqtt.blockingConnection()).andReturn(blockingConnection);
+        blockingConnection.connect();
         expectLastCall();
-        mqtt.setUserName(USERNAME);
+        replay(mqtt, blockingConnection);
+
+        connection.connect();
+
+        assertSame(blockingConnection, connection.connection);
+        verify(mqtt, blockingConnection);
+    }
+
+    @Test
+    public void testConnectWithClientId() throws Exception {
+        connection = new MqttConnection(mqtt, HOST, PORT, USERNAME, SUBSCRIBER_TOPIC, CLIENT_ID);
+        expectConfiguration(CLIENT_ID);
+        expect(mqtt.blockingConnection()).andReturn(blockingConnection);
+        blockingConnection.connect();
         expectLastCall();
+        replay(mqtt, blockingConnection);
+
+        connection.connect();
+
+        verify(mqtt, blockingConnection);
+    }
+
+    @Test
+    public void testConnectWithCleanSession() throws Exception {
+        connection = new MqttConnection(mqtt, HOST, PORT, USERNAME, SUBSCRIBER_TOPIC, CLIENT_ID, true);
+        expectConfiguration(CLIENT_ID, true);
         expect(mqtt.blockingConnection()).andReturn(blockingConnection);
         blockingConnection.connect();
         expectLastCall();
@@ -100,10 +140,198 @@ public class MqttConnectionTest {
 
         connection.connect();
 
+        verify(mqtt, blockingConnection);
+    }
+
+    @Test
+    public void testConnectRetriesOnFailure() throws Exception {
+        expectConfiguration(USERNAME);
+        expect(mqtt.blockingConnection()).andReturn(blockingConnection).times(3);
+        blockingConnection.connect();
+        expectLastCall().andThrow(new Exception("broker down")).times(2);
+        blockingConnection.kill();
+        expectLastCall().times(2);
+        blockingConnection.connect();
+        expectLastCall();
+        replay(mqtt, blockingConnection);
+
+        connection.connect();
+
+        assertSame(blockingConnection, connection.connection);
+        verify(mqtt, blockingConnection);
+    }
+
+    @Test
+    public void testConnectGivesUpAfterMaximalAttempts() throws Exception {
+        expectConfiguration(USERNAME);
+        expect(mqtt.blockingConnection()).andReturn(blockingConnection).times(3);
+        blockingConnection.connect();
+        expectLastCall().andThrow(new Exception("broker down")).times(3);
+        blockingConnection.kill();
+        expectLastCall().times(3);
+        replay(mqtt, blockingConnection);
+
+        try {
+            connection.connect();
+            fail("An exception should have been thrown.");
+        } catch (CarrierException ex) {
+            verify(mqtt, blockingConnection);
+        }
+    }
+
+    @Test
+    public void testReconnectAndResubscribe() throws Exception {
+        BlockingConnection lostConnection = createMock(BlockingConnection.class);
+        connection.connection = lostConnection;
+        connection.doReceive(true);
+        lostConnection.kill();
+        expectLastCall();
+        expect(mqtt.blockingConnection()).andReturn(blockingConnection).times(2);
+        blockingConnection.connect();
+        expectLastCall().andThrow(new Exception("broker down"));
+        blockingConnection.kill();
+        expectLastCall();
+        blockingConnection.connect();
+        expectLastCall();
+        expect(blockingConnection.subscribe(anyObject(Topic[].class))).andReturn(new byte[]{1});
+        replay(mqtt, blockingConnection, lostConnection);
+
+        connection.reconnectAndResubscribe();
+
+        verify(mqtt, blockingConnection, lostConnection);
         assertSame(blockingConnection, connection.connection);
+    }
+
+    @Test
+    public void testReconnectAndResubscribeOnFailingKill() throws Exception {
+        BlockingConnection lostConnection = createMock(BlockingConnection.class);
+        connection.connection = lostConnection;
+        connection.doReceive(true);
+        lostConnection.kill();
+        expectLastCall().andThrow(new Exception("already closed"));
+        expect(mqtt.blockingConnection()).andReturn(blockingConnection);
+        blockingConnection.connect();
+        expectLastCall();
+        expect(blockingConnection.subscribe(anyObject(Topic[].class))).andReturn(new byte[]{1});
+        replay(mqtt, blockingConnection, lostConnection);
+
+        connection.reconnectAndResubscribe();
+
+        verify(mqtt, blockingConnection, lostConnection);
+    }
+
+    @Test
+    public void testReconnectAndResubscribeWhenNotReceiving() throws Exception {
+        replay(mqtt, blockingConnection);
+
+        connection.doReceive(false);
+        connection.reconnectAndResubscribe();
+
+        verify(mqtt, blockingConnection);
+    }
+
+    @Test
+    public void testAddSubscriberTopicWhenNotSubscribing() throws Exception {
+        String topic = "out/other";
+        connection.doReceive(true);
+        Capture<Topic[]> topics = new Capture<>();
+        expect(mqtt.blockingConnection()).andReturn(blockingConnection);
+        blockingConnection.connect();
+        expectLastCall();
+        expect(blockingConnection.subscribe(capture(topics))).andReturn(new byte[]{1, 1});
+        replay(mqtt, blockingConnection);
+
+        connection.addSubscriberTopic(topic);
+        connection.reconnectAndResubscribe();
+
+        verify(mqtt, blockingConnection);
+        assertEquals(2, topics.getValue().length);
+        assertEquals(SUBSCRIBER_TOPIC, topics.getValue()[0].name().toString());
+        assertEquals(topic, topics.getValue()[1].name().toString());
+    }
+
+    @Test
+    public void testAddSubscriberTopicWhenSubscribing() throws Exception {
+        String topic = "out/other";
+        connection.connection = blockingConnection;
+        connection.isSubscribing = true;
+        Capture<Topic[]> topics = new Capture<>();
+        expect(blockingConnection.isConnected()).andReturn(true);
+        expect(blockingConnection.subscribe(capture(topics))).andReturn(new byte[]{1});
+        replay(mqtt, blockingConnection);
+
+        connection.addSubscriberTopic(topic);
+        connection.addSubscriberTopic(topic);
+
+        verify(mqtt, blockingConnection);
+        assertEquals(1, topics.getValue().length);
+        assertEquals(topic, topics.getValue()[0].name().toString());
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testAddSubscriberTopicOnFailure() throws Exception {
+        connection.connection = blockingConnection;
+        connection.isSubscribing = true;
+        expect(blockingConnection.isConnected()).andReturn(true);
+        expect(blockingConnection.subscribe(anyObject(Topic[].class))).andThrow(new Exception("broken"));
+        replay(mqtt, blockingConnection);
+
+        connection.addSubscriberTopic("out/other");
+    }
+
+    @Test
+    public void testRemoveSubscriberTopic() throws Exception {
+        String topic = "out/other";
+        connection.connection = blockingConnection;
+        connection.addSubscriberTopic(topic);
+        connection.isSubscribing = true;
+        expect(blockingConnection.isConnected()).andReturn(true);
+        blockingConnection.unsubscribe(aryEq(new String[]{topic}));
+        expectLastCall();
+        replay(mqtt, blockingConnection);
+
+        connection.removeSubscriberTopic(topic);
+        connection.removeSubscriberTopic(topic);
+
+        verify(mqtt, blockingConnection);
+    }
+
+    @Test
+    public void testDisconnectWhenSubscribing() throws Exception {
+        String topic = "out/other";
+        connection.connection = blockingConnection;
+        connection.addSubscriberTopic(topic);
+        connection.isSubscribing = true;
+        blockingConnection.unsubscribe(aryEq(new String[]{SUBSCRIBER_TOPIC, topic}));
+        expectLastCall();
+        blockingConnection.disconnect();
+        expectLastCall();
+        replay(mqtt, blockingConnection);
+
+        connection.disconnect();
+
         verify(mqtt, blockingConnection);
     }
 
+    private void expectConfiguration(String clientId) throws Exception {
+        expectConfiguration(clientId, false);
+    }
+
+    private void expectConfiguration(String clientId, boolean cleanSession) throws Exception {
+        mqtt.setHost(HOST, PORT);
+        expectLastCall();
+        mqtt.setUserName(USERNAME);
+        expectLastCall();
+        mqtt.setClientId(clientId);
+        expectLastCall();
+        mqtt.setCleanSession(cleanSession);
+        expectLastCall();
+        mqtt.setConnectAttemptsMax(1);
+        expectLastCall();
+        mqtt.setReconnectAttemptsMax(0);
+        expectLastCall();
+    }
+
     @Test
     public void testPublish() throws Exception {
         String topic = "myTopic";
@@ -118,6 +346,20 @@ public class MqttConnectionTest {
         verify(mqtt, blockingConnection);
     }
 
+    @Test
+    public void testPublishAtMostOnce() throws Exception {
+        String topic = "myTopic";
+        byte[] message = "secret message".getBytes();
+        connection.connection = blockingConnection;
+        blockingConnection.publish(topic, message, QoS.AT_MOST_ONCE, false);
+        expectLastCall();
+        replay(mqtt, blockingConnection);
+
+        connection.publish(topic, message, Delivery.AT_MOST_ONCE);
+
+        verify(mqtt, blockingConnection);
+    }
+
     @Test
     public void testDisconnect() throws Exception {
         connection.connection = blockingConnection;
@@ -0,0 +1,497 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.beamproject.common.Participant;
+import org.beamproject.common.message.Message;
+import org.beamproject.common.util.Executor;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class MultiBrokerClientCarrierTest {
+
+    private final int NUMBER_OF_USERS = 200;
+    private final byte[] MESSAGE = "myMessage".getBytes();
+    private final Participant PARTICIPANT = Participant.generate();
+    private final static Participant[] PARTICIPANTS = new Participant[30];
+    private MultiBrokerClientCarrier carrier;
+    private Map<String, CarrierFake> fakes;
+
+    @BeforeClass
+    public static void generateParticipants() {
+        for (int i = 0; i < PARTICIPANTS.length; i++) {
+            PARTICIPANTS[i] = Participant.generate();
+        }
+    }
+
+    @Before
+    public void setUp() {
+        carrier = new MultiBrokerClientCarrier();
+        fakes = new HashMap<>();
+
+        for (int i = 0; i < 3; i++) {
+            addBroker("broker" + i);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddBrokerOnNulls() {
+        carrier.addBroker(null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAddBrokerOnDuplicate() {
+        carrier.addBroker("broker0", new CarrierFake());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRemoveBrokerOnUnknown() {
+        carrier.removeBroker("unknown");
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testDeliverMessageWithoutBrokers() {
+        carrier = new MultiBrokerClientCarrier();
+        carrier.deliverMessage(MESSAGE, "out/username");
+    }
+
+    @Test
+    public void testDeliverMessageAsyncWithoutBrokers() {
+        carrier = new MultiBrokerClientCarrier();
+        DeliveryFuture future = carrier.deliverMessageAsync(MESSAGE, "out/username", Delivery.AT_MOST_ONCE);
+
+        assertTrue(future.isDone());
+        assertTrue(future.getFailure() instanceof CarrierException);
+    }
+
+    @Test
+    public void testDeliverMessage() throws InterruptedException {
+        for (int i = 0; i < NUMBER_OF_USERS; i++) {
+            carrier.deliverMessage(MESSAGE, "out/user" + i);
+        }
+
+        for (int i = 0; i < NUMBER_OF_USERS; i++) {
+            String broker = carrier.getBrokerName("user" + i);
+            CarrierFake.Received delivered = fakes.get(broker).delivered.poll();
+
+            assertNotNull(delivered);
+            assertArrayEquals(MESSAGE, delivered.message);
+            assertEquals(broker, carrier.getBrokerName(TopicRouter.extractUsername(delivered.topic)));
+        }
+
+        for (CarrierFake fake : fakes.values()) {
+            assertTrue(fake.delivered.isEmpty());
+        }
+    }
+
+    @Test
+    public void testReceive() {
+        String broker = carrier.getBrokerName("username");
+
+        carrier.receive(MESSAGE, "out/username");
+        carrier.receive(ByteBuffer.wrap(MESSAGE), "out/username");
+
+        assertEquals(2, fakes.get(broker).received.size());
+    }
+
+    @Test
+    public void testBindParticipantToTopic() {
+        carrier.bindParticipantToTopic(PARTICIPANT, "out/username");
+
+        String broker = carrier.getBrokerName("username");
+        assertEquals("out/username", fakes.get(broker).bindings.get(PARTICIPANT));
+        assertEquals(1, countBindings());
+    }
+
+    @Test
+    public void testBindParticipantToTopicMovesBinding() {
+        carrier.bindParticipantToTopic(PARTICIPANT, "out/user0");
+        String other = findUserOnOtherBroker(carrier.getBrokerName("user0"));
+        carrier.bindParticipantToTopic(PARTICIPANT, "out/" + other);
+
+        assertEquals("out/" + other, fakes.get(carrier.getBrokerName(other)).bindings.get(PARTICIPANT));
+        assertEquals(1, countBindings());
+    }
+
+    @Test
+    public void testBindParticipantsToTopics() {
+        Map<Participant, String> bindings = bindManyParticipants();
+
+        for (Map.Entry<Participant, String> entry : bindings.entrySet()) {
+            String broker = carrier.getBrokerName(TopicRouter.extractUsername(entry.getValue()));
+            assertEquals(entry.getValue(), fakes.get(broker).bindings.get(entry.getKey()));
+        }
+
+        assertEquals(bindings.size(), countBindings());
+    }
+
+    @Test
+    public void testUnbindParticipants() {
+        Map<Participant, String> bindings = bindManyParticipants();
+        carrier.bindParticipantToTopic(PARTICIPANT, "out/username");
+
+        carrier.unbindParticipant(PARTICIPANT);
+        assertEquals(bindings.size(), countBindings());
+
+        carrier.unbindParticipants(bindings.keySet());
+        assertEquals(0, countBindings());
+        assertTrue(carrier.bindings.isEmpty());
+    }
+
+    @Test
+    public void testAddBrokerRebalances() {
+        Map<Participant, String> bindings = bindManyParticipants();
+        CarrierFake added = addBroker("broker3");
+
+        assertFalse(added.bindings.isEmpty());
+        assertEquals(bindings.size(), countBindings());
+        assertBindingsAtTheirBrokers(bindings);
+    }
+
+    @Test
+    public void testRemoveBrokerRebalances() {
+        Map<Participant, String> bindings = bindManyParticipants();
+        CarrierFake removed = fakes.remove("broker0");
+        int removedBindings = removed.bindings.size();
+
+        assertSame(removed, carrier.removeBroker("broker0"));
+
+        assertTrue(removedBindings > 0);
+        assertTrue(removed.bindings.isEmpty());
+        assertFalse(removed.isShutdown);
+        assertEquals(2, carrier.getNumberOfBrokers());
+        assertEquals(bindings.size(), countBindings());
+        assertBindingsAtTheirBrokers(bindings);
+    }
+
+    @Test
+    public void testAddSubscriberTopic() {
+        carrier.addSubscriberTopic("out/username");
+        carrier.addSubscriberTopic("out/username");
+
+        String broker = carrier.getBrokerName("username");
+        assertTrue(fakes.get(broker).subscriberTopics.contains("out/username"));
+        assertEquals(1, countSubscriberTopics());
+    }
+
+    @Test
+    public void testRemoveSubscriberTopic() {
+        carrier.addSubscriberTopic("out/username");
+
+        carrier.removeSubscriberTopic("out/username");
+        carrier.removeSubscriberTopic("out/username");
+
+        assertEquals(0, countSubscriberTopics());
+        assertTrue(carrier.subscriptions.isEmpty());
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testAddSubscriberTopicWithoutBrokers() {
+        carrier = new MultiBrokerClientCarrier();
+        carrier.addSubscriberTopic("out/username");
+    }
+
+    @Test
+    public void testAddBrokerMovesSubscriberTopics() {
+        subscribeManyTopics();
+        CarrierFake added = addBroker("broker3");
+
+        assertFalse(added.subscriberTopics.isEmpty());
+        assertEquals(PARTICIPANTS.length, countSubscriberTopics());
+        assertSubscriberTopicsAtTheirBrokers();
+    }
+
+    @Test
+    public void testRemoveBrokerMovesSubscriberTopics() {
+        subscribeManyTopics();
+        CarrierFake removed = fakes.remove("broker0");
+        assertFalse(removed.subscriberTopics.isEmpty());
+
+        carrier.removeBroker("broker0");
+
+        assertTrue(removed.subscriberTopics.isEmpty());
+        assertEquals(PARTICIPANTS.length, countSubscriberTopics());
+        assertSubscriberTopicsAtTheirBrokers();
+    }
+
+    @Test
+    public void testRemoveLastBrokerKeepsSubscriberTopics() {
+        carrier = new MultiBrokerClientCarrier();
+        fakes.clear();
+        CarrierFake removed = addBroker("broker0");
+        carrier.addSubscriberTopic("out/username");
+
+        carrier.removeBroker("broker0");
+        fakes.remove("broker0");
+        CarrierFake added = addBroker("broker1");
+
+        assertTrue(removed.subscriberTopics.isEmpty());
+        assertTrue(added.subscriberTopics.contains("out/username"));
+    }
+
+    @Test
+    public void testDeliverMessageAfterRebalance() throws Exception {
+        EmbeddedMqttBroker firstBroker = new EmbeddedMqttBroker();
+        EmbeddedMqttBroker secondBroker = new EmbeddedMqttBroker();
+        ModelFake model = new ModelFake();
+        ClientCarrierImpl first = createCarrier(firstBroker, model, "gateway0");
+        ClientCarrierImpl second = createCarrier(secondBroker, model, "gateway1");
+        String username = findUserMovingTo("second", "first", "second");
+        String topic = "out/" + username;
+        carrier = new MultiBrokerClientCarrier();
+        carrier.addBroker("first", first);
+
+        try {
+            carrier.addSubscriberTopic(topic);
+            carrier.startReceiving();
+            awaitDelivery(model, topic, "beforeRebalance".getBytes());
+
+            carrier.addBroker("second", second);
+
+            assertEquals("second", carrier.getBrokerName(username));
+            awaitDelivery(model, topic, "afterRebalance".getBytes());
+            assertFalse(first.subscriberTopics.contains(topic));
+
+            byte[] viaOldBroker = "viaOldBroker".getBytes();
+            first.deliverMessage(viaOldBroker, topic);
+            assertFalse(receives(model, viaOldBroker, 200));
+        } finally {
+            carrier.shutdown();
+            firstBroker.shutdown();
+            secondBroker.shutdown();
+        }
+    }
+
+    @Test
+    public void testRebalanceWithoutChanges() {
+        bindManyParticipants();
+        assertEquals(0, carrier.rebalance());
+    }
+
+    @Test
+    public void testStartAndStopReceiving() {
+        carrier.startReceiving();
+        CarrierFake added = addBroker("broker3");
+
+        for (CarrierFake fake : fakes.values()) {
+            assertTrue(fake.isReceiving);
+        }
+
+        carrier.stopReceiving();
+
+        for (CarrierFake fake : fakes.values()) {
+            assertFalse(fake.isReceiving);
+        }
+
+        assertFalse(added.isShutdown);
+    }
+
+    @Test
+    public void testShutdown() {
+        carrier.shutdown();
+
+        for (CarrierFake fake : fakes.values()) {
+            assertTrue(fake.isShutdown);
+        }
+    }
+
+    @Test
+    public void testGetBrokerNameWithoutBrokers() {
+        assertNull(new MultiBrokerClientCarrier().getBrokerName("username"));
+    }
+
+    private CarrierFake addBroker(String name) {
+        CarrierFake fake = new CarrierFake();
+        fakes.put(name, fake);
+        carrier.addBroker(name, fake);
+        return fake;
+    }
+
+    private Map<Participant, String> bindManyParticipants() {
+        Map<Participant, String> bindings = new HashMap<>();
+
+        for (int i = 0; i < PARTICIPANTS.length; i++) {
+            bindings.put(PARTICIPANTS[i], "out/user" + i);
+        }
+
+        carrier.bindParticipantsToTopics(bindings);
+        return bindings;
+    }
+
+    private void subscribeManyTopics() {
+        for (int i = 0; i < PARTICIPANTS.length; i++) {
+            carrier.addSubscriberTopic("out/user" + i);
+        }
+    }
+
+    private void assertSubscriberTopicsAtTheirBrokers() {
+        for (int i = 0; i < PARTICIPANTS.length; i++) {
+            String broker = carrier.getBrokerName("user" + i);
+            assertTrue(fakes.get(broker).subscriberTopics.contains("out/user" + i));
+        }
+    }
+
+    private int countSubscriberTopics() {
+        int count = 0;
+
+        for (CarrierFake fake : fakes.values()) {
+            count += fake.subscriberTopics.size();
+        }
+
+        return count;
+    }
+
+    private ClientCarrierImpl createCarrier(EmbeddedMqttBroker broker, ModelFake model, String gateway) {
+        MqttConnectionPool pool = new MqttConnectionPool(new MqttConnectionPoolFactory(
+                broker.getHost(), broker.getPort(), gateway, "out/" + gateway));
+        return new ClientCarrierImpl(model, new Executor(), pool);
+    }
+
+    /**
+     * @return A username, which is mapped onto the given broker only once all
+     * the given brokers are added.
+     */
+    private String findUserMovingTo(String broker, String... brokers) {
+        ConsistentHashRing<String> ring = new ConsistentHashRing<>();
+
+        for (String name : brokers) {
+            ring.add(name);
+        }
+
+        for (int i = 0; i < NUMBER_OF_USERS; i++) {
+            if (broker.equals(ring.get("user" + i))) {
+                return "user" + i;
+            }
+        }
+
+        throw new AssertionError("No user is on " + broker + ".");
+    }
+
+    /**
+     * Delivers the given message until it arrives, since the subscription is
+     * established in the background.
+     */
+    private void awaitDelivery(ModelFake model, String topic, byte[] message) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + CarrierFake.TIMEOUT_IN_MILLISECONDS;
+
+        while (System.currentTimeMillis() < deadline) {
+            carrier.deliverMessage(message, topic);
+
+            if (receives(model, message, 50)) {
+                return;
+            }
+        }
+
+        throw new AssertionError("The message did not arrive in time.");
+    }
+
+    private boolean receives(ModelFake model, byte[] message, long timeoutInMilliseconds) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutInMilliseconds;
+        long remaining;
+
+        while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+            byte[] received = model.messages.poll(remaining, TimeUnit.MILLISECONDS);
+
+            if (received != null && Arrays.equals(message, received)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void assertBindingsAtTheirBrokers(Map<Participant, String> bindings) {
+        for (Map.Entry<Participant, String> entry : bindings.entrySet()) {
+            String broker = carrier.getBrokerName(TopicRouter.extractUsername(entry.getValue()));
+            assertEquals(entry.getValue(), fakes.get(broker).bindings.get(entry.getKey()));
+        }
+    }
+
+    private String findUserOnOtherBroker(String broker) {
+        for (int i = 1; i < NUMBER_OF_USERS; i++) {
+            if (!broker.equals(carrier.getBrokerName("user" + i))) {
+                return "user" + i;
+            }
+        }
+
+        throw new AssertionError("All users are on " + broker + ".");
+    }
+
+    private int countBindings() {
+        int count = 0;
+
+        for (CarrierFake fake : fakes.values()) {
+            count += fake.bindings.size();
+        }
+
+        return count;
+    }
+
+    /**
+     * Collects the received messages of all brokers.
+     */
+    private static class ModelFake implements ClientCarrierModel {
+
+        final BlockingQueue<byte[]> messages = new LinkedBlockingQueue<>();
+
+        @Override
+        public void consumeMessage(byte[] message, String sender) {
+            messages.add(message);
+        }
+
+        @Override
+        public void consumeMessage(ByteBuffer message, String sender) {
+            byte[] bytes = new byte[message.remaining()];
+            message.duplicate().get(bytes);
+            messages.add(bytes);
+        }
+
+        @Override
+        public void startReceiving() {
+        }
+
+        @Override
+        public void stopReceiving() {
+        }
+
+        @Override
+        public void encryptAndSend(Message message, String target) {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+}
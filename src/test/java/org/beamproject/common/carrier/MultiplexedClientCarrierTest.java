@@ -0,0 +1,302 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import org.beamproject.common.ExecutorFake;
+import org.beamproject.common.message.Message;
+import org.beamproject.common.util.Executor;
+import static org.easymock.EasyMock.aryEq;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MultiplexedClientCarrierTest {
+
+    private final String USERNAME = "username";
+    private final String OTHER_USERNAME = "other";
+    private final String GATEWAY = "gateway";
+    private final byte[] MESSAGE = "myMessage".getBytes();
+    private MqttConnectionPool connectionPool;
+    private ClientCarrierModel model;
+    private ClientCarrierModel otherModel;
+    private MultiplexedClientCarrier carrier;
+
+    @Before
+    public void setUp() {
+        connectionPool = createMock(MqttConnectionPool.class);
+        model = createMock(ClientCarrierModel.class);
+        otherModel = createMock(ClientCarrierModel.class);
+        carrier = new MultiplexedClientCarrier(new ExecutorFake(), connectionPool);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRegisterOnNulls() {
+        carrier.register(null, null);
+    }
+
+    @Test
+    public void testRegister() {
+        carrier.register(USERNAME, model);
+        carrier.register(OTHER_USERNAME, otherModel);
+
+        assertSame(model, carrier.getModel(USERNAME));
+        assertEquals(2, carrier.getNumberOfModels());
+    }
+
+    @Test
+    public void testUnregister() {
+        carrier.register(USERNAME, model);
+
+        assertSame(model, carrier.unregister(USERNAME));
+        assertNull(carrier.unregister(USERNAME));
+        assertEquals(0, carrier.getNumberOfModels());
+    }
+
+    @Test
+    public void testReceive() {
+        carrier.register(USERNAME, model);
+        carrier.register(OTHER_USERNAME, otherModel);
+        model.consumeMessage(aryEq(MESSAGE), eq(USERNAME));
+        otherModel.consumeMessage(eq(ByteBuffer.wrap(MESSAGE)), eq(OTHER_USERNAME));
+        replay(model, otherModel);
+
+        carrier.receive(MESSAGE, "out/" + USERNAME);
+        carrier.receive(ByteBuffer.wrap(MESSAGE), "out/" + OTHER_USERNAME);
+
+        verify(model, otherModel);
+        assertEquals(0, carrier.getUnroutableMessages());
+    }
+
+    @Test
+    public void testReceiveOnUnregisteredUsername() {
+        carrier.register(USERNAME, model);
+        replay(model);
+
+        carrier.receive(MESSAGE, "out/" + OTHER_USERNAME);
+        carrier.receive(ByteBuffer.wrap(MESSAGE), "out/" + OTHER_USERNAME);
+
+        verify(model);
+        assertEquals(2, carrier.getUnroutableMessages());
+    }
+
+    @Test
+    public void testReceiveAppliesDuplicateFilter() {
+        carrier.register(USERNAME, model);
+        carrier.setDuplicateFilter(new DuplicateFilter(10, 1000));
+        model.consumeMessage(aryEq(MESSAGE), eq(USERNAME));
+        replay(model);
+
+        carrier.receive(MESSAGE, "out/" + USERNAME);
+        carrier.receive(MESSAGE, "out/" + USERNAME);
+
+        verify(model);
+    }
+
+    @Test
+    public void testReceiveWithReceivePipeline() throws Exception {
+        ModelFake fake = new ModelFake();
+        carrier.register(USERNAME, fake);
+        ReceivePipeline<ClientCarrierModel> pipeline = new ReceivePipeline<>(new Executor(), model, 2);
+        pipeline.start();
+        carrier.setReceivePipeline(pipeline);
+        replay(model);
+
+        try {
+            carrier.receive(MESSAGE, "out/" + USERNAME);
+            carrier.receive(ByteBuffer.wrap(MESSAGE), "out/" + USERNAME);
+
+            assertArrayEquals(MESSAGE, fake.take());
+            assertArrayEquals(MESSAGE, fake.take());
+        } finally {
+            pipeline.shutdown();
+        }
+
+        verify(model);
+    }
+
+    @Test
+    public void testStartReceivingSubscribesOnce() {
+        MqttConnection connection = createMock(MqttConnection.class);
+        carrier.register(USERNAME, model);
+        expect(connectionPool.createSubscriberConnection()).andReturn(connection);
+        connection.addSubscriberTopic("out/" + USERNAME);
+        expectLastCall();
+        connection.subscribe(carrier);
+        expectLastCall();
+        connection.disconnect();
+        expectLastCall();
+        replay(connectionPool, connection, model);
+
+        carrier.startReceiving();
+        carrier.startReceiving();
+
+        verify(connectionPool, connection, model);
+        assertEquals(2, carrier.receivers);
+    }
+
+    @Test
+    public void testStopReceivingOnceAllReceiversStopped() {
+        MqttConnection connection = createMock(MqttConnection.class);
+        carrier.subscriberConnection = connection;
+        carrier.receivers = 2;
+        connection.doReceive(false);
+        expectLastCall();
+        replay(connection);
+
+        carrier.stopReceiving();
+        carrier.stopReceiving();
+
+        verify(connection);
+        assertEquals(0, carrier.receivers);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStopReceivingWhenNotReceiving() {
+        carrier.stopReceiving();
+    }
+
+    @Test
+    public void testRegisterAndUnregisterWhileReceiving() {
+        MqttConnection connection = createMock(MqttConnection.class);
+        carrier.subscriberConnection = connection;
+        connection.addSubscriberTopic("out/" + USERNAME);
+        expectLastCall();
+        connection.removeSubscriberTopic("out/" + USERNAME);
+        expectLastCall();
+        replay(connection);
+
+        carrier.register(USERNAME, model);
+        carrier.unregister(USERNAME);
+        carrier.unregister(USERNAME);
+
+        verify(connection);
+    }
+
+    @Test
+    public void testReceiveViaBroker() throws Exception {
+        EmbeddedMqttBroker broker = new EmbeddedMqttBroker();
+        MqttConnectionPool pool = new MqttConnectionPool(new MqttConnectionPoolFactory(
+                broker.getHost(), broker.getPort(), GATEWAY, "out/" + GATEWAY));
+        carrier = new MultiplexedClientCarrier(new Executor(), pool);
+        ModelFake fake = new ModelFake();
+        ModelFake otherFake = new ModelFake();
+        carrier.register(USERNAME, fake);
+
+        try {
+            carrier.startReceiving();
+            waitForSubscription(broker);
+            long unroutableMessages = carrier.getUnroutableMessages();
+            carrier.register(OTHER_USERNAME, otherFake);
+
+            carrier.deliverMessage(MESSAGE, "out/" + USERNAME);
+            carrier.deliverMessage(MESSAGE, "out/" + OTHER_USERNAME);
+            carrier.deliverMessage(MESSAGE, "out/unknown");
+
+            assertArrayEquals(MESSAGE, fake.take());
+            assertArrayEquals(MESSAGE, otherFake.take());
+            assertNull(fake.messages.poll(100, TimeUnit.MILLISECONDS));
+            assertEquals(unroutableMessages, carrier.getUnroutableMessages());
+            long deliveredMessages = broker.getDeliveredMessages();
+
+            carrier.unregister(OTHER_USERNAME);
+            carrier.deliverMessage(MESSAGE, "out/" + OTHER_USERNAME);
+
+            assertNull(otherFake.messages.poll(100, TimeUnit.MILLISECONDS));
+            assertEquals(deliveredMessages, broker.getDeliveredMessages());
+            assertEquals(unroutableMessages, carrier.getUnroutableMessages());
+        } finally {
+            carrier.shutdown();
+            broker.shutdown();
+        }
+    }
+
+    private void waitForSubscription(EmbeddedMqttBroker broker) throws Exception {
+        long deadline = System.currentTimeMillis() + CarrierFake.TIMEOUT_IN_MILLISECONDS;
+
+        while (carrier.getUnroutableMessages() == 0) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new AssertionError("The carrier did not subscribe in time.");
+            }
+
+            carrier.deliverMessage(MESSAGE, "out/" + GATEWAY);
+            Thread.sleep(20);
+        }
+
+        while (carrier.getUnroutableMessages() < broker.getDeliveredMessages()) {
+            Thread.sleep(20);
+        }
+    }
+
+    /**
+     * Collects the received messages of a single username.
+     */
+    private static class ModelFake implements ClientCarrierModel {
+
+        final BlockingQueue<byte[]> messages = new LinkedBlockingQueue<>();
+
+        byte[] take() throws InterruptedException {
+            byte[] message = messages.poll(CarrierFake.TIMEOUT_IN_MILLISECONDS, TimeUnit.MILLISECONDS);
+            assertNotNull("No message received in time.", message);
+            return message;
+        }
+
+        @Override
+        public void consumeMessage(byte[] message, String sender) {
+            messages.add(message);
+        }
+
+        @Override
+        public void consumeMessage(ByteBuffer message, String sender) {
+            byte[] bytes = new byte[message.remaining()];
+            message.duplicate().get(bytes);
+            messages.add(bytes);
+        }
+
+        @Override
+        public void startReceiving() {
+        }
+
+        @Override
+        public void stopReceiving() {
+        }
+
+        @Override
+        public void encryptAndSend(Message message, String target) {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+}
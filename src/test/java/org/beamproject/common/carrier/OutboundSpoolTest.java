@@ -0,0 +1,274 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.io.File;
+import java.io.IOException;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class OutboundSpoolTest {
+
+    private final String TOPIC = "out/username";
+    private final byte[] MESSAGE = "myMessage".getBytes();
+    private final int SEGMENT_SIZE = 128;
+    private final int RECORD_LENGTH = 8 + TOPIC.length() + MESSAGE.length;
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    private File directory;
+    private OutboundSpool spool;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = folder.newFolder();
+        spool = new OutboundSpool(directory, SEGMENT_SIZE);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnNull() {
+        spool = new OutboundSpool(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnTooSmallSegments() {
+        spool = new OutboundSpool(directory, 8);
+    }
+
+    @Test
+    public void testConstructorCreatesDirectory() {
+        File subdirectory = new File(directory, "spool");
+        spool = new OutboundSpool(subdirectory, SEGMENT_SIZE);
+
+        assertTrue(subdirectory.isDirectory());
+        assertTrue(spool.isEmpty());
+        assertEquals(0, spool.getSegments());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAppendOnNulls() {
+        spool.append(null, null, null);
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testAppendOnTooLargeMessage() {
+        spool.append(TOPIC, new byte[SEGMENT_SIZE], Delivery.AT_LEAST_ONCE);
+    }
+
+    @Test
+    public void testAppendAndPeek() {
+        spool.append(TOPIC, MESSAGE, Delivery.AT_MOST_ONCE);
+
+        Publication publication = spool.peek();
+        assertEquals(TOPIC, publication.topic);
+        assertArrayEquals(MESSAGE, publication.message);
+        assertEquals(Delivery.AT_MOST_ONCE, publication.delivery);
+        assertEquals(1, spool.size());
+        assertEquals(1, spool.getSegments());
+    }
+
+    @Test
+    public void testPeekOnEmptySpool() {
+        assertNull(spool.peek());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAcknowledgeOnEmptySpool() {
+        spool.acknowledge();
+    }
+
+    @Test
+    public void testAcknowledgeKeepsOrder() {
+        for (int i = 0; i < 20; i++) {
+            spool.append(TOPIC, new byte[]{(byte) i}, Delivery.AT_LEAST_ONCE);
+        }
+
+        assertTrue(spool.getSegments() > 1);
+
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, spool.peek().message[0]);
+            spool.acknowledge();
+        }
+
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    public void testRollingSegments() {
+        int recordsPerSegment = SEGMENT_SIZE / RECORD_LENGTH;
+
+        for (int i = 0; i < recordsPerSegment; i++) {
+            spool.append(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        }
+
+        assertEquals(1, spool.getSegments());
+
+        spool.append(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+
+        assertEquals(2, spool.getSegments());
+        assertEquals(2, directory.list().length);
+    }
+
+    @Test
+    public void testCompactionAfterAcknowledgement() {
+        int recordsPerSegment = SEGMENT_SIZE / RECORD_LENGTH;
+
+        for (int i = 0; i <= recordsPerSegment; i++) {
+            spool.append(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        }
+
+        for (int i = 0; i < recordsPerSegment; i++) {
+            spool.acknowledge();
+        }
+
+        assertEquals(1, spool.getSegments());
+        assertEquals(1, directory.list().length);
+
+        spool.acknowledge();
+
+        assertEquals(1, spool.getSegments());
+        assertEquals(1, directory.list().length);
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    public void testAppendAfterDrainingReusesSegment() {
+        int recordsPerSegment = SEGMENT_SIZE / RECORD_LENGTH;
+
+        for (int cycle = 0; cycle < 3; cycle++) {
+            for (int i = 0; i < recordsPerSegment; i++) {
+                spool.append(TOPIC, new byte[]{(byte) i}, Delivery.AT_LEAST_ONCE);
+            }
+
+            for (int i = 0; i < recordsPerSegment; i++) {
+                assertEquals(i, spool.peek().message[0]);
+                spool.acknowledge();
+            }
+        }
+
+        assertEquals(1, spool.getSegments());
+        assertEquals(1, directory.list().length);
+        assertTrue(new File(directory, OutboundSpool.SEGMENT_PREFIX + 0 + OutboundSpool.SEGMENT_SUFFIX).exists());
+    }
+
+    @Test
+    public void testRecoveryIgnoresRecordsOfEarlierUse() {
+        byte[] message = new byte[40];
+        message[1] = 1;
+        message[8] = 4;
+        spool.append(TOPIC, message, Delivery.AT_LEAST_ONCE);
+        spool.acknowledge();
+
+        spool.append(TOPIC, "x".getBytes(), Delivery.AT_LEAST_ONCE);
+        spool.close();
+        spool = new OutboundSpool(directory, SEGMENT_SIZE);
+
+        assertEquals(1, spool.size());
+        assertArrayEquals("x".getBytes(), spool.peek().message);
+    }
+
+    @Test
+    public void testRecovery() {
+        for (int i = 0; i < 20; i++) {
+            spool.append(TOPIC, new byte[]{(byte) i}, Delivery.AT_LEAST_ONCE);
+        }
+
+        for (int i = 0; i < 5; i++) {
+            spool.acknowledge();
+        }
+
+        spool.close();
+        spool = new OutboundSpool(directory, SEGMENT_SIZE);
+
+        assertEquals(15, spool.size());
+
+        for (int i = 5; i < 20; i++) {
+            assertEquals(i, spool.peek().message[0]);
+            spool.acknowledge();
+        }
+
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    public void testRecoveryIgnoresForeignFiles() throws IOException {
+        assertTrue(new File(directory, "segment-x.spool").createNewFile());
+        assertTrue(new File(directory, "notes.txt").createNewFile());
+
+        spool = new OutboundSpool(directory, SEGMENT_SIZE);
+
+        assertTrue(spool.isEmpty());
+    }
+
+    @Test
+    public void testAppendAfterRecovery() {
+        spool.append(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        spool.close();
+        spool = new OutboundSpool(directory, SEGMENT_SIZE);
+
+        spool.append(TOPIC, "second".getBytes(), Delivery.AT_LEAST_ONCE);
+
+        assertArrayEquals(MESSAGE, spool.peek().message);
+        spool.acknowledge();
+        assertArrayEquals("second".getBytes(), spool.peek().message);
+        spool.acknowledge();
+        assertFalse(spool.size() > 0);
+    }
+
+    @Test
+    public void testClose() {
+        spool.append(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+
+        spool.close();
+        spool.close();
+
+        assertTrue(spool.isClosed());
+        assertEquals(1, spool.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPeekAfterClose() {
+        spool.append(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        spool.close();
+
+        spool.peek();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAcknowledgeAfterClose() {
+        spool.append(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+        spool.close();
+
+        spool.acknowledge();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testAppendAfterClose() {
+        spool.close();
+
+        spool.append(TOPIC, MESSAGE, Delivery.AT_LEAST_ONCE);
+    }
+
+}
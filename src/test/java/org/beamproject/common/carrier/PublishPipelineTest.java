@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.beamproject.common.ExecutorFake;
+import static org.easymock.EasyMock.aryEq;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.createStrictMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.getCurrentArguments;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import org.easymock.IAnswer;
+import org.fusesource.mqtt.client.Callback;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PublishPipelineTest {
+
+    private final String TOPIC_A = "out/a";
+    private final String TOPIC_B = "out/b";
+    private final byte[] MESSAGE = "message".getBytes();
+    private final int WINDOW = 4;
+    private AsyncMqttConnection connection;
+    private PublishPipeline pipeline;
+    private List<Callback<Void>> callbacks;
+
+    @Before
+    public void setUp() {
+        connection = createMock(AsyncMqttConnection.class);
+        pipeline = new PublishPipeline(new ExecutorFake(), connection, 10, WINDOW);
+        callbacks = new ArrayList<>();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnNulls() {
+        pipeline = new PublishPipeline(null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnZeroCapacity() {
+        pipeline = new PublishPipeline(new ExecutorFake(), connection, 0, WINDOW);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnZeroWindow() {
+        pipeline = new PublishPipeline(new ExecutorFake(), connection, 10, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEnqueueOnNulls() {
+        pipeline.enqueue(null, null);
+    }
+
+    @Test
+    public void testEnqueue() {
+        connection.publish(eq(TOPIC_A), aryEq(MESSAGE), eq(Delivery.AT_LEAST_ONCE), isA(Callback.class));
+        expectLastCall().andAnswer(new CallbackCollector());
+        replay(connection);
+
+        pipeline.enqueue(TOPIC_A, MESSAGE);
+
+        assertEquals(0, pipeline.getQueuedMessages());
+        assertEquals(WINDOW - 1, pipeline.window.availablePermits());
+        assertFalse(pipeline.isDraining.get());
+        verify(connection);
+    }
+
+    @Test
+    public void testEnqueueInFifoOrder() {
+        byte[] first = "1".getBytes();
+        byte[] second = "2".getBytes();
+        byte[] third = "3".getBytes();
+        connection = createStrictMock(AsyncMqttConnection.class);
+        pipeline = new PublishPipeline(new ExecutorFake(), connection, 10, WINDOW);
+        pipeline.queue.add(new Publication(TOPIC_A, first));
+        pipeline.queue.add(new Publication(TOPIC_B, second));
+        pipeline.queue.add(new Publication(TOPIC_A, third));
+        connection.publish(eq(TOPIC_A), aryEq(first), eq(Delivery.AT_LEAST_ONCE), isA(Callback.class));
+        expectLastCall().andAnswer(new CallbackCollector());
+        connection.publish(eq(TOPIC_B), aryEq(second), eq(Delivery.AT_LEAST_ONCE), isA(Callback.class));
+        expectLastCall().andAnswer(new CallbackCollector());
+        connection.publish(eq(TOPIC_A), aryEq(third), eq(Delivery.AT_LEAST_ONCE), isA(Callback.class));
+        expectLastCall().andAnswer(new CallbackCollector());
+        connection.publish(eq(TOPIC_B), aryEq(MESSAGE), eq(Delivery.AT_LEAST_ONCE), isA(Callback.class));
+        expectLastCall().andAnswer(new CallbackCollector());
+        replay(connection);
+
+        pipeline.enqueue(TOPIC_B, MESSAGE);
+
+        verify(connection);
+    }
+
+    @Test
+    public void testWindowOnAcknowledgements() {
+        connection.publish(eq(TOPIC_A), aryEq(MESSAGE), eq(Delivery.AT_LEAST_ONCE), isA(Callback.class));
+        expectLastCall().andAnswer(new CallbackCollector()).times(2);
+        replay(connection);
+
+        pipeline.enqueue(TOPIC_A, MESSAGE);
+        pipeline.enqueue(TOPIC_A, MESSAGE);
+        assertEquals(WINDOW - 2, pipeline.window.availablePermits());
+
+        callbacks.get(0).onSuccess(null);
+        callbacks.get(1).onFailure(new Exception("rejected"));
+        assertEquals(WINDOW, pipeline.window.availablePermits());
+    }
+
+    @Test
+    public void testEnqueueAtMostOnce() {
+        connection.publish(eq(TOPIC_A), aryEq(MESSAGE), eq(Delivery.AT_MOST_ONCE), isA(Callback.class));
+        expectLastCall().andAnswer(new CallbackCollector());
+        replay(connection);
+
+        pipeline.enqueue(TOPIC_A, MESSAGE, Delivery.AT_MOST_ONCE);
+
+        verify(connection);
+    }
+
+    @Test
+    public void testWindowOnPublishException() {
+        connection.publish(eq(TOPIC_A), aryEq(MESSAGE), eq(Delivery.AT_LEAST_ONCE), isA(Callback.class));
+        expectLastCall().andThrow(new IllegalStateException("not connected"));
+        replay(connection);
+
+        pipeline.enqueue(TOPIC_A, MESSAGE);
+
+        assertEquals(WINDOW, pipeline.window.availablePermits());
+        assertFalse(pipeline.isDraining.get());
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testEnqueueOnFullQueue() {
+        pipeline.isDraining.set(true);
+
+        for (int i = 0; i <= 10; i++) {
+            pipeline.enqueue(TOPIC_A, MESSAGE);
+        }
+    }
+
+    @Test
+    public void testEnqueueAsyncOnAcknowledgement() {
+        connection.publish(eq(TOPIC_A), aryEq(MESSAGE), eq(Delivery.AT_LEAST_ONCE), isA(Callback.class));
+        expectLastCall().andAnswer(new CallbackCollector());
+        replay(connection);
+
+        DeliveryFuture future = pipeline.enqueueAsync(TOPIC_A, MESSAGE, Delivery.AT_LEAST_ONCE);
+        assertFalse(future.isDone());
+
+        callbacks.get(0).onSuccess(null);
+        assertTrue(future.isSuccessful());
+    }
+
+    @Test
+    public void testEnqueueAsyncOnRejection() {
+        Exception rejection = new Exception("rejected");
+        connection.publish(eq(TOPIC_A), aryEq(MESSAGE), eq(Delivery.AT_LEAST_ONCE), isA(Callback.class));
+        expectLastCall().andAnswer(new CallbackCollector());
+        replay(connection);
+
+        DeliveryFuture future = pipeline.enqueueAsync(TOPIC_A, MESSAGE, Delivery.AT_LEAST_ONCE);
+        callbacks.get(0).onFailure(rejection);
+
+        assertSame(rejection, future.getFailure());
+    }
+
+    @Test
+    public void testEnqueueAsyncOnPublishException() {
+        connection.publish(eq(TOPIC_A), aryEq(MESSAGE), eq(Delivery.AT_LEAST_ONCE), isA(Callback.class));
+        expectLastCall().andThrow(new IllegalStateException("not connected"));
+        replay(connection);
+
+        DeliveryFuture future = pipeline.enqueueAsync(TOPIC_A, MESSAGE, Delivery.AT_LEAST_ONCE);
+
+        assertTrue(future.getFailure() instanceof IllegalStateException);
+    }
+
+    @Test
+    public void testEnqueueAsyncOnFullQueue() {
+        pipeline.isDraining.set(true);
+
+        for (int i = 0; i < 10; i++) {
+            pipeline.enqueue(TOPIC_A, MESSAGE);
+        }
+
+        DeliveryFuture future = pipeline.enqueueAsync(TOPIC_A, MESSAGE, Delivery.AT_LEAST_ONCE);
+
+        assertTrue(future.getFailure() instanceof CarrierException);
+    }
+
+    private class CallbackCollector implements IAnswer<Object> {
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Object answer() throws Throwable {
+            callbacks.add((Callback<Void>) getCurrentArguments()[3]);
+            return null;
+        }
+    }
+
+}
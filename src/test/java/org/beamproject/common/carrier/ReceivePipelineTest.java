@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.beamproject.common.message.Message;
+import org.beamproject.common.util.Executor;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReceivePipelineTest {
+
+    private final int NUMBER_OF_WORKERS = 4;
+    private final int NUMBER_OF_SENDERS = 16;
+    private final int MESSAGES_PER_SENDER = 100;
+    private CarrierModelFake model;
+    private Executor executor;
+    private ReceivePipeline<CarrierModelFake> pipeline;
+
+    @Before
+    public void setUp() {
+        executor = new Executor();
+        model = new CarrierModelFake(NUMBER_OF_SENDERS * MESSAGES_PER_SENDER);
+        pipeline = new ReceivePipeline<>(executor, model, NUMBER_OF_WORKERS);
+        pipeline.start();
+    }
+
+    @After
+    public void tearDown() {
+        pipeline.shutdown();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnNull() {
+        pipeline = new ReceivePipeline<>(executor, null, NUMBER_OF_WORKERS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnNullExecutor() {
+        pipeline = new ReceivePipeline<>(null, model, NUMBER_OF_WORKERS);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnZeroWorkers() {
+        pipeline = new ReceivePipeline<>(executor, model, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSubmitOnNulls() {
+        pipeline.submit((byte[]) null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnNullPolicy() {
+        pipeline = new ReceivePipeline<>(executor, model, NUMBER_OF_WORKERS, 1, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnZeroCapacity() {
+        pipeline = new ReceivePipeline<>(executor, model, NUMBER_OF_WORKERS, 0, OverflowPolicy.BLOCK);
+    }
+
+    @Test
+    public void testGetDroppedMessages() {
+        pipeline.shutdown();
+        pipeline = new ReceivePipeline<>(executor, model, 1, 1, OverflowPolicy.DROP_OLDEST);
+        pipeline.workers.get(0).queue.droppedMessages.set(3);
+        pipeline.workers.get(0).queue.shedMessages.set(2);
+
+        assertEquals(3, pipeline.getDroppedMessages());
+        assertEquals(2, pipeline.getShedMessages());
+    }
+
+    @Test
+    public void testSelectWorker() {
+        assertEquals(pipeline.selectWorker("alice"), pipeline.selectWorker("alice"));
+
+        for (int i = 0; i < NUMBER_OF_SENDERS; i++) {
+            int worker = pipeline.selectWorker("sender" + i);
+            assertTrue(worker >= 0 && worker < NUMBER_OF_WORKERS);
+        }
+    }
+
+    @Test
+    public void testSubmitOnOrderPerSender() throws InterruptedException {
+        for (int i = 0; i < MESSAGES_PER_SENDER; i++) {
+            for (int sender = 0; sender < NUMBER_OF_SENDERS; sender++) {
+                pipeline.submit(new byte[]{(byte) i}, "sender" + sender);
+            }
+        }
+
+        assertTrue(model.latch.await(5, TimeUnit.SECONDS));
+
+        for (int sender = 0; sender < NUMBER_OF_SENDERS; sender++) {
+            List<Integer> received = model.messages.get("sender" + sender);
+            assertEquals(MESSAGES_PER_SENDER, received.size());
+
+            for (int i = 0; i < MESSAGES_PER_SENDER; i++) {
+                assertEquals(i, (int) received.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testSubmitOnFailingModel() throws InterruptedException {
+        model.failOnce = true;
+
+        pipeline.submit(new byte[]{0}, "sender");
+        pipeline.submit(new byte[]{1}, "sender");
+        pipeline.shutdown();
+
+        assertEquals(Collections.singletonList(1), model.messages.get("sender"));
+    }
+
+    @Test
+    public void testShutdownOnQueuedMessages() {
+        pipeline.submit(new byte[]{0}, "sender");
+
+        pipeline.shutdown();
+
+        assertEquals(0, pipeline.getQueuedMessages());
+        assertEquals(1, model.messages.get("sender").size());
+
+        assertEquals(0, pipeline.stoppedWorkers.getCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSubmitByteBufferOnNulls() {
+        pipeline.submit((ByteBuffer) null, null);
+    }
+
+    @Test
+    public void testSubmitByteBuffer() {
+        ByteBuffer buffer = ByteBuffer.wrap(new byte[]{7, 8});
+        buffer.position(1);
+
+        pipeline.submit(buffer, "sender");
+        pipeline.shutdown();
+
+        assertEquals(Collections.singletonList(8), model.messages.get("sender"));
+        assertEquals(1, model.consumedBuffers);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStartTwice() {
+        pipeline.start();
+    }
+
+    @Test
+    public void testSubmitBeforeStart() throws InterruptedException {
+        pipeline.shutdown();
+        pipeline = new ReceivePipeline<>(executor, model, NUMBER_OF_WORKERS);
+
+        pipeline.submit(new byte[]{0}, "sender");
+        assertEquals(1, pipeline.getQueuedMessages());
+        pipeline.start();
+        pipeline.shutdown();
+
+        assertEquals(Collections.singletonList(0), model.messages.get("sender"));
+    }
+
+    @Test
+    public void testGetCurrentWorker() throws InterruptedException {
+        final List<Integer> indices = new ArrayList<>();
+        pipeline.shutdown();
+        pipeline = new ReceivePipeline<CarrierModelFake>(executor, new CarrierModelFake(1) {
+            @Override
+            public void consumeMessage(byte[] message, String sender) {
+                indices.add(ReceivePipeline.getCurrentWorker());
+            }
+        }, 1);
+        pipeline.start();
+
+        pipeline.submit(new byte[]{0}, "sender");
+        pipeline.shutdown();
+
+        assertEquals(Collections.singletonList(0), indices);
+        assertEquals(-1, ReceivePipeline.getCurrentWorker());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSubmitAfterShutdown() {
+        pipeline.shutdown();
+
+        pipeline.submit(new byte[]{0}, "sender");
+    }
+
+    private class CarrierModelFake implements CarrierModel<Carrier> {
+
+        final Map<String, List<Integer>> messages = new HashMap<>();
+        final CountDownLatch latch;
+        boolean failOnce = false;
+        int consumedBuffers = 0;
+
+        CarrierModelFake(int expectedMessages) {
+            latch = new CountDownLatch(expectedMessages);
+        }
+
+        @Override
+        public void consumeMessage(byte[] message, String sender) {
+            synchronized (messages) {
+                if (failOnce) {
+                    failOnce = false;
+                    throw new MessageException("invalid");
+                }
+
+                if (!messages.containsKey(sender)) {
+                    messages.put(sender, new ArrayList<Integer>());
+                }
+
+                messages.get(sender).add((int) message[0]);
+            }
+
+            latch.countDown();
+        }
+
+        @Override
+        public void consumeMessage(ByteBuffer message, String sender) {
+            consumedBuffers++;
+            consumeMessage(new byte[]{message.get(message.position())}, sender);
+        }
+
+        @Override
+        public void startReceiving() {
+        }
+
+        @Override
+        public void stopReceiving() {
+        }
+
+        @Override
+        public void encryptAndSend(Message message, String target) {
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ReconnectPolicyTest {
+
+    private ReconnectPolicy policy;
+
+    @Before
+    public void setUp() {
+        policy = new ReconnectPolicy(100, 1000, 2.0, 5);
+    }
+
+    @Test
+    public void testDefaultConstructor() {
+        policy = new ReconnectPolicy();
+        assertEquals(ReconnectPolicy.DEFAULT_INITIAL_DELAY_IN_MILLISECONDS, policy.getInitialDelayInMilliseconds());
+        assertEquals(ReconnectPolicy.DEFAULT_MAXIMAL_DELAY_IN_MILLISECONDS, policy.getMaximalDelayInMilliseconds());
+        assertEquals(ReconnectPolicy.DEFAULT_MULTIPLIER, policy.getMultiplier(), 0);
+        assertEquals(ReconnectPolicy.DEFAULT_MAXIMAL_ATTEMPTS, policy.getMaximalAttempts());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnNegativeDelay() {
+        policy = new ReconnectPolicy(-1, 1000, 2.0, 5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnMaximumBelowInitialDelay() {
+        policy = new ReconnectPolicy(100, 99, 2.0, 5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnTooSmallMultiplier() {
+        policy = new ReconnectPolicy(100, 1000, 0.5, 5);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnZeroAttempts() {
+        policy = new ReconnectPolicy(100, 1000, 2.0, 0);
+    }
+
+    @Test
+    public void testGetBoundInMilliseconds() {
+        assertEquals(100, policy.getBoundInMilliseconds(1));
+        assertEquals(200, policy.getBoundInMilliseconds(2));
+        assertEquals(400, policy.getBoundInMilliseconds(3));
+        assertEquals(800, policy.getBoundInMilliseconds(4));
+        assertEquals(1000, policy.getBoundInMilliseconds(5));
+        assertEquals(1000, policy.getBoundInMilliseconds(500));
+    }
+
+    @Test
+    public void testGetDelayInMilliseconds() {
+        for (int attempt = 1; attempt < 10; attempt++) {
+            for (int i = 0; i < 100; i++) {
+                long delay = policy.getDelayInMilliseconds(attempt);
+                assertTrue(delay >= 0);
+                assertTrue(delay <= policy.getBoundInMilliseconds(attempt));
+            }
+        }
+    }
+
+    @Test
+    public void testGetDelayInMillisecondsOnZeroBound() {
+        policy = new ReconnectPolicy(0, 0, 1.0, 1);
+        assertEquals(0, policy.getDelayInMilliseconds(1));
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testWaitBeforeAttemptOnInterrupt() {
+        Thread.currentThread().interrupt();
+
+        try {
+            policy.waitBeforeAttempt(1);
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+    }
+
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.beamproject.common.ExecutorFake;
+import org.beamproject.common.util.Executor;
+import static org.easymock.EasyMock.aryEq;
+import static org.easymock.EasyMock.createMock;
+import static org.easymock.EasyMock.eq;
+import static org.easymock.EasyMock.expect;
+import static org.easymock.EasyMock.expectLastCall;
+import static org.easymock.EasyMock.isA;
+import static org.easymock.EasyMock.replay;
+import static org.easymock.EasyMock.verify;
+import org.easymock.IAnswer;
+import org.fusesource.mqtt.client.Callback;
+import static org.junit.Assert.assertEquals;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ServerCarrierImplTest {
+
+    private final String USERNAME = "username123";
+    private final String IN_TOPIC = "in/" + USERNAME;
+    private final String OUT_TOPIC = "out/" + USERNAME;
+    private final byte[] MESSAGE = "myMessage".getBytes();
+    private AsyncMqttConnection connection;
+    private ServerCarrierModel model;
+    private ServerCarrierImpl carrier;
+
+    @Before
+    public void setUp() {
+        connection = createMock(AsyncMqttConnection.class);
+        model = createMock(ServerCarrierModel.class);
+        carrier = new ServerCarrierImpl(connection, new PublishPipeline(new ExecutorFake(), connection),
+                new ReceivePipeline<>(new Executor(), model, 4));
+    }
+
+    @Test
+    public void testConstructor() {
+        assertEquals(4, carrier.getNumberOfShards());
+        assertEquals("in/+", ServerCarrierImpl.SUBSCRIBER_TOPIC);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnZeroShards() {
+        carrier = new ServerCarrierImpl(model, new ExecutorFake(), connection, 0);
+    }
+
+    @Test
+    public void testDeliverMessage() {
+        connection.publish(eq(OUT_TOPIC), aryEq(MESSAGE), eq(Delivery.AT_LEAST_ONCE), isA(Callback.class));
+        expectLastCall();
+        replay(connection);
+
+        carrier.deliverMessage(MESSAGE, USERNAME);
+
+        verify(connection);
+    }
+
+    @Test
+    public void testDeliverMessageAtMostOnce() {
+        connection.publish(eq(OUT_TOPIC), aryEq(MESSAGE), eq(Delivery.AT_MOST_ONCE), isA(Callback.class));
+        expectLastCall();
+        replay(connection);
+
+        carrier.deliverMessage(MESSAGE, USERNAME, Delivery.AT_MOST_ONCE);
+
+        verify(connection);
+    }
+
+    @Test
+    public void testStartReceiving() {
+        connection.subscribe(carrier);
+        expectLastCall();
+        replay(connection);
+
+        carrier.startReceiving();
+
+        verify(connection);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStopReceivingWhenNotReceiving() {
+        expect(connection.isSubscribing()).andReturn(false);
+        replay(connection);
+
+        carrier.stopReceiving();
+    }
+
+    @Test
+    public void testStopReceiving() {
+        expect(connection.isSubscribing()).andReturn(true);
+        connection.unsubscribe();
+        expectLastCall();
+        replay(connection);
+
+        carrier.stopReceiving();
+
+        verify(connection);
+    }
+
+    @Test
+    public void testReceive() {
+        final AtomicInteger shard = new AtomicInteger(-2);
+        model.consumeMessage(aryEq(MESSAGE), eq(USERNAME));
+        expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                shard.set(ServerCarrierImpl.getCurrentShard());
+                return null;
+            }
+        });
+        connection.disconnect();
+        expectLastCall();
+        replay(model, connection);
+
+        carrier.receive(MESSAGE, IN_TOPIC);
+        carrier.shutdown();
+
+        verify(model, connection);
+        assertEquals(carrier.shards.selectWorker(USERNAME), shard.get());
+    }
+
+    @Test
+    public void testReceiveWithDuplicateFilter() {
+        carrier.setDuplicateFilter(new DuplicateFilter());
+        model.consumeMessage(aryEq(MESSAGE), eq(USERNAME));
+        expectLastCall().once();
+        connection.disconnect();
+        expectLastCall();
+        replay(model, connection);
+
+        carrier.receive(MESSAGE, IN_TOPIC);
+        carrier.receive(MESSAGE.clone(), IN_TOPIC);
+        carrier.shutdown();
+
+        verify(model, connection);
+    }
+
+    @Test
+    public void testReceiveByteBuffer() {
+        model.consumeMessage(eq(ByteBuffer.wrap(MESSAGE)), eq(USERNAME));
+        expectLastCall();
+        connection.disconnect();
+        expectLastCall();
+        replay(model, connection);
+
+        carrier.receive(ByteBuffer.wrap(MESSAGE), IN_TOPIC);
+        carrier.shutdown();
+
+        verify(model, connection);
+    }
+
+    @Test
+    public void testReceiveWithAdmissionControl() {
+        carrier.setAdmissionControl(new AdmissionControl(MESSAGE.length, 0.001, 1));
+        model.consumeMessage(aryEq(MESSAGE), eq(USERNAME));
+        expectLastCall().once();
+        connection.disconnect();
+        expectLastCall();
+        replay(model, connection);
+
+        carrier.receive(MESSAGE, IN_TOPIC);
+        carrier.receive(MESSAGE, IN_TOPIC);
+        carrier.receive(new byte[MESSAGE.length + 1], "in/other");
+        carrier.shutdown();
+
+        verify(model, connection);
+        assertEquals(1, carrier.admissionControl.getRejectedByRate());
+        assertEquals(1, carrier.admissionControl.getRejectedBySize());
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testReceiveOnOutTopic() {
+        carrier.receive(MESSAGE, OUT_TOPIC);
+    }
+
+    @Test
+    public void testGetCurrentShardOutsideOfShard() {
+        assertEquals(-1, ServerCarrierImpl.getCurrentShard());
+    }
+
+    @Test
+    public void testExtractUsername() {
+        assertEquals(USERNAME, ServerCarrierImpl.extractUsername(IN_TOPIC));
+        assertEquals("A", ServerCarrierImpl.extractUsername("in/A"));
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testExtractUsernameOnNull() {
+        ServerCarrierImpl.extractUsername(null);
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testExtractUsernameOnPrefixOnly() {
+        ServerCarrierImpl.extractUsername("in/");
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testExtractUsernameOnWrongPrefix() {
+        ServerCarrierImpl.extractUsername("xx/username");
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testExtractUsernameOnNestedTopic() {
+        ServerCarrierImpl.extractUsername("in/user/name");
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testExtractUsernameOnInvalidCharacter() {
+        ServerCarrierImpl.extractUsername("in/user-name");
+    }
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.carrier;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import org.beamproject.common.Participant;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TopicRouterTest {
+
+    private final String TOPIC = "out/username";
+    private final String OTHER_TOPIC = "out/other";
+    private final Participant PARTICIPANT = Participant.generate();
+    private final Participant OTHER_PARTICIPANT = Participant.generate();
+    private TopicRouter router;
+
+    @Before
+    public void setUp() {
+        router = new TopicRouter();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBindOnNulls() {
+        router.bind(null, null);
+    }
+
+    @Test
+    public void testBind() {
+        router.bind(PARTICIPANT, TOPIC);
+
+        assertEquals(TOPIC, router.getTopic(PARTICIPANT));
+        assertEquals(1, router.size());
+    }
+
+    @Test
+    public void testBindOnEqualParticipant() {
+        router.bind(PARTICIPANT, TOPIC);
+
+        assertEquals(TOPIC, router.getTopic(new Participant(PARTICIPANT.getKeyPair())));
+    }
+
+    @Test
+    public void testBindOnRebindingParticipant() {
+        router.bind(PARTICIPANT, TOPIC);
+        router.bind(PARTICIPANT, OTHER_TOPIC);
+
+        assertEquals(OTHER_TOPIC, router.getTopic(PARTICIPANT));
+        assertEquals(1, router.size());
+    }
+
+    @Test
+    public void testBindOnSharedTopic() {
+        router.bind(PARTICIPANT, TOPIC);
+        router.bind(OTHER_PARTICIPANT, TOPIC);
+
+        assertEquals(TOPIC, router.getTopic(PARTICIPANT));
+        assertEquals(TOPIC, router.getTopic(OTHER_PARTICIPANT));
+        assertEquals(2, router.size());
+    }
+
+    @Test
+    public void testBindAll() {
+        Map<Participant, String> bindings = new HashMap<>();
+        bindings.put(PARTICIPANT, TOPIC);
+        bindings.put(OTHER_PARTICIPANT, OTHER_TOPIC);
+
+        router.bindAll(bindings);
+
+        assertEquals(TOPIC, router.getTopic(PARTICIPANT));
+        assertEquals(OTHER_TOPIC, router.getTopic(OTHER_PARTICIPANT));
+        assertEquals(2, router.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBindAllOnNull() {
+        router.bindAll(null);
+    }
+
+    @Test
+    public void testUnbind() {
+        router.bind(PARTICIPANT, TOPIC);
+        router.unbind(PARTICIPANT);
+
+        assertNull(router.getTopic(PARTICIPANT));
+        assertEquals(0, router.size());
+    }
+
+    @Test
+    public void testUnbindOnUnknownParticipant() {
+        router.bind(PARTICIPANT, TOPIC);
+        router.unbind(OTHER_PARTICIPANT);
+
+        assertEquals(1, router.size());
+    }
+
+    @Test
+    public void testUnbindAll() {
+        router.bind(PARTICIPANT, TOPIC);
+        router.bind(OTHER_PARTICIPANT, OTHER_TOPIC);
+
+        router.unbindAll(Arrays.asList(PARTICIPANT, OTHER_PARTICIPANT));
+
+        assertNull(router.getTopic(PARTICIPANT));
+        assertNull(router.getTopic(OTHER_PARTICIPANT));
+        assertEquals(0, router.size());
+    }
+
+    @Test
+    public void testIndexOfUsername() {
+        assertEquals(3, TopicRouter.indexOfUsername("in/username"));
+        assertEquals(4, TopicRouter.indexOfUsername("out/USER123"));
+        assertEquals(-1, TopicRouter.indexOfUsername(null));
+        assertEquals(-1, TopicRouter.indexOfUsername(""));
+        assertEquals(-1, TopicRouter.indexOfUsername("in/"));
+        assertEquals(-1, TopicRouter.indexOfUsername("out/"));
+        assertEquals(-1, TopicRouter.indexOfUsername("xx/username"));
+        assertEquals(-1, TopicRouter.indexOfUsername("in/user/name"));
+        assertEquals(-1, TopicRouter.indexOfUsername("in/user_name"));
+        assertEquals(-1, TopicRouter.indexOfUsername("in/username\n"));
+    }
+
+    @Test
+    public void testExtractUsername() {
+        assertEquals("username", TopicRouter.extractUsername("in/username"));
+        assertEquals("username", TopicRouter.extractUsername("out/username"));
+    }
+
+    @Test(expected = CarrierException.class)
+    public void testExtractUsernameOnInvalidTopic() {
+        TopicRouter.extractUsername("in/user name");
+    }
+
+}
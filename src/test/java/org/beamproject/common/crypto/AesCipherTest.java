@@ -18,9 +18,12 @@
  */
 package org.beamproject.common.crypto;
 
+import java.nio.ByteBuffer;
 import java.security.Security;
 import static org.beamproject.common.crypto.BouncyCastleIntegrator.PROVIDER_NAME;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.fail;
@@ -38,6 +41,9 @@ public class AesCipherTest {
     private AesCipher cipher;
     private AesCipher initializedCipher;
     private final byte[] plaintext = "this is the plaintext".getBytes();
+    private final byte[] IV = "initialVecto".getBytes();
+    private final byte[] OTHER_IV = "otherVector!".getBytes();
+    private final byte[] ASSOCIATED_DATA = "1.0".getBytes();
     private byte[] key;
     private byte[] output;
 
@@ -132,4 +138,186 @@ public class AesCipherTest {
         assertArrayEquals(plaintext, output);
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncryptWithGcmOnNulls() {
+        initializedCipher.encryptWithGcm(null, null, null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncryptWithGcmOnTooSmallOutput() {
+        initializedCipher.encryptWithGcm(ByteBuffer.wrap(plaintext), ByteBuffer.allocate(plaintext.length), IV, ASSOCIATED_DATA);
+    }
+
+    @Test
+    public void testEncryptWithGcmIsCompatibleWithSessionCipher() {
+        ByteBuffer output = ByteBuffer.allocate(plaintext.length + AesCipher.GCM_TAG_LENGTH_IN_BYTES);
+
+        int written = initializedCipher.encryptWithGcm(ByteBuffer.wrap(plaintext), output, IV, ASSOCIATED_DATA);
+
+        assertEquals(output.capacity(), written);
+        assertEquals(output.capacity(), output.position());
+        assertArrayEquals(new SessionCipher().encrypt(plaintext, key, IV, ASSOCIATED_DATA), output.array());
+    }
+
+    @Test
+    public void testEncryptAndDecryptWithGcmOnHeapBuffers() {
+        assertEncryptAndDecryptWithGcm(false, plaintext, IV);
+    }
+
+    @Test
+    public void testEncryptAndDecryptWithGcmOnDirectBuffers() {
+        assertEncryptAndDecryptWithGcm(true, plaintext, IV);
+        assertEncryptAndDecryptWithGcm(true, fillByteArray(3 * AesCipher.CHUNK_SIZE_IN_BYTES + 5), OTHER_IV);
+    }
+
+    private void assertEncryptAndDecryptWithGcm(boolean isDirect, byte[] plaintext, byte[] iv) {
+        ByteBuffer input = allocate(isDirect, plaintext.length + 3);
+        input.put(new byte[3]).put(plaintext).position(3);
+        ByteBuffer ciphertext = allocate(isDirect, plaintext.length + AesCipher.GCM_TAG_LENGTH_IN_BYTES);
+        ByteBuffer output = allocate(isDirect, plaintext.length);
+
+        initializedCipher.encryptWithGcm(input, ciphertext, iv, ASSOCIATED_DATA);
+        ciphertext.flip();
+        int written = initializedCipher.decryptWithGcm(ciphertext, output, iv, ASSOCIATED_DATA);
+
+        assertEquals(plaintext.length, written);
+        assertFalse(input.hasRemaining());
+        assertFalse(ciphertext.hasRemaining());
+        output.flip();
+        assertArrayEquals(plaintext, toArray(output));
+    }
+
+    @Test
+    public void testEncryptAndDecryptWithGcmInPlace() {
+        for (boolean isDirect : new boolean[]{false, true}) {
+            byte[] longPlaintext = fillByteArray(2 * AesCipher.CHUNK_SIZE_IN_BYTES + 100);
+            ByteBuffer buffer = allocate(isDirect, longPlaintext.length + AesCipher.GCM_TAG_LENGTH_IN_BYTES);
+            buffer.put(longPlaintext).flip();
+            ByteBuffer output = buffer.duplicate();
+            output.limit(output.capacity());
+
+            byte[] iv = isDirect ? OTHER_IV : IV;
+            initializedCipher.encryptWithGcm(buffer, output, iv, ASSOCIATED_DATA);
+            output.flip();
+            ByteBuffer plaintextOutput = output.duplicate();
+
+            initializedCipher.decryptWithGcm(output, plaintextOutput, iv, ASSOCIATED_DATA);
+
+            plaintextOutput.flip();
+            assertArrayEquals(longPlaintext, toArray(plaintextOutput));
+        }
+    }
+
+    @Test
+    public void testDecryptWithGcmOnWrongAssociatedData() {
+        ByteBuffer ciphertext = ByteBuffer.allocate(plaintext.length + AesCipher.GCM_TAG_LENGTH_IN_BYTES);
+        initializedCipher.encryptWithGcm(ByteBuffer.wrap(plaintext), ciphertext, IV, ASSOCIATED_DATA);
+        ciphertext.flip();
+        ByteBuffer output = ByteBuffer.allocate(plaintext.length);
+
+        try {
+            initializedCipher.decryptWithGcm(ciphertext, output, IV, "other".getBytes());
+            fail("The integrity should not be verified.");
+        } catch (CryptoException ex) {
+            assertEquals(0, ciphertext.position());
+            assertEquals(0, output.position());
+            assertArrayEquals(new byte[plaintext.length], output.array());
+        }
+    }
+
+    @Test
+    public void testEncryptWithGcmOnReusedIv() {
+        assertEncryptWithGcmRejectsReusedIv(initializedCipher);
+        assertEncryptWithGcmRejectsReusedIv(new AesCipher(key, CryptoBackend.JDK));
+    }
+
+    private void assertEncryptWithGcmRejectsReusedIv(AesCipher cipher) {
+        ByteBuffer ciphertext = ByteBuffer.allocate(plaintext.length + AesCipher.GCM_TAG_LENGTH_IN_BYTES);
+        byte[] iv = IV.clone();
+        cipher.encryptWithGcm(ByteBuffer.wrap(plaintext), ciphertext, iv, ASSOCIATED_DATA);
+        ciphertext.clear();
+
+        try {
+            cipher.encryptWithGcm(ByteBuffer.wrap(plaintext), ciphertext, IV, ASSOCIATED_DATA);
+            fail("The reused initialization vector should be rejected.");
+        } catch (CryptoException ex) {
+            assertEquals(0, ciphertext.position());
+        }
+
+        cipher.encryptWithGcm(ByteBuffer.wrap(plaintext), ciphertext, OTHER_IV, ASSOCIATED_DATA);
+        assertEquals(plaintext.length + AesCipher.GCM_TAG_LENGTH_IN_BYTES, ciphertext.position());
+    }
+
+    @Test(expected = CryptoException.class)
+    public void testDecryptWithGcmOnTooShortCiphertext() {
+        initializedCipher.decryptWithGcm(ByteBuffer.allocate(5), ByteBuffer.allocate(5), IV, ASSOCIATED_DATA);
+    }
+
+    private ByteBuffer allocate(boolean isDirect, int capacity) {
+        return isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void testEncryptAndDecryptWithJdk() {
+        cipher = new AesCipher(key, CryptoBackend.JDK);
+
+        assertArrayEquals(CIPHERTEXT, cipher.encrypt(plaintext));
+        assertArrayEquals(plaintext, cipher.decrypt(CIPHERTEXT));
+    }
+
+    @Test(expected = CryptoException.class)
+    public void testDecryptWithJdkOnInvalidLength() {
+        cipher = new AesCipher(key, CryptoBackend.JDK);
+
+        cipher.decrypt(new byte[5]);
+    }
+
+    @Test
+    public void testEncryptAndDecryptWithGcmOnBackends() {
+        AesCipher jdkCipher = new AesCipher(key, CryptoBackend.JDK);
+        byte[] longPlaintext = fillByteArray(2 * AesCipher.CHUNK_SIZE_IN_BYTES + 100);
+
+        for (boolean isDirect : new boolean[]{false, true}) {
+            ByteBuffer input = allocate(isDirect, longPlaintext.length);
+            input.put(longPlaintext).flip();
+            ByteBuffer ciphertext = allocate(isDirect, longPlaintext.length + AesCipher.GCM_TAG_LENGTH_IN_BYTES);
+            ByteBuffer output = allocate(isDirect, longPlaintext.length);
+
+            jdkCipher.encryptWithGcm(input, ciphertext, isDirect ? OTHER_IV : IV, ASSOCIATED_DATA);
+            ciphertext.flip();
+            initializedCipher.decryptWithGcm(ciphertext.duplicate(), output, isDirect ? OTHER_IV : IV, ASSOCIATED_DATA);
+            output.flip();
+            assertArrayEquals(longPlaintext, toArray(output));
+
+            output.clear();
+            jdkCipher.decryptWithGcm(ciphertext, output, isDirect ? OTHER_IV : IV, ASSOCIATED_DATA);
+            output.flip();
+            assertArrayEquals(longPlaintext, toArray(output));
+            assertFalse(ciphertext.hasRemaining());
+        }
+    }
+
+    @Test
+    public void testDecryptWithGcmWithJdkOnWrongAssociatedData() {
+        cipher = new AesCipher(key, CryptoBackend.JDK);
+        ByteBuffer ciphertext = ByteBuffer.allocate(plaintext.length + AesCipher.GCM_TAG_LENGTH_IN_BYTES);
+        cipher.encryptWithGcm(ByteBuffer.wrap(plaintext), ciphertext, IV, ASSOCIATED_DATA);
+        ciphertext.flip();
+        ByteBuffer output = ByteBuffer.allocate(plaintext.length);
+
+        try {
+            cipher.decryptWithGcm(ciphertext, output, IV, "other".getBytes());
+            fail("The integrity should not be verified.");
+        } catch (CryptoException ex) {
+            assertEquals(0, ciphertext.position());
+            assertEquals(0, output.position());
+        }
+    }
+
 }
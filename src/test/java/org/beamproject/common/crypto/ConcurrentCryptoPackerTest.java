@@ -0,0 +1,348 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.crypto;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.beamproject.common.Participant;
+import org.beamproject.common.Session;
+import static org.beamproject.common.crypto.EccKeyPairGenerator.fromPublicKey;
+import static org.beamproject.common.message.Field.CNT;
+import static org.beamproject.common.message.Field.IV;
+import static org.beamproject.common.message.Field.KEY;
+import static org.beamproject.common.message.Field.Cnt.MSG;
+import static org.beamproject.common.message.Field.Cnt.Typ.FORWARD;
+import org.beamproject.common.message.Message;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.Before;
+import org.junit.Test;
+import org.msgpack.MessagePack;
+import org.msgpack.template.Templates;
+
+public class ConcurrentCryptoPackerTest {
+
+    private final byte[] MESSAGE = "hello world".getBytes();
+    private final int EXPECTED_CPHERTEXT_LENGTH_IN_BYTES = EccCipher.NONCE_LENGTH_IN_BYTES + 177;
+    private ConcurrentCryptoPacker packer;
+    private Participant participantWithBothKeys;
+    private Participant participantWithPublicKey;
+    private Message plaintext;
+    private byte[] ciphertext;
+    private Session session;
+
+    @Before
+    public void setUp() {
+        participantWithBothKeys = Participant.generate();
+        participantWithPublicKey = new Participant(fromPublicKey(participantWithBothKeys.getPublicKeyAsBytes()));
+        plaintext = new Message(FORWARD, participantWithPublicKey);
+        plaintext.putContent(MSG, MESSAGE);
+
+        packer = new ConcurrentCryptoPacker();
+        session = new Session(participantWithPublicKey, Digest.digestWithSha256("session".getBytes()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPackAndEncryptOnNull() {
+        packer.packAndEncrypt(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPackAndEncryptOnMissingRecipient() {
+        packer.packAndEncrypt(new Message());
+    }
+
+    @Test
+    public void testPackAndEncryptAndAlsoDecryptAndUnpack() {
+        ciphertext = packer.packAndEncrypt(plaintext);
+        assertEquals(EXPECTED_CPHERTEXT_LENGTH_IN_BYTES, ciphertext.length);
+
+        Message decryptedCiphertext = packer.decryptAndUnpack(ciphertext, participantWithBothKeys);
+        assertMessageEquals(decryptedCiphertext);
+    }
+
+    @Test
+    public void testPackAndEncryptWithSessionAndAlsoDecryptAndUnpack() {
+        ciphertext = packer.packAndEncrypt(plaintext, session);
+
+        Message decryptedCiphertext = packer.decryptAndUnpack(ciphertext, participantWithBothKeys, session);
+        assertMessageEquals(decryptedCiphertext);
+    }
+
+    @Test
+    public void testPackAndEncryptWithSessionOnHandshake() {
+        Message challenge = new HandshakeChallenger(Participant.generate()).produceChallenge(participantWithPublicKey);
+
+        ciphertext = packer.packAndEncrypt(challenge, session);
+
+        Message decryptedCiphertext = packer.decryptAndUnpack(ciphertext, participantWithBothKeys);
+        assertEquals(challenge.getType(), decryptedCiphertext.getType());
+    }
+
+    @Test
+    public void testCompatibilityWithCryptoPacker() {
+        CryptoPacker cryptoPacker = new CryptoPacker();
+
+        ciphertext = cryptoPacker.packAndEncrypt(plaintext, session);
+        assertMessageEquals(packer.decryptAndUnpack(ciphertext, participantWithBothKeys, session));
+
+        ciphertext = packer.packAndEncrypt(plaintext, session);
+        assertMessageEquals(cryptoPacker.decryptAndUnpack(ciphertext, participantWithBothKeys, session));
+
+        ciphertext = packer.packAndEncrypt(plaintext);
+        assertMessageEquals(cryptoPacker.decryptAndUnpack(ciphertext, participantWithBothKeys));
+    }
+
+    @Test
+    public void testDecryptAndUnpackFromByteBuffer() {
+        ciphertext = packer.packAndEncrypt(plaintext, session);
+        ByteBuffer buffer = ByteBuffer.allocate(ciphertext.length + 6);
+        buffer.put("head".getBytes()).put(ciphertext).put("ta".getBytes());
+        buffer.position(4).limit(4 + ciphertext.length);
+
+        assertMessageEquals(packer.decryptAndUnpack(buffer, participantWithBothKeys, session));
+        assertEquals(4, buffer.position());
+
+        ciphertext = packer.packAndEncrypt(plaintext);
+        assertMessageEquals(packer.decryptAndUnpack(ByteBuffer.wrap(ciphertext), participantWithBothKeys));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecryptAndUnpackOnNulls() {
+        packer.decryptAndUnpack((byte[]) null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecryptAndUnpackFromByteBufferOnNull() {
+        packer.decryptAndUnpack((ByteBuffer) null, participantWithBothKeys);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecryptAndUnpackWithSessionOnNullSession() {
+        packer.decryptAndUnpack("".getBytes(), participantWithBothKeys, null);
+    }
+
+    @Test(expected = PackerException.class)
+    public void testDecryptAndUnpackOnSessionMessageWithoutSession() {
+        ciphertext = packer.packAndEncrypt(plaintext, session);
+
+        packer.decryptAndUnpack(ciphertext, participantWithBothKeys);
+    }
+
+    @Test(expected = CryptoException.class)
+    public void testDecryptAndUnpackOnWrongSession() {
+        ciphertext = packer.packAndEncrypt(plaintext, session);
+        Session otherSession = new Session(participantWithPublicKey, Digest.digestWithSha256("other".getBytes()));
+
+        packer.decryptAndUnpack(ciphertext, participantWithBothKeys, otherSession);
+    }
+
+    @Test(expected = PackerException.class)
+    public void testDecryptAndUnpackOnGarbage() {
+        packer.decryptAndUnpack("garbage".getBytes(), participantWithBothKeys);
+    }
+
+    @Test(expected = PackerException.class)
+    public void testDecryptAndUnpackOnTruncatedCiphertext() {
+        ciphertext = packer.packAndEncrypt(plaintext);
+
+        packer.decryptAndUnpack(Arrays.copyOf(ciphertext, 20), participantWithBothKeys);
+    }
+
+    @Test
+    public void testBufferIsReused() {
+        packer.packAndEncrypt(plaintext);
+        Object buffer = packer.buffers.get();
+
+        packer.packAndEncrypt(plaintext);
+        assertSame(buffer, packer.buffers.get());
+    }
+
+    @Test
+    public void testLargeBufferIsNotKept() {
+        Object buffer = packer.buffers.get();
+        plaintext.putContent(MSG, new byte[ConcurrentCryptoPacker.MAXIMAL_KEPT_BUFFER_SIZE_IN_BYTES + 1]);
+
+        ciphertext = packer.packAndEncrypt(plaintext);
+
+        assertNotSame(buffer, packer.buffers.get());
+        assertMessageEquals(packer.decryptAndUnpack(ciphertext, participantWithBothKeys));
+    }
+
+    @Test
+    public void testConcurrentUse() throws Exception {
+        int numberOfThreads = 4;
+        ExecutorService executor = Executors.newFixedThreadPool(numberOfThreads);
+        List<Future<Void>> results = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < numberOfThreads * 4; i++) {
+                final byte[] message = ("message " + i).getBytes();
+
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        for (int j = 0; j < 20; j++) {
+                            Message original = new Message(FORWARD, participantWithPublicKey);
+                            original.putContent(MSG, message);
+
+                            byte[] packed = packer.packAndEncrypt(original, session);
+                            Message unpacked = packer.decryptAndUnpack(packed, participantWithBothKeys, session);
+                            assertArrayEquals(message, unpacked.getContent(MSG));
+                        }
+
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPackAndEncryptForAllOnNulls() {
+        packer.packAndEncryptForAll(null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPackAndEncryptForAllOnNullRecipient() {
+        packer.packAndEncryptForAll(plaintext, Arrays.asList(participantWithPublicKey, null));
+    }
+
+    @Test
+    public void testPackAndEncryptForAll() throws Exception {
+        List<Participant> recipients = generateRecipients(3);
+
+        Map<Participant, byte[]> ciphertexts = packer.packAndEncryptForAll(plaintext, publicKeysOf(recipients));
+
+        assertAllCanDecrypt(recipients, ciphertexts);
+    }
+
+    @Test
+    public void testPackAndEncryptForAllInParallel() throws Exception {
+        List<Participant> recipients = generateRecipients(8);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+
+        try {
+            Map<Participant, byte[]> ciphertexts = packer.packAndEncryptForAll(plaintext, publicKeysOf(recipients), executor);
+
+            assertAllCanDecrypt(recipients, ciphertexts);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testPackAndEncryptForAllOnNoRecipients() {
+        assertTrue(packer.packAndEncryptForAll(plaintext, new ArrayList<Participant>()).isEmpty());
+    }
+
+    @Test(expected = CryptoException.class)
+    public void testPackAndEncryptForAllOnOtherRecipient() {
+        List<Participant> recipients = generateRecipients(2);
+        Map<Participant, byte[]> ciphertexts = packer.packAndEncryptForAll(plaintext, publicKeysOf(recipients));
+
+        packer.decryptAndUnpack(ciphertexts.values().iterator().next(), recipients.get(1));
+    }
+
+    @Test
+    public void testPackAndEncryptForAllSharesContent() throws Exception {
+        List<Participant> recipients = generateRecipients(2);
+        List<byte[]> ciphertexts = new ArrayList<>(packer.packAndEncryptForAll(plaintext, publicKeysOf(recipients)).values());
+
+        Map<String, byte[]> first = unpackEnvelope(ciphertexts.get(0));
+        Map<String, byte[]> second = unpackEnvelope(ciphertexts.get(1));
+
+        assertArrayEquals(first.get(CNT.toString()), second.get(CNT.toString()));
+        assertArrayEquals(first.get(IV.toString()), second.get(IV.toString()));
+        assertFalse(Arrays.equals(first.get(KEY.toString()), second.get(KEY.toString())));
+    }
+
+    @Test
+    public void testPackAndEncryptForAllCompatibilityWithCryptoPacker() {
+        Map<Participant, byte[]> ciphertexts = packer.packAndEncryptForAll(plaintext, Arrays.asList(participantWithPublicKey));
+        ciphertext = ciphertexts.get(participantWithPublicKey);
+
+        assertMessageEquals(new CryptoPacker().decryptAndUnpack(ciphertext, participantWithBothKeys));
+        assertMessageEquals(new CryptoPacker().decryptAndUnpack(ciphertext, participantWithBothKeys, session));
+        assertMessageEquals(packer.decryptAndUnpack(ciphertext, participantWithBothKeys, session));
+    }
+
+    private List<Participant> generateRecipients(int number) {
+        List<Participant> recipients = new ArrayList<>();
+
+        for (int i = 0; i < number; i++) {
+            recipients.add(Participant.generate());
+        }
+
+        return recipients;
+    }
+
+    private List<Participant> publicKeysOf(List<Participant> recipients) {
+        List<Participant> publicKeys = new ArrayList<>();
+
+        for (Participant recipient : recipients) {
+            publicKeys.add(new Participant(fromPublicKey(recipient.getPublicKeyAsBytes())));
+        }
+
+        return publicKeys;
+    }
+
+    private void assertAllCanDecrypt(List<Participant> recipients, Map<Participant, byte[]> ciphertexts) {
+        assertEquals(recipients.size(), ciphertexts.size());
+        int index = 0;
+
+        for (byte[] recipientCiphertext : ciphertexts.values()) {
+            Participant recipient = recipients.get(index++);
+            Message decryptedCiphertext = packer.decryptAndUnpack(recipientCiphertext, recipient);
+
+            assertEquals(plaintext.getType(), decryptedCiphertext.getType());
+            assertSame(recipient, decryptedCiphertext.getRecipient());
+            assertArrayEquals(plaintext.getContent(MSG), decryptedCiphertext.getContent(MSG));
+        }
+    }
+
+    private Map<String, byte[]> unpackEnvelope(byte[] bytes) throws Exception {
+        return new MessagePack().read(bytes, Templates.tMap(Templates.TString, Templates.TByteArray));
+    }
+
+    private void assertMessageEquals(Message decryptedCiphertext) {
+        assertEquals(plaintext.getVersion(), decryptedCiphertext.getVersion());
+        assertEquals(plaintext.getType(), decryptedCiphertext.getType());
+        assertSame(participantWithBothKeys, decryptedCiphertext.getRecipient());
+        assertArrayEquals(plaintext.getContent(MSG), decryptedCiphertext.getContent(MSG));
+    }
+
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.crypto;
+
+import static org.junit.Assert.assertSame;
+import org.junit.Test;
+
+public class CryptoBackendTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromNameOnNull() {
+        CryptoBackend.fromName(null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testFromNameOnUnknownName() {
+        CryptoBackend.fromName("unknown");
+    }
+
+    @Test
+    public void testFromName() {
+        assertSame(CryptoBackend.JDK, CryptoBackend.fromName("jdk"));
+        assertSame(CryptoBackend.BOUNCY_CASTLE, CryptoBackend.fromName("bc"));
+        assertSame(CryptoBackend.BOUNCY_CASTLE, CryptoBackend.fromName("BOUNCY_CASTLE"));
+    }
+
+}
@@ -18,7 +18,9 @@
  */
 package org.beamproject.common.crypto;
 
+import java.nio.ByteBuffer;
 import org.beamproject.common.Participant;
+import org.beamproject.common.Session;
 import static org.beamproject.common.crypto.EccKeyPairGenerator.fromPublicKey;
 import static org.beamproject.common.message.Field.Cnt.MSG;
 import static org.beamproject.common.message.Field.Cnt.Typ.FORWARD;
@@ -26,6 +28,7 @@ import org.beamproject.common.message.Message;
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import org.junit.Before;
 import org.junit.Test;
@@ -33,13 +36,14 @@ import org.junit.Test;
 public class CryptoPackerTest {
 
     private final byte[] MESSAGE = "hello world".getBytes();
-    private final int EXPECTED_CPHERTEXT_LENGTH_IN_BYTES = 177;
+    private final int EXPECTED_CPHERTEXT_LENGTH_IN_BYTES = EccCipher.NONCE_LENGTH_IN_BYTES + 177;
     private CryptoPacker localPacker;
     private CryptoPacker remotePacker;
     private Participant participantWithBothKeys;
     private Participant participantWithPublicKey;
     private Message plaintext;
     private byte[] ciphertext;
+    private Session session;
 
     @Before
     public void setUp() {
@@ -50,6 +54,7 @@ public class CryptoPackerTest {
 
         localPacker = new CryptoPacker();
         remotePacker = new CryptoPacker();
+        session = new Session(participantWithPublicKey, Digest.digestWithSha256("session".getBytes()));
     }
 
     @Test
@@ -83,12 +88,12 @@ public class CryptoPackerTest {
 
     @Test(expected = IllegalArgumentException.class)
     public void testDecryptAndUnPackOnNulls() {
-        remotePacker.decryptAndUnpack(null, null);
+        remotePacker.decryptAndUnpack((byte[]) null, null);
     }
 
     @Test(expected = IllegalArgumentException.class)
     public void testDecryptAndUnPackOnNullCiphertext() {
-        remotePacker.decryptAndUnpack(null, participantWithPublicKey);
+        remotePacker.decryptAndUnpack((byte[]) null, participantWithPublicKey);
     }
 
     @Test(expected = IllegalArgumentException.class)
@@ -96,4 +101,93 @@ public class CryptoPackerTest {
         remotePacker.decryptAndUnpack("".getBytes(), null);
     }
 
+    @Test
+    public void testDecryptAndUnpackFromByteBuffer() {
+        ciphertext = localPacker.packAndEncrypt(plaintext);
+        ByteBuffer buffer = ByteBuffer.allocate(ciphertext.length + 6);
+        buffer.put("head".getBytes()).put(ciphertext).put("ta".getBytes());
+        buffer.position(4).limit(4 + ciphertext.length);
+
+        Message decryptedCiphertext = remotePacker.decryptAndUnpack(buffer, participantWithBothKeys);
+
+        assertEquals(plaintext.getType(), decryptedCiphertext.getType());
+        assertSame(participantWithBothKeys, decryptedCiphertext.getRecipient());
+        assertArrayEquals(plaintext.getContent(MSG), decryptedCiphertext.getContent(MSG));
+        assertEquals(4, buffer.position());
+    }
+
+    @Test
+    public void testDecryptAndUnpackFromByteBufferWithSession() {
+        ciphertext = localPacker.packAndEncrypt(plaintext, session);
+        ByteBuffer buffer = ByteBuffer.wrap(ciphertext);
+
+        Message decryptedCiphertext = remotePacker.decryptAndUnpack(buffer, participantWithBothKeys, session);
+
+        assertArrayEquals(plaintext.getContent(MSG), decryptedCiphertext.getContent(MSG));
+        assertEquals(0, buffer.position());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecryptAndUnpackFromByteBufferOnNull() {
+        remotePacker.decryptAndUnpack((ByteBuffer) null, participantWithBothKeys);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPackAndEncryptWithSessionOnNullSession() {
+        localPacker.packAndEncrypt(plaintext, null);
+    }
+
+    @Test
+    public void testPackAndEncryptWithSessionAndAlsoDecryptAndUnpack() {
+        ciphertext = localPacker.packAndEncrypt(plaintext, session);
+        assertNotNull(localPacker.iv);
+
+        Message decryptedCiphertext = remotePacker.decryptAndUnpack(ciphertext, participantWithBothKeys, session);
+        assertNotNull(remotePacker.iv);
+        assertEquals(plaintext.getVersion(), decryptedCiphertext.getVersion());
+        assertEquals(plaintext.getType(), decryptedCiphertext.getType());
+        assertSame(participantWithBothKeys, decryptedCiphertext.getRecipient());
+        assertArrayEquals(plaintext.getContent(MSG), decryptedCiphertext.getContent(MSG));
+    }
+
+    @Test
+    public void testPackAndEncryptWithSessionOnHandshake() {
+        Message challenge = new HandshakeChallenger(Participant.generate()).produceChallenge(participantWithPublicKey);
+
+        ciphertext = localPacker.packAndEncrypt(challenge, session);
+        assertNull(localPacker.iv);
+
+        Message decryptedCiphertext = remotePacker.decryptAndUnpack(ciphertext, participantWithBothKeys, session);
+        assertNull(remotePacker.iv);
+        assertEquals(challenge.getType(), decryptedCiphertext.getType());
+    }
+
+    @Test
+    public void testPackAndEncryptAndAlsoDecryptAndUnpackWithSession() {
+        ciphertext = localPacker.packAndEncrypt(plaintext);
+
+        Message decryptedCiphertext = remotePacker.decryptAndUnpack(ciphertext, participantWithBothKeys, session);
+        assertArrayEquals(plaintext.getContent(MSG), decryptedCiphertext.getContent(MSG));
+    }
+
+    @Test(expected = PackerException.class)
+    public void testDecryptAndUnpackOnSessionMessageWithoutSession() {
+        ciphertext = localPacker.packAndEncrypt(plaintext, session);
+
+        remotePacker.decryptAndUnpack(ciphertext, participantWithBothKeys);
+    }
+
+    @Test(expected = CryptoException.class)
+    public void testDecryptAndUnpackOnWrongSession() {
+        ciphertext = localPacker.packAndEncrypt(plaintext, session);
+        Session otherSession = new Session(participantWithPublicKey, Digest.digestWithSha256("other".getBytes()));
+
+        remotePacker.decryptAndUnpack(ciphertext, participantWithBothKeys, otherSession);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecryptAndUnpackWithSessionOnNullSession() {
+        remotePacker.decryptAndUnpack("".getBytes(), participantWithBothKeys, null);
+    }
+
 }
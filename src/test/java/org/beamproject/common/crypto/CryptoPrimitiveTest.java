@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.crypto;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import org.junit.After;
+import org.junit.Test;
+
+public class CryptoPrimitiveTest {
+
+    @After
+    public void tearDown() {
+        CryptoPrimitive.AES.setBackend(CryptoBackend.BOUNCY_CASTLE);
+        CryptoPrimitive.SHA256.setBackend(CryptoBackend.BOUNCY_CASTLE);
+    }
+
+    @Test
+    public void testGetProperty() {
+        assertEquals("beam.crypto.aes", CryptoPrimitive.AES.getProperty());
+        assertEquals("beam.crypto.sha256", CryptoPrimitive.SHA256.getProperty());
+    }
+
+    @Test
+    public void testGetBackendWithoutProperty() {
+        assertSame(CryptoBackend.BOUNCY_CASTLE, CryptoPrimitive.AES.getBackend());
+    }
+
+    @Test
+    public void testSelect() {
+        for (CryptoPrimitive primitive : CryptoPrimitive.values()) {
+            assertTrue(primitive.isAvailableInJdk());
+            assertSame(CryptoBackend.BOUNCY_CASTLE, primitive.select(null));
+            assertSame(CryptoBackend.BOUNCY_CASTLE, primitive.select("bc"));
+            assertSame(CryptoBackend.JDK, primitive.select("jdk"));
+            assertNotNull(primitive.select(CryptoPrimitive.BENCHMARK));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSelectOnUnknownValue() {
+        CryptoPrimitive.AES.select("unknown");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSetBackendOnNull() {
+        CryptoPrimitive.AES.setBackend(null);
+    }
+
+    @Test
+    public void testSetBackend() {
+        CryptoPrimitive.AES.setBackend(CryptoBackend.JDK);
+        CryptoPrimitive.SHA256.setBackend(CryptoBackend.JDK);
+
+        assertSame(CryptoBackend.JDK, CryptoPrimitive.AES.getBackend());
+        assertNotNull(new SessionCipher().jdkCipher);
+        assertNotNull(new AesCipher(new byte[32]).jdkCipher);
+        assertEquals(32, Digest.digestWithSha256("hello".getBytes()).length);
+    }
+
+}
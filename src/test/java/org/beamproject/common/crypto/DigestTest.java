@@ -83,4 +83,12 @@ public class DigestTest {
         }
     }
 
+    @Test
+    public void testDigestWithSha256OnBackends() {
+        byte[] expected = Hex.decode(HELLO_LOWER_CASE_AS_SHA256);
+
+        assertArrayEquals(expected, Digest.digestWithSha256(bytePayload, CryptoBackend.BOUNCY_CASTLE));
+        assertArrayEquals(expected, Digest.digestWithSha256(bytePayload, CryptoBackend.JDK));
+    }
+
 }
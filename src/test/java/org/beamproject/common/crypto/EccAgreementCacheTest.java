@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.crypto;
+
+import java.math.BigInteger;
+import java.security.InvalidKeyException;
+import java.security.KeyPair;
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.BasicAgreement;
+import org.bouncycastle.crypto.agreement.ECDHBasicAgreement;
+import org.bouncycastle.crypto.params.ECPrivateKeyParameters;
+import org.bouncycastle.crypto.params.ECPublicKeyParameters;
+import org.bouncycastle.jcajce.provider.asymmetric.util.ECUtil;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import org.junit.Before;
+import org.junit.Test;
+
+public class EccAgreementCacheTest {
+
+    private final int CAPACITY = 2;
+    private EccAgreementCache cache;
+    private ECPrivateKeyParameters localKey;
+    private ECPublicKeyParameters remoteKey;
+    private ECPublicKeyParameters otherRemoteKey;
+
+    @Before
+    public void setUp() throws InvalidKeyException {
+        cache = new EccAgreementCache(CAPACITY);
+        localKey = (ECPrivateKeyParameters) ECUtil.generatePrivateKeyParameter(EccKeyPairGenerator.generate().getPrivate());
+        remoteKey = generatePublicKey();
+        otherRemoteKey = generatePublicKey();
+    }
+
+    private ECPublicKeyParameters generatePublicKey() throws InvalidKeyException {
+        KeyPair keyPair = EccKeyPairGenerator.generate();
+        return (ECPublicKeyParameters) ECUtil.generatePublicKeyParameter(keyPair.getPublic());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnZeroCapacity() {
+        new EccAgreementCache(0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCalculateAgreementOnNulls() {
+        cache.calculateAgreement(null, null);
+    }
+
+    @Test
+    public void testCalculateAgreement() {
+        ECDHBasicAgreement agreement = new ECDHBasicAgreement();
+        agreement.init(localKey);
+
+        assertEquals(agreement.calculateAgreement(remoteKey), cache.calculateAgreement(localKey, remoteKey));
+        assertEquals(0, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testCalculateAgreementOnRepeatedKeys() {
+        BigInteger secret = cache.calculateAgreement(localKey, remoteKey);
+
+        assertSame(secret, cache.calculateAgreement(localKey, remoteKey));
+        assertSame(secret, cache.calculateAgreement(localKey, new ECPublicKeyParameters(remoteKey.getQ(), remoteKey.getParameters())));
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testCalculateAgreementOnExceedingCapacity() throws InvalidKeyException {
+        cache.calculateAgreement(localKey, remoteKey);
+        cache.calculateAgreement(localKey, otherRemoteKey);
+        cache.calculateAgreement(localKey, remoteKey);
+        cache.calculateAgreement(localKey, generatePublicKey());
+
+        assertEquals(CAPACITY, cache.size());
+
+        cache.calculateAgreement(localKey, remoteKey);
+        cache.calculateAgreement(localKey, otherRemoteKey);
+
+        assertEquals(2, cache.getHits());
+        assertEquals(4, cache.getMisses());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testGetEphemeralKeyPairOnNull() {
+        cache.getEphemeralKeyPair(null);
+    }
+
+    @Test
+    public void testGetEphemeralKeyPair() {
+        AsymmetricCipherKeyPair keyPair = cache.getEphemeralKeyPair(remoteKey);
+
+        assertSame(keyPair, cache.getEphemeralKeyPair(remoteKey));
+        assertNotSame(keyPair, cache.getEphemeralKeyPair(otherRemoteKey));
+        assertEquals(remoteKey.getParameters(), ((ECPublicKeyParameters) keyPair.getPublic()).getParameters());
+    }
+
+    @Test
+    public void testGetEphemeralKeyPairOnMaximalUses() {
+        AsymmetricCipherKeyPair keyPair = cache.getEphemeralKeyPair(remoteKey);
+
+        for (int i = 1; i < EccAgreementCache.MAXIMAL_EPHEMERAL_KEY_USES; i++) {
+            assertSame(keyPair, cache.getEphemeralKeyPair(remoteKey));
+        }
+
+        assertNotSame(keyPair, cache.getEphemeralKeyPair(remoteKey));
+    }
+
+    @Test
+    public void testCreateAgreement() {
+        BasicAgreement agreement = cache.createAgreement();
+        agreement.init(localKey);
+        ECDHBasicAgreement uncachedAgreement = new ECDHBasicAgreement();
+        uncachedAgreement.init(localKey);
+
+        assertEquals(cache.calculateAgreement(localKey, remoteKey), agreement.calculateAgreement(remoteKey));
+        assertEquals(uncachedAgreement.getFieldSize(), agreement.getFieldSize());
+        assertEquals(1, cache.getHits());
+    }
+
+}
@@ -99,4 +99,109 @@ public class EccCipherTest {
         }
     }
 
+    @Test(expected = IllegalArgumentException.class)
+    public void testConstructorOnZeroCacheCapacity() {
+        new EccCipher(0);
+    }
+
+    @Test
+    public void testConstructorOnCacheCapacity() {
+        cipher = new EccCipher(10);
+
+        assertNotNull(cipher.agreementCache);
+        assertEquals(0, cipher.getCacheHits());
+        assertEquals(0, cipher.getCacheMisses());
+    }
+
+    @Test
+    public void testEncryptionAndDecryptionOnCache() {
+        EccCipher sender = new EccCipher(10);
+        EccCipher receiver = new EccCipher(10);
+        byte[] plaintext = "hello".getBytes();
+
+        for (int i = 0; i < NUMBER_OF_ENCRYPTIONS; i++) {
+            byte[] ciphertext = sender.encrypt(plaintext, keyPair.getPublic());
+
+            assertArrayEquals(plaintext, receiver.decrypt(ciphertext, keyPair.getPrivate()));
+            assertArrayEquals(plaintext, cipher.decrypt(ciphertext, keyPair.getPrivate()));
+        }
+
+        assertEquals(NUMBER_OF_ENCRYPTIONS - 1, sender.getCacheHits());
+        assertEquals(1, sender.getCacheMisses());
+        assertEquals(NUMBER_OF_ENCRYPTIONS - 1, receiver.getCacheHits());
+        assertEquals(1, receiver.getCacheMisses());
+    }
+
+    @Test
+    public void testDecryptOnCacheAndFreshEphemeralKeys() {
+        EccCipher receiver = new EccCipher(10);
+        byte[] plaintext = "hello".getBytes();
+
+        for (int i = 0; i < 3; i++) {
+            assertArrayEquals(plaintext, receiver.decrypt(cipher.encrypt(plaintext, keyPair.getPublic()), keyPair.getPrivate()));
+        }
+
+        assertEquals(0, receiver.getCacheHits());
+        assertEquals(3, receiver.getCacheMisses());
+        assertEquals(0, cipher.getCacheHits());
+    }
+
+    @Test
+    public void testEncryptOnCacheAndDifferentRecipients() {
+        EccCipher sender = new EccCipher(10);
+        KeyPair otherKeyPair = EccKeyPairGenerator.generate();
+        byte[] plaintext = "hello".getBytes();
+
+        byte[] ciphertext = sender.encrypt(plaintext, keyPair.getPublic());
+        byte[] otherCiphertext = sender.encrypt(plaintext, otherKeyPair.getPublic());
+
+        assertArrayEquals(plaintext, cipher.decrypt(ciphertext, keyPair.getPrivate()));
+        assertArrayEquals(plaintext, cipher.decrypt(otherCiphertext, otherKeyPair.getPrivate()));
+        assertEquals(2, sender.getCacheMisses());
+    }
+
+    @Test(expected = CryptoException.class)
+    public void testDecryptOnCacheAndWrongKey() {
+        EccCipher sender = new EccCipher(10);
+        byte[] ciphertext = sender.encrypt("hello".getBytes(), keyPair.getPublic());
+
+        new EccCipher(10).decrypt(ciphertext, EccKeyPairGenerator.generate().getPrivate());
+    }
+
+    @Test(expected = CryptoException.class)
+    public void testDecryptOnCacheAndModifiedCiphertext() {
+        EccCipher sender = new EccCipher(10);
+        byte[] ciphertext = sender.encrypt("hello".getBytes(), keyPair.getPublic());
+        ciphertext[ciphertext.length - 1] ^= 1;
+
+        new EccCipher(10).decrypt(ciphertext, keyPair.getPrivate());
+    }
+
+    @Test
+    public void testEncryptOnCacheAndEqualPlaintexts() {
+        EccCipher sender = new EccCipher(10);
+        byte[] plaintext = "hello".getBytes();
+
+        byte[] ciphertext = sender.encrypt(plaintext, keyPair.getPublic());
+        byte[] otherCiphertext = sender.encrypt(plaintext, keyPair.getPublic());
+
+        assertThat(otherCiphertext, not(equalTo(ciphertext)));
+        assertEquals(1, sender.getCacheHits());
+        assertArrayEquals(plaintext, cipher.decrypt(otherCiphertext, keyPair.getPrivate()));
+    }
+
+    @Test(expected = CryptoException.class)
+    public void testDecryptOnCacheAndModifiedNonce() {
+        EccCipher sender = new EccCipher(10);
+        byte[] ciphertext = sender.encrypt("hello".getBytes(), keyPair.getPublic());
+        ciphertext[0] ^= 1;
+
+        new EccCipher(10).decrypt(ciphertext, keyPair.getPrivate());
+    }
+
+    @Test(expected = CryptoException.class)
+    public void testDecryptOnCiphertextShorterThanNonce() {
+        cipher.decrypt(new byte[EccCipher.NONCE_LENGTH_IN_BYTES - 1], keyPair.getPrivate());
+    }
+
 }
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2013, 2014 beamproject.org
+ *
+ * This file is part of beam-common.
+ *
+ * beam-common is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * beam-common is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.beamproject.common.crypto;
+
+import org.beamproject.common.Participant;
+import static org.beamproject.common.crypto.EccKeyPairGenerator.fromPublicKey;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SessionCipherTest {
+
+    private final byte[] PLAINTEXT = "hello session".getBytes();
+    private final byte[] ASSOCIATED_DATA = "1.0".getBytes();
+    private final byte[] SESSION_KEY = Digest.digestWithSha256("session".getBytes());
+    private SessionCipher cipher;
+    private byte[] key;
+    private byte[] iv;
+
+    @Before
+    public void setUp() {
+        cipher = new SessionCipher();
+        key = SessionCipher.deriveKey(SESSION_KEY, Participant.generate());
+        iv = cipher.generateIv();
+    }
+
+    @Test
+    public void testGenerateIv() {
+        assertEquals(SessionCipher.IV_LENGTH_IN_BYTES, iv.length);
+        assertFalse(java.util.Arrays.equals(iv, cipher.generateIv()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testEncryptOnNulls() {
+        cipher.encrypt(null, null, null, null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDecryptOnNulls() {
+        cipher.decrypt(null, null, null, null);
+    }
+
+    @Test
+    public void testEncryptionAndDecryption() {
+        byte[] ciphertext = cipher.encrypt(PLAINTEXT, key, iv, ASSOCIATED_DATA);
+        assertEquals(PLAINTEXT.length + SessionCipher.MAC_SIZE_IN_BITS / 8, ciphertext.length);
+
+        byte[] output = cipher.decrypt(ciphertext, key, iv, ASSOCIATED_DATA);
+        assertArrayEquals(PLAINTEXT, output);
+    }
+
+    @Test(expected = CryptoException.class)
+    public void testDecryptOnModifiedCiphertext() {
+        byte[] ciphertext = cipher.encrypt(PLAINTEXT, key, iv, ASSOCIATED_DATA);
+        ciphertext[0] ^= 1;
+
+        cipher.decrypt(ciphertext, key, iv, ASSOCIATED_DATA);
+    }
+
+    @Test(expected = CryptoException.class)
+    public void testDecryptOnModifiedAssociatedData() {
+        byte[] ciphertext = cipher.encrypt(PLAINTEXT, key, iv, ASSOCIATED_DATA);
+
+        cipher.decrypt(ciphertext, key, iv, "2.0".getBytes());
+    }
+
+    @Test
+    public void testDeriveKeyOnBothSides() {
+        Participant recipient = Participant.generate();
+        Participant recipientWithPublicKey = new Participant(fromPublicKey(recipient.getPublicKeyAsBytes()));
+
+        assertArrayEquals(SessionCipher.deriveKey(SESSION_KEY, recipient),
+                SessionCipher.deriveKey(SESSION_KEY, recipientWithPublicKey));
+    }
+
+    @Test
+    public void testDeriveKeyOnDirections() {
+        byte[] keyToA = SessionCipher.deriveKey(SESSION_KEY, Participant.generate());
+        byte[] keyToB = SessionCipher.deriveKey(SESSION_KEY, Participant.generate());
+
+        assertEquals(32, keyToA.length);
+        assertFalse(java.util.Arrays.equals(keyToA, keyToB));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDeriveKeyOnNulls() {
+        SessionCipher.deriveKey(null, null);
+    }
+
+    @Test
+    public void testEncryptionAndDecryptionOnBackends() {
+        SessionCipher bouncyCastle = new SessionCipher(CryptoBackend.BOUNCY_CASTLE);
+        SessionCipher jdk = new SessionCipher(CryptoBackend.JDK);
+
+        byte[] ciphertext = bouncyCastle.encrypt(PLAINTEXT, key, iv, ASSOCIATED_DATA);
+        assertArrayEquals(ciphertext, jdk.encrypt(PLAINTEXT, key, iv, ASSOCIATED_DATA));
+        assertArrayEquals(PLAINTEXT, jdk.decrypt(ciphertext, key, iv, ASSOCIATED_DATA));
+        assertArrayEquals(PLAINTEXT, bouncyCastle.decrypt(ciphertext, key, iv, ASSOCIATED_DATA));
+    }
+
+    @Test(expected = CryptoException.class)
+    public void testDecryptOnWrongAssociatedDataWithJdk() {
+        cipher = new SessionCipher(CryptoBackend.JDK);
+        byte[] ciphertext = cipher.encrypt(PLAINTEXT, key, iv, ASSOCIATED_DATA);
+
+        cipher.decrypt(ciphertext, key, iv, "2.0".getBytes());
+    }
+
+}